@@ -17,6 +17,7 @@
 package android.car.diagnostic;
 
 import android.annotation.IntDef;
+import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.SystemApi;
 import android.os.Parcel;
@@ -25,9 +26,13 @@ import android.util.JsonWriter;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -37,6 +42,16 @@ import java.util.Objects;
  */
 @SystemApi
 public final class CarDiagnosticEvent implements Parcelable {
+    /** Upper bound on the sensor count accepted by {@link #readFromStream(DataInput)} */
+    private static final int MAX_STREAM_SENSOR_COUNT = 1 << 16;
+
+    /**
+     * Sensors below this index, which covers the system sensors and the first vendor ones, are
+     * kept in the dense arrays. Negative and larger indices are kept in the sparse overflow maps,
+     * so that an arbitrary key does not allocate an array sized by its value.
+     */
+    private static final int MAX_DENSE_SENSOR_COUNT = 256;
+
     /** Whether this frame represents a live or a freeze frame */
     public final int frameType;
 
@@ -47,16 +62,36 @@ public final class CarDiagnosticEvent implements Parcelable {
     public final long timestamp;
 
     /**
-     * Sparse array that contains the mapping of OBD2 diagnostic properties to their values for
-     * integer valued properties
+     * Values of integer valued OBD2 diagnostic properties, indexed by property. Only entries whose
+     * bit is set in {@link #mIntPresence} hold a value; all others are zero.
      */
-    private final SparseIntArray mIntValues;
+    private final int[] mIntValues;
+
+    /** Bitmap of the integer valued properties present in this frame */
+    private final long[] mIntPresence;
 
     /**
-     * Sparse array that contains the mapping of OBD2 diagnostic properties to their values for
-     * float valued properties
+     * Values of float valued OBD2 diagnostic properties, indexed by property. Only entries whose
+     * bit is set in {@link #mFloatPresence} hold a value; all others are zero.
      */
-    private final SparseArray<Float> mFloatValues;
+    private final float[] mFloatValues;
+
+    /** Bitmap of the float valued properties present in this frame */
+    private final long[] mFloatPresence;
+
+    /**
+     * Integer valued properties outside of the dense range, or {@code null} if there are none.
+     * Never holds a key below {@link #MAX_DENSE_SENSOR_COUNT} that is not negative.
+     */
+    @Nullable
+    private final SparseIntArray mIntOverflow;
+
+    /**
+     * Float valued properties outside of the dense range, or {@code null} if there are none.
+     * Never holds a key below {@link #MAX_DENSE_SENSOR_COUNT} that is not negative.
+     */
+    @Nullable
+    private final SparseArray<Float> mFloatOverflow;
 
     /**
      * Diagnostic Troubleshooting Code (DTC) that was detected and caused this frame to be stored
@@ -67,19 +102,21 @@ public final class CarDiagnosticEvent implements Parcelable {
     public CarDiagnosticEvent(Parcel in) {
         frameType = in.readInt();
         timestamp = in.readLong();
+        mFloatValues = nonNull(in.createFloatArray());
+        mFloatPresence = nonNull(in.createLongArray());
+        mIntValues = nonNull(in.createIntArray());
+        mIntPresence = nonNull(in.createLongArray());
         int len = in.readInt();
-        mFloatValues = new SparseArray<>(len);
+        mFloatOverflow = len == 0 ? null : new SparseArray<>(len);
         for (int i = 0; i < len; ++i) {
             int key = in.readInt();
-            float value = in.readFloat();
-            mFloatValues.put(key, value);
+            mFloatOverflow.put(key, in.readFloat());
         }
         len = in.readInt();
-        mIntValues = new SparseIntArray(len);
+        mIntOverflow = len == 0 ? null : new SparseIntArray(len);
         for (int i = 0; i < len; ++i) {
             int key = in.readInt();
-            int value = in.readInt();
-            mIntValues.put(key, value);
+            mIntOverflow.put(key, in.readInt());
         }
         dtc = (String) in.readValue(String.class.getClassLoader());
         // version 1 up to here
@@ -94,17 +131,21 @@ public final class CarDiagnosticEvent implements Parcelable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(frameType);
         dest.writeLong(timestamp);
-        dest.writeInt(mFloatValues.size());
-        for (int i = 0; i < mFloatValues.size(); ++i) {
-            int key = mFloatValues.keyAt(i);
-            dest.writeInt(key);
-            dest.writeFloat(mFloatValues.get(key));
-        }
-        dest.writeInt(mIntValues.size());
-        for (int i = 0; i < mIntValues.size(); ++i) {
-            int key = mIntValues.keyAt(i);
-            dest.writeInt(key);
-            dest.writeInt(mIntValues.get(key));
+        dest.writeFloatArray(mFloatValues);
+        dest.writeLongArray(mFloatPresence);
+        dest.writeIntArray(mIntValues);
+        dest.writeLongArray(mIntPresence);
+        int len = size(mFloatOverflow);
+        dest.writeInt(len);
+        for (int i = 0; i < len; ++i) {
+            dest.writeInt(mFloatOverflow.keyAt(i));
+            dest.writeFloat(mFloatOverflow.valueAt(i));
+        }
+        len = size(mIntOverflow);
+        dest.writeInt(len);
+        for (int i = 0; i < len; ++i) {
+            dest.writeInt(mIntOverflow.keyAt(i));
+            dest.writeInt(mIntOverflow.valueAt(i));
         }
         dest.writeValue(dtc);
     }
@@ -141,20 +182,34 @@ public final class CarDiagnosticEvent implements Parcelable {
         jsonWriter.name("timestamp").value(timestamp);
 
         jsonWriter.name("intValues").beginArray();
-        for (int i = 0; i < mIntValues.size(); ++i) {
-            jsonWriter.beginObject();
-            jsonWriter.name("id").value(mIntValues.keyAt(i));
-            jsonWriter.name("value").value(mIntValues.valueAt(i));
-            jsonWriter.endObject();
+        int overflow = 0;
+        for (; overflow < size(mIntOverflow) && mIntOverflow.keyAt(overflow) < 0; ++overflow) {
+            writeJsonValue(jsonWriter, mIntOverflow.keyAt(overflow),
+                    mIntOverflow.valueAt(overflow));
+        }
+        for (int i = nextPresent(mIntPresence, mIntValues.length, 0); i >= 0;
+                i = nextPresent(mIntPresence, mIntValues.length, i + 1)) {
+            writeJsonValue(jsonWriter, i, mIntValues[i]);
+        }
+        for (; overflow < size(mIntOverflow); ++overflow) {
+            writeJsonValue(jsonWriter, mIntOverflow.keyAt(overflow),
+                    mIntOverflow.valueAt(overflow));
         }
         jsonWriter.endArray();
 
         jsonWriter.name("floatValues").beginArray();
-        for (int i = 0; i < mFloatValues.size(); ++i) {
-            jsonWriter.beginObject();
-            jsonWriter.name("id").value(mFloatValues.keyAt(i));
-            jsonWriter.name("value").value(mFloatValues.valueAt(i));
-            jsonWriter.endObject();
+        overflow = 0;
+        for (; overflow < size(mFloatOverflow) && mFloatOverflow.keyAt(overflow) < 0; ++overflow) {
+            writeJsonValue(jsonWriter, mFloatOverflow.keyAt(overflow),
+                    mFloatOverflow.valueAt(overflow));
+        }
+        for (int i = nextPresent(mFloatPresence, mFloatValues.length, 0); i >= 0;
+                i = nextPresent(mFloatPresence, mFloatValues.length, i + 1)) {
+            writeJsonValue(jsonWriter, i, mFloatValues[i]);
+        }
+        for (; overflow < size(mFloatOverflow); ++overflow) {
+            writeJsonValue(jsonWriter, mFloatOverflow.keyAt(overflow),
+                    mFloatOverflow.valueAt(overflow));
         }
         jsonWriter.endArray();
 
@@ -165,6 +220,14 @@ public final class CarDiagnosticEvent implements Parcelable {
         jsonWriter.endObject();
     }
 
+    private static void writeJsonValue(JsonWriter jsonWriter, int id, Number value)
+            throws IOException {
+        jsonWriter.beginObject();
+        jsonWriter.name("id").value(id);
+        jsonWriter.name("value").value(value);
+        jsonWriter.endObject();
+    }
+
     public static final Parcelable.Creator<CarDiagnosticEvent> CREATOR =
             new Parcelable.Creator<CarDiagnosticEvent>() {
                 public CarDiagnosticEvent createFromParcel(Parcel in) {
@@ -179,16 +242,91 @@ public final class CarDiagnosticEvent implements Parcelable {
     private CarDiagnosticEvent(
             int frameType,
             long timestamp,
-            SparseArray<Float> floatValues,
-            SparseIntArray intValues,
+            float[] floatValues,
+            long[] floatPresence,
+            int[] intValues,
+            long[] intPresence,
+            @Nullable SparseArray<Float> floatOverflow,
+            @Nullable SparseIntArray intOverflow,
             String dtc) {
         this.frameType = frameType;
         this.timestamp = timestamp;
         mFloatValues = floatValues;
+        mFloatPresence = floatPresence;
         mIntValues = intValues;
+        mIntPresence = intPresence;
+        mFloatOverflow = size(floatOverflow) == 0 ? null : floatOverflow;
+        mIntOverflow = size(intOverflow) == 0 ? null : intOverflow;
         this.dtc = dtc;
     }
 
+    /**
+     * Creates a CarDiagnosticEvent from the values of a vehicle HAL diagnostic property.
+     *
+     * <p>The presence bitmap holds one bit per sensor, least significant bit first, with all
+     * integer sensors followed by all float sensors. Values are unboxed straight into the
+     * frame's arrays.
+     *
+     * @param frameType       Either {@link CarDiagnosticManager#FRAME_TYPE_LIVE} or
+     *                        {@link CarDiagnosticManager#FRAME_TYPE_FREEZE}
+     * @param timestamp       Timestamp of the frame
+     * @param intValues       Integer sensor values, indexed by sensor
+     * @param numIntSensors   Number of integer sensors described by the bitmap
+     * @param floatValues     Float sensor values, indexed by sensor
+     * @param numFloatSensors Number of float sensors described by the bitmap
+     * @param presenceBitmap  Bitmap of the sensors present in the frame
+     * @param dtc             DTC of a freeze frame
+     * @hide
+     */
+    @NonNull
+    public static CarDiagnosticEvent createFromHalValues(int frameType, long timestamp,
+            @NonNull List<Integer> intValues, int numIntSensors,
+            @NonNull List<Float> floatValues, int numFloatSensors,
+            @NonNull List<Byte> presenceBitmap, @Nullable String dtc) {
+        int intCount = Math.min(numIntSensors, intValues.size());
+        int lastInt = -1;
+        int[] ints = new int[Math.min(intCount, MAX_DENSE_SENSOR_COUNT)];
+        long[] intPresence = new long[getWordCount(ints.length)];
+        for (int i = 0; i < ints.length; ++i) {
+            if (isBitSet(presenceBitmap, i)) {
+                ints[i] = intValues.get(i);
+                intPresence[i >> 6] |= 1L << i;
+                lastInt = i;
+            }
+        }
+        SparseIntArray intOverflow = null;
+        for (int i = ints.length; i < intCount; ++i) {
+            if (isBitSet(presenceBitmap, i)) {
+                if (intOverflow == null) intOverflow = new SparseIntArray();
+                intOverflow.append(i, intValues.get(i));
+            }
+        }
+
+        int floatCount = Math.min(numFloatSensors, floatValues.size());
+        int lastFloat = -1;
+        float[] floats = new float[Math.min(floatCount, MAX_DENSE_SENSOR_COUNT)];
+        long[] floatPresence = new long[getWordCount(floats.length)];
+        for (int i = 0; i < floats.length; ++i) {
+            if (isBitSet(presenceBitmap, numIntSensors + i)) {
+                floats[i] = floatValues.get(i);
+                floatPresence[i >> 6] |= 1L << i;
+                lastFloat = i;
+            }
+        }
+        SparseArray<Float> floatOverflow = null;
+        for (int i = floats.length; i < floatCount; ++i) {
+            if (isBitSet(presenceBitmap, numIntSensors + i)) {
+                if (floatOverflow == null) floatOverflow = new SparseArray<>();
+                floatOverflow.append(i, floatValues.get(i));
+            }
+        }
+
+        return new CarDiagnosticEvent(frameType, timestamp,
+                trim(floats, lastFloat + 1), trim(floatPresence, lastFloat + 1),
+                trim(ints, lastInt + 1), trim(intPresence, lastInt + 1),
+                floatOverflow, intOverflow, dtc);
+    }
+
     /**
      * This class can be used to incrementally construct a CarDiagnosticEvent.
      * CarDiagnosticEvent instances are immutable once built.
@@ -196,8 +334,14 @@ public final class CarDiagnosticEvent implements Parcelable {
     public static class Builder {
         private int mType = CarDiagnosticManager.FRAME_TYPE_LIVE;
         private long mTimestamp = 0;
-        private SparseArray<Float> mFloatValues = new SparseArray<>();
-        private SparseIntArray mIntValues = new SparseIntArray();
+        private float[] mFloatValues = new float[0];
+        private long[] mFloatPresence = new long[0];
+        private int mFloatCount = 0;
+        private int[] mIntValues = new int[0];
+        private long[] mIntPresence = new long[0];
+        private int mIntCount = 0;
+        private SparseArray<Float> mFloatOverflow = null;
+        private SparseIntArray mIntOverflow = null;
         private String mDtc = null;
 
         private Builder(int type) {
@@ -240,8 +384,7 @@ public final class CarDiagnosticEvent implements Parcelable {
          */
         @Deprecated
         public Builder withIntValue(int key, int value) {
-            mIntValues.put(key, value);
-            return this;
+            return setIntValue(key, value);
         }
 
         /**
@@ -251,7 +394,18 @@ public final class CarDiagnosticEvent implements Parcelable {
          * @return Builder
          */
         public Builder setIntValue(int key, int value) {
-            mIntValues.put(key, value);
+            if (!isDense(key)) {
+                if (mIntOverflow == null) mIntOverflow = new SparseIntArray();
+                mIntOverflow.put(key, value);
+                return this;
+            }
+            if (key >= mIntValues.length) {
+                mIntValues = Arrays.copyOf(mIntValues, getCapacity(mIntValues.length, key));
+                mIntPresence = Arrays.copyOf(mIntPresence, getWordCount(mIntValues.length));
+            }
+            mIntValues[key] = value;
+            mIntPresence[key >> 6] |= 1L << key;
+            mIntCount = Math.max(mIntCount, key + 1);
             return this;
         }
 
@@ -261,8 +415,7 @@ public final class CarDiagnosticEvent implements Parcelable {
          */
         @Deprecated
         public Builder withFloatValue(int key, float value) {
-            mFloatValues.put(key, value);
-            return this;
+            return setFloatValue(key, value);
         }
 
         /**
@@ -272,7 +425,18 @@ public final class CarDiagnosticEvent implements Parcelable {
          * @return Builder
          */
         public Builder setFloatValue(int key, float value) {
-            mFloatValues.put(key, value);
+            if (!isDense(key)) {
+                if (mFloatOverflow == null) mFloatOverflow = new SparseArray<>();
+                mFloatOverflow.put(key, value);
+                return this;
+            }
+            if (key >= mFloatValues.length) {
+                mFloatValues = Arrays.copyOf(mFloatValues, getCapacity(mFloatValues.length, key));
+                mFloatPresence = Arrays.copyOf(mFloatPresence, getWordCount(mFloatValues.length));
+            }
+            mFloatValues[key] = value;
+            mFloatPresence[key >> 6] |= 1L << key;
+            mFloatCount = Math.max(mFloatCount, key + 1);
             return this;
         }
 
@@ -298,7 +462,18 @@ public final class CarDiagnosticEvent implements Parcelable {
 
         /** Builds and returns the CarDiagnosticEvent */
         public CarDiagnosticEvent build() {
-            return new CarDiagnosticEvent(mType, mTimestamp, mFloatValues, mIntValues, mDtc);
+            // Copy the arrays, as the builder may still be used to build more frames
+            return new CarDiagnosticEvent(mType, mTimestamp,
+                    Arrays.copyOf(mFloatValues, mFloatCount),
+                    Arrays.copyOf(mFloatPresence, getWordCount(mFloatCount)),
+                    Arrays.copyOf(mIntValues, mIntCount),
+                    Arrays.copyOf(mIntPresence, getWordCount(mIntCount)),
+                    mFloatOverflow != null ? mFloatOverflow.clone() : null,
+                    mIntOverflow != null ? mIntOverflow.clone() : null, mDtc);
+        }
+
+        private static int getCapacity(int capacity, int key) {
+            return Math.max(key + 1, Math.min(capacity * 2, MAX_DENSE_SENSOR_COUNT));
         }
     }
 
@@ -308,21 +483,165 @@ public final class CarDiagnosticEvent implements Parcelable {
      * @hide
      */
     public CarDiagnosticEvent withVendorSensorsRemoved() {
-        SparseIntArray newIntValues = mIntValues.clone();
-        SparseArray<Float> newFloatValues = mFloatValues.clone();
-        for (int i = 0; i < mIntValues.size(); ++i) {
-            int key = mIntValues.keyAt(i);
-            if (key >= android.car.diagnostic.IntegerSensorIndex.LAST_SYSTEM) {
-                newIntValues.delete(key);
-            }
+        int intCount = Math.min(mIntValues.length,
+                android.car.diagnostic.IntegerSensorIndex.LAST_SYSTEM);
+        int floatCount = Math.min(mFloatValues.length,
+                android.car.diagnostic.FloatSensorIndex.LAST_SYSTEM);
+        int lastInt = prevPresent(mIntPresence, intCount - 1);
+        int lastFloat = prevPresent(mFloatPresence, floatCount - 1);
+        // Overflow keys are either negative, which are kept, or past all system sensors
+        SparseIntArray intOverflow = null;
+        for (int i = 0; i < size(mIntOverflow) && mIntOverflow.keyAt(i) < 0; ++i) {
+            if (intOverflow == null) intOverflow = new SparseIntArray();
+            intOverflow.append(mIntOverflow.keyAt(i), mIntOverflow.valueAt(i));
         }
-        for (int i = 0; i < mFloatValues.size(); ++i) {
-            int key = mFloatValues.keyAt(i);
-            if (key >= android.car.diagnostic.FloatSensorIndex.LAST_SYSTEM) {
-                newFloatValues.delete(key);
-            }
+        SparseArray<Float> floatOverflow = null;
+        for (int i = 0; i < size(mFloatOverflow) && mFloatOverflow.keyAt(i) < 0; ++i) {
+            if (floatOverflow == null) floatOverflow = new SparseArray<>();
+            floatOverflow.append(mFloatOverflow.keyAt(i), mFloatOverflow.valueAt(i));
+        }
+        return new CarDiagnosticEvent(frameType, timestamp,
+                trim(mFloatValues, lastFloat + 1), trim(mFloatPresence, lastFloat + 1),
+                trim(mIntValues, lastInt + 1), trim(mIntPresence, lastInt + 1),
+                floatOverflow, intOverflow, dtc);
+    }
+
+    /**
+     * Writes this frame in a compact binary form, for persistent storage.
+     *
+     * <p>Only present sensors are written, preceded by the presence bitmaps, followed by the
+     * sensors outside of the dense range as key and value pairs.
+     *
+     * @see #readFromStream(DataInput)
+     * @hide
+     */
+    public void writeToStream(@NonNull DataOutput out) throws IOException {
+        out.writeByte(frameType);
+        out.writeLong(timestamp);
+        out.writeInt(mIntValues.length);
+        for (long word : trim(mIntPresence, mIntValues.length)) {
+            out.writeLong(word);
+        }
+        for (int i = nextPresent(mIntPresence, mIntValues.length, 0); i >= 0;
+                i = nextPresent(mIntPresence, mIntValues.length, i + 1)) {
+            out.writeInt(mIntValues[i]);
+        }
+        out.writeInt(mFloatValues.length);
+        for (long word : trim(mFloatPresence, mFloatValues.length)) {
+            out.writeLong(word);
+        }
+        for (int i = nextPresent(mFloatPresence, mFloatValues.length, 0); i >= 0;
+                i = nextPresent(mFloatPresence, mFloatValues.length, i + 1)) {
+            out.writeFloat(mFloatValues[i]);
+        }
+        int len = size(mIntOverflow);
+        out.writeInt(len);
+        for (int i = 0; i < len; ++i) {
+            out.writeInt(mIntOverflow.keyAt(i));
+            out.writeInt(mIntOverflow.valueAt(i));
+        }
+        len = size(mFloatOverflow);
+        out.writeInt(len);
+        for (int i = 0; i < len; ++i) {
+            out.writeInt(mFloatOverflow.keyAt(i));
+            out.writeFloat(mFloatOverflow.valueAt(i));
+        }
+        out.writeBoolean(dtc != null);
+        if (dtc != null) {
+            out.writeUTF(dtc);
+        }
+    }
+
+    /**
+     * Reads a frame written by {@link #writeToStream(DataOutput)}.
+     *
+     * @throws IOException if the data is truncated or malformed
+     * @hide
+     */
+    @NonNull
+    public static CarDiagnosticEvent readFromStream(@NonNull DataInput in) throws IOException {
+        int frameType = in.readByte();
+        long timestamp = in.readLong();
+
+        int intCount = readDenseCount(in);
+        long[] intPresence = new long[getWordCount(intCount)];
+        for (int i = 0; i < intPresence.length; ++i) {
+            intPresence[i] = in.readLong();
+        }
+        int[] intValues = new int[intCount];
+        for (int i = nextPresent(intPresence, intCount, 0); i >= 0;
+                i = nextPresent(intPresence, intCount, i + 1)) {
+            intValues[i] = in.readInt();
+        }
+
+        int floatCount = readDenseCount(in);
+        long[] floatPresence = new long[getWordCount(floatCount)];
+        for (int i = 0; i < floatPresence.length; ++i) {
+            floatPresence[i] = in.readLong();
+        }
+        float[] floatValues = new float[floatCount];
+        for (int i = nextPresent(floatPresence, floatCount, 0); i >= 0;
+                i = nextPresent(floatPresence, floatCount, i + 1)) {
+            floatValues[i] = in.readFloat();
+        }
+
+        int len = readCount(in);
+        SparseIntArray intOverflow = new SparseIntArray(len);
+        for (int i = 0; i < len; ++i) {
+            int key = readOverflowKey(in);
+            intOverflow.put(key, in.readInt());
         }
-        return new CarDiagnosticEvent(frameType, timestamp, newFloatValues, newIntValues, dtc);
+        len = readCount(in);
+        SparseArray<Float> floatOverflow = new SparseArray<>(len);
+        for (int i = 0; i < len; ++i) {
+            int key = readOverflowKey(in);
+            floatOverflow.put(key, in.readFloat());
+        }
+
+        String dtc = in.readBoolean() ? in.readUTF() : null;
+        int lastInt = prevPresent(intPresence, intCount - 1);
+        int lastFloat = prevPresent(floatPresence, floatCount - 1);
+        return new CarDiagnosticEvent(frameType, timestamp,
+                trim(floatValues, lastFloat + 1), trim(floatPresence, lastFloat + 1),
+                trim(intValues, lastInt + 1), trim(intPresence, lastInt + 1),
+                floatOverflow, intOverflow, dtc);
+    }
+
+    private static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        // Sensor indices are bounded by the HAL's sensor tables; reject obviously corrupt data
+        if (count < 0 || count > MAX_STREAM_SENSOR_COUNT) {
+            throw new IOException("invalid sensor count " + count);
+        }
+        return count;
+    }
+
+    private static int readDenseCount(DataInput in) throws IOException {
+        int count = readCount(in);
+        if (count > MAX_DENSE_SENSOR_COUNT) {
+            throw new IOException("invalid sensor count " + count);
+        }
+        return count;
+    }
+
+    private static int readOverflowKey(DataInput in) throws IOException {
+        int key = in.readInt();
+        if (isDense(key)) {
+            throw new IOException("invalid sensor " + key);
+        }
+        return key;
+    }
+
+    /**
+     * Returns an estimate of the memory used by this frame's sensor values and DTC, in bytes.
+     *
+     * @hide
+     */
+    public int getApproximateSize() {
+        return 4 * (mIntValues.length + mFloatValues.length)
+                + 8 * (mIntPresence.length + mFloatPresence.length)
+                + 8 * (size(mIntOverflow) + size(mFloatOverflow))
+                + (dtc != null ? 2 * dtc.length() : 0);
     }
 
     /** Returns true if this object is a live frame, false otherwise */
@@ -337,8 +656,9 @@ public final class CarDiagnosticEvent implements Parcelable {
 
     /** @hide */
     public boolean isEmptyFrame() {
-        boolean empty = (0 == mIntValues.size());
-        empty &= (0 == mFloatValues.size());
+        boolean empty = (nextPresent(mIntPresence, mIntValues.length, 0) < 0);
+        empty &= (nextPresent(mFloatPresence, mFloatValues.length, 0) < 0);
+        empty &= (size(mIntOverflow) == 0) && (size(mFloatOverflow) == 0);
         if (isFreezeFrame()) empty &= dtc.isEmpty();
         return empty;
     }
@@ -379,67 +699,47 @@ public final class CarDiagnosticEvent implements Parcelable {
         if (otherEvent.timestamp != timestamp) {
             return false;
         }
-        if (otherEvent.mIntValues.size() != mIntValues.size()) {
-            return false;
-        }
-        if (otherEvent.mFloatValues.size() != mFloatValues.size()) {
-            return false;
-        }
         if (!Objects.equals(dtc, otherEvent.dtc)) {
             return false;
         }
-        for (int i = 0; i < mIntValues.size(); ++i) {
-            int key = mIntValues.keyAt(i);
-            int otherKey = otherEvent.mIntValues.keyAt(i);
-            if (key != otherKey) {
-                return false;
-            }
-            int value = mIntValues.valueAt(i);
-            int otherValue = otherEvent.mIntValues.valueAt(i);
-            if (value != otherValue) {
-                return false;
-            }
+        // Frames are always built with trimmed arrays, so equal frames have equal arrays
+        return Arrays.equals(mIntPresence, otherEvent.mIntPresence)
+                && Arrays.equals(mIntValues, otherEvent.mIntValues)
+                && Arrays.equals(mFloatPresence, otherEvent.mFloatPresence)
+                && Arrays.equals(mFloatValues, otherEvent.mFloatValues)
+                && overflowEquals(mIntOverflow, otherEvent.mIntOverflow)
+                && overflowEquals(mFloatOverflow, otherEvent.mFloatOverflow);
+    }
+
+    private static boolean overflowEquals(SparseIntArray a, SparseIntArray b) {
+        int size = size(a);
+        if (size != size(b)) return false;
+        for (int i = 0; i < size; ++i) {
+            if (a.keyAt(i) != b.keyAt(i) || a.valueAt(i) != b.valueAt(i)) return false;
         }
-        for (int i = 0; i < mFloatValues.size(); ++i) {
-            int key = mFloatValues.keyAt(i);
-            int otherKey = otherEvent.mFloatValues.keyAt(i);
-            if (key != otherKey) {
-                return false;
-            }
-            float value = mFloatValues.valueAt(i);
-            float otherValue = otherEvent.mFloatValues.valueAt(i);
-            if (value != otherValue) {
-                return false;
-            }
+        return true;
+    }
+
+    private static boolean overflowEquals(SparseArray<Float> a, SparseArray<Float> b) {
+        int size = size(a);
+        if (size != size(b)) return false;
+        for (int i = 0; i < size; ++i) {
+            if (a.keyAt(i) != b.keyAt(i) || !a.valueAt(i).equals(b.valueAt(i))) return false;
         }
         return true;
     }
 
     @Override
     public int hashCode() {
-        Integer[] intKeys = new Integer[mIntValues.size()];
-        Integer[] floatKeys = new Integer[mFloatValues.size()];
-        Integer[] intValues = new Integer[intKeys.length];
-        Float[] floatValues = new Float[floatKeys.length];
-        for (int i = 0; i < intKeys.length; ++i) {
-            intKeys[i] = mIntValues.keyAt(i);
-            intValues[i] = mIntValues.valueAt(i);
-        }
-        for (int i = 0; i < floatKeys.length; ++i) {
-            floatKeys[i] = mFloatValues.keyAt(i);
-            floatValues[i] = mFloatValues.valueAt(i);
-        }
-        int intKeysHash = Objects.hash((Object[]) intKeys);
-        int intValuesHash = Objects.hash((Object[]) intValues);
-        int floatKeysHash = Objects.hash((Object[]) floatKeys);
-        int floatValuesHash = Objects.hash((Object[]) floatValues);
         return Objects.hash(frameType,
                 timestamp,
                 dtc,
-                intKeysHash,
-                intValuesHash,
-                floatKeysHash,
-                floatValuesHash);
+                Arrays.hashCode(mIntPresence),
+                Arrays.hashCode(mIntValues),
+                Arrays.hashCode(mFloatPresence),
+                Arrays.hashCode(mFloatValues),
+                size(mIntOverflow),
+                size(mFloatOverflow));
     }
 
     @Override
@@ -453,8 +753,8 @@ public final class CarDiagnosticEvent implements Parcelable {
                 isLiveFrame() ? "live" : "freeze",
                 timestamp,
                 dtc,
-                mIntValues.toString(),
-                mFloatValues.toString());
+                intValuesToString(),
+                floatValuesToString());
     }
 
     /**
@@ -463,7 +763,7 @@ public final class CarDiagnosticEvent implements Parcelable {
      */
     public int getSystemIntegerSensor(
             @android.car.diagnostic.IntegerSensorIndex.SensorIndex int sensor, int defaultValue) {
-        return mIntValues.get(sensor, defaultValue);
+        return getVendorIntegerSensor(sensor, defaultValue);
     }
 
     /**
@@ -472,7 +772,7 @@ public final class CarDiagnosticEvent implements Parcelable {
      */
     public float getSystemFloatSensor(
             @android.car.diagnostic.FloatSensorIndex.SensorIndex int sensor, float defaultValue) {
-        return mFloatValues.get(sensor, defaultValue);
+        return getVendorFloatSensor(sensor, defaultValue);
     }
 
     /**
@@ -480,7 +780,11 @@ public final class CarDiagnosticEvent implements Parcelable {
      * Returns defaultValue otherwise.
      */
     public int getVendorIntegerSensor(int sensor, int defaultValue) {
-        return mIntValues.get(sensor, defaultValue);
+        if (!isDense(sensor)) {
+            return mIntOverflow != null ? mIntOverflow.get(sensor, defaultValue) : defaultValue;
+        }
+        return isPresent(mIntPresence, mIntValues.length, sensor)
+                ? mIntValues[sensor] : defaultValue;
     }
 
     /**
@@ -488,7 +792,12 @@ public final class CarDiagnosticEvent implements Parcelable {
      * Returns defaultValue otherwise.
      */
     public float getVendorFloatSensor(int sensor, float defaultValue) {
-        return mFloatValues.get(sensor, defaultValue);
+        if (!isDense(sensor)) {
+            return mFloatOverflow != null ? mFloatOverflow.get(sensor, defaultValue)
+                    : defaultValue;
+        }
+        return isPresent(mFloatPresence, mFloatValues.length, sensor)
+                ? mFloatValues[sensor] : defaultValue;
     }
 
     /**
@@ -497,9 +806,7 @@ public final class CarDiagnosticEvent implements Parcelable {
      */
     public @Nullable Integer getSystemIntegerSensor(
             @android.car.diagnostic.IntegerSensorIndex.SensorIndex int sensor) {
-        int index = mIntValues.indexOfKey(sensor);
-        if (index < 0) return null;
-        return mIntValues.valueAt(index);
+        return getVendorIntegerSensor(sensor);
     }
 
     /**
@@ -508,9 +815,7 @@ public final class CarDiagnosticEvent implements Parcelable {
      */
     public @Nullable Float getSystemFloatSensor(
             @android.car.diagnostic.FloatSensorIndex.SensorIndex int sensor) {
-        int index = mFloatValues.indexOfKey(sensor);
-        if (index < 0) return null;
-        return mFloatValues.valueAt(index);
+        return getVendorFloatSensor(sensor);
     }
 
     /**
@@ -518,9 +823,12 @@ public final class CarDiagnosticEvent implements Parcelable {
      * Returns null otherwise.
      */
     public @Nullable Integer getVendorIntegerSensor(int sensor) {
-        int index = mIntValues.indexOfKey(sensor);
-        if (index < 0) return null;
-        return mIntValues.valueAt(index);
+        if (!isDense(sensor)) {
+            int index = mIntOverflow != null ? mIntOverflow.indexOfKey(sensor) : -1;
+            return index >= 0 ? mIntOverflow.valueAt(index) : null;
+        }
+        if (!isPresent(mIntPresence, mIntValues.length, sensor)) return null;
+        return mIntValues[sensor];
     }
 
     /**
@@ -528,9 +836,135 @@ public final class CarDiagnosticEvent implements Parcelable {
      * Returns null otherwise.
      */
     public @Nullable Float getVendorFloatSensor(int sensor) {
-        int index = mFloatValues.indexOfKey(sensor);
-        if (index < 0) return null;
-        return mFloatValues.valueAt(index);
+        if (!isDense(sensor)) {
+            return mFloatOverflow != null ? mFloatOverflow.get(sensor) : null;
+        }
+        if (!isPresent(mFloatPresence, mFloatValues.length, sensor)) return null;
+        return mFloatValues[sensor];
+    }
+
+    private String intValuesToString() {
+        StringBuilder builder = new StringBuilder("{");
+        int overflow = 0;
+        for (; overflow < size(mIntOverflow) && mIntOverflow.keyAt(overflow) < 0; ++overflow) {
+            appendValue(builder, mIntOverflow.keyAt(overflow), mIntOverflow.valueAt(overflow));
+        }
+        for (int i = nextPresent(mIntPresence, mIntValues.length, 0); i >= 0;
+                i = nextPresent(mIntPresence, mIntValues.length, i + 1)) {
+            appendValue(builder, i, mIntValues[i]);
+        }
+        for (; overflow < size(mIntOverflow); ++overflow) {
+            appendValue(builder, mIntOverflow.keyAt(overflow), mIntOverflow.valueAt(overflow));
+        }
+        return builder.append('}').toString();
+    }
+
+    private String floatValuesToString() {
+        StringBuilder builder = new StringBuilder("{");
+        int overflow = 0;
+        for (; overflow < size(mFloatOverflow) && mFloatOverflow.keyAt(overflow) < 0; ++overflow) {
+            appendValue(builder, mFloatOverflow.keyAt(overflow), mFloatOverflow.valueAt(overflow));
+        }
+        for (int i = nextPresent(mFloatPresence, mFloatValues.length, 0); i >= 0;
+                i = nextPresent(mFloatPresence, mFloatValues.length, i + 1)) {
+            appendValue(builder, i, mFloatValues[i]);
+        }
+        for (; overflow < size(mFloatOverflow); ++overflow) {
+            appendValue(builder, mFloatOverflow.keyAt(overflow), mFloatOverflow.valueAt(overflow));
+        }
+        return builder.append('}').toString();
+    }
+
+    private static void appendValue(StringBuilder builder, int sensor, Object value) {
+        if (builder.length() > 1) builder.append(", ");
+        builder.append(sensor).append('=').append(value);
+    }
+
+    /** Returns whether the given sensor is kept in the dense arrays rather than the overflow */
+    private static boolean isDense(int sensor) {
+        return sensor >= 0 && sensor < MAX_DENSE_SENSOR_COUNT;
+    }
+
+    private static int size(@Nullable SparseIntArray values) {
+        return values != null ? values.size() : 0;
+    }
+
+    private static int size(@Nullable SparseArray<?> values) {
+        return values != null ? values.size() : 0;
+    }
+
+    /** Returns whether the given sensor is present in a frame with {@code count} sensors */
+    private static boolean isPresent(long[] presence, int count, int sensor) {
+        return sensor >= 0 && sensor < count && (sensor >> 6) < presence.length
+                && (presence[sensor >> 6] & (1L << sensor)) != 0;
+    }
+
+    /** Returns the first present sensor at or after {@code from}, or -1 if there is none */
+    private static int nextPresent(long[] presence, int count, int from) {
+        for (int i = from; i < count; ++i) {
+            int word = i >> 6;
+            if (word >= presence.length) {
+                return -1;
+            }
+            long bits = presence[word] & (-1L << i);
+            if (bits != 0) {
+                int sensor = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return sensor < count ? sensor : -1;
+            }
+            i = (word << 6) + 63;
+        }
+        return -1;
+    }
+
+    /** Returns the last present sensor at or before {@code from}, or -1 if there is none */
+    private static int prevPresent(long[] presence, int from) {
+        for (int i = from; i >= 0; --i) {
+            if ((i >> 6) < presence.length && (presence[i >> 6] & (1L << i)) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBitSet(List<Byte> bitmap, int bit) {
+        int index = bit >> 3;
+        return index < bitmap.size() && (bitmap.get(index) & (1 << (bit & 7))) != 0;
+    }
+
+    private static int getWordCount(int bits) {
+        return (bits + 63) >> 6;
+    }
+
+    private static int[] trim(int[] values, int count) {
+        return values.length == count ? values : Arrays.copyOf(values, count);
+    }
+
+    private static float[] trim(float[] values, int count) {
+        return values.length == count ? values : Arrays.copyOf(values, count);
+    }
+
+    /** Trims a bitmap to {@code count} bits, clearing any bits past the end */
+    private static long[] trim(long[] presence, int count) {
+        int words = getWordCount(count);
+        long[] trimmed = presence.length == words ? presence : Arrays.copyOf(presence, words);
+        long lastWordMask = (1L << count) - 1;
+        if ((count & 63) != 0 && (trimmed[words - 1] & ~lastWordMask) != 0) {
+            if (trimmed == presence) trimmed = presence.clone();
+            trimmed[words - 1] &= lastWordMask;
+        }
+        return trimmed;
+    }
+
+    private static int[] nonNull(int[] values) {
+        return values != null ? values : new int[0];
+    }
+
+    private static float[] nonNull(float[] values) {
+        return values != null ? values : new float[0];
+    }
+
+    private static long[] nonNull(long[] values) {
+        return values != null ? values : new long[0];
     }
 
     /**
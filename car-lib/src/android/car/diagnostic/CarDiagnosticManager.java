@@ -17,7 +17,9 @@
 package android.car.diagnostic;
 
 import android.annotation.IntDef;
+import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.annotation.RequiresPermission;
 import android.annotation.SystemApi;
 import android.car.Car;
 import android.car.CarLibLog;
@@ -36,6 +38,7 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.function.Consumer;
 
@@ -229,6 +232,66 @@ public final class CarDiagnosticManager extends CarManagerBase {
         }
     }
 
+    /**
+     * Retrieve the timestamps of the freeze frames in the given range, in ascending order.
+     * @param startTimestamp Start of the range, inclusive
+     * @param endTimestamp End of the range, exclusive
+     * @return An array of timestamps, or an empty array if there are no frames in the range.
+     * Storage constraints might cause frames to be deleted from vehicle memory, so the same
+     * caveats apply as for {@link #getFreezeFrameTimestamps()}.
+     *
+     * @hide
+     */
+    public long[] getFreezeFrameTimestamps(long startTimestamp, long endTimestamp) {
+        try {
+            return mService.getFreezeFrameTimestampsInRange(startTimestamp, endTimestamp);
+        } catch (RemoteException e) {
+            return handleRemoteExceptionFromCarService(e, new long[0]);
+        }
+    }
+
+    /**
+     * Retrieve the freeze frames stored after the given timestamp, in ascending timestamp order.
+     * Clients can sync incrementally by passing the timestamp of the last frame they received,
+     * until an empty list is returned.
+     * @param timestamp Timestamp after which to return frames, exclusive
+     * @param maxCount Maximum number of frames to return
+     * @return Up to maxCount of the oldest frames newer than the given timestamp.
+     *
+     * @hide
+     */
+    @NonNull
+    public List<CarDiagnosticEvent> getFreezeFramesSince(long timestamp, int maxCount) {
+        try {
+            return mService.getFreezeFramesSince(timestamp, maxCount);
+        } catch (RemoteException e) {
+            return handleRemoteExceptionFromCarService(e, Collections.emptyList());
+        }
+    }
+
+    /**
+     * Retrieve frames from the persistent diagnostic journal, which keeps freeze frames and
+     * periodic live frames across reboots. Frames are selected by the wall-clock time at which
+     * they were received, as their own timestamps are relative to the boot they were recorded in.
+     * @param startTimeMillis Start of the range, inclusive, in milliseconds since the epoch
+     * @param endTimeMillis End of the range, exclusive, in milliseconds since the epoch
+     * @param maxCount Maximum number of frames to return
+     * @return Up to maxCount of the oldest frames in the range, or an empty list if the journal
+     *         is disabled.
+     *
+     * @hide
+     */
+    @RequiresPermission(Car.PERMISSION_CAR_DIAGNOSTIC_READ_ALL)
+    @NonNull
+    public List<CarDiagnosticEvent> getJournaledFrames(long startTimeMillis, long endTimeMillis,
+            int maxCount) {
+        try {
+            return mService.getJournaledFrames(startTimeMillis, endTimeMillis, maxCount);
+        } catch (RemoteException e) {
+            return handleRemoteExceptionFromCarService(e, Collections.emptyList());
+        }
+    }
+
     /**
      * Retrieve the freeze frame event data for a given timestamp, if available.
      * @param timestamp
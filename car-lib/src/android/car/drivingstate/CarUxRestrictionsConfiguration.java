@@ -39,6 +39,7 @@ import java.io.CharArrayWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -76,6 +77,11 @@ public final class CarUxRestrictionsConfiguration implements Parcelable {
      * Mapping of a restriction mode name to its restrictions.
      */
     private final Map<String, RestrictionModeContainer> mRestrictionModes = new ArrayMap<>();
+    /**
+     * Restrictions of each mode, indexed by driving state and speed, compiled from
+     * {@link #mRestrictionModes}. Derived data, so not part of equality or parceling.
+     */
+    private final Map<String, SpeedBuckets[]> mSpeedBuckets = new ArrayMap<>();
 
     // null means the port is not configured. It should apply to default display.
     @Nullable
@@ -100,6 +106,7 @@ public final class CarUxRestrictionsConfiguration implements Parcelable {
             }
             mRestrictionModes.put(mode, container);
         }
+        compileSpeedBuckets();
     }
 
     /**
@@ -130,26 +137,9 @@ public final class CarUxRestrictionsConfiguration implements Parcelable {
     public CarUxRestrictions getUxRestrictions(@CarDrivingState int drivingState,
             float currentSpeed, @NonNull String mode) {
         Objects.requireNonNull(mode, "mode must not be null");
-        RestrictionsPerSpeedRange restriction = null;
-        if (mRestrictionModes.containsKey(mode)) {
-            restriction = findUxRestrictionsInList(currentSpeed,
-                    mRestrictionModes.get(mode).getRestrictionsForDriveState(drivingState));
-        }
-
-        if (restriction == null) {
-            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                Log.d(TAG,
-                        String.format("No restrictions specified for (mode: %s, drive state: %s)",
-                                mode,
-                                drivingState));
-            }
-            // Either mode does not have any configuration or the mode does not have a configuration
-            // for the specific drive state. In either case, fall-back to baseline configuration.
-            restriction = findUxRestrictionsInList(
-                    currentSpeed,
-                    mRestrictionModes.get(UX_RESTRICTION_MODE_BASELINE)
-                            .getRestrictionsForDriveState(drivingState));
-        }
+        SpeedBuckets buckets = getSpeedBuckets(drivingState, mode);
+        RestrictionsPerSpeedRange restriction = buckets == null
+                ? null : buckets.mRestrictions[buckets.findBucket(currentSpeed)];
 
         if (restriction == null) {
             if (Build.IS_ENG || Build.IS_USERDEBUG) {
@@ -161,6 +151,95 @@ public final class CarUxRestrictionsConfiguration implements Parcelable {
         return createUxRestrictionsEvent(restriction.mReqOpt, restriction.mRestrictions);
     }
 
+    /**
+     * Returns the speed bucket that {@code currentSpeed} falls into for the given driving state
+     * and restriction mode.
+     *
+     * <p>Two speeds fall into the same bucket only if {@link #getUxRestrictions(int, float,
+     * String)} returns the same restrictions for both, so callers tracking the speed can skip
+     * re-evaluating the restrictions until the bucket changes. Takes a single binary search and
+     * does not allocate.
+     *
+     * @return Bucket index, or {@code -1} if the driving state has no restrictions
+     */
+    public int getSpeedBucket(@CarDrivingState int drivingState, float currentSpeed,
+            @NonNull String mode) {
+        SpeedBuckets buckets = getSpeedBuckets(drivingState, mode);
+        return buckets == null ? -1 : buckets.findBucket(currentSpeed);
+    }
+
+    /**
+     * Returns the speeds, in meters per second and in ascending order, at which the restrictions
+     * of any mode and driving state change, i.e. the union of all speed bucket boundaries.
+     */
+    @NonNull
+    public float[] getSpeedBoundaries() {
+        int count = 0;
+        for (SpeedBuckets[] modeBuckets : mSpeedBuckets.values()) {
+            for (SpeedBuckets buckets : modeBuckets) {
+                count += buckets.mBoundaries.length;
+            }
+        }
+        float[] boundaries = new float[count];
+        count = 0;
+        for (SpeedBuckets[] modeBuckets : mSpeedBuckets.values()) {
+            for (SpeedBuckets buckets : modeBuckets) {
+                System.arraycopy(buckets.mBoundaries, 0, boundaries, count,
+                        buckets.mBoundaries.length);
+                count += buckets.mBoundaries.length;
+            }
+        }
+        return sortDistinct(boundaries, count);
+    }
+
+    /**
+     * Sorts the first {@code count} values and returns them without duplicates.
+     */
+    private static float[] sortDistinct(float[] values, int count) {
+        Arrays.sort(values, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || values[i] != values[distinct - 1]) {
+                values[distinct++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, distinct);
+    }
+
+    @Nullable
+    private SpeedBuckets getSpeedBuckets(@CarDrivingState int drivingState, String mode) {
+        SpeedBuckets[] modeBuckets = mSpeedBuckets.get(mode);
+        if (modeBuckets == null) {
+            // Modes without any configuration fall back to baseline.
+            modeBuckets = mSpeedBuckets.get(UX_RESTRICTION_MODE_BASELINE);
+        }
+        int index = drivingState - DRIVING_STATE_UNKNOWN;
+        if (modeBuckets == null || index < 0 || index >= modeBuckets.length) {
+            return null;
+        }
+        return modeBuckets[index];
+    }
+
+    /**
+     * Compiles the restrictions of every mode and driving state into {@link SpeedBuckets}, with
+     * the fall-back to baseline already applied.
+     */
+    private void compileSpeedBuckets() {
+        RestrictionModeContainer baseline = mRestrictionModes.get(UX_RESTRICTION_MODE_BASELINE);
+        for (Map.Entry<String, RestrictionModeContainer> entry : mRestrictionModes.entrySet()) {
+            SpeedBuckets[] modeBuckets = new SpeedBuckets[DRIVING_STATES.length];
+            for (int drivingState : DRIVING_STATES) {
+                List<RestrictionsPerSpeedRange> baselineRestrictions = baseline == null
+                        ? Collections.emptyList()
+                        : baseline.getRestrictionsForDriveState(drivingState);
+                modeBuckets[drivingState - DRIVING_STATE_UNKNOWN] = SpeedBuckets.compile(
+                        entry.getValue().getRestrictionsForDriveState(drivingState),
+                        baselineRestrictions);
+            }
+            mSpeedBuckets.put(entry.getKey(), modeBuckets);
+        }
+    }
+
     /**
      * Returns the port this configuration applies to.
      *
@@ -648,6 +727,7 @@ public final class CarUxRestrictionsConfiguration implements Parcelable {
         mMaxContentDepth = in.readInt();
         mMaxCumulativeContentItems = in.readInt();
         mMaxStringLength = in.readInt();
+        compileSpeedBuckets();
     }
 
     @Override
@@ -1206,6 +1286,79 @@ public final class CarUxRestrictionsConfiguration implements Parcelable {
         }
     }
 
+    /**
+     * Restrictions of one mode and driving state, looked up by speed.
+     *
+     * <p>The speed axis is split at every endpoint of the configured speed ranges, so that the
+     * same restriction applies throughout each bucket. Bucket {@code i} covers speeds in
+     * {@code [mBoundaries[i - 1], mBoundaries[i])}, where the first and last buckets are
+     * unbounded; speeds that compare with nothing, i.e. NaN, fall into the first bucket.
+     */
+    private static final class SpeedBuckets {
+        /** Sorted, distinct speed range endpoints. */
+        final float[] mBoundaries;
+        /** Restriction applying to each bucket, or {@code null} if none does. */
+        final RestrictionsPerSpeedRange[] mRestrictions;
+
+        private SpeedBuckets(float[] boundaries, RestrictionsPerSpeedRange[] restrictions) {
+            mBoundaries = boundaries;
+            mRestrictions = restrictions;
+        }
+
+        static SpeedBuckets compile(List<RestrictionsPerSpeedRange> restrictions,
+                List<RestrictionsPerSpeedRange> baselineRestrictions) {
+            float[] endpoints = new float[2 * (restrictions.size() + baselineRestrictions.size())];
+            int count = addEndpoints(restrictions, endpoints, 0);
+            count = addEndpoints(baselineRestrictions, endpoints, count);
+            float[] boundaries = sortDistinct(endpoints, count);
+            int distinct = boundaries.length;
+
+            RestrictionsPerSpeedRange[] bucketRestrictions =
+                    new RestrictionsPerSpeedRange[distinct + 1];
+            for (int i = 0; i <= distinct; i++) {
+                // No range includes NaN, nor any speed below the lowest endpoint.
+                float speed = i == 0 ? Float.NaN : boundaries[i - 1];
+                RestrictionsPerSpeedRange restriction =
+                        findUxRestrictionsInList(speed, restrictions);
+                if (restriction == null) {
+                    restriction = findUxRestrictionsInList(speed, baselineRestrictions);
+                }
+                bucketRestrictions[i] = restriction;
+            }
+            return new SpeedBuckets(boundaries, bucketRestrictions);
+        }
+
+        private static int addEndpoints(List<RestrictionsPerSpeedRange> restrictions,
+                float[] endpoints, int count) {
+            for (int i = 0; i < restrictions.size(); i++) {
+                Builder.SpeedRange speedRange = restrictions.get(i).mSpeedRange;
+                if (speedRange != null) {
+                    endpoints[count++] = speedRange.mMinSpeed;
+                    endpoints[count++] = speedRange.mMaxSpeed;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Returns the index of the bucket that includes {@code speed}.
+         */
+        int findBucket(float speed) {
+            // Count the boundaries that are less than or equal to the speed.
+            int low = 0;
+            int high = mBoundaries.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mBoundaries[mid] <= speed) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
     /**
      * All the restriction configurations for a particular mode.
      */
@@ -269,7 +269,9 @@ public class CarPropertyManager extends CarManagerBase {
                 needsServerUpdate = true;
             }
             if (needsServerUpdate) {
-                if (!registerOrUpdatePropertyListener(propertyId, rate)) {
+                // The service drops events faster than the registered rate, so always register
+                // with the fastest rate requested by any callback.
+                if (!registerOrUpdatePropertyListener(propertyId, listeners.getRate())) {
                     return false;
                 }
             }
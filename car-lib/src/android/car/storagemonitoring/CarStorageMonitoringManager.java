@@ -250,6 +250,45 @@ public final class CarStorageMonitoringManager extends CarManagerBase {
         }
     }
 
+    /**
+     * This method returns the user ids that wrote the most data to storage over a recent time
+     * window, ordered from the biggest writer.
+     *
+     * The system keeps a fixed amount of per user-id write history at a coarser resolution the
+     * further back it goes, so the returned window may be longer than requested by up to one
+     * history bucket, or shorter if less history is available.
+     *
+     * If the information is not available, an empty list will be returned.
+     *
+     * @param windowMillis length of the time window, in milliseconds
+     * @param maxCount     maximum number of user ids to return
+     *
+     * @hide
+     */
+    @RequiresPermission(value = Car.PERMISSION_STORAGE_MONITORING)
+    public List<UidIoRate> getTopIoWriters(long windowMillis, int maxCount) {
+        try {
+            return mService.getTopIoWriters(windowMillis, maxCount);
+        } catch (RemoteException e) {
+            return handleRemoteExceptionFromCarService(e, Collections.emptyList());
+        }
+    }
+
+    /**
+     * This method returns the amount of data written to storage by a user id over a recent time
+     * window, with the same resolution as {@link #getTopIoWriters(long, int)}.
+     *
+     * @hide
+     */
+    @RequiresPermission(value = Car.PERMISSION_STORAGE_MONITORING)
+    public UidIoRate getUidIoRate(int uid, long windowMillis) {
+        try {
+            return mService.getUidIoRate(uid, windowMillis);
+        } catch (RemoteException e) {
+            return handleRemoteExceptionFromCarService(e, null);
+        }
+    }
+
     /**
      * This method registers a new listener to receive I/O stats deltas.
      *
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.car.storagemonitoring;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Amount of data written to storage on behalf of one user ID over a recent time window.
+ *
+ * @hide
+ */
+public final class UidIoRate implements Parcelable {
+    public static final Creator<UidIoRate> CREATOR = new Creator<UidIoRate>() {
+        @Override
+        public UidIoRate createFromParcel(Parcel in) {
+            return new UidIoRate(in);
+        }
+
+        @Override
+        public UidIoRate[] newArray(int size) {
+            return new UidIoRate[size];
+        }
+    };
+
+    /**
+     * The user id that this object contains metrics for.
+     */
+    public final int uid;
+
+    /**
+     * Length of the time window the metrics cover, in milliseconds. May be shorter than the
+     * requested window if less history is available.
+     */
+    public final long windowMillis;
+
+    /**
+     * Bytes written to storage during the window, in foreground and background.
+     */
+    public final long bytesWrittenToStorage;
+
+    public UidIoRate(int uid, long windowMillis, long bytesWrittenToStorage) {
+        this.uid = uid;
+        this.windowMillis = windowMillis;
+        this.bytesWrittenToStorage = bytesWrittenToStorage;
+    }
+
+    public UidIoRate(Parcel in) {
+        uid = in.readInt();
+        windowMillis = in.readLong();
+        bytesWrittenToStorage = in.readLong();
+    }
+
+    /**
+     * Returns the average write rate over the window, in bytes per second.
+     */
+    public double getBytesWrittenPerSecond() {
+        return windowMillis > 0 ? bytesWrittenToStorage * 1000.0 / windowMillis : 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(uid);
+        dest.writeLong(windowMillis);
+        dest.writeLong(bytesWrittenToStorage);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof UidIoRate) {
+            UidIoRate rate = (UidIoRate) other;
+            return uid == rate.uid
+                    && windowMillis == rate.windowMillis
+                    && bytesWrittenToStorage == rate.bytesWrittenToStorage;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(bytesWrittenToStorage) * 31 * 31 + Long.hashCode(windowMillis) * 31
+                + uid;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("uid = %d, bytesWrittenToStorage = %d in %d ms",
+                uid, bytesWrittenToStorage, windowMillis);
+    }
+}
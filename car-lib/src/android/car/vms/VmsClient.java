@@ -29,7 +29,10 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.SharedMemory;
 import android.system.ErrnoException;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
 
@@ -37,6 +40,8 @@ import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Executor;
@@ -60,6 +65,7 @@ public final class VmsClient {
     private static final VmsSubscriptionState DEFAULT_SUBSCRIPTIONS =
             new VmsSubscriptionState(0, Collections.emptySet(), Collections.emptySet());
     private static final int LARGE_PACKET_THRESHOLD = 16 * 1024; // 16 KB
+    private static final int MAX_BATCH_SIZE = 64 * 1024; // 64 KB
 
     private final IVmsBrokerService mService;
     private final Executor mExecutor;
@@ -76,6 +82,14 @@ public final class VmsClient {
     private VmsSubscriptionState mSubscriptionState = DEFAULT_SUBSCRIPTIONS;
     @GuardedBy("mLock")
     private boolean mMonitoringEnabled;
+    // Layer streams written by this client, by provider ID and layer
+    @GuardedBy("mLock")
+    private final SparseArray<Map<VmsLayer, VmsRingBuffer>> mPublisherStreams =
+            new SparseArray<>();
+    // Layer streams read by this client, by provider ID and layer
+    @GuardedBy("mLock")
+    private final SparseArray<Map<VmsLayer, VmsRingBuffer>> mSubscriberStreams =
+            new SparseArray<>();
 
     /**
      * @hide
@@ -232,6 +246,81 @@ public final class VmsClient {
         }
     }
 
+    /**
+     * Streams packets published for a layer through a shared memory ring buffer.
+     *
+     * <p>Subsequent packets published by {@link #publishPacket(int, VmsLayer, byte[])} for the
+     * layer are written to the buffer, and subscribers are only notified of their sequence numbers,
+     * which avoids copying each packet to every subscriber. Subscribers that fall more than
+     * {@code slotCount} packets behind miss packets. Packets larger than {@code maxPacketSize}
+     * are published normally.
+     *
+     * <p>Intended for high-rate layers. Existing streams for the layer are replaced.
+     *
+     * @param providerId    Provider ID
+     * @param layer         Layer to stream
+     * @param slotCount     Number of packets retained for subscribers
+     * @param maxPacketSize Largest packet that is streamed, in bytes
+     * @throws IllegalArgumentException if the client does not offer the layer as the provider,
+     *                                  or if the buffer size is invalid
+     * @hide
+     */
+    @RequiresPermission(Car.PERMISSION_VMS_PUBLISHER)
+    public void enableLayerStream(int providerId, @NonNull VmsLayer layer, int slotCount,
+            int maxPacketSize) {
+        Objects.requireNonNull(layer, "layer cannot be null");
+        if (DBG) Log.d(TAG, "Enabling stream for " + layer + " as " + providerId);
+        VmsRingBuffer stream = VmsRingBuffer.createWriter(slotCount, maxPacketSize);
+        try {
+            mService.setLayerStream(mClientToken, providerId, layer, stream.getSharedMemory());
+        } catch (RemoteException e) {
+            Log.e(TAG, "While enabling stream for " + layer + " as " + providerId, e);
+            stream.close();
+            mExceptionHandler.accept(e);
+            return;
+        } catch (RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+
+        VmsRingBuffer previousStream;
+        synchronized (mLock) {
+            previousStream = putStream(mPublisherStreams, providerId, layer, stream);
+        }
+        if (previousStream != null) {
+            previousStream.close();
+        }
+    }
+
+    /**
+     * Stops streaming packets for a layer enabled by
+     * {@link #enableLayerStream(int, VmsLayer, int, int)}.
+     *
+     * @param providerId Provider ID
+     * @param layer      Streamed layer
+     * @hide
+     */
+    @RequiresPermission(Car.PERMISSION_VMS_PUBLISHER)
+    public void disableLayerStream(int providerId, @NonNull VmsLayer layer) {
+        Objects.requireNonNull(layer, "layer cannot be null");
+        if (DBG) Log.d(TAG, "Disabling stream for " + layer + " as " + providerId);
+        VmsRingBuffer stream;
+        synchronized (mLock) {
+            stream = putStream(mPublisherStreams, providerId, layer, null);
+        }
+        if (stream == null) {
+            return;
+        }
+        try {
+            mService.clearLayerStream(mClientToken, providerId, layer);
+        } catch (RemoteException e) {
+            Log.e(TAG, "While disabling stream for " + layer + " as " + providerId, e);
+            mExceptionHandler.accept(e);
+        } finally {
+            stream.close();
+        }
+    }
+
     /**
      * Publishes a Vehicle Maps Service packet.
      *
@@ -247,7 +336,27 @@ public final class VmsClient {
         if (DBG) {
             Log.d(TAG, "Publishing packet as " + providerId + " (" + packet.length + " bytes)");
         }
+        long sequenceNumber = 0;
+        synchronized (mLock) {
+            // Written while holding mLock, since disableLayerStream() and unregister() only close
+            // a stream after removing it under mLock.
+            VmsRingBuffer stream = getStream(mPublisherStreams, providerId, layer);
+            if (stream != null && packet.length <= stream.getMaxPacketSize()) {
+                sequenceNumber = stream.write(packet);
+            }
+        }
         try {
+            if (sequenceNumber > 0) {
+                try {
+                    mService.publishStreamPacket(mClientToken, providerId, layer,
+                            sequenceNumber, packet.length);
+                    return;
+                } catch (IllegalStateException e) {
+                    // The stream was disabled after the packet was written to it
+                    Log.w(TAG, "Stream for " + layer + " as " + providerId
+                            + " was disabled, publishing packet directly");
+                }
+            }
             if (packet.length < LARGE_PACKET_THRESHOLD) {
                 mService.publishPacket(mClientToken, providerId, layer, packet);
             } else {
@@ -262,6 +371,67 @@ public final class VmsClient {
         }
     }
 
+    /**
+     * Publishes several Vehicle Maps Service packets with as few transactions as possible.
+     *
+     * <p>Packets are delivered in order. Small packets are sent to the service in batches, while
+     * large packets and packets for streamed layers are published as by
+     * {@link #publishPacket(int, VmsLayer, byte[])}.
+     *
+     * @param packets Packets to publish
+     * @throws IllegalArgumentException if the client does not offer a packet's layer as its
+     *                                  provider
+     * @hide
+     */
+    @RequiresPermission(Car.PERMISSION_VMS_PUBLISHER)
+    public void publishPackets(@NonNull List<VmsPacket> packets) {
+        Objects.requireNonNull(packets, "packets cannot be null");
+        if (DBG) Log.d(TAG, "Publishing " + packets.size() + " packets");
+        List<VmsPacket> batch = new ArrayList<>(packets.size());
+        int batchSize = 0;
+        for (int i = 0; i < packets.size(); i++) {
+            VmsPacket packet = Objects.requireNonNull(packets.get(i), "packet cannot be null");
+            int packetSize = packet.getPayload().length;
+            if (packetSize >= LARGE_PACKET_THRESHOLD
+                    || isStreamed(packet.getProviderId(), packet.getLayer())) {
+                flushBatch(batch);
+                batchSize = 0;
+                publishPacket(packet.getProviderId(), packet.getLayer(), packet.getPayload());
+                continue;
+            }
+            if (batchSize + packetSize > MAX_BATCH_SIZE) {
+                flushBatch(batch);
+                batchSize = 0;
+            }
+            batch.add(packet);
+            batchSize += packetSize;
+        }
+        flushBatch(batch);
+    }
+
+    private boolean isStreamed(int providerId, VmsLayer layer) {
+        synchronized (mLock) {
+            return getStream(mPublisherStreams, providerId, layer) != null;
+        }
+    }
+
+    /**
+     * Publishes and clears a batch of packets.
+     */
+    private void flushBatch(List<VmsPacket> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            mService.publishPackets(mClientToken, batch);
+        } catch (RemoteException e) {
+            Log.e(TAG, "While publishing " + batch.size() + " packets");
+            mExceptionHandler.accept(e);
+        } finally {
+            batch.clear();
+        }
+    }
+
     /**
      * Returns the most recently received data layer subscription state.
      */
@@ -285,6 +455,8 @@ public final class VmsClient {
             mAvailableLayers = registrationInfo.getAvailableLayers();
             mSubscriptionState = registrationInfo.getSubscriptionState();
         }
+        // Availability changes are applied to mAvailableLayers as they are received
+        mService.setLayerAvailabilityDeltasEnabled(mClientToken, true);
     }
 
     /**
@@ -293,7 +465,105 @@ public final class VmsClient {
      * @hide
      */
     public void unregister() throws RemoteException {
-        mService.unregisterClient(mClientToken);
+        try {
+            mService.unregisterClient(mClientToken);
+        } finally {
+            synchronized (mLock) {
+                closeStreams(mPublisherStreams);
+                closeStreams(mSubscriberStreams);
+            }
+        }
+    }
+
+    @Nullable
+    private static VmsRingBuffer getStream(SparseArray<Map<VmsLayer, VmsRingBuffer>> streams,
+            int providerId, VmsLayer layer) {
+        Map<VmsLayer, VmsRingBuffer> providerStreams = streams.get(providerId);
+        return providerStreams != null ? providerStreams.get(layer) : null;
+    }
+
+    /**
+     * Sets or removes a stream and returns the one it replaced, if any. Must be called while
+     * holding {@code mLock}.
+     */
+    @Nullable
+    private static VmsRingBuffer putStream(SparseArray<Map<VmsLayer, VmsRingBuffer>> streams,
+            int providerId, VmsLayer layer, @Nullable VmsRingBuffer stream) {
+        Map<VmsLayer, VmsRingBuffer> providerStreams = streams.get(providerId);
+        if (stream == null) {
+            return providerStreams != null ? providerStreams.remove(layer) : null;
+        }
+        if (providerStreams == null) {
+            providerStreams = new ArrayMap<>();
+            streams.put(providerId, providerStreams);
+        }
+        return providerStreams.put(layer, stream);
+    }
+
+    private static void closeStreams(SparseArray<Map<VmsLayer, VmsRingBuffer>> streams) {
+        for (int i = 0; i < streams.size(); i++) {
+            streams.valueAt(i).values().forEach(VmsRingBuffer::close);
+        }
+        streams.clear();
+    }
+
+    /**
+     * Replaces the layer availability if the given state is newer.
+     *
+     * @return {@code true} if the availability was replaced
+     */
+    private boolean updateAvailableLayers(VmsAvailableLayers availableLayers) {
+        synchronized (mLock) {
+            // Ignore states received out of order
+            if (availableLayers.getSequenceNumber() <= mAvailableLayers.getSequenceNumber()) {
+                return false;
+            }
+            mAvailableLayers = availableLayers;
+            return true;
+        }
+    }
+
+    /**
+     * Applies an availability delta to the layer availability. If an earlier delta was missed,
+     * fetches the current availability from the service instead.
+     *
+     * @return the new layer availability, or {@code null} if it was not changed
+     */
+    @Nullable
+    private VmsAvailableLayers applyAvailabilityDelta(int sequenceNumber,
+            List<VmsAssociatedLayer> updatedLayers, List<VmsLayer> removedLayers) {
+        synchronized (mLock) {
+            int currentSequenceNumber = mAvailableLayers.getSequenceNumber();
+            if (sequenceNumber <= currentSequenceNumber) {
+                return null;
+            }
+            if (sequenceNumber == currentSequenceNumber + 1) {
+                Map<VmsLayer, VmsAssociatedLayer> layers = new ArrayMap<>();
+                for (VmsAssociatedLayer associatedLayer : mAvailableLayers.getAssociatedLayers()) {
+                    layers.put(associatedLayer.getVmsLayer(), associatedLayer);
+                }
+                for (VmsLayer layer : removedLayers) {
+                    layers.remove(layer);
+                }
+                for (VmsAssociatedLayer associatedLayer : updatedLayers) {
+                    layers.put(associatedLayer.getVmsLayer(), associatedLayer);
+                }
+                mAvailableLayers = new VmsAvailableLayers(sequenceNumber,
+                        new ArraySet<>(layers.values()));
+                return mAvailableLayers;
+            }
+        }
+
+        if (DBG) Log.d(TAG, "Missed layer availability delta, fetching " + sequenceNumber);
+        VmsAvailableLayers availableLayers;
+        try {
+            availableLayers = mService.getAvailableLayers(mClientToken);
+        } catch (RemoteException e) {
+            Log.e(TAG, "While getting layer availability", e);
+            mExceptionHandler.accept(e);
+            return null;
+        }
+        return updateAvailableLayers(availableLayers) ? availableLayers : null;
     }
 
     private static class IVmsClientCallbackImpl extends IVmsClientCallback.Stub {
@@ -308,12 +578,31 @@ public final class VmsClient {
         @Override
         public void onLayerAvailabilityChanged(VmsAvailableLayers availableLayers) {
             if (DBG) Log.d(TAG, "Received new layer availability: " + availableLayers);
-            executeCallback((client, callback) -> {
-                synchronized (client.mLock) {
-                    client.mAvailableLayers = availableLayers;
-                }
-                callback.onLayerAvailabilityChanged(availableLayers);
-            });
+            final VmsClient client = mClient.get();
+            if (client != null && client.updateAvailableLayers(availableLayers)) {
+                executeCallback((c, callback) ->
+                        callback.onLayerAvailabilityChanged(availableLayers));
+            }
+        }
+
+        @Override
+        public void onLayerAvailabilityDelta(int sequenceNumber,
+                List<VmsAssociatedLayer> updatedLayers, List<VmsLayer> removedLayers) {
+            if (DBG) {
+                Log.d(TAG, "Received layer availability delta " + sequenceNumber + ": "
+                        + updatedLayers + " updated, " + removedLayers + " removed");
+            }
+            final VmsClient client = mClient.get();
+            if (client == null) {
+                Log.w(TAG, "VmsClient unavailable");
+                return;
+            }
+            VmsAvailableLayers availableLayers =
+                    client.applyAvailabilityDelta(sequenceNumber, updatedLayers, removedLayers);
+            if (availableLayers != null) {
+                executeCallback((c, callback) ->
+                        callback.onLayerAvailabilityChanged(availableLayers));
+            }
         }
 
         @Override
@@ -337,6 +626,18 @@ public final class VmsClient {
                     callback.onPacketReceived(providerId, layer, packet));
         }
 
+        @Override
+        public void onPacketsReceived(List<VmsPacket> packets) {
+            if (DBG) Log.d(TAG, "Received " + packets.size() + " packets");
+            executeCallback((client, callback) -> {
+                for (int i = 0; i < packets.size(); i++) {
+                    VmsPacket packet = packets.get(i);
+                    callback.onPacketReceived(packet.getProviderId(), packet.getLayer(),
+                            packet.getPayload());
+                }
+            });
+        }
+
         @Override
         public void onLargePacketReceived(int providerId, VmsLayer layer, SharedMemory packet) {
             if (DBG) {
@@ -355,6 +656,63 @@ public final class VmsClient {
                     callback.onPacketReceived(providerId, layer, largePacket));
         }
 
+        @Override
+        public void onLayerStreamChanged(int providerId, VmsLayer layer,
+                SharedMemory ringBuffer) {
+            if (DBG) Log.d(TAG, "Received stream change from " + providerId + " for: " + layer);
+            final VmsClient client = mClient.get();
+            VmsRingBuffer stream = null;
+            if (ringBuffer != null) {
+                try {
+                    stream = VmsRingBuffer.openReader(ringBuffer);
+                } catch (IllegalArgumentException | IllegalStateException e) {
+                    Log.e(TAG, "Invalid stream from " + providerId + " for: " + layer, e);
+                    ringBuffer.close();
+                }
+            }
+            if (client == null) {
+                Log.w(TAG, "VmsClient unavailable");
+                if (stream != null) {
+                    stream.close();
+                }
+                return;
+            }
+
+            VmsRingBuffer previousStream;
+            synchronized (client.mLock) {
+                previousStream = putStream(client.mSubscriberStreams, providerId, layer, stream);
+            }
+            if (previousStream != null) {
+                previousStream.close();
+            }
+        }
+
+        @Override
+        public void onStreamPacketReceived(int providerId, VmsLayer layer, long sequenceNumber) {
+            final VmsClient client = mClient.get();
+            if (client == null) {
+                Log.w(TAG, "VmsClient unavailable");
+                return;
+            }
+            VmsRingBuffer stream;
+            synchronized (client.mLock) {
+                stream = getStream(client.mSubscriberStreams, providerId, layer);
+            }
+            // Read the packet right away, as it is overwritten once the publisher wraps around.
+            byte[] packet = stream != null ? stream.read(sequenceNumber) : null;
+            if (packet == null) {
+                Log.w(TAG, "Missed stream packet " + sequenceNumber + " from " + providerId
+                        + " for: " + layer);
+                return;
+            }
+            if (DBG) {
+                Log.d(TAG, "Received stream packet from " + providerId + " for: " + layer
+                        + " (" + packet.length + " bytes)");
+            }
+            executeCallback((c, callback) ->
+                    callback.onPacketReceived(providerId, layer, packet));
+        }
+
         private void executeCallback(BiConsumer<VmsClient, VmsClientCallback> callbackOperation) {
             final VmsClient client = mClient.get();
             if (client == null) {
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.vms;
+
+import android.annotation.NonNull;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.android.internal.util.DataClass;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Hidden data object used to publish or deliver several Vehicle Map Service packets in a single
+ * transaction.
+ *
+ * @hide
+ */
+@DataClass(
+        genEqualsHashCode = true,
+        genAidl = true)
+public class VmsPacket implements Parcelable {
+    private final int mProviderId;
+    private final @NonNull VmsLayer mLayer;
+    private final @NonNull byte[] mPayload;
+
+
+
+    // Code below generated by codegen v1.0.14.
+    //
+    // DO NOT MODIFY!
+    // CHECKSTYLE:OFF Generated code
+    //
+    // To regenerate run:
+    // $ codegen $ANDROID_BUILD_TOP/packages/services/Car/car-lib/src/android/car/vms/VmsPacket.java
+    //
+    // To exclude the generated code from IntelliJ auto-formatting enable (one-time):
+    //   Settings > Editor > Code Style > Formatter Control
+    //@formatter:off
+
+
+    @DataClass.Generated.Member
+    public VmsPacket(
+            int providerId,
+            @NonNull VmsLayer layer,
+            @NonNull byte[] payload) {
+        this.mProviderId = providerId;
+        this.mLayer = layer;
+        com.android.internal.util.AnnotationValidations.validate(
+                NonNull.class, null, mLayer);
+        this.mPayload = payload;
+        com.android.internal.util.AnnotationValidations.validate(
+                NonNull.class, null, mPayload);
+
+        // onConstructed(); // You can define this method to get a callback
+    }
+
+    @DataClass.Generated.Member
+    public int getProviderId() {
+        return mProviderId;
+    }
+
+    @DataClass.Generated.Member
+    public @NonNull VmsLayer getLayer() {
+        return mLayer;
+    }
+
+    @DataClass.Generated.Member
+    public @NonNull byte[] getPayload() {
+        return mPayload;
+    }
+
+    @Override
+    @DataClass.Generated.Member
+    public boolean equals(@android.annotation.Nullable Object o) {
+        // You can override field equality logic by defining either of the methods like:
+        // boolean fieldNameEquals(VmsPacket other) { ... }
+        // boolean fieldNameEquals(FieldType otherValue) { ... }
+
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        @SuppressWarnings("unchecked")
+        VmsPacket that = (VmsPacket) o;
+        //noinspection PointlessBooleanExpression
+        return true
+                && mProviderId == that.mProviderId
+                && Objects.equals(mLayer, that.mLayer)
+                && Arrays.equals(mPayload, that.mPayload);
+    }
+
+    @Override
+    @DataClass.Generated.Member
+    public int hashCode() {
+        // You can override field hashCode logic by defining methods like:
+        // int fieldNameHashCode() { ... }
+
+        int _hash = 1;
+        _hash = 31 * _hash + mProviderId;
+        _hash = 31 * _hash + Objects.hashCode(mLayer);
+        _hash = 31 * _hash + Arrays.hashCode(mPayload);
+        return _hash;
+    }
+
+    @Override
+    @DataClass.Generated.Member
+    public void writeToParcel(@NonNull Parcel dest, int flags) {
+        // You can override field parcelling by defining methods like:
+        // void parcelFieldName(Parcel dest, int flags) { ... }
+
+        dest.writeInt(mProviderId);
+        dest.writeTypedObject(mLayer, flags);
+        dest.writeByteArray(mPayload);
+    }
+
+    @Override
+    @DataClass.Generated.Member
+    public int describeContents() { return 0; }
+
+    /** @hide */
+    @SuppressWarnings({"unchecked", "RedundantCast"})
+    @DataClass.Generated.Member
+    protected VmsPacket(@NonNull Parcel in) {
+        // You can override field unparcelling by defining methods like:
+        // static FieldType unparcelFieldName(Parcel in) { ... }
+
+        int providerId = in.readInt();
+        VmsLayer layer = (VmsLayer) in.readTypedObject(VmsLayer.CREATOR);
+        byte[] payload = in.createByteArray();
+
+        this.mProviderId = providerId;
+        this.mLayer = layer;
+        com.android.internal.util.AnnotationValidations.validate(
+                NonNull.class, null, mLayer);
+        this.mPayload = payload;
+        com.android.internal.util.AnnotationValidations.validate(
+                NonNull.class, null, mPayload);
+
+        // onConstructed(); // You can define this method to get a callback
+    }
+
+    @DataClass.Generated.Member
+    public static final @NonNull Parcelable.Creator<VmsPacket> CREATOR
+            = new Parcelable.Creator<VmsPacket>() {
+        @Override
+        public VmsPacket[] newArray(int size) {
+            return new VmsPacket[size];
+        }
+
+        @Override
+        public VmsPacket createFromParcel(@NonNull Parcel in) {
+            return new VmsPacket(in);
+        }
+    };
+
+    @DataClass.Generated(
+            time = 1591141742108L,
+            codegenVersion = "1.0.14",
+            sourceFile = "packages/services/Car/car-lib/src/android/car/vms/VmsPacket.java",
+            inputSignatures = "private final  int mProviderId\nprivate final @android.annotation.NonNull android.car.vms.VmsLayer mLayer\nprivate final @android.annotation.NonNull byte[] mPayload\nclass VmsPacket extends java.lang.Object implements [android.os.Parcelable]\n@com.android.internal.util.DataClass(genEqualsHashCode=true, genAidl=true)")
+    @Deprecated
+    private void __metadata() {}
+
+
+    //@formatter:on
+    // End of generated code
+
+}
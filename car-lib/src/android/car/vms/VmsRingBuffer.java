@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.vms;
+
+import static android.system.OsConstants.PROT_READ;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size ring of packet slots in shared memory, used to stream a single Vehicle Map Service
+ * layer from a publisher to its subscribers without copying packets through the broker.
+ *
+ * <p>The publisher creates the buffer with {@link #createWriter(int, int)}, which keeps its own
+ * writable mapping and then restricts the region to read-only, so that the broker and the
+ * subscribers, which open it with {@link #openReader(SharedMemory)}, can only read from it.
+ *
+ * <p>Packet {@code n} is stored in slot {@code n % slotCount} along with its sequence number.
+ * A reader that falls more than {@code slotCount} packets behind finds the slot overwritten and
+ * {@link #read(long)} returns {@code null}.
+ *
+ * <p>Slots are protected by a sequence lock: the writer clears the sequence number of a slot
+ * before overwriting it and sets it last, and readers check it before and after copying the
+ * packet. Readers are in other processes, so {@code mLock} does not order their accesses; the
+ * fences in {@link #write(byte[])} and {@link #read(long)} do.
+ *
+ * <pre>
+ * Header: int magic, int slotCount, int maxPacketSize, int reserved
+ * Slot:   long sequenceNumber, int length, int reserved, byte[maxPacketSize] packet
+ * </pre>
+ *
+ * @hide
+ */
+public final class VmsRingBuffer implements AutoCloseable {
+    private static final int MAGIC = 0x564d5352; // "VMSR"
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_HEADER_SIZE = 16;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SLOT_COUNT = 4;
+    private static final int OFFSET_MAX_PACKET_SIZE = 8;
+    private static final int SLOT_OFFSET_SEQUENCE = 0;
+    private static final int SLOT_OFFSET_LENGTH = 8;
+    // Marks a slot that is being written
+    private static final long SEQUENCE_NONE = 0;
+
+    private final SharedMemory mSharedMemory;
+    private final ByteBuffer mBuffer;
+    private final int mSlotCount;
+    private final int mMaxPacketSize;
+    private final boolean mWritable;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private long mLastSequenceNumber;
+    @GuardedBy("mLock")
+    private boolean mClosed;
+
+    private VmsRingBuffer(SharedMemory sharedMemory, ByteBuffer buffer, int slotCount,
+            int maxPacketSize, boolean writable) {
+        mSharedMemory = sharedMemory;
+        mBuffer = buffer;
+        mSlotCount = slotCount;
+        mMaxPacketSize = maxPacketSize;
+        mWritable = writable;
+    }
+
+    /**
+     * Allocates a ring buffer for publishing packets.
+     *
+     * @param slotCount     Number of packets retained for slow readers
+     * @param maxPacketSize Largest packet that can be written, in bytes
+     * @throws IllegalArgumentException if the buffer would be empty or too large
+     * @throws IllegalStateException if the shared memory could not be allocated
+     */
+    @NonNull
+    public static VmsRingBuffer createWriter(int slotCount, int maxPacketSize) {
+        long size = getRequiredSize(slotCount, maxPacketSize);
+        if (slotCount <= 0 || maxPacketSize <= 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid ring buffer size: " + slotCount
+                    + " slots of " + maxPacketSize + " bytes");
+        }
+
+        SharedMemory shm;
+        try {
+            shm = SharedMemory.create("VmsRingBuffer", (int) size);
+        } catch (ErrnoException e) {
+            throw new IllegalStateException("Failed to allocate shared memory", e);
+        }
+
+        ByteBuffer buffer;
+        try {
+            buffer = shm.mapReadWrite();
+        } catch (ErrnoException e) {
+            shm.close();
+            throw new IllegalStateException("Failed to create write buffer", e);
+        }
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_SLOT_COUNT, slotCount);
+        buffer.putInt(OFFSET_MAX_PACKET_SIZE, maxPacketSize);
+
+        // Existing mappings keep their protection, so only this writer can modify the buffer.
+        if (!shm.setProtect(PROT_READ)) {
+            SharedMemory.unmap(buffer);
+            shm.close();
+            throw new SecurityException("Failed to set read-only protection on shared memory");
+        }
+        return new VmsRingBuffer(shm, buffer, slotCount, maxPacketSize, true);
+    }
+
+    /**
+     * Maps a ring buffer received from a publisher for reading.
+     *
+     * <p>Takes ownership of the shared memory, which is closed along with the reader.
+     *
+     * @throws IllegalArgumentException if the shared memory does not hold a valid ring buffer
+     * @throws IllegalStateException if the shared memory could not be mapped
+     */
+    @NonNull
+    public static VmsRingBuffer openReader(@NonNull SharedMemory sharedMemory) {
+        ByteBuffer buffer;
+        try {
+            buffer = sharedMemory.mapReadOnly();
+        } catch (ErrnoException e) {
+            throw new IllegalStateException("Failed to create read buffer", e);
+        }
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(OFFSET_MAGIC) != MAGIC) {
+            SharedMemory.unmap(buffer);
+            throw new IllegalArgumentException("Not a ring buffer");
+        }
+        int slotCount = buffer.getInt(OFFSET_SLOT_COUNT);
+        int maxPacketSize = buffer.getInt(OFFSET_MAX_PACKET_SIZE);
+        if (slotCount <= 0 || maxPacketSize <= 0
+                || getRequiredSize(slotCount, maxPacketSize) > buffer.capacity()) {
+            SharedMemory.unmap(buffer);
+            throw new IllegalArgumentException("Invalid ring buffer header: " + slotCount
+                    + " slots of " + maxPacketSize + " bytes in " + buffer.capacity() + " bytes");
+        }
+        return new VmsRingBuffer(sharedMemory, buffer, slotCount, maxPacketSize, false);
+    }
+
+    /**
+     * Returns the shared memory backing the buffer, for passing to other processes.
+     */
+    @NonNull
+    public SharedMemory getSharedMemory() {
+        return mSharedMemory;
+    }
+
+    /**
+     * Returns the number of packets retained by the buffer.
+     */
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    /**
+     * Returns the largest packet that fits in the buffer, in bytes.
+     */
+    public int getMaxPacketSize() {
+        return mMaxPacketSize;
+    }
+
+    /**
+     * Writes a packet into the next slot.
+     *
+     * @return Sequence number identifying the packet, starting at 1
+     * @throws IllegalArgumentException if the packet is larger than {@link #getMaxPacketSize()}
+     * @throws IllegalStateException if the buffer is read-only or closed
+     */
+    public long write(@NonNull byte[] packet) {
+        if (!mWritable) {
+            throw new IllegalStateException("Ring buffer is read-only");
+        }
+        if (packet.length > mMaxPacketSize) {
+            throw new IllegalArgumentException("Packet too large for ring buffer: "
+                    + packet.length + " > " + mMaxPacketSize);
+        }
+        synchronized (mLock) {
+            if (mClosed) {
+                throw new IllegalStateException("Ring buffer is closed");
+            }
+            long sequenceNumber = mLastSequenceNumber + 1;
+            int offset = getSlotOffset(sequenceNumber);
+            // Invalidate the slot first so that a concurrent reader of the previous packet in
+            // this slot detects that it was overwritten.
+            mBuffer.putLong(offset + SLOT_OFFSET_SEQUENCE, SEQUENCE_NONE);
+            // The invalidation must be visible before any byte of the new packet
+            VarHandle.releaseFence();
+            mBuffer.putInt(offset + SLOT_OFFSET_LENGTH, packet.length);
+            ByteBuffer slot = mBuffer.duplicate();
+            slot.position(offset + SLOT_HEADER_SIZE);
+            slot.put(packet);
+            // The packet must be visible before the sequence number that publishes it
+            VarHandle.releaseFence();
+            mBuffer.putLong(offset + SLOT_OFFSET_SEQUENCE, sequenceNumber);
+            mLastSequenceNumber = sequenceNumber;
+            return sequenceNumber;
+        }
+    }
+
+    /**
+     * Reads a packet from the buffer.
+     *
+     * @return Packet data, or {@code null} if the packet was overwritten or not written yet
+     */
+    @Nullable
+    public byte[] read(long sequenceNumber) {
+        if (sequenceNumber <= SEQUENCE_NONE) {
+            return null;
+        }
+        synchronized (mLock) {
+            if (mClosed) {
+                return null;
+            }
+            int offset = getSlotOffset(sequenceNumber);
+            if (mBuffer.getLong(offset + SLOT_OFFSET_SEQUENCE) != sequenceNumber) {
+                return null;
+            }
+            // Do not read the packet before the sequence number
+            VarHandle.acquireFence();
+            int length = mBuffer.getInt(offset + SLOT_OFFSET_LENGTH);
+            if (length < 0 || length > mMaxPacketSize) {
+                return null;
+            }
+            byte[] packet = new byte[length];
+            ByteBuffer slot = mBuffer.duplicate();
+            slot.position(offset + SLOT_HEADER_SIZE);
+            slot.get(packet);
+            // Finish reading the packet before checking the sequence number again
+            VarHandle.acquireFence();
+            // The writer may have reused the slot while it was being copied
+            if (mBuffer.getLong(offset + SLOT_OFFSET_SEQUENCE) != sequenceNumber) {
+                return null;
+            }
+            return packet;
+        }
+    }
+
+    /**
+     * Unmaps the buffer and closes the shared memory.
+     */
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            SharedMemory.unmap(mBuffer);
+            mSharedMemory.close();
+        }
+    }
+
+    private int getSlotOffset(long sequenceNumber) {
+        return HEADER_SIZE
+                + (int) (sequenceNumber % mSlotCount) * (SLOT_HEADER_SIZE + mMaxPacketSize);
+    }
+
+    private static long getRequiredSize(int slotCount, int maxPacketSize) {
+        return HEADER_SIZE + (long) slotCount * (SLOT_HEADER_SIZE + (long) maxPacketSize);
+    }
+}
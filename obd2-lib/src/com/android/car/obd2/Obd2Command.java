@@ -164,6 +164,16 @@ public abstract class Obd2Command<ValueType> {
             }
             return Optional.empty();
         }
+
+        /**
+         * Decodes the data of this command's PID from a response obtained by other means, such
+         * as a multi-PID request.
+         *
+         * @param data The data bytes, following the response marker and PID.
+         */
+        public Optional<ValueType> consume(IntegerArrayStream data) {
+            return mSemanticHandler.consume(data);
+        }
     }
 
     /**
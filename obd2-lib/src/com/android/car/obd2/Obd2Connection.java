@@ -17,10 +17,13 @@
 package com.android.car.obd2;
 
 import android.util.Log;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
@@ -49,6 +52,32 @@ public class Obd2Connection {
 
     private final UnderlyingTransport mConnection;
 
+    // Status messages that the adapter mixes with the data and that we ignore
+    private static final byte[][] SIDE_DATA =
+            new byte[][] {
+                toAscii("SEARCHING"), toAscii("BUSINIT"), toAscii("STOPPED"), toAscii("ERROR")
+            };
+    // Status messages that mean the vehicle could not be reached, checked before SIDE_DATA since
+    // some of them end with ERROR
+    private static final byte[][] FAILURES =
+            new byte[][] {toAscii("UNABLETOCONNECT"), toAscii("CANERROR"), toAscii("BUSERROR")};
+    private static final String[] FAILURE_MESSAGES =
+            new String[] {"connection failure", "CAN bus error", "bus error"};
+    private static final byte[] OK = toAscii("OK");
+    private static final byte[] UNKNOWN = toAscii("?");
+    private static final byte[] NO_DATA = toAscii("NODATA");
+
+    // Input is read in blocks; bytes past the prompt, if any, are kept for the next command
+    private final byte[] mReadBuffer = new byte[256];
+    private int mReadPosition;
+    private int mReadLimit;
+    private InputStream mBufferedStream;
+    // The response to the last command, without whitespace, and its decoded bytes
+    private byte[] mResponse = new byte[64];
+    private int mResponseLength;
+    private int[] mValues = new int[32];
+    private byte[] mCommand = new byte[16];
+
     private static final String[] initCommands =
             new String[] {"ATD", "ATZ", "AT E0", "AT L0", "AT S0", "AT H0", "AT SP 0"};
 
@@ -80,43 +109,18 @@ public class Obd2Connection {
         return mConnection.isConnected();
     }
 
-    static int toDigitValue(char c) {
-        if ((c >= '0') && (c <= '9')) return c - '0';
-        switch (c) {
-            case 'a':
-            case 'A':
-                return 10;
-            case 'b':
-            case 'B':
-                return 11;
-            case 'c':
-            case 'C':
-                return 12;
-            case 'd':
-            case 'D':
-                return 13;
-            case 'e':
-            case 'E':
-                return 14;
-            case 'f':
-            case 'F':
-                return 15;
-            default:
-                throw new IllegalArgumentException(c + " is not a valid hex digit");
-        }
+    private static byte[] toAscii(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
     }
 
-    int[] toHexValues(String buffer) {
-        int[] values = new int[buffer.length() / 2];
-        for (int i = 0; i < values.length; ++i) {
-            values[i] =
-                    16 * toDigitValue(buffer.charAt(2 * i))
-                            + toDigitValue(buffer.charAt(2 * i + 1));
-        }
-        return values;
+    private static int toDigitValue(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        return -1;
     }
 
-    private String runImpl(String command) throws IOException, InterruptedException {
+    private void runImpl(String command) throws IOException, InterruptedException {
         InputStream in = Objects.requireNonNull(mConnection.getInputStream());
         OutputStream out = Objects.requireNonNull(mConnection.getOutputStream());
 
@@ -124,87 +128,175 @@ public class Obd2Connection {
             Log.i(TAG, "runImpl(" + command + ")");
         }
 
-        out.write((command + "\r").getBytes());
+        int length = command.length();
+        if (mCommand.length < length + 1) mCommand = new byte[length + 1];
+        for (int i = 0; i < length; ++i) {
+            mCommand[i] = (byte) command.charAt(i);
+        }
+        mCommand[length] = '\r';
+        out.write(mCommand, 0, length + 1);
         out.flush();
 
-        StringBuilder response = new StringBuilder();
+        readResponse(in);
+
+        if (DBG) {
+            Log.i(TAG, "runImpl() returned " + responseToString(0, mResponseLength));
+        }
+    }
+
+    /**
+     * Reads the response to a command into {@link #mResponse}, up to the prompt and without
+     * whitespace and dots.
+     */
+    private void readResponse(InputStream in) throws IOException, InterruptedException {
+        if (in != mBufferedStream) {
+            // A new connection, whatever was buffered from the old one is stale
+            mBufferedStream = in;
+            mReadPosition = 0;
+            mReadLimit = 0;
+        }
+        mResponseLength = 0;
         while (true) {
-            int value = in.read();
-            if (value < 0) continue;
-            char c = (char) value;
+            if (mReadPosition == mReadLimit) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                // blocks until data is available
+                int count = in.read(mReadBuffer, 0, mReadBuffer.length);
+                if (count < 0) throw new EOFException("OBD2 connection closed");
+                mReadPosition = 0;
+                mReadLimit = count;
+                continue;
+            }
+            byte b = mReadBuffer[mReadPosition++];
             // this is the prompt, stop here
-            if (c == '>') break;
-            if (c == '\r' || c == '\n' || c == ' ' || c == '\t' || c == '.') continue;
-            response.append(c);
+            if (b == '>') return;
+            if (b == '\r' || b == '\n' || b == ' ' || b == '\t' || b == '.') continue;
+            if (mResponseLength == mResponse.length) {
+                mResponse = Arrays.copyOf(mResponse, 2 * mResponse.length);
+            }
+            mResponse[mResponseLength++] = b;
         }
+    }
 
-        String responseValue = response.toString();
+    /** Returns the offset of the response past the echo of the command, if any. */
+    private int skipEcho(String command) {
+        int position = 0;
+        for (int i = 0; i < command.length(); ++i) {
+            char c = command.charAt(i);
+            if (c == ' ') continue;
+            if (position == mResponseLength || mResponse[position] != c) return 0;
+            ++position;
+        }
+        return position;
+    }
 
-        if (DBG) {
-            Log.i(TAG, "runImpl() returned " + responseValue);
+    /**
+     * Long frames come back to us containing colon separated portions: removes everything until
+     * the first colon, then the {@code <digit>:} markers of the sequential frame parts.
+     *
+     * @return The new end of the response.
+     */
+    private int unpackLongFrame(int start, int end) {
+        int colon = indexOf((byte) ':', start, end);
+        if (colon < 0) return end;
+        //TODO(egranata): maybe validate the sequence of digits is progressive
+        int write = start;
+        for (int read = colon + 1; read < end; ++read) {
+            byte b = mResponse[read];
+            if (b >= '0' && b <= '9' && read + 1 < end && mResponse[read + 1] == ':') {
+                ++read;
+                continue;
+            }
+            mResponse[write++] = b;
         }
+        return write;
+    }
 
-        return responseValue;
+    /**
+     * Removes the status messages that carry no data, and fails on those that report that the
+     * vehicle could not be reached.
+     *
+     * @return The new end of the response.
+     */
+    private int removeStatusMessages(int start, int end) throws IOException {
+        int write = start;
+        int read = start;
+        outer:
+        while (read < end) {
+            byte b = mResponse[read];
+            // Only look for status messages where one can start
+            if (b == 'S' || b == 'B' || b == 'U' || b == 'C' || b == 'E') {
+                for (int i = 0; i < FAILURES.length; ++i) {
+                    if (regionMatches(read, end, FAILURES[i])) {
+                        throw new IOException(FAILURE_MESSAGES[i]);
+                    }
+                }
+                for (byte[] sideData : SIDE_DATA) {
+                    if (regionMatches(read, end, sideData)) {
+                        read += sideData.length;
+                        continue outer;
+                    }
+                }
+            }
+            mResponse[write++] = mResponse[read++];
+        }
+        return write;
     }
 
-    String removeSideData(String response, String... patterns) {
-        for (String pattern : patterns) {
-            if (response.contains(pattern)) response = response.replaceAll(pattern, "");
+    private int indexOf(byte value, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            if (mResponse[i] == value) return i;
         }
-        return response;
+        return -1;
     }
 
-    String unpackLongFrame(String response) {
-        // long frames come back to us containing colon separated portions
-        if (response.indexOf(':') < 0) return response;
+    private boolean responseEquals(int start, int end, byte[] value) {
+        return end - start == value.length && regionMatches(start, end, value);
+    }
 
-        // remove everything until the first colon
-        response = response.substring(response.indexOf(':') + 1);
+    private boolean regionMatches(int start, int end, byte[] value) {
+        if (end - start < value.length) return false;
+        for (int i = 0; i < value.length; ++i) {
+            if (mResponse[start + i] != value[i]) return false;
+        }
+        return true;
+    }
 
-        // then remove the <digit>: portions (sequential frame parts)
-        //TODO(egranata): maybe validate the sequence of digits is progressive
-        return response.replaceAll("[0-9]:", "");
+    private String responseToString(int start, int end) {
+        return new String(mResponse, start, end - start, StandardCharsets.US_ASCII);
     }
 
     public int[] run(String command) throws IOException, InterruptedException {
-        String responseValue = runImpl(command);
-        String originalResponseValue = responseValue;
-        String unspacedCommand = command.replaceAll(" ", "");
-        if (responseValue.startsWith(unspacedCommand))
-            responseValue = responseValue.substring(unspacedCommand.length());
-        responseValue = unpackLongFrame(responseValue);
+        runImpl(command);
+        int start = skipEcho(command);
+        int end = unpackLongFrame(start, mResponseLength);
 
         if (DBG) {
-            Log.i(TAG, "post-processed response " + responseValue);
+            Log.i(TAG, "post-processed response " + responseToString(start, end));
         }
 
-        //TODO(egranata): should probably handle these intelligently
-        responseValue =
-                removeSideData(
-                        responseValue,
-                        "SEARCHING",
-                        "ERROR",
-                        "BUS INIT",
-                        "BUSINIT",
-                        "BUS ERROR",
-                        "BUSERROR",
-                        "STOPPED");
-        if (responseValue.equals("OK")) return new int[] {1};
-        if (responseValue.equals("?")) return new int[] {0};
-        if (responseValue.equals("NODATA")) return new int[] {};
-        if (responseValue.equals("UNABLETOCONNECT")) throw new IOException("connection failure");
-        if (responseValue.equals("CANERROR")) throw new IOException("CAN bus error");
-        try {
-            return toHexValues(responseValue);
-        } catch (IllegalArgumentException e) {
-            Log.e(
-                    TAG,
-                    String.format(
-                            "conversion error: command: '%s', original response: '%s'"
-                                    + ", processed response: '%s'",
-                            command, originalResponseValue, responseValue));
-            throw e;
+        end = removeStatusMessages(start, end);
+        if (responseEquals(start, end, OK)) return new int[] {1};
+        if (responseEquals(start, end, UNKNOWN)) return new int[] {0};
+        if (responseEquals(start, end, NO_DATA)) return new int[] {};
+
+        int count = (end - start) / 2;
+        if (mValues.length < count) mValues = new int[Math.max(count, 2 * mValues.length)];
+        for (int i = 0; i < count; ++i) {
+            int high = toDigitValue(mResponse[start + 2 * i]);
+            int low = toDigitValue(mResponse[start + 2 * i + 1]);
+            if (high < 0 || low < 0) {
+                Log.e(
+                        TAG,
+                        String.format(
+                                "conversion error: command: '%s', processed response: '%s'",
+                                command, responseToString(start, end)));
+                throw new IllegalArgumentException(
+                        (char) mResponse[start + 2 * i + (high < 0 ? 0 : 1)]
+                                + " is not a valid hex digit");
+            }
+            mValues[i] = 16 * high + low;
         }
+        return Arrays.copyOf(mValues, count);
     }
 
     static class FourByteBitSet {
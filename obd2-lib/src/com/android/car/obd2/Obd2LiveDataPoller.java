@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.android.car.obd2.Obd2Command.LiveFrameCommand;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Polls live data PIDs, each at its own rate, and streams their values to a {@link Listener}.
+ *
+ * <p>Unlike {@link Obd2LiveFrameGenerator}, which queries every supported PID for each frame, this
+ * poller gives each PID a target period and a priority, so that fast-changing values such as RPM
+ * and speed are sampled often while slow ones such as coolant temperature or fuel level only take
+ * a small share of the bus. On every step, the poller picks the most urgent due PID and fills the
+ * rest of the request with other due PIDs, by priority; PIDs that would fall due before the
+ * request completes, based on the measured bus latency, ride along too. When the bus cannot keep
+ * up with all the target periods, low priority PIDs are delayed, but a PID that is late by a full
+ * period gains a priority level, so that none starves.
+ *
+ * <p>{@link #pollOnce} and {@link #run} must be called from a single thread, which receives the
+ * values; the other methods may be called from any thread.
+ */
+public class Obd2LiveDataPoller {
+    public static final String TAG = Obd2LiveDataPoller.class.getSimpleName();
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    /** Receives the values of the polled PIDs as they are read. */
+    public interface Listener {
+        void onIntegerValue(int pid, int value, long timestampNanos);
+
+        void onFloatValue(int pid, float value, long timestampNanos);
+    }
+
+    private static final long DEFAULT_PERIOD_MS = 1000;
+
+    // Default period, in milliseconds, and priority of the PIDs the library knows about
+    private static final Map<Integer, long[]> DEFAULT_POLICIES = new HashMap<>();
+
+    static {
+        long[][] policies =
+                new long[][] {
+                    {0x0C /* RPM */, 100, PRIORITY_HIGH},
+                    {0x0D /* speed */, 100, PRIORITY_HIGH},
+                    {0x11 /* throttle position */, 100, PRIORITY_HIGH},
+                    {0x04 /* engine load */, 250, PRIORITY_NORMAL},
+                    {0x06 /* fuel trims */, 1000, PRIORITY_NORMAL},
+                    {0x07, 1000, PRIORITY_NORMAL},
+                    {0x08, 1000, PRIORITY_NORMAL},
+                    {0x09, 1000, PRIORITY_NORMAL},
+                    {0x0A /* fuel pressure */, 1000, PRIORITY_NORMAL},
+                    {0x03 /* fuel system status */, 5000, PRIORITY_LOW},
+                    {0x05 /* coolant temperature */, 5000, PRIORITY_LOW},
+                    {0x5C /* oil temperature */, 5000, PRIORITY_LOW},
+                    {0x1F /* engine runtime */, 5000, PRIORITY_LOW},
+                    {0x2F /* fuel level */, 10000, PRIORITY_LOW},
+                    {0x46 /* ambient temperature */, 10000, PRIORITY_LOW}
+                };
+        for (long[] policy : policies) {
+            DEFAULT_POLICIES.put((int) policy[0], new long[] {policy[1], policy[2]});
+        }
+    }
+
+    private static final class PidState {
+        final int pid;
+        final LiveFrameCommand<Integer> integerCommand;
+        final LiveFrameCommand<Float> floatCommand;
+        long periodNanos;
+        int priority;
+        long nextDueNanos;
+        long readCount;
+
+        PidState(
+                int pid,
+                LiveFrameCommand<Integer> integerCommand,
+                LiveFrameCommand<Float> floatCommand) {
+            this.pid = pid;
+            this.integerCommand = integerCommand;
+            this.floatCommand = floatCommand;
+            long[] policy = DEFAULT_POLICIES.get(pid);
+            periodNanos =
+                    TimeUnit.MILLISECONDS.toNanos(policy == null ? DEFAULT_PERIOD_MS : policy[0]);
+            priority = policy == null ? PRIORITY_NORMAL : (int) policy[1];
+        }
+    }
+
+    private final Obd2Connection mConnection;
+    private final Listener mListener;
+    private final LongSupplier mClockNanos;
+    private final Obd2QueryPlanner mQueryPlanner;
+    private final Object mLock = new Object();
+    // Guarded by mLock, as are the schedules and counts of its PIDs
+    private final List<PidState> mPids = new ArrayList<>();
+    // Only used by the polling thread
+    private final Map<Integer, IntegerArrayStream> mResponses = new HashMap<>();
+    private final List<PidState> mRequest = new ArrayList<>();
+
+    // Smoothed duration of a request, or -1 before the first one; guarded by mLock
+    private long mLatencyNanos = -1;
+    private long mRequestCount;
+    // Set when a PID is added or its policy changes, so that run() plans again instead of waiting
+    // for the PID that pollOnce() found to be due next; guarded by mLock
+    private boolean mScheduleChanged;
+
+    public Obd2LiveDataPoller(Obd2Connection connection, Listener listener)
+            throws IOException, InterruptedException {
+        this(connection, listener, SystemClock::elapsedRealtimeNanos);
+    }
+
+    /**
+     * @param clockNanos The monotonic clock used to schedule requests and timestamp values.
+     */
+    public Obd2LiveDataPoller(Obd2Connection connection, Listener listener, LongSupplier clockNanos)
+            throws IOException, InterruptedException {
+        mConnection = connection;
+        mListener = listener;
+        mClockNanos = clockNanos;
+        Set<Integer> connectionPids = connection.getSupportedPIDs();
+        List<Integer> pids = new ArrayList<>();
+        long now = clockNanos.getAsLong();
+        for (int pid : new TreeSet<>(connectionPids)) {
+            PidState state = createState(pid);
+            if (state == null) {
+                continue;
+            }
+            state.nextDueNanos = now;
+            mPids.add(state);
+            pids.add(pid);
+        }
+        mQueryPlanner = new Obd2QueryPlanner(pids);
+        Log.i(TAG, String.format("connectionPids = %s\npolledPids = %s\n", connectionPids, pids));
+    }
+
+    /** Returns the PIDs that this poller reads. */
+    public List<Integer> getPids() {
+        synchronized (mLock) {
+            List<Integer> pids = new ArrayList<>(mPids.size());
+            for (PidState state : mPids) {
+                pids.add(state.pid);
+            }
+            return pids;
+        }
+    }
+
+    /**
+     * Starts polling a PID, for instance one that the vehicle answers although it does not report
+     * it as supported. The PID is due right away, with its default policy. Does nothing if the PID
+     * is already polled.
+     *
+     * @throws IllegalArgumentException if the library does not know how to read the PID.
+     */
+    public void addPid(int pid) {
+        PidState state = createState(pid);
+        if (state == null) {
+            throw new IllegalArgumentException("pid " + pid + " is not supported");
+        }
+        synchronized (mLock) {
+            if (getStateLocked(pid) != null) {
+                return;
+            }
+            state.nextDueNanos = mClockNanos.getAsLong();
+            int index = 0;
+            while (index < mPids.size() && mPids.get(index).pid < pid) {
+                ++index;
+            }
+            mPids.add(index, state);
+            onScheduleChangedLocked();
+        }
+    }
+
+    /**
+     * Sets how often a PID should be read and how it competes for the bus with the others.
+     *
+     * @param periodMs The target time between two reads of the PID.
+     * @param priority One of {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL} or {@link
+     *     #PRIORITY_HIGH}.
+     */
+    public void setPolicy(int pid, long periodMs, int priority) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("invalid period: " + periodMs);
+        }
+        if (priority < PRIORITY_LOW || priority > PRIORITY_HIGH) {
+            throw new IllegalArgumentException("invalid priority: " + priority);
+        }
+        synchronized (mLock) {
+            PidState state = getStateLocked(pid);
+            if (state == null) {
+                throw new IllegalArgumentException("pid " + pid + " is not polled");
+            }
+            long periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+            state.nextDueNanos =
+                    Math.min(state.nextDueNanos, mClockNanos.getAsLong() + periodNanos);
+            state.periodNanos = periodNanos;
+            state.priority = priority;
+            onScheduleChangedLocked();
+        }
+    }
+
+    /**
+     * Sends one request for the PIDs that are due, if any, and passes the values read to the
+     * listener.
+     *
+     * @return The time, in milliseconds, until the next PID is due, or {@link Long#MAX_VALUE} if
+     *     no PID is polled.
+     */
+    public long pollOnce() throws InterruptedException {
+        long now = mClockNanos.getAsLong();
+        synchronized (mLock) {
+            mScheduleChanged = false;
+            pickRequestLocked(now);
+        }
+        if (!mRequest.isEmpty()) {
+            int[] pids = new int[mRequest.size()];
+            for (int i = 0; i < pids.length; ++i) {
+                pids[i] = mRequest.get(i).pid;
+            }
+            mResponses.clear();
+            mQueryPlanner.query(mConnection, pids, mResponses);
+            long end = mClockNanos.getAsLong();
+            synchronized (mLock) {
+                updateLatencyLocked(end - now);
+                for (PidState state : mRequest) {
+                    // Keep the phase of the PID when on time, but when late, count the next
+                    // period from now rather than let the PID fall due again right away
+                    state.nextDueNanos =
+                            Math.max(
+                                    state.nextDueNanos + state.periodNanos,
+                                    now + state.periodNanos);
+                }
+            }
+            for (PidState state : mRequest) {
+                IntegerArrayStream data = mResponses.get(state.pid);
+                if (data != null) {
+                    dispatch(state, data, end);
+                }
+            }
+            now = end;
+        }
+        long nextDue = Long.MAX_VALUE;
+        synchronized (mLock) {
+            for (PidState state : mPids) {
+                nextDue = Math.min(nextDue, state.nextDueNanos);
+            }
+        }
+        if (nextDue == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(Math.max(0, nextDue - now));
+    }
+
+    /**
+     * Polls until the calling thread is interrupted. While no PID is polled, waits for {@link
+     * #addPid} to add one.
+     */
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (!mConnection.isConnected() && !mConnection.reconnect()) {
+                    Log.w(TAG, "OBD2 connection lost, stopping");
+                    return;
+                }
+                long delayMs = pollOnce();
+                synchronized (mLock) {
+                    // A PID added or made more urgent since pollOnce() may be due before delayMs
+                    if (!mScheduleChanged && delayMs > 0) {
+                        if (delayMs == Long.MAX_VALUE) {
+                            mLock.wait();
+                        } else {
+                            mLock.wait(delayMs);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the smoothed duration of a request, in milliseconds, or -1 if unknown. */
+    public long getLatencyMillis() {
+        synchronized (mLock) {
+            return mLatencyNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(mLatencyNanos);
+        }
+    }
+
+    /** Returns the number of requests sent so far. */
+    public long getRequestCount() {
+        synchronized (mLock) {
+            return mRequestCount;
+        }
+    }
+
+    /** Returns the number of values read for the given PID so far. */
+    public long getReadCount(int pid) {
+        synchronized (mLock) {
+            PidState state = getStateLocked(pid);
+            return state == null ? 0 : state.readCount;
+        }
+    }
+
+    private void onScheduleChangedLocked() {
+        mScheduleChanged = true;
+        mLock.notifyAll();
+    }
+
+    private void pickRequestLocked(long now) {
+        mRequest.clear();
+        PidState first = null;
+        for (PidState state : mPids) {
+            if (state.nextDueNanos <= now && isMoreUrgent(state, first, now)) {
+                first = state;
+            }
+        }
+        if (first == null) {
+            return;
+        }
+        mRequest.add(first);
+        if (!mQueryPlanner.isMultiPidSupported() || !Obd2QueryPlanner.isBatchable(first.pid)) {
+            return;
+        }
+        // Fill the request with the most urgent other PIDs that are due by the time it completes
+        long horizon = now + Math.max(0, mLatencyNanos);
+        while (mRequest.size() < Obd2QueryPlanner.MAX_PIDS_PER_REQUEST) {
+            PidState next = null;
+            for (PidState state : mPids) {
+                if (state.nextDueNanos <= horizon
+                        && Obd2QueryPlanner.isBatchable(state.pid)
+                        && !mRequest.contains(state)
+                        && isMoreUrgent(state, next, now)) {
+                    next = state;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            mRequest.add(next);
+        }
+    }
+
+    /** Returns {@code true} if {@code state} should be read before {@code other}. */
+    private static boolean isMoreUrgent(PidState state, PidState other, long now) {
+        if (other == null) {
+            return true;
+        }
+        int priority = getEffectivePriority(state, now);
+        int otherPriority = getEffectivePriority(other, now);
+        if (priority != otherPriority) {
+            return priority > otherPriority;
+        }
+        return state.nextDueNanos < other.nextDueNanos;
+    }
+
+    /** Raises the priority of a PID by one level for each full period it is late. */
+    private static int getEffectivePriority(PidState state, long now) {
+        long lateness = now - state.nextDueNanos;
+        if (lateness <= 0) {
+            return state.priority;
+        }
+        return (int) Math.min(PRIORITY_HIGH, state.priority + lateness / state.periodNanos);
+    }
+
+    private void updateLatencyLocked(long latencyNanos) {
+        ++mRequestCount;
+        latencyNanos = Math.max(0, latencyNanos);
+        mLatencyNanos =
+                mLatencyNanos < 0 ? latencyNanos : (7 * mLatencyNanos + latencyNanos) / 8;
+    }
+
+    private void dispatch(PidState state, IntegerArrayStream data, long timestampNanos) {
+        if (state.integerCommand != null) {
+            Optional<Integer> value = state.integerCommand.consume(data);
+            if (!value.isPresent()) return;
+            mListener.onIntegerValue(state.pid, value.get(), timestampNanos);
+        } else {
+            Optional<Float> value = state.floatCommand.consume(data);
+            if (!value.isPresent()) return;
+            mListener.onFloatValue(state.pid, value.get(), timestampNanos);
+        }
+        synchronized (mLock) {
+            ++state.readCount;
+        }
+    }
+
+    /** Returns a new state for the PID, or {@code null} if the library cannot read it. */
+    private static PidState createState(int pid) {
+        LiveFrameCommand<Integer> integerCommand = null;
+        LiveFrameCommand<Float> floatCommand = null;
+        if (Obd2Command.getSupportedIntegerCommands().contains(pid)) {
+            integerCommand = Obd2Command.getLiveFrameCommand(Obd2Command.getIntegerCommand(pid));
+        } else if (Obd2Command.getSupportedFloatCommands().contains(pid)) {
+            floatCommand = Obd2Command.getLiveFrameCommand(Obd2Command.getFloatCommand(pid));
+        } else {
+            return null;
+        }
+        return new PidState(pid, integerCommand, floatCommand);
+    }
+
+    private PidState getStateLocked(int pid) {
+        for (PidState state : mPids) {
+            if (state.pid == pid) return state;
+        }
+        return null;
+    }
+}
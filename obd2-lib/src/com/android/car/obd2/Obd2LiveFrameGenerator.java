@@ -22,7 +22,9 @@ import android.util.Log;
 import com.android.car.obd2.Obd2Command.LiveFrameCommand;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -33,6 +35,7 @@ public class Obd2LiveFrameGenerator {
     private final Obd2Connection mConnection;
     private final List<LiveFrameCommand<Integer>> mIntegerCommands = new ArrayList<>();
     private final List<LiveFrameCommand<Float>> mFloatCommands = new ArrayList<>();
+    private final Obd2QueryPlanner mQueryPlanner;
 
     public Obd2LiveFrameGenerator(Obd2Connection connection)
             throws IOException, InterruptedException {
@@ -56,6 +59,10 @@ public class Obd2LiveFrameGenerator {
                                 mFloatCommands.add(
                                         Obd2Command.getLiveFrameCommand(
                                                 Obd2Command.getFloatCommand(pid))));
+        List<Integer> pids = new ArrayList<>();
+        mIntegerCommands.forEach((LiveFrameCommand<Integer> command) -> pids.add(command.getPid()));
+        mFloatCommands.forEach((LiveFrameCommand<Float> command) -> pids.add(command.getPid()));
+        mQueryPlanner = new Obd2QueryPlanner(pids);
         Log.i(
                 TAG,
                 String.format(
@@ -73,47 +80,41 @@ public class Obd2LiveFrameGenerator {
     }
 
     public JsonWriter generate(JsonWriter jsonWriter, long timestamp) throws IOException {
+        Map<Integer, IntegerArrayStream> responses;
+        try {
+            responses = mQueryPlanner.run(mConnection);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted while retrieving OBD2 live frame");
+            Thread.currentThread().interrupt();
+            responses = Collections.emptyMap();
+        }
         jsonWriter.beginObject();
         jsonWriter.name("type").value(FRAME_TYPE_LIVE);
         jsonWriter.name("timestamp").value(timestamp);
         jsonWriter.name("intValues").beginArray();
         for (LiveFrameCommand<Integer> command : mIntegerCommands) {
-            try {
-                Optional<Integer> result = command.run(mConnection);
-                if (result.isPresent()) {
-                    jsonWriter.beginObject();
-                    jsonWriter.name("id").value(command.getPid());
-                    jsonWriter.name("value").value(result.get());
-                    jsonWriter.endObject();
-                }
-            } catch (IOException | InterruptedException e) {
-                Log.w(
-                        TAG,
-                        String.format(
-                                "unable to retrieve OBD2 pid %d due to exception: %s",
-                                command.getPid(), e));
-                // skip this entry
+            IntegerArrayStream data = responses.get(command.getPid());
+            if (data == null) continue;
+            Optional<Integer> result = command.consume(data);
+            if (result.isPresent()) {
+                jsonWriter.beginObject();
+                jsonWriter.name("id").value(command.getPid());
+                jsonWriter.name("value").value(result.get());
+                jsonWriter.endObject();
             }
         }
         jsonWriter.endArray();
 
         jsonWriter.name("floatValues").beginArray();
         for (LiveFrameCommand<Float> command : mFloatCommands) {
-            try {
-                Optional<Float> result = command.run(mConnection);
-                if (result.isPresent()) {
-                    jsonWriter.beginObject();
-                    jsonWriter.name("id").value(command.getPid());
-                    jsonWriter.name("value").value(result.get());
-                    jsonWriter.endObject();
-                }
-            } catch (IOException | InterruptedException e) {
-                Log.w(
-                        TAG,
-                        String.format(
-                                "unable to retrieve OBD2 pid %d due to exception: %s",
-                                command.getPid(), e));
-                // skip this entry
+            IntegerArrayStream data = responses.get(command.getPid());
+            if (data == null) continue;
+            Optional<Float> result = command.consume(data);
+            if (result.isPresent()) {
+                jsonWriter.beginObject();
+                jsonWriter.name("id").value(command.getPid());
+                jsonWriter.name("value").value(result.get());
+                jsonWriter.endObject();
             }
         }
         jsonWriter.endArray();
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Queries mode 01 (live data) PIDs several at a time.
+ *
+ * <p>Mode 01 allows up to six PIDs in a single request, which the vehicle answers with one
+ * response containing each PID followed by its data. Since the response does not say how long
+ * each value is, only PIDs whose data size is known are batched; the others, and all PIDs of an
+ * adapter or vehicle that turns out not to support multi-PID requests, are queried one at a time.
+ *
+ * <p>With headers off, the responses of several ECUs are concatenated, so a response may contain
+ * several {@code 41} markers, and a PID answered by more than one ECU; the first answer wins.
+ */
+public class Obd2QueryPlanner {
+    public static final String TAG = Obd2QueryPlanner.class.getSimpleName();
+
+    public static final int MAX_PIDS_PER_REQUEST = 6;
+
+    private static final int MODE = Obd2Command.LIVE_FRAME;
+    private static final int RESPONSE_MARKER = 0x41;
+
+    // Size, in bytes, of the data of mode 01 PIDs, as defined by SAE J1979
+    private static final Map<Integer, Integer> PID_DATA_SIZES = new HashMap<>();
+
+    static {
+        int[][] sizes =
+                new int[][] {
+                    {0x03, 2}, {0x04, 1}, {0x05, 1}, {0x06, 1}, {0x07, 1}, {0x08, 1}, {0x09, 1},
+                    {0x0A, 1}, {0x0B, 1}, {0x0C, 2}, {0x0D, 1}, {0x0E, 1}, {0x0F, 1}, {0x10, 2},
+                    {0x11, 1}, {0x1F, 2}, {0x21, 2}, {0x22, 2}, {0x23, 2}, {0x2F, 1}, {0x33, 1},
+                    {0x42, 2}, {0x46, 1}, {0x5C, 1}, {0x5E, 2}
+                };
+        for (int[] size : sizes) {
+            PID_DATA_SIZES.put(size[0], size[1]);
+        }
+    }
+
+    private final List<int[]> mBatches = new ArrayList<>();
+    private final List<String> mBatchRequests = new ArrayList<>();
+    private final List<Integer> mSinglePids = new ArrayList<>();
+    private boolean mMultiPidSupported = true;
+
+    /**
+     * @param pids The PIDs to query; the vehicle should support all of them.
+     */
+    public Obd2QueryPlanner(Collection<Integer> pids) {
+        List<Integer> batchable = new ArrayList<>();
+        for (int pid : new TreeSet<>(pids)) {
+            if (isBatchable(pid)) {
+                batchable.add(pid);
+            } else {
+                mSinglePids.add(pid);
+            }
+        }
+        for (int start = 0; start < batchable.size(); start += MAX_PIDS_PER_REQUEST) {
+            List<Integer> batch =
+                    batchable.subList(
+                            start, Math.min(batchable.size(), start + MAX_PIDS_PER_REQUEST));
+            if (batch.size() == 1) {
+                mSinglePids.add(batch.get(0));
+                continue;
+            }
+            int[] batchPids = batch.stream().mapToInt(Integer::intValue).toArray();
+            mBatches.add(batchPids);
+            mBatchRequests.add(makeRequest(batchPids));
+        }
+    }
+
+    /** Returns the number of requests that a call to {@link #run} sends. */
+    public int getRequestCount() {
+        return mMultiPidSupported ? mBatches.size() + mSinglePids.size() : getPidCount();
+    }
+
+    /**
+     * Queries all the PIDs of this planner.
+     *
+     * @return The data of each PID that the vehicle answered, keyed by PID, without the response
+     *     marker and PID bytes.
+     */
+    public Map<Integer, IntegerArrayStream> run(Obd2Connection connection)
+            throws InterruptedException {
+        Map<Integer, IntegerArrayStream> results = new HashMap<>();
+        for (int i = 0; i < mBatches.size(); ++i) {
+            runBatchOrSingles(connection, mBatches.get(i), mBatchRequests.get(i), results);
+        }
+        for (int pid : mSinglePids) {
+            runSingle(connection, pid, results);
+        }
+        return results;
+    }
+
+    /**
+     * Queries the given PIDs, with a single request if possible.
+     *
+     * <p>Unlike {@link #run}, the PIDs need not be the ones this planner was created with, which
+     * lets callers pick a different set of PIDs on every request.
+     *
+     * @param pids Up to {@link #MAX_PIDS_PER_REQUEST} PIDs to query.
+     * @param results Receives the data of each PID that the vehicle answered, keyed by PID.
+     */
+    public void query(
+            Obd2Connection connection, int[] pids, Map<Integer, IntegerArrayStream> results)
+            throws InterruptedException {
+        if (pids.length > MAX_PIDS_PER_REQUEST) {
+            throw new IllegalArgumentException("too many PIDs in one request: " + pids.length);
+        }
+        boolean batchable = pids.length > 1;
+        for (int pid : pids) {
+            batchable &= isBatchable(pid);
+        }
+        if (batchable) {
+            runBatchOrSingles(connection, pids, makeRequest(pids), results);
+        } else {
+            for (int pid : pids) {
+                runSingle(connection, pid, results);
+            }
+        }
+    }
+
+    /**
+     * Returns {@code true} if the PID can be part of a multi-PID request, because the size of its
+     * data is known.
+     */
+    public static boolean isBatchable(int pid) {
+        return PID_DATA_SIZES.containsKey(pid);
+    }
+
+    /**
+     * Returns {@code false} once the vehicle has been found not to support multi-PID requests.
+     */
+    public boolean isMultiPidSupported() {
+        return mMultiPidSupported;
+    }
+
+    private void runBatchOrSingles(
+            Obd2Connection connection,
+            int[] pids,
+            String request,
+            Map<Integer, IntegerArrayStream> results)
+            throws InterruptedException {
+        if (mMultiPidSupported) {
+            runBatch(connection, pids, request, results);
+        }
+        for (int pid : pids) {
+            if (!results.containsKey(pid)) {
+                runSingle(connection, pid, results);
+            }
+        }
+    }
+
+    private void runBatch(
+            Obd2Connection connection,
+            int[] pids,
+            String request,
+            Map<Integer, IntegerArrayStream> results)
+            throws InterruptedException {
+        int[] response;
+        try {
+            response = connection.run(request);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, String.format("unable to run multi-PID request %s: %s", request, e));
+            return;
+        }
+        int found = demultiplex(response, pids, results);
+        if (found < pids.length && response.length > 0) {
+            // The vehicle answered, but not with all the PIDs, as adapters and vehicles that do
+            // not support multi-PID requests do; don't pay for the extra round trip on every
+            // frame. An empty response (NO DATA) says nothing about multi-PID support.
+            Log.i(TAG, "multi-PID requests not supported, querying PIDs one at a time");
+            mMultiPidSupported = false;
+        }
+    }
+
+    private static void runSingle(
+            Obd2Connection connection, int pid, Map<Integer, IntegerArrayStream> results)
+            throws InterruptedException {
+        try {
+            IntegerArrayStream stream =
+                    new IntegerArrayStream(connection.run(String.format("%02X%02X", MODE, pid)));
+            if (stream.expect(RESPONSE_MARKER, pid)) {
+                results.put(pid, stream);
+            }
+        } catch (IOException e) {
+            Log.w(
+                    TAG,
+                    String.format(
+                            "unable to retrieve OBD2 pid %d due to exception: %s", pid, e));
+        }
+    }
+
+    /**
+     * Splits a multi-PID response into the data of each PID.
+     *
+     * @return The number of requested PIDs found in the response.
+     */
+    static int demultiplex(int[] response, int[] pids, Map<Integer, IntegerArrayStream> results) {
+        int found = 0;
+        int index = 0;
+        while (index < response.length) {
+            int value = response[index];
+            // 0x41 is never batched, so it can only be the marker starting an ECU's response
+            if (value == RESPONSE_MARKER) {
+                ++index;
+                continue;
+            }
+            Integer size = contains(pids, value) ? PID_DATA_SIZES.get(value) : null;
+            if (size == null || index + 1 + size > response.length) {
+                break;
+            }
+            if (!results.containsKey(value)) {
+                results.put(
+                        value,
+                        new IntegerArrayStream(
+                                Arrays.copyOfRange(response, index + 1, index + 1 + size)));
+                ++found;
+            }
+            index += 1 + size;
+        }
+        return found;
+    }
+
+    private int getPidCount() {
+        int count = mSinglePids.size();
+        for (int[] pids : mBatches) {
+            count += pids.length;
+        }
+        return count;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int candidate : values) {
+            if (candidate == value) return true;
+        }
+        return false;
+    }
+
+    private static String makeRequest(int[] pids) {
+        StringBuilder request = new StringBuilder(2 + 2 * pids.length);
+        request.append(String.format("%02X", MODE));
+        for (int pid : pids) {
+            request.append(String.format("%02X", pid));
+        }
+        return request.toString();
+    }
+}
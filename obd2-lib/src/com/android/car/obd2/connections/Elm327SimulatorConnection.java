@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2.connections;
+
+import com.android.car.obd2.Obd2Connection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process simulation of an ELM327 adapter plugged into a vehicle, to run the OBD2 code
+ * without a car.
+ *
+ * <p>The vehicle has one or more ECUs, each answering the mode 01 and 02 PIDs it has a value for
+ * and mode 03 with its trouble codes; the answers of several ECUs come on separate lines, as with
+ * headers off on a real adapter. Responses that do not fit a single CAN frame are sent as long
+ * frames. Each vehicle request is answered after a configurable delay, and errors can be injected
+ * either one at a time or at random. Headers are not simulated: AT H1 is accepted but ignored.
+ *
+ * <p>The simulator also keeps the latency of every command, from the end of the command to the
+ * prompt being read, which benchmarks use to measure the cost of a request.
+ */
+public class Elm327SimulatorConnection implements Obd2Connection.UnderlyingTransport {
+    public static final String TAG = Elm327SimulatorConnection.class.getSimpleName();
+
+    public static final String VERSION = "ELM327 v1.5";
+
+    // A single CAN frame carries up to 7 bytes; the first frame of a long one carries 6
+    private static final int SINGLE_FRAME_SIZE = 7;
+    private static final int FIRST_FRAME_SIZE = 6;
+    private static final int MAX_PIDS_PER_REQUEST = 6;
+
+    private static final String[] RANDOM_ERRORS = new String[] {"NO DATA", "CAN ERROR", "STOPPED"};
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /** An ECU of the simulated vehicle. */
+    public final class Ecu {
+        private final Map<Integer, int[]> mPidValues = new TreeMap<>();
+        private final List<int[]> mTroubleCodes = new ArrayList<>();
+
+        private Ecu() {}
+
+        /**
+         * Sets the data this ECU answers the PID with, in mode 01 and, for each of its trouble
+         * codes, in mode 02. The PIDs reporting the supported PIDs are computed from the others.
+         */
+        public Ecu setPidValue(int pid, int... data) {
+            if (pid <= 0 || pid > 0xFF || pid % 0x20 == 0) {
+                throw new IllegalArgumentException(pid + " is not a valid data PID");
+            }
+            synchronized (mLock) {
+                mPidValues.put(pid, data.clone());
+            }
+            return this;
+        }
+
+        /** Sets the trouble codes of this ECU, formatted like "P0301". */
+        public Ecu setTroubleCodes(String... codes) {
+            List<int[]> troubleCodes = new ArrayList<>();
+            for (String code : codes) {
+                troubleCodes.add(encodeTroubleCode(code));
+            }
+            synchronized (mLock) {
+                mTroubleCodes.clear();
+                mTroubleCodes.addAll(troubleCodes);
+            }
+            return this;
+        }
+
+        /** Returns the data of the PID, or null if this ECU does not answer it. */
+        private int[] getPidData(int pid) {
+            if (pid % 0x20 != 0) return mPidValues.get(pid);
+            // Each bit says if one of the following 32 PIDs is supported, the last one if there
+            // are PIDs past them
+            int[] data = new int[4];
+            boolean any = pid == 0;
+            for (int supported : mPidValues.keySet()) {
+                if (supported > pid + 0x20) {
+                    data[3] |= 1;
+                    any = true;
+                } else if (supported > pid) {
+                    int bit = supported - pid - 1;
+                    data[bit / 8] |= 0x80 >> (bit % 8);
+                    any = true;
+                }
+            }
+            return any ? data : null;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final List<Ecu> mEcus = new ArrayList<>();
+    private final ArrayDeque<String> mInjectedResponses = new ArrayDeque<>();
+    private final SimulatorInputStream mInputStream = new SimulatorInputStream();
+    private final SimulatorOutputStream mOutputStream = new SimulatorOutputStream();
+
+    // Adapter settings, as changed by AT commands
+    private boolean mEcho;
+    private boolean mLinefeeds;
+    private boolean mSpaces;
+    private boolean mSearching;
+    private String mLastCommand = "";
+
+    private boolean mConnected = true;
+    private boolean mMultiPidSupported = true;
+    private long mLatencyNanos;
+    private long mPerPidLatencyNanos;
+    private float mErrorRate;
+    private Random mRandom = new Random();
+
+    private final StringBuilder mCommand = new StringBuilder();
+    private byte[] mOutput = new byte[256];
+    private int mOutputStart;
+    private int mOutputEnd;
+    private long mOutputReadyNanos;
+    private long mCommandStartNanos;
+    private long[] mLatenciesNanos = new long[256];
+    private int mLatencyCount;
+
+    public Elm327SimulatorConnection() {
+        reset();
+    }
+
+    /** Adds an ECU to the simulated vehicle. */
+    public Ecu addEcu() {
+        synchronized (mLock) {
+            Ecu ecu = new Ecu();
+            mEcus.add(ecu);
+            return ecu;
+        }
+    }
+
+    /**
+     * Sets how long the vehicle takes to answer a request: a fixed delay, plus one for each PID
+     * of the request. AT commands are answered by the adapter itself, without delay.
+     */
+    public void setLatency(long latencyMicros, long perPidLatencyMicros) {
+        synchronized (mLock) {
+            mLatencyNanos = latencyMicros * 1000;
+            mPerPidLatencyNanos = perPidLatencyMicros * 1000;
+        }
+    }
+
+    /**
+     * Sets whether mode 01 requests for several PIDs are supported; if not, like some vehicles,
+     * only the first PID of a request is answered.
+     */
+    public void setMultiPidSupported(boolean supported) {
+        synchronized (mLock) {
+            mMultiPidSupported = supported;
+        }
+    }
+
+    /** Answers the next vehicle request with the given response, such as "CAN ERROR". */
+    public void injectResponse(String response) {
+        synchronized (mLock) {
+            mInjectedResponses.add(response);
+        }
+    }
+
+    /**
+     * Answers each vehicle request with a random error (NO DATA, CAN ERROR or STOPPED) with the
+     * given probability.
+     */
+    public void setErrorRate(float rate, long seed) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException(rate + " is not a valid error rate");
+        }
+        synchronized (mLock) {
+            mErrorRate = rate;
+            mRandom = new Random(seed);
+        }
+    }
+
+    /** Drops the connection: reads return end of stream and writes fail until reconnected. */
+    public void disconnect() {
+        synchronized (mLock) {
+            mConnected = false;
+            mLock.notifyAll();
+        }
+    }
+
+    /** Returns the number of commands answered since the last {@link #resetStatistics}. */
+    public int getCommandCount() {
+        synchronized (mLock) {
+            return mLatencyCount;
+        }
+    }
+
+    /** Returns the latency of each command answered since the last {@link #resetStatistics}. */
+    public long[] getCommandLatenciesNanos() {
+        synchronized (mLock) {
+            return Arrays.copyOf(mLatenciesNanos, mLatencyCount);
+        }
+    }
+
+    public void resetStatistics() {
+        synchronized (mLock) {
+            mLatencyCount = 0;
+        }
+    }
+
+    @Override
+    public String getAddress() {
+        return TAG;
+    }
+
+    @Override
+    public boolean reconnect() {
+        synchronized (mLock) {
+            mConnected = true;
+            mCommand.setLength(0);
+            mOutputStart = 0;
+            mOutputEnd = 0;
+            reset();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        synchronized (mLock) {
+            return mConnected;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    private class SimulatorInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (true) {
+                long wait;
+                synchronized (mLock) {
+                    if (!mConnected) return -1;
+                    if (mOutputStart == mOutputEnd) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("interrupted while reading", e);
+                        }
+                        continue;
+                    }
+                    wait = mOutputReadyNanos - System.nanoTime();
+                    if (wait <= 0) return readLocked(b, off, len);
+                }
+                // Object.wait() only has millisecond precision, too coarse for the latencies
+                LockSupport.parkNanos(wait);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("interrupted while reading");
+                }
+            }
+        }
+
+        private int readLocked(byte[] b, int off, int len) {
+            int count = Math.min(len, mOutputEnd - mOutputStart);
+            System.arraycopy(mOutput, mOutputStart, b, off, count);
+            mOutputStart += count;
+            if (mOutputStart == mOutputEnd && b[off + count - 1] == '>') {
+                recordLatency(System.nanoTime() - mCommandStartNanos);
+            }
+            return count;
+        }
+    }
+
+    private class SimulatorOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (mLock) {
+                if (!mConnected) throw new IOException("simulator disconnected");
+                if (b != '\r') {
+                    mCommand.append((char) b);
+                    return;
+                }
+                mCommandStartNanos = System.nanoTime();
+                String command = mCommand.toString();
+                mCommand.setLength(0);
+                runCommand(command);
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private void reset() {
+        mEcho = true;
+        mLinefeeds = false;
+        mSpaces = true;
+        mSearching = true;
+        mLastCommand = "";
+    }
+
+    private void runCommand(String command) {
+        String normalized = command.replace(" ", "").toUpperCase();
+        // An empty command repeats the last one
+        if (normalized.isEmpty()) normalized = mLastCommand;
+        mLastCommand = normalized;
+
+        List<String> lines = new ArrayList<>();
+        if (mEcho) lines.add(command);
+        long latencyNanos = 0;
+        if (normalized.startsWith("AT")) {
+            lines.add(runAtCommand(normalized.substring(2)));
+        } else {
+            int[] request = decodeHex(normalized);
+            if (request == null || request.length == 0) {
+                lines.add("?");
+            } else {
+                latencyNanos = mLatencyNanos + mPerPidLatencyNanos * (request.length - 1);
+                if (mSearching) {
+                    lines.add("SEARCHING...");
+                    mSearching = false;
+                }
+                addVehicleResponse(request, lines);
+            }
+        }
+
+        String eol = mLinefeeds ? "\r\n" : "\r";
+        StringBuilder output = new StringBuilder();
+        for (String line : lines) {
+            output.append(line).append(eol);
+        }
+        output.append(eol).append('>');
+        appendOutput(output.toString().getBytes(StandardCharsets.US_ASCII));
+        mOutputReadyNanos = mCommandStartNanos + latencyNanos;
+    }
+
+    private String runAtCommand(String command) {
+        switch (command) {
+            case "Z":
+                reset();
+                return VERSION;
+            case "I":
+                return VERSION;
+            case "D":
+                mLinefeeds = false;
+                mSpaces = true;
+                return "OK";
+            case "E0":
+            case "E1":
+                mEcho = command.endsWith("1");
+                return "OK";
+            case "L0":
+            case "L1":
+                mLinefeeds = command.endsWith("1");
+                return "OK";
+            case "S0":
+            case "S1":
+                mSpaces = command.endsWith("1");
+                return "OK";
+            case "H0":
+            case "H1":
+                return "OK";
+            default:
+                if (command.startsWith("SP")) {
+                    mSearching = true;
+                    return "OK";
+                }
+                return "?";
+        }
+    }
+
+    private void addVehicleResponse(int[] request, List<String> lines) {
+        if (!mInjectedResponses.isEmpty()) {
+            lines.add(mInjectedResponses.remove());
+            return;
+        }
+        if (mErrorRate > 0 && mRandom.nextFloat() < mErrorRate) {
+            String error = RANDOM_ERRORS[mRandom.nextInt(RANDOM_ERRORS.length)];
+            lines.add(error);
+            return;
+        }
+        int linesBefore = lines.size();
+        for (Ecu ecu : mEcus) {
+            int[] response = getEcuResponse(ecu, request);
+            if (response != null) addFrames(response, lines);
+        }
+        if (lines.size() == linesBefore) lines.add("NO DATA");
+    }
+
+    /** Returns the response of the ECU to the request, or null if it does not answer. */
+    private int[] getEcuResponse(Ecu ecu, int[] request) {
+        int mode = request[0];
+        List<Integer> response = new ArrayList<>();
+        response.add(mode + 0x40);
+        switch (mode) {
+            case 0x01:
+                if (request.length > 1 + MAX_PIDS_PER_REQUEST) return null;
+                int last = mMultiPidSupported ? request.length : Math.min(request.length, 2);
+                for (int i = 1; i < last; ++i) {
+                    int[] data = ecu.getPidData(request[i]);
+                    if (data == null) continue;
+                    response.add(request[i]);
+                    for (int value : data) response.add(value);
+                }
+                break;
+            case 0x02:
+                if (request.length != 3 || request[2] >= ecu.mTroubleCodes.size()) return null;
+                int[] data = ecu.getPidData(request[1]);
+                if (data == null) return null;
+                response.add(request[1]);
+                response.add(request[2]);
+                for (int value : data) response.add(value);
+                break;
+            case 0x03:
+                // ECUs without trouble codes stay silent, except the first one
+                if (ecu.mTroubleCodes.isEmpty() && ecu != mEcus.get(0)) return null;
+                response.add(ecu.mTroubleCodes.size());
+                for (int[] code : ecu.mTroubleCodes) {
+                    response.add(code[0]);
+                    response.add(code[1]);
+                }
+                break;
+            default:
+                return null;
+        }
+        if (response.size() == 1) return null;
+        return response.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Formats the response as a single frame, or as a long frame if it does not fit in one. */
+    private void addFrames(int[] response, List<String> lines) {
+        if (response.length <= SINGLE_FRAME_SIZE) {
+            lines.add(formatBytes(response, 0, response.length));
+            return;
+        }
+        lines.add(String.format("%03X", response.length));
+        int start = 0;
+        for (int index = 0; start < response.length; ++index) {
+            int end = Math.min(
+                    response.length, start + (index == 0 ? FIRST_FRAME_SIZE : SINGLE_FRAME_SIZE));
+            lines.add(
+                    HEX_DIGITS[index % 16]
+                            + (mSpaces ? ": " : ":")
+                            + formatBytes(response, start, end));
+            start = end;
+        }
+    }
+
+    private String formatBytes(int[] values, int start, int end) {
+        StringBuilder builder = new StringBuilder(3 * (end - start));
+        for (int i = start; i < end; ++i) {
+            if (mSpaces && i > start) builder.append(' ');
+            builder.append(HEX_DIGITS[(values[i] >> 4) & 0xF]).append(HEX_DIGITS[values[i] & 0xF]);
+        }
+        return builder.toString();
+    }
+
+    private void appendOutput(byte[] bytes) {
+        if (mOutputStart == mOutputEnd) {
+            mOutputStart = 0;
+            mOutputEnd = 0;
+        }
+        if (mOutputEnd + bytes.length > mOutput.length) {
+            mOutput =
+                    Arrays.copyOf(mOutput, Math.max(2 * mOutput.length, mOutputEnd + bytes.length));
+        }
+        System.arraycopy(bytes, 0, mOutput, mOutputEnd, bytes.length);
+        mOutputEnd += bytes.length;
+    }
+
+    private void recordLatency(long latencyNanos) {
+        if (mLatencyCount == mLatenciesNanos.length) {
+            mLatenciesNanos = Arrays.copyOf(mLatenciesNanos, 2 * mLatenciesNanos.length);
+        }
+        mLatenciesNanos[mLatencyCount++] = latencyNanos;
+    }
+
+    /** Returns the bytes of the hex string, or null if it is not one. */
+    private static int[] decodeHex(String hex) {
+        if (hex.length() % 2 != 0) return null;
+        int[] values = new int[hex.length() / 2];
+        for (int i = 0; i < values.length; ++i) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) return null;
+            values[i] = 16 * high + low;
+        }
+        return values;
+    }
+
+    /** The inverse of {@link Obd2Connection#getDiagnosticTroubleCodes} decoding. */
+    private static int[] encodeTroubleCode(String code) {
+        int component = code.length() == 5 ? "PCBU".indexOf(code.charAt(0)) : -1;
+        int first = code.length() == 5 ? Character.digit(code.charAt(1), 4) : -1;
+        int[] others = new int[3];
+        for (int i = 0; i < others.length && component >= 0; ++i) {
+            others[i] = Character.digit(code.charAt(2 + i), 16);
+            if (others[i] < 0) component = -1;
+        }
+        if (component < 0 || first < 0) {
+            throw new IllegalArgumentException(code + " is not a valid trouble code");
+        }
+        return new int[] {component << 6 | first << 4 | others[0], others[1] << 4 | others[2]};
+    }
+}
@@ -153,6 +153,11 @@ public class CarBluetoothService extends ICarBluetooth.Stub implements CarServic
         mUserServiceHelper.registerServiceCallback(mUserServiceCallback);
     }
 
+    @Override
+    public List<Class<? extends CarServiceBase>> getInitDependencies() {
+        return List.of(PerUserCarServiceHelper.class);
+    }
+
     /**
      * Release all resources required to run this service and stop running.
      *
@@ -51,6 +51,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -108,6 +109,11 @@ public class CarBugreportManagerService extends ICarBugreportService.Stub implem
         // nothing to do
     }
 
+    @Override
+    public List<Class<? extends CarServiceBase>> getInitDependencies() {
+        return List.of();
+    }
+
     @Override
     public void release() {
         // nothing to do
@@ -29,6 +29,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.PrintWriter;
+import java.util.List;
 
 /**
  * A service that will look at a default JSON configuration file on the system and parses out its
@@ -122,6 +123,11 @@ public class CarConfigurationService extends ICarConfigurationManager.Stub
         mSpeedBumpConfiguration = createSpeedBumpConfiguration();
     }
 
+    @Override
+    public List<Class<? extends CarServiceBase>> getInitDependencies() {
+        return List.of();
+    }
+
     @Override
     public synchronized void release() {
         mConfigFile =  null;
@@ -24,6 +24,8 @@ import android.car.diagnostic.CarDiagnosticManager;
 import android.car.diagnostic.ICarDiagnostic;
 import android.car.diagnostic.ICarDiagnosticEventListener;
 import android.content.Context;
+import android.content.res.Resources;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.ArrayMap;
@@ -33,9 +35,12 @@ import com.android.car.Listeners.ClientWithRate;
 import com.android.car.hal.DiagnosticHalService;
 import com.android.car.hal.DiagnosticHalService.DiagnosticCapabilities;
 import com.android.car.internal.CarPermission;
+import com.android.car.systeminterface.SystemInterface;
 import com.android.internal.annotations.GuardedBy;
 
+import java.io.File;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
@@ -44,11 +49,17 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 /** @hide */
 public class CarDiagnosticService extends ICarDiagnostic.Stub
         implements CarServiceBase, DiagnosticHalService.DiagnosticListener {
+    private static final String JOURNAL_DIRECTORY = "diagnostic_journal";
+    private static final int JOURNAL_SEGMENT_COUNT = 8;
+    private static final int JOURNAL_FLUSH_THRESHOLD_BYTES = 16 * 1024;
+    private static final long JOURNAL_FLUSH_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+
     /** lock to access diagnostic structures */
     private final ReentrantLock mDiagnosticLock = new ReentrantLock();
     /** hold clients callback */
@@ -64,10 +75,9 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
     @GuardedBy("mDiagnosticLock")
     private final LiveFrameRecord mLiveFrameDiagnosticRecord = new LiveFrameRecord(mDiagnosticLock);
 
-    /** the latest freeze frame data (key: DTC) */
+    /** the most recent freeze frames, sorted by timestamp */
     @GuardedBy("mDiagnosticLock")
-    private final FreezeFrameRecord mFreezeFrameDiagnosticRecords = new FreezeFrameRecord(
-        mDiagnosticLock);
+    private final FreezeFrameRecord mFreezeFrameDiagnosticRecords;
 
     private final DiagnosticHalService mDiagnosticHal;
 
@@ -77,13 +87,47 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
 
     private final CarPermission mDiagnosticClearPermission;
 
-    public CarDiagnosticService(Context context, DiagnosticHalService diagnosticHal) {
+    /** persistent record of diagnostic frames, or null if disabled */
+    @Nullable
+    private final DiagnosticJournal mJournal;
+
+    /** minimum time between live frames written to the journal, or 0 to not journal them */
+    private final long mJournalLiveFrameIntervalNanos;
+
+    /** timestamp of the last live frame written to the journal */
+    @GuardedBy("mDiagnosticLock")
+    private long mLastJournaledLiveFrameTimestamp = Long.MIN_VALUE;
+
+    public CarDiagnosticService(Context context, DiagnosticHalService diagnosticHal,
+            SystemInterface systemInterface) {
         mContext = context;
         mDiagnosticHal = diagnosticHal;
         mDiagnosticReadPermission = new CarPermission(mContext,
                 Car.PERMISSION_CAR_DIAGNOSTIC_READ_ALL);
         mDiagnosticClearPermission = new CarPermission(mContext,
                 Car.PERMISSION_CAR_DIAGNOSTIC_CLEAR);
+        mFreezeFrameDiagnosticRecords = new FreezeFrameRecord(mDiagnosticLock,
+                new FreezeFrameStore(
+                        context.getResources().getInteger(R.integer.maxFreezeFramesRetained),
+                        context.getResources().getInteger(R.integer.maxFreezeFramesKBytes)
+                                * 1024L));
+        Resources res = context.getResources();
+        long journalBytes = res.getInteger(R.integer.diagnosticJournalMaxKBytes) * 1024L;
+        if (journalBytes > 0) {
+            mJournal = new DiagnosticJournal(
+                    new File(systemInterface.getSystemCarDir(), JOURNAL_DIRECTORY),
+                    journalBytes,
+                    journalBytes / JOURNAL_SEGMENT_COUNT,
+                    JOURNAL_FLUSH_THRESHOLD_BYTES,
+                    JOURNAL_FLUSH_DELAY_MS,
+                    new Handler(CarServiceUtils.getHandlerThread(
+                            getClass().getSimpleName()).getLooper()),
+                    System::currentTimeMillis);
+        } else {
+            mJournal = null;
+        }
+        mJournalLiveFrameIntervalNanos = TimeUnit.SECONDS.toNanos(
+                res.getInteger(R.integer.diagnosticJournalLiveFrameIntervalSeconds));
     }
 
     @Override
@@ -149,6 +193,9 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         } finally {
             mDiagnosticLock.unlock();
         }
+        if (mJournal != null) {
+            mJournal.flush();
+        }
     }
 
     private void processDiagnosticData(List<CarDiagnosticEvent> events) {
@@ -162,9 +209,13 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
             if (event.isLiveFrame()) {
                 // record recent-most live frame information
                 setRecentmostLiveFrame(event);
+                journalLiveFrameLocked(event);
                 listeners = mDiagnosticListeners.get(CarDiagnosticManager.FRAME_TYPE_LIVE);
             } else if (event.isFreezeFrame()) {
                 setRecentmostFreezeFrame(event);
+                if (mJournal != null) {
+                    mJournal.append(event);
+                }
                 listeners = mDiagnosticListeners.get(CarDiagnosticManager.FRAME_TYPE_FREEZE);
             } else {
                 Log.w(
@@ -193,6 +244,23 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         }
     }
 
+    @GuardedBy("mDiagnosticLock")
+    private void journalLiveFrameLocked(CarDiagnosticEvent event) {
+        if (mJournal == null || mJournalLiveFrameIntervalNanos <= 0) {
+            return;
+        }
+        // Live frames arrive at the sampling rate of the listeners, so only keep a periodic
+        // snapshot to bound flash writes
+        if (mLastJournaledLiveFrameTimestamp != Long.MIN_VALUE
+                && event.timestamp >= mLastJournaledLiveFrameTimestamp
+                && event.timestamp - mLastJournaledLiveFrameTimestamp
+                        < mJournalLiveFrameIntervalNanos) {
+            return;
+        }
+        mLastJournaledLiveFrameTimestamp = event.timestamp;
+        mJournal.append(event);
+    }
+
     /** Received diagnostic data from car. */
     @Override
     public void onDiagnosticEvents(List<CarDiagnosticEvent> events) {
@@ -438,6 +506,36 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         return timestamps;
     }
 
+    @Override
+    public long[] getFreezeFrameTimestampsInRange(long startTimestamp, long endTimestamp) {
+        mDiagnosticReadPermission.assertGranted();
+        mFreezeFrameDiagnosticRecords.lock();
+        long[] timestamps = mFreezeFrameDiagnosticRecords.getFreezeFrameTimestamps(
+                startTimestamp, endTimestamp);
+        mFreezeFrameDiagnosticRecords.unlock();
+        return timestamps;
+    }
+
+    @Override
+    public List<CarDiagnosticEvent> getFreezeFramesSince(long timestamp, int maxCount) {
+        mDiagnosticReadPermission.assertGranted();
+        mFreezeFrameDiagnosticRecords.lock();
+        List<CarDiagnosticEvent> freezeFrames =
+                mFreezeFrameDiagnosticRecords.getEventsSince(timestamp, maxCount);
+        mFreezeFrameDiagnosticRecords.unlock();
+        return freezeFrames;
+    }
+
+    @Override
+    public List<CarDiagnosticEvent> getJournaledFrames(long startTimeMillis, long endTimeMillis,
+            int maxCount) {
+        mDiagnosticReadPermission.assertGranted();
+        if (mJournal == null) {
+            return new ArrayList<>();
+        }
+        return mJournal.query(startTimeMillis, endTimeMillis, maxCount);
+    }
+
     @Override
     @Nullable
     public CarDiagnosticEvent getFreezeFrame(long timestamp) {
@@ -459,7 +557,11 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         }
         mFreezeFrameDiagnosticRecords.lock();
         mDiagnosticHal.clearFreezeFrames(timestamps);
-        mFreezeFrameDiagnosticRecords.clearEvents();
+        if (timestamps != null && timestamps.length != 0) {
+            mFreezeFrameDiagnosticRecords.clearEvents(timestamps);
+        } else {
+            mFreezeFrameDiagnosticRecords.clearEvents();
+        }
         mFreezeFrameDiagnosticRecords.unlock();
         return true;
     }
@@ -627,10 +729,11 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
 
     private static class FreezeFrameRecord extends DiagnosticRecord {
         /** Store the timestamp --> freeze frame mapping. */
-        HashMap<Long, CarDiagnosticEvent> mEvents = new HashMap<>();
+        private final FreezeFrameStore mEvents;
 
-        FreezeFrameRecord(ReentrantLock lock) {
+        FreezeFrameRecord(ReentrantLock lock, FreezeFrameStore events) {
             super(lock);
+            mEvents = events;
         }
 
         @Override
@@ -645,14 +748,26 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
             mEvents.clear();
         }
 
+        void clearEvents(long... timestamps) {
+            mEvents.remove(timestamps);
+        }
+
         @Override
         CarDiagnosticEvent update(@NonNull CarDiagnosticEvent newEvent) {
-            mEvents.put(newEvent.timestamp, newEvent);
+            mEvents.put(newEvent);
             return newEvent;
         }
 
         long[] getFreezeFrameTimestamps() {
-            return mEvents.keySet().stream().mapToLong(Long::longValue).toArray();
+            return mEvents.getTimestamps();
+        }
+
+        long[] getFreezeFrameTimestamps(long startTimestamp, long endTimestamp) {
+            return mEvents.getTimestamps(startTimestamp, endTimestamp);
+        }
+
+        List<CarDiagnosticEvent> getEventsSince(long timestamp, int maxCount) {
+            return mEvents.getEventsSince(timestamp, maxCount);
         }
 
         CarDiagnosticEvent getEvent(long timestamp) {
@@ -660,7 +775,15 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
         }
 
         Iterable<CarDiagnosticEvent> getEvents() {
-            return mEvents.values();
+            return mEvents.getEvents();
+        }
+
+        int size() {
+            return mEvents.size();
+        }
+
+        long getApproximateSize() {
+            return mEvents.getApproximateSize();
         }
     }
 
@@ -672,7 +795,11 @@ public class CarDiagnosticService extends ICarDiagnostic.Stub
             writer.println("last live frame event: ");
             writer.println(mLiveFrameDiagnosticRecord.getLastEvent());
         }
-        writer.println("freeze frame events: ");
+        if (mJournal != null) {
+            mJournal.dump(writer);
+        }
+        writer.println("freeze frame events: " + mFreezeFrameDiagnosticRecords.size() + " ("
+                + mFreezeFrameDiagnosticRecords.getApproximateSize() + " bytes)");
         mFreezeFrameDiagnosticRecords.getEvents().forEach(writer::println);
         writer.println("**clients**");
         try {
@@ -50,6 +50,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.CallLog.Calls;
 import android.provider.Settings;
@@ -70,7 +71,6 @@ import com.android.internal.app.IVoiceInteractionSessionShowCallback;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Collections;
 import java.util.List;
 import java.util.function.BooleanSupplier;
 import java.util.function.IntSupplier;
@@ -181,6 +181,10 @@ public class CarInputService extends ICarInput.Stub
     // from Settings.Secure for the current user, falling back to the system-wide default
     // long-press delay defined in ViewConfiguration. May be overridden for testing.
     private final IntSupplier mLongPressDelaySupplier;
+    // Time from the vehicle HAL timestamp of the last detent of a rotary event to the end of its
+    // dispatch.
+    private final InputLatencyStats mRotaryLatencyStats = new InputLatencyStats();
+
     // ComponentName of the RotaryService.
     private final String mRotaryServiceComponentName;
 
@@ -460,42 +464,66 @@ public class CarInputService extends ICarInput.Stub
     @Override
     public void onRotaryEvent(RotaryEvent event, int targetDisplay) {
         if (!mCaptureController.onRotaryEvent(targetDisplay, event)) {
-            List<KeyEvent> keyEvents = rotaryEventToKeyEvents(event);
-            for (KeyEvent keyEvent : keyEvents) {
-                onKeyEvent(keyEvent, targetDisplay);
-            }
+            dispatchRotaryKeyEvents(event, targetDisplay);
+        }
+        int numClicks = event.getNumberOfClicks();
+        if (numClicks > 0) {
+            mRotaryLatencyStats.record(SystemClock.uptimeMillis()
+                    - event.getUptimeMillisForClick(numClicks - 1));
         }
     }
 
-    private static List<KeyEvent> rotaryEventToKeyEvents(RotaryEvent event) {
+    private void dispatchRotaryKeyEvents(RotaryEvent event, int targetDisplay) {
+        int keyCode = rotaryEventToKeyCode(event);
+        if (keyCode == KeyEvent.KEYCODE_UNKNOWN) {
+            return;
+        }
         int numClicks = event.getNumberOfClicks();
-        int numEvents = numClicks * 2; // up / down per each click
+        if (targetDisplay == InputHalService.DISPLAY_MAIN
+                && !isCustomEventHandlerKey(keyCode, targetDisplay)
+                && mCaptureController.isCapturingKeyEvents(
+                        CarInputManager.TARGET_DISPLAY_TYPE_MAIN, keyCode)) {
+            // A fast spin produces a burst of key events; hand it to a capturing client in a
+            // single callback rather than one per event. The list is posted to the main thread,
+            // so it can't be reused.
+            List<KeyEvent> keyEvents = new ArrayList<>(numClicks * 2);
+            for (int i = 0; i < numClicks; i++) {
+                long uptime = event.getUptimeMillisForClick(i);
+                keyEvents.add(createKeyEvent(/* down= */ true, uptime, uptime, keyCode));
+                keyEvents.add(createKeyEvent(/* down= */ false, uptime, uptime, keyCode));
+            }
+            if (mCaptureController.onKeyEvents(CarInputManager.TARGET_DISPLAY_TYPE_MAIN,
+                    keyEvents)) {
+                return;
+            }
+            // The client stopped capturing since the check above
+            for (int i = 0; i < keyEvents.size(); i++) {
+                onKeyEvent(keyEvents.get(i), targetDisplay);
+            }
+            return;
+        }
+        for (int i = 0; i < numClicks; i++) {
+            long uptime = event.getUptimeMillisForClick(i);
+            onKeyEvent(createKeyEvent(/* down= */ true, uptime, uptime, keyCode), targetDisplay);
+            onKeyEvent(createKeyEvent(/* down= */ false, uptime, uptime, keyCode), targetDisplay);
+        }
+    }
+
+    private static int rotaryEventToKeyCode(RotaryEvent event) {
         boolean clockwise = event.isClockwise();
-        int keyCode;
         switch (event.getInputType()) {
             case CarInputManager.INPUT_TYPE_ROTARY_NAVIGATION:
-                keyCode = clockwise
+                return clockwise
                         ? KeyEvent.KEYCODE_NAVIGATE_NEXT
                         : KeyEvent.KEYCODE_NAVIGATE_PREVIOUS;
-                break;
             case CarInputManager.INPUT_TYPE_ROTARY_VOLUME:
-                keyCode = clockwise
+                return clockwise
                         ? KeyEvent.KEYCODE_VOLUME_UP
                         : KeyEvent.KEYCODE_VOLUME_DOWN;
-                break;
             default:
                 Log.e(CarLog.TAG_INPUT, "Unknown rotary input type: " + event.getInputType());
-                return Collections.EMPTY_LIST;
+                return KeyEvent.KEYCODE_UNKNOWN;
         }
-        ArrayList<KeyEvent> keyEvents = new ArrayList<>(numEvents);
-        for (int i = 0; i < numClicks; i++) {
-            long uptime = event.getUptimeMillisForClick(i);
-            KeyEvent downEvent = createKeyEvent(/* down= */ true, uptime, uptime, keyCode);
-            KeyEvent upEvent = createKeyEvent(/* down= */ false, uptime, uptime, keyCode);
-            keyEvents.add(downEvent);
-            keyEvents.add(upEvent);
-        }
-        return keyEvents;
     }
 
     private static KeyEvent createKeyEvent(boolean down, long downTime, long eventTime,
@@ -531,6 +559,14 @@ public class CarInputService extends ICarInput.Stub
         }
     }
 
+    // Whether key events with the given code are intercepted by the car input listener
+    private boolean isCustomEventHandlerKey(int keyCode, int targetDisplay) {
+        synchronized (mLock) {
+            return mCarInputListener != null
+                    && mHandledKeys.containsEntry(targetDisplay, keyCode);
+        }
+    }
+
     private void handleVoiceAssistKey(KeyEvent event) {
         int action = event.getAction();
         if (action == KeyEvent.ACTION_DOWN && event.getRepeatCount() == 0) {
@@ -737,6 +773,7 @@ public class CarInputService extends ICarInput.Stub
         writer.println("Long-press delay: " + mLongPressDelaySupplier.getAsInt() + "ms");
         writer.println("Call button ends ongoing call: "
                 + mShouldCallButtonEndOngoingCallSupplier.getAsBoolean());
+        mRotaryLatencyStats.dump(writer, "Rotary input");
         mCaptureController.dump(writer);
     }
 
@@ -52,6 +52,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -191,6 +192,12 @@ public class CarLocationService extends BroadcastReceiver implements CarServiceB
         }
     }
 
+    @Override
+    public List<Class<? extends CarServiceBase>> getInitDependencies() {
+        return List.of(CarDrivingStateService.class, CarPowerManagementService.class,
+                PerUserCarServiceHelper.class);
+    }
+
     @Override
     public void release() {
         logd("release");
@@ -754,6 +754,11 @@ class CarProjectionService extends ICarProjection.Stub implements CarServiceBase
                 mBroadcastReceiver, new IntentFilter(WifiManager.WIFI_AP_STATE_CHANGED_ACTION));
     }
 
+    @Override
+    public List<Class<? extends CarServiceBase>> getInitDependencies() {
+        return List.of();
+    }
+
     private void handleWifiApStateChange(int currState, int prevState, int errorCode,
             String ifaceName, int mode) {
         if (currState == WIFI_AP_STATE_ENABLING || currState == WIFI_AP_STATE_ENABLED) {
@@ -18,6 +18,7 @@ package com.android.car;
 
 import static java.lang.Integer.toHexString;
 
+import android.annotation.Nullable;
 import android.car.Car;
 import android.car.hardware.CarPropertyConfig;
 import android.car.hardware.CarPropertyValue;
@@ -25,13 +26,14 @@ import android.car.hardware.property.CarPropertyEvent;
 import android.car.hardware.property.ICarProperty;
 import android.car.hardware.property.ICarPropertyEventListener;
 import android.content.Context;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
-import android.util.Pair;
 import android.util.SparseArray;
+import android.util.SparseLongArray;
 
 import com.android.car.hal.PropertyHalService;
 import com.android.internal.annotations.GuardedBy;
@@ -62,8 +64,17 @@ public class CarPropertyService extends ICarProperty.Stub
     private final Map<Integer, CarPropertyConfig<?>> mConfigs = new HashMap<>();
     private final PropertyHalService mHal;
     private boolean mListenerIsSet = false;
-    private final Map<Integer, List<Client>> mPropIdClientMap = new ConcurrentHashMap<>();
     private final Object mLock = new Object();
+    // key is propId. Lists are copy-on-write, so a list can be iterated without mLock.
+    @GuardedBy("mLock")
+    private final SparseArray<CopyOnWriteArrayList<Client>> mPropIdClientMap =
+            new SparseArray<>();
+    // Snapshot of mPropIdClientMap read on the event path, replaced whenever a property gets its
+    // first client or loses its last one.
+    private volatile SparseArray<CopyOnWriteArrayList<Client>> mPropIdClientSnapshot =
+            new SparseArray<>();
+    // Only accessed from onPropertyChange(), kept here to avoid allocation on every batch.
+    private final ArrayList<Client> mClientsToDispatch = new ArrayList<>();
     @GuardedBy("mLock")
     private final SparseArray<SparseArray<Client>> mSetOperationClientMap = new SparseArray<>();
     private final HandlerThread mHandlerThread =
@@ -82,11 +93,24 @@ public class CarPropertyService extends ICarProperty.Stub
     private class Client implements IBinder.DeathRecipient {
         private final ICarPropertyEventListener mListener;
         private final IBinder mListenerBinder;
+        // In-process listeners get the event list itself, so they cannot get a reused buffer.
+        private final boolean mIsLocalListener;
+        // Events pending for this client within the batch being dispatched. Only accessed from
+        // onPropertyChange().
+        private final ArrayList<CarPropertyEvent> mPendingEvents = new ArrayList<>();
         private final SparseArray<Float> mRateMap = new SparseArray<Float>();   // key is propId
+        // key is propId, only present for continuous properties registered with a non-zero rate
+        @GuardedBy("mDecimators")
+        private final SparseArray<EventDecimator> mDecimators = new SparseArray<>();
+        // key is propId, only present for properties the client set thresholds for, which then
+        // replace rate-based decimation
+        @GuardedBy("mDecimators")
+        private final SparseArray<PropertyThresholdFilter> mThresholdFilters = new SparseArray<>();
 
         Client(ICarPropertyEventListener listener) {
             mListener = listener;
             mListenerBinder = listener.asBinder();
+            mIsLocalListener = mListenerBinder instanceof Binder;
 
             try {
                 mListenerBinder.linkToDeath(this, 0);
@@ -96,8 +120,44 @@ public class CarPropertyService extends ICarProperty.Stub
             mClientMap.put(mListenerBinder, this);
         }
 
-        void addProperty(int propId, float rate) {
+        void addProperty(int propId, float rate, boolean isContinuous) {
             mRateMap.put(propId, rate);
+            synchronized (mDecimators) {
+                if (isContinuous && rate > 0) {
+                    mDecimators.put(propId, new EventDecimator(rate));
+                } else {
+                    mDecimators.remove(propId);
+                }
+            }
+        }
+
+        void setThresholds(int propId, @Nullable float[] thresholds) {
+            synchronized (mDecimators) {
+                if (thresholds != null) {
+                    mThresholdFilters.put(propId, new PropertyThresholdFilter(thresholds));
+                } else {
+                    mThresholdFilters.remove(propId);
+                }
+            }
+        }
+
+        /**
+         * Returns {@code true} if the event should be sent to this client, based on the
+         * thresholds or the rate the client registered with for the property.
+         */
+        boolean shouldDispatch(CarPropertyEvent event) {
+            if (event.getEventType() != CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE) {
+                return true;
+            }
+            CarPropertyValue value = event.getCarPropertyValue();
+            synchronized (mDecimators) {
+                PropertyThresholdFilter filter = mThresholdFilters.get(value.getPropertyId());
+                if (filter != null) {
+                    return filter.shouldDispatch(value);
+                }
+                EventDecimator decimator = mDecimators.get(value.getPropertyId());
+                return decimator == null || decimator.shouldDispatch(value);
+            }
         }
 
         /**
@@ -110,13 +170,36 @@ public class CarPropertyService extends ICarProperty.Stub
                 Log.d(TAG, "binderDied " + mListenerBinder);
             }
 
-            for (int i = 0; i < mRateMap.size(); i++) {
-                int propId = mRateMap.keyAt(i);
-                CarPropertyService.this.unregisterListenerBinderLocked(propId, mListenerBinder);
+            synchronized (mLock) {
+                // Unregistering removes the property from mRateMap, so iterate over a copy.
+                int[] propIds = new int[mRateMap.size()];
+                for (int i = 0; i < propIds.length; i++) {
+                    propIds[i] = mRateMap.keyAt(i);
+                }
+                for (int propId : propIds) {
+                    CarPropertyService.this.unregisterListenerBinderLocked(propId,
+                            mListenerBinder);
+                }
             }
             this.release();
         }
 
+        /**
+         * Sends the pending events to the listener and clears them.
+         */
+        void dispatchPendingEvents() {
+            try {
+                mListener.onEvent(mIsLocalListener
+                        ? new ArrayList<>(mPendingEvents) : mPendingEvents);
+            } catch (RemoteException ex) {
+                // If we cannot send a record, its likely the connection snapped. Let binder
+                // death handle the situation.
+                Log.e(TAG, "onEvent calling failed: " + ex);
+            } finally {
+                mPendingEvents.clear();
+            }
+        }
+
         ICarPropertyEventListener getListener() {
             return mListener;
         }
@@ -137,6 +220,10 @@ public class CarPropertyService extends ICarProperty.Stub
 
         void removeProperty(int propId) {
             mRateMap.remove(propId);
+            synchronized (mDecimators) {
+                mDecimators.remove(propId);
+                mThresholdFilters.remove(propId);
+            }
             if (mRateMap.size() == 0) {
                 // Last property was released, remove the client.
                 this.release();
@@ -144,6 +231,42 @@ public class CarPropertyService extends ICarProperty.Stub
         }
     }
 
+    /**
+     * Drops events of a continuous property that arrive faster than the rate a client asked for,
+     * so that they are not sent over binder only to be dropped on the client side. Each area is
+     * tracked separately.
+     */
+    private static final class EventDecimator {
+        private static final float NANOSECONDS_PER_SECOND = 1_000_000_000f;
+
+        private final long mPeriodNanos;
+        // key is areaId
+        private final SparseLongArray mNextUpdateTimeNanos = new SparseLongArray();
+
+        EventDecimator(float rate) {
+            mPeriodNanos = (long) (NANOSECONDS_PER_SECOND / rate);
+        }
+
+        boolean shouldDispatch(CarPropertyValue value) {
+            if (value.getStatus() != CarPropertyValue.STATUS_AVAILABLE) {
+                // Availability changes are always delivered.
+                return true;
+            }
+            long timestamp = value.getTimestamp();
+            int areaId = value.getAreaId();
+            int index = mNextUpdateTimeNanos.indexOfKey(areaId);
+            if (index >= 0) {
+                long nextUpdateTime = mNextUpdateTimeNanos.valueAt(index);
+                // A timestamp far in the past means the clock was reset (e.g. HAL restart).
+                if (timestamp < nextUpdateTime && timestamp >= nextUpdateTime - mPeriodNanos) {
+                    return false;
+                }
+            }
+            mNextUpdateTimeNanos.put(areaId, timestamp + mPeriodNanos);
+            return true;
+        }
+    }
+
     @Override
     public void init() {
         synchronized (mLock) {
@@ -162,10 +285,11 @@ public class CarPropertyService extends ICarProperty.Stub
             c.release();
         }
         mClientMap.clear();
-        mPropIdClientMap.clear();
         mHal.setListener(null);
         mListenerIsSet = false;
         synchronized (mLock) {
+            mPropIdClientMap.clear();
+            mPropIdClientSnapshot = new SparseArray<>();
             mSetOperationClientMap.clear();
         }
     }
@@ -178,9 +302,9 @@ public class CarPropertyService extends ICarProperty.Stub
             writer.println("    There are " + mClientMap.size() + " clients "
                     + "using CarPropertyService.");
             writer.println("    Properties registered: ");
-            for (int propId : mPropIdClientMap.keySet()) {
-                writer.println("        propId: 0x" + toHexString(propId)
-                        + " is registered by " + mPropIdClientMap.get(propId).size()
+            for (int i = 0; i < mPropIdClientMap.size(); i++) {
+                writer.println("        propId: 0x" + toHexString(mPropIdClientMap.keyAt(i))
+                        + " is registered by " + mPropIdClientMap.valueAt(i).size()
                         + " client(s).");
             }
             writer.println("    Properties changed by CarPropertyService: ");
@@ -224,16 +348,16 @@ public class CarPropertyService extends ICarProperty.Stub
             if (client == null) {
                 client = new Client(listener);
             }
-            client.addProperty(propId, rate);
+            client.addProperty(propId, rate, propertyConfig.getChangeMode()
+                    == CarPropertyConfig.VEHICLE_PROPERTY_CHANGE_MODE_CONTINUOUS);
             // Insert the client into the propId --> clients map
-            List<Client> clients = mPropIdClientMap.get(propId);
+            CopyOnWriteArrayList<Client> clients = mPropIdClientMap.get(propId);
             if (clients == null) {
                 clients = new CopyOnWriteArrayList<Client>();
                 mPropIdClientMap.put(propId, clients);
+                mPropIdClientSnapshot = mPropIdClientMap.clone();
             }
-            if (!clients.contains(client)) {
-                clients.add(client);
-            }
+            clients.addIfAbsent(client);
             // Set the HAL listener if necessary
             if (!mListenerIsSet) {
                 mHal.setListener(this);
@@ -250,6 +374,32 @@ public class CarPropertyService extends ICarProperty.Stub
                 getAndDispatchPropertyInitValue(propertyConfig, finalClient));
     }
 
+    /**
+     * Limits the change events of a float property sent to a registered listener to those whose
+     * value crosses one of the given thresholds or changes sign, for clients that do not need
+     * every sample. Availability changes are still sent. Only for in-process clients, since it is
+     * not part of {@link ICarProperty}.
+     *
+     * @param propId     Property the listener was registered for with {@link #registerListener}
+     * @param thresholds Values at which the listener's behavior changes, or {@code null} to go
+     *                   back to rate-based delivery
+     */
+    public void setEventThresholds(int propId, @Nullable float[] thresholds,
+            ICarPropertyEventListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null.");
+        }
+        synchronized (mLock) {
+            Client client = mClientMap.get(listener.asBinder());
+            if (client == null || client.mRateMap.indexOfKey(propId) < 0) {
+                Log.e(TAG, "setEventThresholds: Listener is not registered for propId=0x"
+                        + toHexString(propId));
+                return;
+            }
+            client.setThresholds(propId, thresholds);
+        }
+    }
+
     private void getAndDispatchPropertyInitValue(CarPropertyConfig config, Client client) {
         List<CarPropertyEvent> events = new LinkedList<>();
         int propId = config.getPropertyId();
@@ -296,16 +446,15 @@ public class CarPropertyService extends ICarProperty.Stub
         }
     }
 
+    @GuardedBy("mLock")
     private void unregisterListenerBinderLocked(int propId, IBinder listenerBinder) {
         Client client = mClientMap.get(listenerBinder);
         List<Client> propertyClients = mPropIdClientMap.get(propId);
-        synchronized (mLock) {
-            if (mConfigs.get(propId) == null) {
-                // Do not attempt to register an invalid propId
-                Log.e(TAG, "unregisterListener: propId is not in config list:0x" + toHexString(
-                        propId));
-                return;
-            }
+        if (mConfigs.get(propId) == null) {
+            // Do not attempt to register an invalid propId
+            Log.e(TAG, "unregisterListener: propId is not in config list:0x" + toHexString(
+                    propId));
+            return;
         }
         if ((client == null) || (propertyClients == null)) {
             Log.e(TAG, "unregisterListenerBinderLocked: Listener was not previously registered.");
@@ -322,8 +471,9 @@ public class CarPropertyService extends ICarProperty.Stub
                 // Last listener for this property unsubscribed.  Clean up
                 mHal.unsubscribeProperty(propId);
                 mPropIdClientMap.remove(propId);
+                mPropIdClientSnapshot = mPropIdClientMap.clone();
                 mSetOperationClientMap.remove(propId);
-                if (mPropIdClientMap.isEmpty()) {
+                if (mPropIdClientMap.size() == 0) {
                     // No more properties are subscribed.  Turn off the listener.
                     mHal.setListener(null);
                     mListenerIsSet = false;
@@ -479,40 +629,33 @@ public class CarPropertyService extends ICarProperty.Stub
     // Implement PropertyHalListener interface
     @Override
     public void onPropertyChange(List<CarPropertyEvent> events) {
-        Map<IBinder, Pair<ICarPropertyEventListener, List<CarPropertyEvent>>> eventsToDispatch =
-                new HashMap<>();
-
-        for (CarPropertyEvent event : events) {
+        SparseArray<CopyOnWriteArrayList<Client>> propIdClientMap = mPropIdClientSnapshot;
+        for (int i = 0; i < events.size(); i++) {
+            CarPropertyEvent event = events.get(i);
             int propId = event.getCarPropertyValue().getPropertyId();
-            List<Client> clients = mPropIdClientMap.get(propId);
+            CopyOnWriteArrayList<Client> clients = propIdClientMap.get(propId);
             if (clients == null) {
                 Log.e(TAG, "onPropertyChange: no listener registered for propId=0x"
                         + toHexString(propId));
                 continue;
             }
 
-            for (Client c : clients) {
-                IBinder listenerBinder = c.getListenerBinder();
-                Pair<ICarPropertyEventListener, List<CarPropertyEvent>> p =
-                        eventsToDispatch.get(listenerBinder);
-                if (p == null) {
-                    // Initialize the linked list for the listener
-                    p = new Pair<>(c.getListener(), new LinkedList<CarPropertyEvent>());
-                    eventsToDispatch.put(listenerBinder, p);
+            // Indexed access on the copy-on-write list does not allocate an iterator.
+            for (int j = 0; j < clients.size(); j++) {
+                Client c = clients.get(j);
+                if (!c.shouldDispatch(event)) {
+                    continue;
+                }
+                if (c.mPendingEvents.isEmpty()) {
+                    mClientsToDispatch.add(c);
                 }
-                p.second.add(event);
+                c.mPendingEvents.add(event);
             }
         }
-        // Parse the dispatch list to send events
-        for (Pair<ICarPropertyEventListener, List<CarPropertyEvent>> p: eventsToDispatch.values()) {
-            try {
-                p.first.onEvent(p.second);
-            } catch (RemoteException ex) {
-                // If we cannot send a record, its likely the connection snapped. Let binder
-                // death handle the situation.
-                Log.e(TAG, "onEvent calling failed: " + ex);
-            }
+        for (int i = 0; i < mClientsToDispatch.size(); i++) {
+            mClientsToDispatch.get(i).dispatchPendingEvents();
         }
+        mClientsToDispatch.clear();
     }
 
     @Override
@@ -16,7 +16,10 @@
 
 package com.android.car;
 
+import android.annotation.Nullable;
+
 import java.io.PrintWriter;
+import java.util.List;
 
 /**
  * Base class for all Car specific services.
@@ -29,6 +32,19 @@ public interface CarServiceBase {
      */
     void init();
 
+    /**
+     * Returns the services that must be initialized before this one. Services that declare their
+     * dependencies can be initialized on another thread, in parallel with the services they do
+     * not depend on, so {@link #init()} must not require the main thread.
+     *
+     * <p>The default, {@code null}, means that the service is initialized on the main thread,
+     * after all the services that precede it.
+     */
+    @Nullable
+    default List<Class<? extends CarServiceBase>> getInitDependencies() {
+        return null;
+    }
+
     /** service should stop and all resources should be released. */
     void release();
 
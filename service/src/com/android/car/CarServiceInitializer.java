@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.MainThread;
+import android.util.Log;
+import android.util.TimingsTraceLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Initializes the car services in order, except that the services declaring their
+ * {@link CarServiceBase#getInitDependencies() dependencies} are initialized on worker threads as
+ * soon as those dependencies are, in parallel with each other.
+ *
+ * <p>Services that do not declare their dependencies keep the sequential behavior: they are
+ * initialized on the calling thread, once all the services preceding them have been.
+ */
+final class CarServiceInitializer {
+    private static final String TAG = CarLog.TAG_SERVICE;
+
+    // Not bound to the number of CPUs, since init() often blocks on binder calls or I/O
+    private static final int MAX_THREADS = 4;
+
+    private final String mTimingTag;
+    private final long mTraceTag;
+    private final TimingsTraceLog mTimings;
+
+    /**
+     * @param timings Used to trace the initialization of the services done on the calling thread;
+     *     services initialized on worker threads are traced with the same tags.
+     */
+    CarServiceInitializer(String timingTag, long traceTag, TimingsTraceLog timings) {
+        mTimingTag = timingTag;
+        mTraceTag = traceTag;
+        mTimings = timings;
+    }
+
+    /**
+     * Initializes the services, returning once all of them are.
+     *
+     * @throws IllegalArgumentException if a service depends on one that follows it.
+     */
+    @MainThread
+    void init(CarServiceBase[] services) {
+        List<CompletableFuture<Void>> initialized = new ArrayList<>(services.length);
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        ExecutorService executor = null;
+        try {
+            for (int i = 0; i < services.length; i++) {
+                CarServiceBase service = services[i];
+                List<Class<? extends CarServiceBase>> dependencies =
+                        service.getInitDependencies();
+                if (dependencies == null) {
+                    waitFor(pending);
+                    pending.clear();
+                    String name = getTraceName(service);
+                    mTimings.traceBegin(name);
+                    service.init();
+                    mTimings.traceEnd();
+                    initialized.add(CompletableFuture.completedFuture(null));
+                    continue;
+                }
+                CompletableFuture<?>[] dependencyFutures =
+                        new CompletableFuture<?>[dependencies.size()];
+                for (int j = 0; j < dependencyFutures.length; j++) {
+                    dependencyFutures[j] = findInitialized(
+                            services, initialized, service, dependencies.get(j));
+                }
+                if (executor == null) {
+                    executor = Executors.newFixedThreadPool(MAX_THREADS, new InitThreadFactory());
+                }
+                CompletableFuture<Void> future = CompletableFuture.allOf(dependencyFutures)
+                        .thenRunAsync(() -> initOnWorkerThread(service), executor);
+                initialized.add(future);
+                pending.add(future);
+            }
+            waitFor(pending);
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private void initOnWorkerThread(CarServiceBase service) {
+        // TimingsTraceLog must be used on the thread that created it
+        TimingsTraceLog timings = new TimingsTraceLog(mTimingTag, mTraceTag);
+        timings.traceBegin(getTraceName(service));
+        service.init();
+        timings.traceEnd();
+    }
+
+    /**
+     * Returns the future of the initialization of the dependency, or a completed one if the
+     * dependency is not one of the services, as happens for optional ones.
+     */
+    private static CompletableFuture<Void> findInitialized(CarServiceBase[] services,
+            List<CompletableFuture<Void>> initialized, CarServiceBase service,
+            Class<? extends CarServiceBase> dependency) {
+        for (int i = 0; i < services.length; i++) {
+            if (!dependency.isInstance(services[i])) {
+                continue;
+            }
+            if (i >= initialized.size()) {
+                throw new IllegalArgumentException(service.getClass().getSimpleName()
+                        + " depends on " + dependency.getSimpleName() + " that follows it");
+            }
+            return initialized.get(i);
+        }
+        Log.w(TAG, service.getClass().getSimpleName() + " depends on missing service "
+                + dependency.getSimpleName());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /** Waits for the futures, rethrowing the exception of the first that failed. */
+    private static void waitFor(List<CompletableFuture<Void>> futures) {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                    .join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static String getTraceName(CarServiceBase service) {
+        return service.getClass().getSimpleName() + ".init";
+    }
+
+    private static final class InitThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "CarServiceInit-" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.car.storagemonitoring.IoStats;
 import android.car.storagemonitoring.IoStatsEntry;
 import android.car.storagemonitoring.IoStatsEntry.Metrics;
 import android.car.storagemonitoring.LifetimeWriteInfo;
+import android.car.storagemonitoring.UidIoRate;
 import android.car.storagemonitoring.UidIoRecord;
 import android.car.storagemonitoring.WearEstimate;
 import android.car.storagemonitoring.WearEstimateChange;
@@ -39,8 +40,11 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import com.android.car.internal.CarPermission;
+import com.android.car.storagemonitoring.BinaryRecordFile;
 import com.android.car.storagemonitoring.IoStatsTracker;
 import com.android.car.storagemonitoring.UidIoStatsProvider;
+import com.android.car.storagemonitoring.UidIoStatsTable;
+import com.android.car.storagemonitoring.UidIoTimeSeries;
 import com.android.car.storagemonitoring.WearEstimateRecord;
 import com.android.car.storagemonitoring.WearHistory;
 import com.android.car.storagemonitoring.WearInformation;
@@ -52,10 +56,12 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.time.Duration;
 import java.time.Instant;
@@ -85,16 +91,32 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
     private static final boolean DBG = false;
     private static final String TAG = CarLog.TAG_STORAGE;
     private static final int MIN_WEAR_ESTIMATE_OF_CONCERN = 80;
+    // Per-uid write history: one bucket per I/O sample for the last 60 samples (an hour with the
+    // default refresh rate), then one bucket per 60 samples for the last 24 of those.
+    private static final int[] IO_TIME_SERIES_SAMPLES_PER_BUCKET = {1, 60};
+    private static final int[] IO_TIME_SERIES_BUCKET_COUNTS = {60, 24};
 
     static final String UPTIME_TRACKER_FILENAME = "service_uptime";
+    static final String WEAR_HISTORY_FILENAME = "wear_history";
+    static final String LIFETIME_WRITES_RECORDS_FILENAME = "lifetime_writes";
+    // JSON files written by older versions, migrated to the binary files above when found
     static final String WEAR_INFO_FILENAME = "wear_info";
     static final String LIFETIME_WRITES_FILENAME = "lifetime_write";
 
+    private static final int WEAR_HISTORY_MAGIC = 0x57454152; // "WEAR"
+    private static final int WEAR_HISTORY_VERSION = 1;
+    private static final int LIFETIME_WRITES_MAGIC = 0x4c575254; // "LWRT"
+    private static final int LIFETIME_WRITES_VERSION = 1;
+
     private final WearInformationProvider[] mWearInformationProviders;
     private final Context mContext;
     private final File mUptimeTrackerFile;
     private final File mWearInfoFile;
     private final File mLifetimeWriteFile;
+    @GuardedBy("mLock")
+    private final BinaryRecordFile mWearHistoryRecords;
+    @GuardedBy("mLock")
+    private final BinaryRecordFile mLifetimeWriteRecords;
     private final OnShutdownReboot mOnShutdownReboot;
     private final SystemInterface mSystemInterface;
     private final UidIoStatsProvider mUidIoStatsProvider;
@@ -114,6 +136,9 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
     @GuardedBy("mLock")
     private Optional<WearInformation> mWearInformation = Optional.empty();
 
+    @GuardedBy("mLock")
+    private WearHistory mWearHistory = new WearHistory();
+
     @GuardedBy("mLock")
     private List<WearEstimateChange> mWearEstimateChanges;
 
@@ -123,6 +148,13 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
     @GuardedBy("mLock")
     private IoStatsTracker mIoStatsTracker = null;
 
+    // Reused by every I/O sample
+    @GuardedBy("mLock")
+    private final UidIoStatsTable mIoStatsTable = new UidIoStatsTable();
+
+    @GuardedBy("mLock")
+    private final UidIoTimeSeries mIoTimeSeries;
+
     @GuardedBy("mLock")
     private boolean mInitialized = false;
 
@@ -145,6 +177,12 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         mUptimeTrackerFile = new File(systemInterface.getSystemCarDir(), UPTIME_TRACKER_FILENAME);
         mWearInfoFile = new File(systemInterface.getSystemCarDir(), WEAR_INFO_FILENAME);
         mLifetimeWriteFile = new File(systemInterface.getSystemCarDir(), LIFETIME_WRITES_FILENAME);
+        mWearHistoryRecords = new BinaryRecordFile(
+                new File(systemInterface.getSystemCarDir(), WEAR_HISTORY_FILENAME),
+                WEAR_HISTORY_MAGIC, WEAR_HISTORY_VERSION);
+        mLifetimeWriteRecords = new BinaryRecordFile(
+                new File(systemInterface.getSystemCarDir(), LIFETIME_WRITES_RECORDS_FILENAME),
+                LIFETIME_WRITES_MAGIC, LIFETIME_WRITES_VERSION);
         mOnShutdownReboot = new OnShutdownReboot(mContext);
         mSystemInterface = systemInterface;
         mWearInformationProviders = systemInterface.getFlashWearInformationProviders();
@@ -152,6 +190,9 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
                 new CarPermission(mContext, Car.PERMISSION_STORAGE_MONITORING);
         mWearEstimateChanges = Collections.emptyList();
         mIoStatsSamples = new SlidingWindow<>(mConfiguration.ioStatsNumSamplesToStore);
+        mIoTimeSeries = new UidIoTimeSeries(mConfiguration.ioStatsTimeSeriesMaxUids,
+                mConfiguration.ioStatsRefreshRateMs, IO_TIME_SERIES_SAMPLES_PER_BUCKET,
+                IO_TIME_SERIES_BUCKET_COUNTS);
         mListeners = new RemoteCallbackList<>();
         systemInterface.scheduleActionForBootCompleted(() -> {
             synchronized (mLock) {
@@ -172,11 +213,24 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         return Optional.empty();
     }
 
-    private WearHistory loadWearHistory() {
+    @GuardedBy("mLock")
+    private WearHistory loadWearHistoryLocked() {
+        List<WearEstimateRecord> records =
+                mWearHistoryRecords.readAll(WearEstimateRecord::readFromStream);
+        if (records != null) {
+            WearHistory wearHistory =
+                    WearHistory.fromRecords(records.toArray(new WearEstimateRecord[0]));
+            Log.d(TAG, "retrieved wear history " + wearHistory);
+            return wearHistory;
+        }
         if (mWearInfoFile.exists()) {
             try {
                 WearHistory wearHistory = WearHistory.fromJson(mWearInfoFile);
-                Log.d(TAG, "retrieved wear history " + wearHistory);
+                Log.d(TAG, "retrieved wear history " + wearHistory + " from legacy file");
+                if (mWearHistoryRecords.commit(wearHistory.getRecords(),
+                        WearEstimateRecord::writeToStream)) {
+                    mWearInfoFile.delete();
+                }
                 return wearHistory;
             } catch (IOException | JSONException e) {
                 Log.e(TAG, "unable to read wear info file " + mWearInfoFile, e);
@@ -213,11 +267,19 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         return true;
     }
 
-    private void storeWearHistory(WearHistory wearHistory) {
-        try (JsonWriter jsonWriter = new JsonWriter(new FileWriter(mWearInfoFile))) {
-            wearHistory.writeToJson(jsonWriter);
-        } catch (IOException e) {
-            Log.e(TAG, "unable to write wear info file" + mWearInfoFile, e);
+    // Records are only ever added at the end of the history, so only the new one is written
+    @GuardedBy("mLock")
+    private void storeNewWearEstimateRecordLocked(WearHistory wearHistory) {
+        boolean stored = mWearHistoryRecords.exists()
+                ? mWearHistoryRecords.append(wearHistory.getLast(),
+                        WearEstimateRecord::writeToStream)
+                : mWearHistoryRecords.commit(wearHistory.getRecords(),
+                        WearEstimateRecord::writeToStream);
+        if (!stored) {
+            Log.e(TAG, "unable to write wear history file "
+                    + mWearHistoryRecords.getBaseFile());
+        } else {
+            mWearInfoFile.delete();
         }
     }
 
@@ -231,6 +293,11 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         }
     }
 
+    @Override
+    public List<Class<? extends CarServiceBase>> getInitDependencies() {
+        return List.of();
+    }
+
     private void launchWearChangeActivity() {
         final String activityPath = mConfiguration.activityHandlerForFlashWearChanges;
         if (activityPath.isEmpty()) return;
@@ -266,8 +333,11 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         boolean needsExcessiveIoBroadcast;
         IoStats ioStats;
         synchronized (mLock) {
-            mIoStatsTracker.update(loadNewIoStats());
+            // On failure the table is left empty, as with loadNewIoStats()
+            mUidIoStatsProvider.load(mIoStatsTable);
+            mIoStatsTracker.update(mIoStatsTable);
             currentSample = mIoStatsTracker.getCurrentSample();
+            mIoTimeSeries.addSample(currentSample);
             ioStats = new IoStats(
                     SparseArrayStream.valueStream(currentSample).collect(Collectors.toList()),
                     mSystemInterface.getUptime());
@@ -348,11 +418,12 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         mWearInformation = loadWearInformation();
 
         // TODO(egranata): can this be done lazily?
-        final WearHistory wearHistory = loadWearHistory();
+        final WearHistory wearHistory = loadWearHistoryLocked();
         final boolean didWearChangeHappen = addEventIfNeededLocked(wearHistory);
         if (didWearChangeHappen) {
-            storeWearHistory(wearHistory);
+            storeNewWearEstimateRecordLocked(wearHistory);
         }
+        mWearHistory = wearHistory;
         Log.d(TAG, "wear history being tracked is " + wearHistory);
         mWearEstimateChanges = wearHistory.toWearEstimateChanges(
                 mConfiguration.acceptableHoursPerOnePercentFlashWear);
@@ -392,6 +463,7 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         mShutdownCostInfo = computeShutdownCostLocked();
         Log.d(TAG, "calculated data written in last shutdown was " +
                 mShutdownCostInfo + " bytes");
+        mLifetimeWriteRecords.delete();
         mLifetimeWriteFile.delete();
 
         Log.i(TAG, "CarStorageMonitoringService is up");
@@ -401,7 +473,7 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
 
     @GuardedBy("mLock")
     private long computeShutdownCostLocked() {
-        List<LifetimeWriteInfo> shutdownWrites = loadLifetimeWrites();
+        List<LifetimeWriteInfo> shutdownWrites = loadLifetimeWritesLocked();
         if (shutdownWrites.isEmpty()) {
             Log.d(TAG, "lifetime write data from last shutdown missing");
             mShutdownCostMissingReason = "no historical writes stored at last shutdown";
@@ -450,7 +522,13 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         return shutdownCost;
     }
 
-    private List<LifetimeWriteInfo> loadLifetimeWrites() {
+    @GuardedBy("mLock")
+    private List<LifetimeWriteInfo> loadLifetimeWritesLocked() {
+        List<LifetimeWriteInfo> lifetimeWrites = mLifetimeWriteRecords.readAll(
+                CarStorageMonitoringService::readLifetimeWriteInfo);
+        if (lifetimeWrites != null) {
+            return lifetimeWrites;
+        }
         if (!mLifetimeWriteFile.exists() || !mLifetimeWriteFile.isFile()) {
             Log.d(TAG, "lifetime write file missing or inaccessible " + mLifetimeWriteFile);
             return Collections.emptyList();
@@ -473,23 +551,31 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
     }
 
     private void logLifetimeWrites() {
-        try {
-            LifetimeWriteInfo[] lifetimeWriteInfos =
-                    mSystemInterface.getLifetimeWriteInfoProvider().load();
-            JsonWriter jsonWriter = new JsonWriter(new FileWriter(mLifetimeWriteFile));
-            jsonWriter.beginObject();
-            jsonWriter.name("lifetimeWriteInfo").beginArray();
-            for (LifetimeWriteInfo writeInfo : lifetimeWriteInfos) {
-                Log.d(TAG, "storing lifetime write info " + writeInfo);
-                writeInfo.writeToJson(jsonWriter);
+        LifetimeWriteInfo[] lifetimeWriteInfos =
+                mSystemInterface.getLifetimeWriteInfoProvider().load();
+        for (LifetimeWriteInfo writeInfo : lifetimeWriteInfos) {
+            Log.d(TAG, "storing lifetime write info " + writeInfo);
+        }
+        synchronized (mLock) {
+            if (!mLifetimeWriteRecords.commit(Arrays.asList(lifetimeWriteInfos),
+                    CarStorageMonitoringService::writeLifetimeWriteInfo)) {
+                Log.e(TAG, "unable to save lifetime write info on shutdown");
             }
-            jsonWriter.endArray().endObject();
-            jsonWriter.close();
-        } catch (IOException e) {
-            Log.e(TAG, "unable to save lifetime write info on shutdown", e);
         }
     }
 
+    private static LifetimeWriteInfo readLifetimeWriteInfo(DataInputStream in)
+            throws IOException {
+        return new LifetimeWriteInfo(in.readUTF(), in.readUTF(), in.readLong());
+    }
+
+    private static void writeLifetimeWriteInfo(LifetimeWriteInfo writeInfo,
+            DataOutputStream out) throws IOException {
+        out.writeUTF(writeInfo.partition);
+        out.writeUTF(writeInfo.fstype);
+        out.writeLong(writeInfo.writtenBytes);
+    }
+
     @Override
     public void release() {
         Log.i(TAG, "tearing down CarStorageMonitoringService");
@@ -513,6 +599,7 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
                     + mWearEstimateChanges.stream()
                     .map(WearEstimateChange::toString)
                     .collect(Collectors.joining("\n")));
+            writer.println("wear history (JSON): " + wearHistoryToJsonLocked());
             writer.println("boot I/O stats: "
                     + mBootIoStats.stream()
                     .map(IoStatsEntry::toString)
@@ -528,6 +615,7 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
                                     .map(IoStatsEntry::toString)
                                     .collect(Collectors.joining("\n")))
                             .collect(Collectors.joining("\n------\n")));
+            mIoTimeSeries.dump(writer);
             if (mShutdownCostInfo < 0) {
                 writer.print("last shutdown cost: missing. ");
                 if (mShutdownCostMissingReason != null && !mShutdownCostMissingReason.isEmpty()) {
@@ -539,6 +627,17 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         }
     }
 
+    @GuardedBy("mLock")
+    private String wearHistoryToJsonLocked() {
+        StringWriter stringWriter = new StringWriter();
+        try (JsonWriter jsonWriter = new JsonWriter(stringWriter)) {
+            mWearHistory.writeToJson(jsonWriter);
+        } catch (IOException e) {
+            return "unavailable (" + e + ")";
+        }
+        return stringWriter.toString();
+    }
+
     // ICarStorageMonitoring implementation
 
     @Override
@@ -614,6 +713,32 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         }
     }
 
+    @Override
+    public List<UidIoRate> getTopIoWriters(long windowMillis, int maxCount) {
+        mStorageMonitoringPermission.assertGranted();
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive: " + windowMillis);
+        }
+        synchronized (mLock) {
+            doInitServiceIfNeededLocked();
+
+            return mIoTimeSeries.getTopWriters(windowMillis, maxCount);
+        }
+    }
+
+    @Override
+    public UidIoRate getUidIoRate(int uid, long windowMillis) {
+        mStorageMonitoringPermission.assertGranted();
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive: " + windowMillis);
+        }
+        synchronized (mLock) {
+            doInitServiceIfNeededLocked();
+
+            return mIoTimeSeries.getRate(uid, windowMillis);
+        }
+    }
+
     @Override
     public void registerListener(IIoStatsListener listener) {
         mStorageMonitoringPermission.assertGranted();
@@ -639,6 +764,7 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
         final String intentReceiverForUnacceptableIoMetrics;
         final int ioStatsNumSamplesToStore;
         final int ioStatsRefreshRateMs;
+        final int ioStatsTimeSeriesMaxUids;
         final int maxExcessiveIoSamplesInWindow;
         final long uptimeIntervalBetweenUptimeDataWriteMs;
 
@@ -655,6 +781,7 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
             acceptableHoursPerOnePercentFlashWear =
                     resources.getInteger(R.integer.acceptableHoursPerOnePercentFlashWear);
             ioStatsRefreshRateMs = 1000 * resources.getInteger(R.integer.ioStatsRefreshRateSeconds);
+            ioStatsTimeSeriesMaxUids = resources.getInteger(R.integer.ioStatsTimeSeriesMaxUids);
             activityHandlerForFlashWearChanges =
                     resources.getString(R.string.activityHandlerForFlashWearChanges);
             intentReceiverForUnacceptableIoMetrics =
@@ -670,6 +797,7 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
                             + "intentReceiverForUnacceptableIoMetrics = %s, "
                             + "ioStatsNumSamplesToStore = %d, "
                             + "ioStatsRefreshRateMs = %d, "
+                            + "ioStatsTimeSeriesMaxUids = %d, "
                             + "maxExcessiveIoSamplesInWindow = %d, "
                             + "uptimeIntervalBetweenUptimeDataWriteMs = %d",
                     acceptableBytesWrittenPerSample,
@@ -679,6 +807,7 @@ public class CarStorageMonitoringService extends ICarStorageMonitoring.Stub
                     intentReceiverForUnacceptableIoMetrics,
                     ioStatsNumSamplesToStore,
                     ioStatsRefreshRateMs,
+                    ioStatsTimeSeriesMaxUids,
                     maxExcessiveIoSamplesInWindow,
                     uptimeIntervalBetweenUptimeDataWriteMs);
         }
@@ -60,6 +60,7 @@ import android.util.JsonWriter;
 import android.util.Log;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.Display;
 import android.view.DisplayAddress;
 
@@ -170,6 +171,15 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
     @GuardedBy("mLock")
     private float mCurrentMovingSpeed;
 
+    // Inputs of the last evaluation of the restrictions, used to skip speed changes that cannot
+    // change them. Speed buckets are keyed by physical port.
+    @GuardedBy("mLock")
+    private int mEvaluatedDrivingState = DRIVING_STATE_UNKNOWN;
+    @GuardedBy("mLock")
+    private String mEvaluatedRestrictionMode;
+    @GuardedBy("mLock")
+    private final SparseIntArray mEvaluatedSpeedBuckets = new SparseIntArray();
+
     // Byte represents a physical port for display.
     @GuardedBy("mLock")
     private byte mDefaultDisplayPhysicalPort;
@@ -220,6 +230,10 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
         // subscribe to property service for speed
         mCarPropertyService.registerListener(VehicleProperty.PERF_VEHICLE_SPEED,
                 PROPERTY_UPDATE_RATE, mICarPropertyEventListener);
+        // Restrictions only change at the boundaries of the configured speed ranges, so skip
+        // the speed updates in between.
+        mCarPropertyService.setEventThresholds(VehicleProperty.PERF_VEHICLE_SPEED,
+                getSpeedBoundaries(), mICarPropertyEventListener);
 
         initializeUxRestrictions();
     }
@@ -319,6 +333,29 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
         }
     }
 
+    /**
+     * Returns the speeds at which the restrictions of any display may change.
+     */
+    private float[] getSpeedBoundaries() {
+        synchronized (mLock) {
+            List<float[]> configBoundaries = new ArrayList<>();
+            int count = 0;
+            for (CarUxRestrictionsConfiguration config :
+                    mCarUxRestrictionsConfigurations.values()) {
+                float[] boundaries = config.getSpeedBoundaries();
+                configBoundaries.add(boundaries);
+                count += boundaries.length;
+            }
+            float[] speedBoundaries = new float[count];
+            count = 0;
+            for (float[] boundaries : configBoundaries) {
+                System.arraycopy(boundaries, 0, speedBoundaries, count, boundaries.length);
+                count += boundaries.length;
+            }
+            return speedBoundaries;
+        }
+    }
+
     // Update current restrictions by getting the current driving state and speed.
     private void initializeUxRestrictions() {
         CarDrivingStateEvent currentDrivingStateEvent =
@@ -793,9 +830,38 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
             return;
         }
         mCurrentMovingSpeed = newSpeed;
+        if (!haveSpeedBucketsChangedLocked(currentDrivingState, newSpeed)) {
+            // Same restrictions as for the previous speed
+            return;
+        }
         handleDispatchUxRestrictionsLocked(currentDrivingState, newSpeed);
     }
 
+    /**
+     * Returns whether the restrictions of any display may differ from the last evaluated ones at
+     * the given speed. Called for every speed change, so it must not allocate.
+     */
+    @GuardedBy("mLock")
+    private boolean haveSpeedBucketsChangedLocked(@CarDrivingState int drivingState,
+            float speed) {
+        if (drivingState != mEvaluatedDrivingState
+                || !mRestrictionMode.equals(mEvaluatedRestrictionMode)) {
+            return true;
+        }
+        for (int i = 0; i < mPhysicalPorts.size(); i++) {
+            byte port = mPhysicalPorts.get(i);
+            CarUxRestrictionsConfiguration config = mCarUxRestrictionsConfigurations.get(port);
+            if (config == null) {
+                continue;
+            }
+            int bucket = config.getSpeedBucket(drivingState, speed, mRestrictionMode);
+            if (mEvaluatedSpeedBuckets.get(port, -1) != bucket) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Handle dispatching UX restrictions change.
      *
@@ -815,6 +881,9 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
             return;
         }
 
+        mEvaluatedDrivingState = currentDrivingState;
+        mEvaluatedRestrictionMode = mRestrictionMode;
+        mEvaluatedSpeedBuckets.clear();
         Map<Byte, CarUxRestrictions> newUxRestrictions = new HashMap<>();
         for (byte port : mPhysicalPorts) {
             CarUxRestrictionsConfiguration config = mCarUxRestrictionsConfigurations.get(port);
@@ -824,14 +893,18 @@ public class CarUxRestrictionsManagerService extends ICarUxRestrictionsManager.S
 
             CarUxRestrictions uxRestrictions = config.getUxRestrictions(
                     currentDrivingState, speed, mRestrictionMode);
-            logd(String.format("Display port 0x%02x\tDO old->new: %b -> %b",
-                    port,
-                    mCurrentUxRestrictions.get(port).isRequiresDistractionOptimization(),
-                    uxRestrictions.isRequiresDistractionOptimization()));
-            logd(String.format("Display port 0x%02x\tUxR old->new: 0x%x -> 0x%x",
-                    port,
-                    mCurrentUxRestrictions.get(port).getActiveRestrictions(),
-                    uxRestrictions.getActiveRestrictions()));
+            mEvaluatedSpeedBuckets.put(port,
+                    config.getSpeedBucket(currentDrivingState, speed, mRestrictionMode));
+            if (DBG) {
+                logd(String.format("Display port 0x%02x\tDO old->new: %b -> %b",
+                        port,
+                        mCurrentUxRestrictions.get(port).isRequiresDistractionOptimization(),
+                        uxRestrictions.isRequiresDistractionOptimization()));
+                logd(String.format("Display port 0x%02x\tUxR old->new: 0x%x -> 0x%x",
+                        port,
+                        mCurrentUxRestrictions.get(port).getActiveRestrictions(),
+                        uxRestrictions.getActiveRestrictions()));
+            }
             newUxRestrictions.put(port, uxRestrictions);
         }
 
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.NonNull;
+import android.car.diagnostic.CarDiagnosticEvent;
+import android.os.Handler;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of diagnostic frames, persisted across reboots.
+ *
+ * <p>Frames are encoded with {@link CarDiagnosticEvent#writeToStream} and buffered in memory, then
+ * written to disk in batches, either once enough data is pending or after a delay, to limit
+ * flash wear. The journal is split into segment files; a new segment is started when the current
+ * one is full and on every boot, and the oldest segments are deleted when the journal exceeds
+ * its size limit.
+ *
+ * <p>Each record carries the wall-clock time at which it was journaled, since frame timestamps
+ * are relative to the boot they were recorded in, and a CRC so that a record torn by a power
+ * loss ends the segment instead of corrupting the frames read after it.
+ *
+ * <p>{@link #append} is called with the diagnostic service locked, so it only takes
+ * {@code mLock}, which is never held during I/O. Writes of segment files are serialized by
+ * {@code mIoLock} instead. Queries never write: they read the segments as of the last completed
+ * write outside of both locks, then the frames not written yet from a copy taken under
+ * {@code mLock}.
+ *
+ * <pre>
+ * Segment: int magic, int version, record...
+ * Record:  int length, long wallTimeMillis, byte[length - 8] frame, int crc
+ * </pre>
+ */
+final class DiagnosticJournal {
+    private static final String TAG = CarLog.TAG_DIAGNOSTIC;
+
+    @VisibleForTesting
+    static final String SEGMENT_PREFIX = "segment_";
+    private static final int MAGIC = 0x43444a4c; // "CDJL"
+    private static final int VERSION = 2;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final long mSegmentBytes;
+    private final int mFlushThresholdBytes;
+    private final long mFlushDelayMs;
+    private final Handler mHandler;
+    private final LongSupplier mWallClock;
+    private final Runnable mFlushRunnable = this::flush;
+
+    // Lock order: mIoLock, then mLock
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    @GuardedBy("mLock")
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+    @GuardedBy("mLock")
+    private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+    @GuardedBy("mLock")
+    private final CRC32 mCrc = new CRC32();
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+    /** Batch being written by {@link #flush}, or {@code null}. */
+    @GuardedBy("mLock")
+    private ByteArrayOutputStream mInFlight;
+    /** Copy of the segment list as of the last completed write; {@code null} until loaded. */
+    @GuardedBy("mLock")
+    private List<File> mCommittedSegments;
+    /** Length of the last committed segment, past which a write may be in progress. */
+    @GuardedBy("mLock")
+    private long mCommittedLength;
+
+    private final Object mIoLock = new Object();
+    /** Swapped with {@code mPending} to write a batch without holding {@code mLock}. */
+    @GuardedBy("mIoLock")
+    private ByteArrayOutputStream mWriting = new ByteArrayOutputStream();
+    /** Segment files, oldest first; the last one is being written to. */
+    @GuardedBy("mIoLock")
+    private List<File> mSegments;
+    @GuardedBy("mIoLock")
+    private long mNextSegmentId;
+    // For dump(), which must not wait for I/O; -1 until the segments are loaded
+    private volatile int mSegmentCount = -1;
+    private volatile long mDiskBytes;
+
+    /**
+     * @param directory           Directory holding the segment files
+     * @param maxBytes            Size limit of the journal, in bytes
+     * @param segmentBytes        Size at which a new segment is started, in bytes
+     * @param flushThresholdBytes Amount of pending data that triggers an immediate write
+     * @param flushDelayMs        Maximum time pending data is held in memory
+     * @param handler             Handler on which batches are written
+     * @param wallClock           Source of the wall-clock time recorded with each frame
+     */
+    DiagnosticJournal(File directory, long maxBytes, long segmentBytes, int flushThresholdBytes,
+            long flushDelayMs, Handler handler, LongSupplier wallClock) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mSegmentBytes = segmentBytes;
+        mFlushThresholdBytes = flushThresholdBytes;
+        mFlushDelayMs = flushDelayMs;
+        mHandler = handler;
+        mWallClock = wallClock;
+    }
+
+    /**
+     * Queues a frame to be written to the journal. Never blocks on I/O.
+     */
+    void append(@NonNull CarDiagnosticEvent event) {
+        synchronized (mLock) {
+            mRecord.reset();
+            try {
+                mRecordOut.writeLong(mWallClock.getAsLong());
+                event.writeToStream(mRecordOut);
+                mRecordOut.flush();
+            } catch (IOException e) {
+                // Not expected for an in-memory stream
+                Log.e(TAG, "Failed to encode diagnostic frame", e);
+                return;
+            }
+            if (mRecord.size() > MAX_RECORD_SIZE) {
+                Log.w(TAG, "Diagnostic frame too large to journal: " + mRecord.size());
+                return;
+            }
+            mCrc.reset();
+            mCrc.update(mRecord.toByteArray());
+            try {
+                writeInt(mPending, mRecord.size());
+                mRecord.writeTo(mPending);
+                writeInt(mPending, (int) mCrc.getValue());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to buffer diagnostic frame", e);
+                return;
+            }
+
+            if (mPending.size() >= mFlushThresholdBytes) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.post(mFlushRunnable);
+                mFlushScheduled = true;
+            } else if (!mFlushScheduled) {
+                mHandler.postDelayed(mFlushRunnable, mFlushDelayMs);
+                mFlushScheduled = true;
+            }
+        }
+    }
+
+    /**
+     * Writes pending frames to disk, rotating and deleting segments as needed.
+     */
+    void flush() {
+        synchronized (mIoLock) {
+            ByteArrayOutputStream batch;
+            synchronized (mLock) {
+                mFlushScheduled = false;
+                mHandler.removeCallbacks(mFlushRunnable);
+                if (mPending.size() == 0) {
+                    return;
+                }
+                batch = mPending;
+                mPending = mWriting;
+                mWriting = batch;
+                mInFlight = batch;
+            }
+            loadSegmentsLocked();
+            File segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+            if (segment == null || segment.length() >= mSegmentBytes) {
+                segment = newSegmentLocked();
+            }
+            boolean newFile = !segment.exists();
+            try (FileOutputStream out = new FileOutputStream(segment, /* append= */ true)) {
+                if (newFile) {
+                    DataOutputStream header = new DataOutputStream(out);
+                    header.writeInt(MAGIC);
+                    header.writeInt(VERSION);
+                    header.flush();
+                }
+                batch.writeTo(out);
+                out.getFD().sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write diagnostic journal " + segment, e);
+                // Start over in a fresh segment rather than appending after a partial write
+                newSegmentLocked();
+            }
+            pruneLocked();
+            synchronized (mLock) {
+                mInFlight = null;
+                commitSegmentsLocked();
+            }
+            batch.reset();
+        }
+    }
+
+    /**
+     * Returns up to {@code maxCount} of the oldest journaled frames whose wall-clock time is in
+     * {@code [startTimeMillis, endTimeMillis)}, oldest first.
+     */
+    List<CarDiagnosticEvent> query(long startTimeMillis, long endTimeMillis, int maxCount) {
+        if (maxCount <= 0 || endTimeMillis <= startTimeMillis) {
+            return Collections.emptyList();
+        }
+        List<File> segments;
+        long lastLength;
+        byte[] inFlight;
+        byte[] pending;
+        while (true) {
+            synchronized (mLock) {
+                segments = mCommittedSegments;
+                lastLength = mCommittedLength;
+                inFlight = mInFlight != null ? mInFlight.toByteArray() : new byte[0];
+                pending = mPending.toByteArray();
+            }
+            if (segments != null) {
+                break;
+            }
+            synchronized (mIoLock) {
+                loadSegmentsLocked();
+            }
+        }
+        // Segments pruned meanwhile are skipped. The last one is only read up to the end of
+        // the last completed write; the frames written since are read from the copies.
+        List<CarDiagnosticEvent> events = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            long limit = i == segments.size() - 1 ? lastLength : Long.MAX_VALUE;
+            if (!readSegment(segments.get(i), limit, startTimeMillis, endTimeMillis, maxCount,
+                    events)) {
+                return events;
+            }
+        }
+        try {
+            if (readRecords(new DataInputStream(new ByteArrayInputStream(inFlight)),
+                    inFlight.length, "in-flight frames", startTimeMillis, endTimeMillis,
+                    maxCount, events)) {
+                readRecords(new DataInputStream(new ByteArrayInputStream(pending)),
+                        pending.length, "pending frames", startTimeMillis, endTimeMillis,
+                        maxCount, events);
+            }
+        } catch (IOException e) {
+            // Not expected for records encoded by append()
+            Log.e(TAG, "Failed to read unwritten diagnostic frames", e);
+        }
+        return events;
+    }
+
+    void dump(PrintWriter writer) {
+        int pendingBytes;
+        synchronized (mLock) {
+            pendingBytes = mPending.size();
+        }
+        int segmentCount = mSegmentCount;
+        if (segmentCount < 0) {
+            writer.printf("diagnostic journal: not loaded yet, %d bytes pending\n",
+                    pendingBytes);
+            return;
+        }
+        writer.printf("diagnostic journal: %d segments, %d bytes on disk, %d bytes pending\n",
+                segmentCount, mDiskBytes, pendingBytes);
+    }
+
+    /**
+     * Reads the matching frames of the first {@code limit} bytes of a segment into
+     * {@code events}.
+     *
+     * @return {@code false} once {@code maxCount} frames have been read.
+     */
+    private static boolean readSegment(File segment, long limit, long startTimeMillis,
+            long endTimeMillis, int maxCount, List<CarDiagnosticEvent> events) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Skipping unknown diagnostic journal segment " + segment);
+                return true;
+            }
+            return readRecords(in, limit - 2 * Integer.BYTES, segment.toString(),
+                    startTimeMillis, endTimeMillis, maxCount, events);
+        } catch (EOFException e) {
+            // Torn write at the end of the segment
+            return true;
+        } catch (FileNotFoundException e) {
+            // Not written yet, or pruned since the segment list was read
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read diagnostic journal " + segment, e);
+            return true;
+        }
+    }
+
+    /**
+     * Reads the matching frames of the records in the next {@code limit} bytes of {@code in} into
+     * {@code events}. A corrupt record ends the read.
+     *
+     * @return {@code false} once {@code maxCount} frames have been read.
+     */
+    private static boolean readRecords(DataInputStream in, long limit, String source,
+            long startTimeMillis, long endTimeMillis, int maxCount,
+            List<CarDiagnosticEvent> events) throws IOException {
+        CRC32 crc = new CRC32();
+        long position = 0;
+        while (position < limit) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return true;
+            }
+            if (length < Long.BYTES || length > MAX_RECORD_SIZE) {
+                Log.w(TAG, "Corrupt record in diagnostic journal " + source);
+                return true;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            int expectedCrc = in.readInt();
+            position += 2 * Integer.BYTES + length;
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != expectedCrc) {
+                Log.w(TAG, "Corrupt record in diagnostic journal " + source);
+                return true;
+            }
+            DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+            long wallTimeMillis = recordIn.readLong();
+            if (wallTimeMillis < startTimeMillis || wallTimeMillis >= endTimeMillis) {
+                continue;
+            }
+            events.add(CarDiagnosticEvent.readFromStream(recordIn));
+            if (events.size() >= maxCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @GuardedBy("mIoLock")
+    private void loadSegmentsLocked() {
+        if (mSegments != null) {
+            return;
+        }
+        mSegments = new ArrayList<>();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Failed to create diagnostic journal directory " + mDirectory);
+        }
+        File[] files = mDirectory.listFiles();
+        List<Long> ids = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                long id = getSegmentId(file);
+                if (id >= 0) {
+                    ids.add(id);
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (long id : ids) {
+            mSegments.add(getSegmentFile(id));
+        }
+        mNextSegmentId = ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1;
+        // The last segment of the previous boot may end with a torn record, so never append to it
+        newSegmentLocked();
+        pruneLocked();
+        synchronized (mLock) {
+            commitSegmentsLocked();
+        }
+    }
+
+    /** Publishes the segments, as written so far, to queries. Also requires {@code mIoLock}. */
+    @GuardedBy("mLock")
+    private void commitSegmentsLocked() {
+        mCommittedSegments = new ArrayList<>(mSegments);
+        mCommittedLength = mSegments.isEmpty() ? 0 : mSegments.get(mSegments.size() - 1).length();
+    }
+
+    @GuardedBy("mIoLock")
+    private File newSegmentLocked() {
+        File segment = getSegmentFile(mNextSegmentId++);
+        mSegments.add(segment);
+        return segment;
+    }
+
+    @GuardedBy("mIoLock")
+    private void pruneLocked() {
+        long bytes = 0;
+        for (File segment : mSegments) {
+            bytes += segment.length();
+        }
+        while (bytes > mMaxBytes && mSegments.size() > 1) {
+            File oldest = mSegments.remove(0);
+            bytes -= oldest.length();
+            if (oldest.exists() && !oldest.delete()) {
+                Log.w(TAG, "Failed to delete diagnostic journal " + oldest);
+            }
+        }
+        mDiskBytes = bytes;
+        mSegmentCount = mSegments.size();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private File getSegmentFile(long id) {
+        return new File(mDirectory, SEGMENT_PREFIX + id);
+    }
+
+    private static long getSegmentId(File file) {
+        String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
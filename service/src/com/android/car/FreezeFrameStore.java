@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.car.diagnostic.CarDiagnosticEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded store of freeze frames, sorted by timestamp.
+ *
+ * <p>Frames are kept in parallel arrays of timestamps and events, so lookups and range queries
+ * are binary searches over a primitive {@code long[]}. When adding a frame would exceed either
+ * the entry or the memory limit, the oldest frames are evicted.
+ *
+ * <p>Not thread-safe; callers must synchronize access.
+ */
+final class FreezeFrameStore {
+    private final int mMaxCount;
+    private final long mMaxBytes;
+
+    private long[] mTimestamps;
+    private CarDiagnosticEvent[] mEvents;
+    private int mSize;
+    private long mBytes;
+
+    /**
+     * @param maxCount Maximum number of frames to retain
+     * @param maxBytes Maximum approximate size of the retained frames, in bytes, or 0 for no
+     *                 limit
+     */
+    FreezeFrameStore(int maxCount, long maxBytes) {
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("maxCount must be positive: " + maxCount);
+        }
+        mMaxCount = maxCount;
+        mMaxBytes = maxBytes;
+        int capacity = Math.min(maxCount, 16);
+        mTimestamps = new long[capacity];
+        mEvents = new CarDiagnosticEvent[capacity];
+    }
+
+    /**
+     * Adds a frame, replacing any frame with the same timestamp.
+     *
+     * <p>If the frame is older than every retained frame and the store is full, it is not added.
+     *
+     * @return {@code true} if the frame was added
+     */
+    boolean put(@NonNull CarDiagnosticEvent event) {
+        int index = indexOf(event.timestamp);
+        if (index >= 0) {
+            mBytes += event.getApproximateSize() - mEvents[index].getApproximateSize();
+            mEvents[index] = event;
+        } else {
+            index = -index - 1;
+            if (index == 0 && mSize == mMaxCount) {
+                return false;
+            }
+            ensureCapacity(mSize + 1);
+            System.arraycopy(mTimestamps, index, mTimestamps, index + 1, mSize - index);
+            System.arraycopy(mEvents, index, mEvents, index + 1, mSize - index);
+            mTimestamps[index] = event.timestamp;
+            mEvents[index] = event;
+            mSize++;
+            mBytes += event.getApproximateSize();
+        }
+        trim();
+        return indexOf(event.timestamp) >= 0;
+    }
+
+    /** Returns the frame with the given timestamp, if any. */
+    @Nullable
+    CarDiagnosticEvent get(long timestamp) {
+        int index = indexOf(timestamp);
+        return index >= 0 ? mEvents[index] : null;
+    }
+
+    /** Returns the timestamps of all frames, in ascending order. */
+    long[] getTimestamps() {
+        return Arrays.copyOf(mTimestamps, mSize);
+    }
+
+    /**
+     * Returns the timestamps of frames in {@code [startTimestamp, endTimestamp)}, in ascending
+     * order.
+     */
+    long[] getTimestamps(long startTimestamp, long endTimestamp) {
+        if (endTimestamp <= startTimestamp) {
+            return new long[0];
+        }
+        return Arrays.copyOfRange(mTimestamps, lowerBound(startTimestamp),
+                lowerBound(endTimestamp));
+    }
+
+    /**
+     * Returns up to {@code maxCount} of the oldest frames newer than {@code timestamp}, in
+     * ascending timestamp order.
+     */
+    List<CarDiagnosticEvent> getEventsSince(long timestamp, int maxCount) {
+        int start = timestamp == Long.MAX_VALUE ? mSize : lowerBound(timestamp + 1);
+        int end = start + Math.min(Math.max(maxCount, 0), mSize - start);
+        List<CarDiagnosticEvent> events = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            events.add(mEvents[i]);
+        }
+        return events;
+    }
+
+    /** Returns all frames, in ascending timestamp order. */
+    List<CarDiagnosticEvent> getEvents() {
+        return Arrays.asList(Arrays.copyOf(mEvents, mSize));
+    }
+
+    /** Removes the frames with the given timestamps. */
+    void remove(long... timestamps) {
+        for (long timestamp : timestamps) {
+            int index = indexOf(timestamp);
+            if (index >= 0) {
+                removeAt(index);
+            }
+        }
+    }
+
+    /** Removes all frames. */
+    void clear() {
+        Arrays.fill(mEvents, 0, mSize, null);
+        mSize = 0;
+        mBytes = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getApproximateSize() {
+        return mBytes;
+    }
+
+    private void trim() {
+        // Evict the oldest frames, always keeping the most recent one
+        int evicted = 0;
+        long bytes = mBytes;
+        while (mSize - evicted > 1
+                && (mSize - evicted > mMaxCount || (mMaxBytes > 0 && bytes > mMaxBytes))) {
+            bytes -= mEvents[evicted].getApproximateSize();
+            evicted++;
+        }
+        if (evicted > 0) {
+            System.arraycopy(mTimestamps, evicted, mTimestamps, 0, mSize - evicted);
+            System.arraycopy(mEvents, evicted, mEvents, 0, mSize - evicted);
+            Arrays.fill(mEvents, mSize - evicted, mSize, null);
+            mSize -= evicted;
+            mBytes = bytes;
+        }
+    }
+
+    private void removeAt(int index) {
+        mBytes -= mEvents[index].getApproximateSize();
+        System.arraycopy(mTimestamps, index + 1, mTimestamps, index, mSize - index - 1);
+        System.arraycopy(mEvents, index + 1, mEvents, index, mSize - index - 1);
+        mSize--;
+        mEvents[mSize] = null;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mTimestamps.length) {
+            int newCapacity = Math.max(capacity, Math.min(mTimestamps.length * 2, mMaxCount + 1));
+            mTimestamps = Arrays.copyOf(mTimestamps, newCapacity);
+            mEvents = Arrays.copyOf(mEvents, newCapacity);
+        }
+    }
+
+    private int indexOf(long timestamp) {
+        return Arrays.binarySearch(mTimestamps, 0, mSize, timestamp);
+    }
+
+    /** Returns the index of the first frame at or after the given timestamp. */
+    private int lowerBound(long timestamp) {
+        int index = indexOf(timestamp);
+        return index >= 0 ? index : -index - 1;
+    }
+}
@@ -228,7 +228,7 @@ public class ICarImpl extends ICar.Stub {
         }
         if (mFeatureController.isFeatureEnabled(Car.DIAGNOSTIC_SERVICE)) {
             mCarDiagnosticService = new CarDiagnosticService(serviceContext,
-                    mHal.getDiagnosticHal());
+                    mHal.getDiagnosticHal(), systemInterface);
         } else {
             mCarDiagnosticService = null;
         }
@@ -270,6 +270,8 @@ public class ICarImpl extends ICar.Stub {
         CarLocalServices.addService(AppFocusService.class, mAppFocusService);
 
         // Be careful with order. Service depending on other service should be inited later.
+        // Services declaring their init dependencies are inited in parallel with the consecutive
+        // ones that do, see CarServiceInitializer.
         List<CarServiceBase> allServices = new ArrayList<>();
         allServices.add(mFeatureController);
         allServices.add(mCarUserService);
@@ -320,9 +322,8 @@ public class ICarImpl extends ICar.Stub {
         mHal.init();
         traceEnd();
         traceBegin("CarService.initAllServices");
-        for (CarServiceBase service : mAllServices) {
-            service.init();
-        }
+        new CarServiceInitializer(VHAL_TIMING_TAG, Trace.TRACE_TAG_HAL, mBootTiming)
+                .init(mAllServices);
         traceEnd();
     }
 
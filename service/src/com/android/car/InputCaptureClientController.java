@@ -507,6 +507,63 @@ public class InputCaptureClientController {
         return true;
     }
 
+    /**
+     * Returns whether a client captures the key events with the given key code, in which case
+     * {@link #onKeyEvents} would consume them.
+     *
+     * @param displayType Should be a display type defined in {@code CarInputManager} such as
+     *                    {@link CarInputManager#TARGET_DISPLAY_TYPE_MAIN}.
+     * @param keyCode
+     */
+    public boolean isCapturingKeyEvents(int displayType, int keyCode) {
+        if (!SUPPORTED_DISPLAY_TYPES.contains(displayType)) {
+            return false;
+        }
+        Integer inputType = KEY_EVENT_TO_INPUT_TYPE.get(keyCode);
+        if (inputType == null) { // not supported key
+            return false;
+        }
+        synchronized (mLock) {
+            return getClientForInputTypeLocked(displayType, inputType) != null;
+        }
+    }
+
+    /**
+     * Dispatches the given {@code KeyEvent}s, which must all have the same key code, to a
+     * capturing client if there is one, with a single callback.
+     *
+     * @param displayType Should be a display type defined in {@code CarInputManager} such as
+     *                    {@link CarInputManager#TARGET_DISPLAY_TYPE_MAIN}.
+     * @param events
+     * @return true if the events were consumed.
+     */
+    public boolean onKeyEvents(int displayType, List<KeyEvent> events) {
+        if (events.isEmpty() || !SUPPORTED_DISPLAY_TYPES.contains(displayType)) {
+            return false;
+        }
+        Integer inputType = KEY_EVENT_TO_INPUT_TYPE.get(events.get(0).getKeyCode());
+        if (inputType == null) { // not supported key
+            return false;
+        }
+        ICarInputCallback callback;
+        synchronized (mLock) {
+            callback = getClientForInputTypeLocked(displayType, inputType);
+            if (callback == null) {
+                return false;
+            }
+            mNumKeyEventsDispatched += events.size();
+        }
+
+        CarServiceUtils.runOnMain(() -> {
+            try {
+                callback.onKeyEvents(displayType, events);
+            } catch (RemoteException e) {
+                // Ignore. Let death handler deal with it.
+            }
+        });
+        return true;
+    }
+
     /**
      * Dispatches the given {@code RotaryEvent} to a capturing client if there is one.
      *
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Histogram of input event latencies, from the time an event was generated by the vehicle HAL to
+ * the time CarInputService finished dispatching it.
+ *
+ * <p>Latencies are counted in power-of-two millisecond buckets, so recording never allocates.
+ */
+final class InputLatencyStats {
+    /** Latency above which a frame is missed at 60 Hz. */
+    static final long FRAME_BUDGET_MS = 16;
+
+    // Upper bounds (exclusive) of the buckets; the last bucket counts everything above
+    private static final long[] BUCKET_LIMITS_MS = {1, 2, 4, 8, 16, 32, 64, 128};
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final long[] mBucketCounts = new long[BUCKET_LIMITS_MS.length + 1];
+    @GuardedBy("mLock")
+    private long mCount;
+    @GuardedBy("mLock")
+    private long mTotalMs;
+    @GuardedBy("mLock")
+    private long mMaxMs;
+    @GuardedBy("mLock")
+    private long mOverBudgetCount;
+
+    /**
+     * Records the latency of one event. Negative latencies, caused by clock adjustments, are
+     * counted as zero.
+     */
+    void record(long latencyMs) {
+        latencyMs = Math.max(0, latencyMs);
+        int bucket = 0;
+        while (bucket < BUCKET_LIMITS_MS.length && latencyMs >= BUCKET_LIMITS_MS[bucket]) {
+            bucket++;
+        }
+        synchronized (mLock) {
+            mBucketCounts[bucket]++;
+            mCount++;
+            mTotalMs += latencyMs;
+            mMaxMs = Math.max(mMaxMs, latencyMs);
+            if (latencyMs > FRAME_BUDGET_MS) {
+                mOverBudgetCount++;
+            }
+        }
+    }
+
+    long getCount() {
+        synchronized (mLock) {
+            return mCount;
+        }
+    }
+
+    long getMaxMs() {
+        synchronized (mLock) {
+            return mMaxMs;
+        }
+    }
+
+    long getOverBudgetCount() {
+        synchronized (mLock) {
+            return mOverBudgetCount;
+        }
+    }
+
+    void dump(PrintWriter writer, String name) {
+        synchronized (mLock) {
+            writer.printf("%s latency: %d events, mean %d ms, max %d ms, %d over %d ms\n",
+                    name, mCount, mCount == 0 ? 0 : mTotalMs / mCount, mMaxMs, mOverBudgetCount,
+                    FRAME_BUDGET_MS);
+            if (mCount == 0) {
+                return;
+            }
+            writer.print("  histogram:");
+            for (int i = 0; i < mBucketCounts.length; i++) {
+                if (i < BUCKET_LIMITS_MS.length) {
+                    writer.printf(" <%dms=%d", BUCKET_LIMITS_MS[i], mBucketCounts[i]);
+                } else {
+                    writer.printf(" >=%dms=%d", BUCKET_LIMITS_MS[i - 1], mBucketCounts[i]);
+                }
+            }
+            writer.println();
+        }
+    }
+}
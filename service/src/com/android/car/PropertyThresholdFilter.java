@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import android.annotation.NonNull;
+import android.car.hardware.CarPropertyValue;
+import android.util.SparseIntArray;
+
+import java.util.Arrays;
+
+/**
+ * Drops events of a float property whose value stays between the same two thresholds, for
+ * clients that only act when the value crosses one of them. Each area is tracked separately.
+ *
+ * <p>A value {@code v} falls into band {@code i} when exactly {@code i} thresholds are less than
+ * or equal to {@code v}; an event is dispatched when the band or the sign of the value differs
+ * from the last dispatched event of its area. Availability changes and non-float values are
+ * always dispatched.
+ */
+final class PropertyThresholdFilter {
+    private final float[] mThresholds;
+    // key is areaId, value is the band and sign of the last dispatched value
+    private final SparseIntArray mLastStates = new SparseIntArray();
+
+    PropertyThresholdFilter(@NonNull float[] thresholds) {
+        float[] sorted = thresholds.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (float threshold : sorted) {
+            if (Float.isNaN(threshold)) {
+                // Sorted last, and no value crosses it
+                break;
+            }
+            if (count == 0 || threshold != sorted[count - 1]) {
+                sorted[count++] = threshold;
+            }
+        }
+        mThresholds = Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * Returns {@code true} if the event with the given value should be sent to the client.
+     */
+    boolean shouldDispatch(CarPropertyValue value) {
+        int areaId = value.getAreaId();
+        Object rawValue = value.getValue();
+        if (value.getStatus() != CarPropertyValue.STATUS_AVAILABLE
+                || !(rawValue instanceof Float)) {
+            // Start over once the property is available again
+            mLastStates.delete(areaId);
+            return true;
+        }
+        int state = getState((Float) rawValue);
+        int index = mLastStates.indexOfKey(areaId);
+        if (index >= 0 && mLastStates.valueAt(index) == state) {
+            return false;
+        }
+        mLastStates.put(areaId, state);
+        return true;
+    }
+
+    private int getState(float value) {
+        // Count the thresholds that are less than or equal to the value.
+        int low = 0;
+        int high = mThresholds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mThresholds[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int sign = value > 0 ? 2 : (value < 0 ? 0 : 1);
+        return low * 3 + sign;
+    }
+}
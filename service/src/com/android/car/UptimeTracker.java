@@ -17,18 +17,20 @@
 package com.android.car;
 
 import android.util.JsonReader;
-import android.util.JsonWriter;
 import android.util.Log;
 
+import com.android.car.storagemonitoring.BinaryRecordFile;
 import com.android.car.systeminterface.SystemInterface;
 
 import com.android.car.systeminterface.TimeInterface;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -68,6 +70,9 @@ public class UptimeTracker {
      */
     private static long DEFAULT_SNAPSHOT_INTERVAL_MS = 5 * 60 * 60 * 1000; // 5 hours
 
+    private static final int UPTIME_FILE_MAGIC = 0x5550544d; // "UPTM"
+    private static final int UPTIME_FILE_VERSION = 1;
+
     private final Object mLock = new Object();
 
     /**
@@ -75,6 +80,11 @@ public class UptimeTracker {
      */
     private File mUptimeFile;
 
+    /**
+     * The binary records stored in mUptimeFile. Older versions stored JSON, which is still read.
+     */
+    private BinaryRecordFile mUptimeRecords;
+
     /**
      * The uptime value retrieved from mUptimeFile
      */
@@ -110,6 +120,7 @@ public class UptimeTracker {
             TimeInterface timeInterface) {
         snapshotInterval = Math.max(snapshotInterval, MINIMUM_SNAPSHOT_INTERVAL_MS);
         mUptimeFile = Objects.requireNonNull(file);
+        mUptimeRecords = new BinaryRecordFile(mUptimeFile, UPTIME_FILE_MAGIC, UPTIME_FILE_VERSION);
         mTimeInterface = timeInterface;
         mLastRealTimeSnapshot = mTimeInterface.getUptime(TimeInterface.EXCLUDE_DEEP_SLEEP_TIME);
         mHistoricalUptime = Optional.empty();
@@ -125,6 +136,7 @@ public class UptimeTracker {
             flushSnapshot();
             mTimeInterface = null;
             mUptimeFile = null;
+            mUptimeRecords = null;
         }
     }
 
@@ -146,6 +158,11 @@ public class UptimeTracker {
 
     private long getHistoricalUptimeLocked() {
         if (!mHistoricalUptime.isPresent() && mUptimeFile != null && mUptimeFile.exists()) {
+            List<Long> uptimes = mUptimeRecords.readAll(DataInputStream::readLong);
+            if (uptimes != null && !uptimes.isEmpty()) {
+                mHistoricalUptime = Optional.of(uptimes.get(uptimes.size() - 1));
+                return mHistoricalUptime.get();
+            }
             try {
                 JsonReader reader = new JsonReader(new FileReader(mUptimeFile));
                 reader.beginObject();
@@ -170,20 +187,15 @@ public class UptimeTracker {
             if (mUptimeFile == null) {
                 return;
             }
-            try {
-                long newUptime = getTotalUptime();
-                mHistoricalUptime = Optional.of(newUptime);
-                mLastRealTimeSnapshot = mTimeInterface.getUptime(
-                        TimeInterface.EXCLUDE_DEEP_SLEEP_TIME);
-
-                JsonWriter writer = new JsonWriter(new FileWriter(mUptimeFile));
-                writer.beginObject();
-                writer.name("uptime");
-                writer.value(newUptime);
-                writer.endObject();
-                writer.close();
-            } catch (IOException e) {
-                Log.w(CarLog.TAG_SERVICE, "unable to write historical uptime data", e);
+            long newUptime = getTotalUptime();
+            mHistoricalUptime = Optional.of(newUptime);
+            mLastRealTimeSnapshot = mTimeInterface.getUptime(
+                    TimeInterface.EXCLUDE_DEEP_SLEEP_TIME);
+
+            // A single fixed-size record, replaced atomically so a crash cannot lose the uptime
+            if (!mUptimeRecords.commit(Collections.singletonList(newUptime),
+                    (uptime, out) -> out.writeLong(uptime))) {
+                Log.w(CarLog.TAG_SERVICE, "unable to write historical uptime data");
             }
         }
     }
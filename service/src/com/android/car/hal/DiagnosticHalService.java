@@ -33,12 +33,10 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import com.android.car.CarLog;
-import com.android.car.CarServiceUtils;
 import com.android.car.vehiclehal.VehiclePropValueBuilder;
 import com.android.internal.annotations.GuardedBy;
 
 import java.io.PrintWriter;
-import java.util.BitSet;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -364,32 +362,17 @@ public class DiagnosticHalService extends HalServiceBase {
 
         final boolean isFreezeFrame = value.prop == VehicleProperty.OBD2_FREEZE_FRAME;
 
-        CarDiagnosticEvent.Builder builder =
-                (isFreezeFrame
-                                ? CarDiagnosticEvent.Builder.newFreezeFrameBuilder()
-                                : CarDiagnosticEvent.Builder.newLiveFrameBuilder())
-                        .atTimestamp(value.timestamp);
-
-        BitSet bitset = BitSet.valueOf(CarServiceUtils.toByteArray(value.value.bytes));
-
-        int numIntegerProperties = getNumIntegerSensors(value.prop);
-        int numFloatProperties = getNumFloatSensors(value.prop);
-
-        for (int i = 0; i < numIntegerProperties; ++i) {
-            if (bitset.get(i)) {
-                builder.withIntValue(i, value.value.int32Values.get(i));
-            }
-        }
-
-        for (int i = 0; i < numFloatProperties; ++i) {
-            if (bitset.get(numIntegerProperties + i)) {
-                builder.withFloatValue(i, value.value.floatValues.get(i));
-            }
-        }
-
-        builder.withDtc(value.value.stringValue);
-
-        return builder.build();
+        return CarDiagnosticEvent.createFromHalValues(
+                isFreezeFrame
+                        ? CarDiagnosticManager.FRAME_TYPE_FREEZE
+                        : CarDiagnosticManager.FRAME_TYPE_LIVE,
+                value.timestamp,
+                value.value.int32Values,
+                getNumIntegerSensors(value.prop),
+                value.value.floatValues,
+                getNumFloatSensors(value.prop),
+                value.value.bytes,
+                value.value.stringValue);
     }
 
     /** Listener for monitoring diagnostic event. */
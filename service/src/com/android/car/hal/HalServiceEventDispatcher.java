@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.car.CarServiceUtils;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers property events to a single {@link HalServiceBase} on its own looper.
+ *
+ * <p>Events of continuous properties are bounded: when {@code capacity} of them are pending, the
+ * oldest one is dropped so that a slow {@link HalServiceBase#onHalEvents(List)} cannot grow
+ * memory without limit. A newer sample supersedes it anyway. Events of on-change and static
+ * properties, such as key presses or power state requests, are never dropped.
+ *
+ * <p>The looper thread is only started once the service subscribes to a property, see
+ * {@link #start()}.
+ */
+final class HalServiceEventDispatcher {
+
+    private final HalServiceBase mService;
+    private final String mThreadName;
+    private final int mCapacity;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayDeque<QueuedEvent> mQueue = new ArrayDeque<>();
+    @GuardedBy("mLock")
+    private int mDroppableCount;
+    @GuardedBy("mLock")
+    private int mMaxQueueDepth;
+    private volatile Handler mHandler;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final AtomicLong mDroppedEvents = new AtomicLong();
+    private final AtomicLong mDispatchedEvents = new AtomicLong();
+
+    private final Runnable mDrainRunnable = this::drain;
+
+    private static final class QueuedEvent {
+        final VehiclePropValue mValue;
+        final boolean mDroppable;
+
+        QueuedEvent(VehiclePropValue value, boolean droppable) {
+            mValue = value;
+            mDroppable = droppable;
+        }
+    }
+
+    /**
+     * @param threadName Name of the {@code HandlerThread} delivering the events, started by
+     *     {@link #start()}.
+     */
+    HalServiceEventDispatcher(HalServiceBase service, String threadName, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mService = service;
+        mThreadName = threadName;
+        mCapacity = capacity;
+    }
+
+    @VisibleForTesting
+    HalServiceEventDispatcher(HalServiceBase service, Looper looper, int capacity) {
+        this(service, (String) null, capacity);
+        mHandler = new Handler(looper);
+    }
+
+    /** Starts the looper thread delivering the events, if not started yet. */
+    void start() {
+        if (mHandler != null) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mHandler == null) {
+                mHandler = new Handler(CarServiceUtils.getHandlerThread(mThreadName).getLooper());
+            }
+        }
+    }
+
+    @VisibleForTesting
+    boolean isStarted() {
+        return mHandler != null;
+    }
+
+    /**
+     * Queues the given event for the service. Never blocks.
+     *
+     * @param droppable whether the event belongs to a continuous property, in which case the
+     *     oldest such event is dropped if {@code capacity} of them are already pending.
+     */
+    void enqueue(VehiclePropValue value, boolean droppable) {
+        synchronized (mLock) {
+            if (droppable && mDroppableCount >= mCapacity) {
+                dropOldestDroppableLocked();
+            }
+            mQueue.add(new QueuedEvent(value, droppable));
+            if (droppable) {
+                mDroppableCount++;
+            }
+            if (mQueue.size() > mMaxQueueDepth) {
+                mMaxQueueDepth = mQueue.size();
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void dropOldestDroppableLocked() {
+        Iterator<QueuedEvent> it = mQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next().mDroppable) {
+                it.remove();
+                mDroppableCount--;
+                mDroppedEvents.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Schedules delivery of queued events. Should be called once per batch after all
+     * {@link #enqueue(VehiclePropValue, boolean)} calls for the batch are done.
+     */
+    void scheduleDispatch() {
+        synchronized (mLock) {
+            if (mQueue.isEmpty()) {
+                return;
+            }
+        }
+        // Events of properties that were not subscribed, such as injected ones, start it too
+        start();
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    /** Drops all pending events. */
+    void clear() {
+        synchronized (mLock) {
+            mQueue.clear();
+            mDroppableCount = 0;
+        }
+    }
+
+    @VisibleForTesting
+    int getQueueSize() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    @VisibleForTesting
+    long getDroppedEventCount() {
+        return mDroppedEvents.get();
+    }
+
+    private void drain() {
+        // Reset before draining so that events queued while the service handles the current
+        // batch trigger another pass.
+        mDrainScheduled.set(false);
+        List<VehiclePropValue> dispatchList = mService.getDispatchList();
+        synchronized (mLock) {
+            QueuedEvent event;
+            while ((event = mQueue.poll()) != null) {
+                dispatchList.add(event.mValue);
+            }
+            mDroppableCount = 0;
+        }
+        if (dispatchList.isEmpty()) {
+            return;
+        }
+        try {
+            mService.onHalEvents(dispatchList);
+            mDispatchedEvents.addAndGet(dispatchList.size());
+        } finally {
+            dispatchList.clear();
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.printf("%s: started: %b, queue %d (%d continuous, max %d), max depth: %d, "
+                    + "dispatched: %d, dropped: %d\n", mService.getClass().getSimpleName(),
+                    mHandler != null, mQueue.size(), mDroppableCount, mCapacity, mMaxQueueDepth,
+                    mDispatchedEvents.get(), mDroppedEvents.get());
+        }
+    }
+}
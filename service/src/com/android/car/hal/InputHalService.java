@@ -272,6 +272,8 @@ public class InputHalService extends HalServiceBase {
         long uptimeToElapsedTimeDelta = CarServiceUtils.getUptimeToElapsedTimeDeltaInMillis();
         long startUptime = TimeUnit.NANOSECONDS.toMillis(timestamp) - uptimeToElapsedTimeDelta;
         timestamps[0] = startUptime;
+        // int32Values holds the Integers boxed when the HAL value was read, so unboxing them here
+        // does not allocate.
         for (int i = 0; i < timestamps.length - 1; i++) {
             timestamps[i + 1] = timestamps[i] + TimeUnit.NANOSECONDS.toMillis(
                     value.value.int32Values.get(timeValuesIndex + i));
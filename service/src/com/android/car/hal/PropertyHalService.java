@@ -40,10 +40,10 @@ import com.android.car.CarServiceUtils;
 import com.android.internal.annotations.GuardedBy;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -55,20 +55,18 @@ import java.util.Set;
  */
 public class PropertyHalService extends HalServiceBase {
     private final boolean mDbg = true;
-    private final LinkedList<CarPropertyEvent> mEventsToDispatch = new LinkedList<>();
+    // Only accessed from onHalEvents(), kept here to avoid allocation on every batch.
+    private final ArrayList<CarPropertyEvent> mEventsToDispatch = new ArrayList<>();
     @GuardedBy("mLock")
     private final Map<Integer, CarPropertyConfig<?>> mMgrPropIdToCarPropConfig = new HashMap<>();
     @GuardedBy("mLock")
     private final SparseArray<VehiclePropConfig> mHalPropIdToVehiclePropConfig =
             new SparseArray<>();
     // Only contains propId if the property Id is different in HAL and manager
-    private static final Map<Integer, Integer> PROPERTY_ID_HAL_TO_MANAGER = Map.of(
-            VehicleProperty.VEHICLE_SPEED_DISPLAY_UNITS,
-            VehiclePropertyIds.VEHICLE_SPEED_DISPLAY_UNITS);
-    // Only contains propId if the property Id is different in HAL and manager
-    private static final Map<Integer, Integer> PROPERTY_ID_MANAGER_TO_HAL = Map.of(
-            VehiclePropertyIds.VEHICLE_SPEED_DISPLAY_UNITS,
-            VehicleProperty.VEHICLE_SPEED_DISPLAY_UNITS);
+    private static final ManagerToHalPropIdMap PROPERTY_ID_MANAGER_TO_HAL =
+            ManagerToHalPropIdMap.create(
+                    VehiclePropertyIds.VEHICLE_SPEED_DISPLAY_UNITS,
+                    VehicleProperty.VEHICLE_SPEED_DISPLAY_UNITS);
     private static final String TAG = "PropertyHalService";
     private final VehicleHal mVehicleHal;
     private final PropertyHalServiceIds mPropIds;
@@ -84,14 +82,16 @@ public class PropertyHalService extends HalServiceBase {
      * Converts manager property ID to Vehicle HAL property ID.
      */
     private int managerToHalPropId(int mgrPropId) {
-        return PROPERTY_ID_MANAGER_TO_HAL.getOrDefault(mgrPropId, mgrPropId);
+        int halPropId = PROPERTY_ID_MANAGER_TO_HAL.getHalPropId(mgrPropId);
+        return halPropId == NOT_SUPPORTED_PROPERTY ? mgrPropId : halPropId;
     }
 
     /**
      * Converts Vehicle HAL property ID to manager property ID.
      */
     private int halToManagerPropId(int halPropId) {
-        return PROPERTY_ID_HAL_TO_MANAGER.getOrDefault(halPropId, halPropId);
+        int mgrPropId = PROPERTY_ID_MANAGER_TO_HAL.getManagerPropId(halPropId);
+        return mgrPropId == NOT_SUPPORTED_PROPERTY ? halPropId : mgrPropId;
     }
 
     // Checks if the property exists in this VHAL before calling methods in IVehicle.
@@ -367,7 +367,8 @@ public class PropertyHalService extends HalServiceBase {
             listener = mListener;
         }
         if (listener != null) {
-            for (VehiclePropValue v : values) {
+            for (int i = 0; i < values.size(); i++) {
+                VehiclePropValue v = values.get(i);
                 if (v == null) {
                     continue;
                 }
@@ -41,12 +41,15 @@ import android.os.HandlerThread;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
 import android.os.SystemClock;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.android.car.CarLog;
 import com.android.car.CarServiceUtils;
+import com.android.car.R;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -61,6 +64,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -88,9 +92,12 @@ public class VehicleHal extends IVehicleCallback.Stub {
     /** Might be re-assigned if Vehicle HAL is reconnected. */
     private volatile HalClient mHalClient;
 
-    /** Stores handler for each HAL property. Property events are sent to handler. */
-    @GuardedBy("mLock")
-    private final SparseArray<HalServiceBase> mPropertyHandlers = new SparseArray<>();
+    /**
+     * Immutable snapshot of the handler for each HAL property. Property events are sent to the
+     * handler. Replaced as a whole in {@link #init()} so that event dispatch does not need
+     * {@code mLock}.
+     */
+    private volatile PropertyDispatchTable mDispatchTable = PropertyDispatchTable.EMPTY;
     /** This is for iterating all HalServices with fixed order. */
     @GuardedBy("mLock")
     private final ArrayList<HalServiceBase> mAllServices = new ArrayList<>();
@@ -99,8 +106,12 @@ public class VehicleHal extends IVehicleCallback.Stub {
     @GuardedBy("mLock")
     private final HashMap<Integer, VehiclePropConfig> mAllProperties = new HashMap<>();
 
-    @GuardedBy("mLock")
-    private final HashMap<Integer, VehiclePropertyEventInfo> mEventLog = new HashMap<>();
+    /**
+     * Per {@link HalServiceBase} dispatchers, or {@code null} when all services receive events on
+     * the {@code VehicleHal} thread.
+     */
+    @Nullable
+    private final ArrayMap<HalServiceBase, HalServiceEventDispatcher> mDispatchers;
 
     // Used by injectVHALEvent for testing purposes.  Delimiter for an array of data
     private static final String DATA_DELIMITER = ",";
@@ -121,6 +132,20 @@ public class VehicleHal extends IVehicleCallback.Stub {
                 mUserHal,
                 mPropertyHal)); // mPropertyHal should be the last.
 
+        if (context.getResources().getBoolean(R.bool.enablePerHalServiceEventDispatch)) {
+            int queueSize = context.getResources().getInteger(R.integer.halServiceEventQueueSize);
+            mDispatchers = new ArrayMap<>(mAllServices.size());
+            for (int i = 0; i < mAllServices.size(); i++) {
+                HalServiceBase service = mAllServices.get(i);
+                // The thread is only started once the service subscribes to a property
+                mDispatchers.put(service, new HalServiceEventDispatcher(service,
+                        VehicleHal.class.getSimpleName() + "." + service.getClass().getSimpleName(),
+                        queueSize));
+            }
+        } else {
+            mDispatchers = null;
+        }
+
         mHalClient = new HalClient(vehicle, mHandlerThread.getLooper(), this /*IVehicleCallback*/);
     }
 
@@ -137,12 +162,16 @@ public class VehicleHal extends IVehicleCallback.Stub {
         mHalClient = halClient;
         mDiagnosticHal = diagnosticHal;
         mUserHal = null;
+        mDispatchers = null;
     }
 
     public void vehicleHalReconnected(IVehicle vehicle) {
         synchronized (mLock) {
             mHalClient = new HalClient(vehicle, mHandlerThread.getLooper(),
                     this /*IVehicleCallback*/);
+            // Property ownership does not change on reconnection, but the event log restarts
+            // for the new HAL instance.
+            mDispatchTable = mDispatchTable.withEmptyEventLog();
 
             SubscribeOptions[] options = mSubscribedProperties.values()
                     .toArray(new SubscribeOptions[0]);
@@ -194,6 +223,8 @@ public class VehicleHal extends IVehicleCallback.Stub {
     public void init() {
         fetchAllPropConfigs();
 
+        SparseArray<HalServiceBase> propertyHandlers = new SparseArray<>();
+        SparseBooleanArray continuousProperties = new SparseBooleanArray();
         // PropertyHalService will take most properties, so make it big enough.
         ArrayList<VehiclePropConfig> configsForService = new ArrayList<>(mAllServices.size());
         for (int i = 0; i < mAllServices.size(); i++) {
@@ -205,7 +236,8 @@ public class VehicleHal extends IVehicleCallback.Stub {
                     for (Integer propId : mAllProperties.keySet()) {
                         if (service.isSupportedProperty(propId)) {
                             VehiclePropConfig config = mAllProperties.get(propId);
-                            mPropertyHandlers.append(propId, service);
+                            propertyHandlers.put(propId, service);
+                            continuousProperties.put(propId, isContinuous(config));
                             configsForService.add(config);
                         }
                     }
@@ -215,21 +247,34 @@ public class VehicleHal extends IVehicleCallback.Stub {
                         if (config == null) {
                             continue;
                         }
-                        mPropertyHandlers.append(prop, service);
+                        propertyHandlers.put(prop, service);
+                        continuousProperties.put(prop, isContinuous(config));
                         configsForService.add(config);
                     }
                 }
             }
+            // Publish ownership before init() so that services can subscribe from there.
+            mDispatchTable = new PropertyDispatchTable(propertyHandlers.clone(),
+                    continuousProperties.clone(), mDispatchers);
             service.takeProperties(configsForService);
             service.init();
         }
     }
 
+    private static boolean isContinuous(VehiclePropConfig config) {
+        return config.changeMode == VehiclePropertyChangeMode.CONTINUOUS;
+    }
+
     public void release() {
         // release in reverse order from init
         for (int i = mAllServices.size() - 1; i >= 0; i--) {
             mAllServices.get(i).release();
         }
+        if (mDispatchers != null) {
+            for (int i = 0; i < mDispatchers.size(); i++) {
+                mDispatchers.valueAt(i).clear();
+            }
+        }
         synchronized (mLock) {
             for (int p : mSubscribedProperties.keySet()) {
                 try {
@@ -266,7 +311,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
     public VmsHalService getVmsHal() { return mVmsHal; }
 
     private void assertServiceOwnerLocked(HalServiceBase service, int property) {
-        if (service != mPropertyHandlers.get(property)) {
+        if (service != mDispatchTable.getHandler(property)) {
             throw new IllegalArgumentException("Property 0x" + toHexString(property)
                     + " is not owned by service: " + service);
         }
@@ -324,6 +369,9 @@ public class VehicleHal extends IVehicleCallback.Stub {
                 assertServiceOwnerLocked(service, property);
                 mSubscribedProperties.put(property, opts);
             }
+            if (mDispatchers != null) {
+                mDispatchers.get(service).start();
+            }
             try {
                 mHalClient.subscribe(opts);
             } catch (RemoteException e) {
@@ -507,34 +555,63 @@ public class VehicleHal extends IVehicleCallback.Stub {
         }
     }
 
+    /**
+     * Serializes the events dispatched on the calling thread, which are not only received from the
+     * HAL thread but also injected from binder threads by {@link #injectVhalEvent}.
+     */
+    private final Object mDispatchLock = new Object();
+    @GuardedBy("mDispatchLock")
     private final ArraySet<HalServiceBase> mServicesToDispatch = new ArraySet<>();
 
     @Override
     public void onPropertyEvent(ArrayList<VehiclePropValue> propValues) {
-        synchronized (mLock) {
-            for (VehiclePropValue v : propValues) {
-                HalServiceBase service = mPropertyHandlers.get(v.prop);
-                if(service == null) {
+        PropertyDispatchTable table = mDispatchTable;
+        if (mDispatchers != null) {
+            dispatchToServiceQueues(table, propValues);
+            return;
+        }
+        synchronized (mDispatchLock) {
+            for (int i = 0; i < propValues.size(); i++) {
+                VehiclePropValue v = propValues.get(i);
+                HalServiceBase service = table.getHandler(v.prop);
+                if (service == null) {
                     Log.e(CarLog.TAG_HAL, "HalService not found for prop: 0x"
-                        + toHexString(v.prop));
+                            + toHexString(v.prop));
                     continue;
                 }
                 service.getDispatchList().add(v);
                 mServicesToDispatch.add(service);
-                VehiclePropertyEventInfo info = mEventLog.get(v.prop);
-                if (info == null) {
-                    info = new VehiclePropertyEventInfo(v);
-                    mEventLog.put(v.prop, info);
-                } else {
-                    info.addNewEvent(v);
-                }
+                table.logEvent(v);
+            }
+            for (HalServiceBase s : mServicesToDispatch) {
+                s.onHalEvents(s.getDispatchList());
+                s.getDispatchList().clear();
+            }
+            mServicesToDispatch.clear();
+        }
+    }
+
+    /**
+     * Hands each event over to the queue of its {@link HalServiceBase} so that a slow service
+     * only delays its own events.
+     */
+    private void dispatchToServiceQueues(PropertyDispatchTable table,
+            ArrayList<VehiclePropValue> propValues) {
+        for (int i = 0; i < propValues.size(); i++) {
+            VehiclePropValue v = propValues.get(i);
+            HalServiceEventDispatcher dispatcher = table.getDispatcher(v.prop);
+            if (dispatcher == null) {
+                Log.e(CarLog.TAG_HAL, "HalService not found for prop: 0x"
+                        + toHexString(v.prop));
+                continue;
             }
+            // Only samples of continuous properties may be dropped, a newer one follows anyway
+            dispatcher.enqueue(v, table.isContinuous(v.prop));
+            table.logEvent(v);
         }
-        for (HalServiceBase s : mServicesToDispatch) {
-            s.onHalEvents(s.getDispatchList());
-            s.getDispatchList().clear();
+        for (int i = 0; i < mDispatchers.size(); i++) {
+            mDispatchers.valueAt(i).scheduleDispatch();
         }
-        mServicesToDispatch.clear();
     }
 
     @Override
@@ -548,7 +625,7 @@ public class VehicleHal extends IVehicleCallback.Stub {
         Log.e(CarLog.TAG_HAL, String.format("onPropertySetError, errorCode: %d, prop: 0x%x, "
                 + "area: 0x%x", errorCode, propId, areaId));
         if (propId != VehicleProperty.INVALID) {
-            HalServiceBase service = mPropertyHandlers.get(propId);
+            HalServiceBase service = mDispatchTable.getHandler(propId);
             if (service != null) {
                 service.onPropertySetError(propId, areaId, errorCode);
             }
@@ -564,17 +641,30 @@ public class VehicleHal extends IVehicleCallback.Stub {
         dumpPropertyConfigs(writer, "");
         writer.println(String.format("**All Events, now ns:%d**",
                 SystemClock.elapsedRealtimeNanos()));
-        for (VehiclePropertyEventInfo info : mEventLog.values()) {
+        PropertyDispatchTable table = mDispatchTable;
+        for (int i = 0; i < table.mEventLog.size(); i++) {
+            VehiclePropertyEventInfo info = table.mEventLog.valueAt(i);
+            VehiclePropValue lastEvent = info.mLastEvent;
+            if (lastEvent == null) {
+                continue;
+            }
             writer.println(String.format("event count:%d, lastEvent:%s",
-                    info.eventCount, dumpVehiclePropValue(info.lastEvent)));
+                    info.mEventCount.get(), dumpVehiclePropValue(lastEvent)));
         }
 
         writer.println("**Property handlers**");
-        for (int i = 0; i < mPropertyHandlers.size(); i++) {
-            int propId = mPropertyHandlers.keyAt(i);
-            HalServiceBase service = mPropertyHandlers.valueAt(i);
+        for (int i = 0; i < table.mHandlers.size(); i++) {
+            int propId = table.mHandlers.keyAt(i);
+            HalServiceBase service = table.mHandlers.valueAt(i);
             writer.println(String.format("Prop: 0x%08X, service: %s", propId, service));
         }
+
+        if (mDispatchers != null) {
+            writer.println("**Per HAL service dispatchers**");
+            for (int i = 0; i < mDispatchers.size(); i++) {
+                mDispatchers.valueAt(i).dump(writer);
+            }
+        }
     }
 
     /**
@@ -769,18 +859,80 @@ public class VehicleHal extends IVehicleCallback.Stub {
         onPropertySetError(errorId, propId, zoneId);
     }
 
-    private static class VehiclePropertyEventInfo {
-        private int eventCount;
-        private VehiclePropValue lastEvent;
+    private static final class VehiclePropertyEventInfo {
+        private final AtomicInteger mEventCount = new AtomicInteger();
+        private volatile VehiclePropValue mLastEvent;
 
-        private VehiclePropertyEventInfo(VehiclePropValue event) {
-            eventCount = 1;
-            lastEvent = event;
+        private void addNewEvent(VehiclePropValue event) {
+            mEventCount.incrementAndGet();
+            mLastEvent = event;
         }
+    }
 
-        private void addNewEvent(VehiclePropValue event) {
-            eventCount++;
-            lastEvent = event;
+    /**
+     * Immutable mapping from property to its {@link HalServiceBase} (and dispatcher, if any).
+     * The event log entries are created up front so that logging an event never mutates the
+     * table itself.
+     */
+    private static final class PropertyDispatchTable {
+        static final PropertyDispatchTable EMPTY = new PropertyDispatchTable(
+                new SparseArray<>(), new SparseBooleanArray(), null);
+
+        private final SparseArray<HalServiceBase> mHandlers;
+        private final SparseBooleanArray mContinuousProperties;
+        private final SparseArray<HalServiceEventDispatcher> mPropDispatchers;
+        private final SparseArray<VehiclePropertyEventInfo> mEventLog;
+
+        PropertyDispatchTable(SparseArray<HalServiceBase> handlers,
+                SparseBooleanArray continuousProperties,
+                @Nullable ArrayMap<HalServiceBase, HalServiceEventDispatcher> dispatchers) {
+            mHandlers = handlers;
+            mContinuousProperties = continuousProperties;
+            int size = handlers.size();
+            mPropDispatchers = new SparseArray<>(dispatchers == null ? 0 : size);
+            mEventLog = new SparseArray<>(size);
+            for (int i = 0; i < size; i++) {
+                int propId = handlers.keyAt(i);
+                if (dispatchers != null) {
+                    mPropDispatchers.append(propId, dispatchers.get(handlers.valueAt(i)));
+                }
+                mEventLog.append(propId, new VehiclePropertyEventInfo());
+            }
+        }
+
+        private PropertyDispatchTable(PropertyDispatchTable other) {
+            mHandlers = other.mHandlers;
+            mContinuousProperties = other.mContinuousProperties;
+            mPropDispatchers = other.mPropDispatchers;
+            mEventLog = new SparseArray<>(mHandlers.size());
+            for (int i = 0; i < mHandlers.size(); i++) {
+                mEventLog.append(mHandlers.keyAt(i), new VehiclePropertyEventInfo());
+            }
+        }
+
+        PropertyDispatchTable withEmptyEventLog() {
+            return new PropertyDispatchTable(this);
+        }
+
+        @Nullable
+        HalServiceBase getHandler(int propId) {
+            return mHandlers.get(propId);
+        }
+
+        @Nullable
+        HalServiceEventDispatcher getDispatcher(int propId) {
+            return mPropDispatchers.get(propId);
+        }
+
+        boolean isContinuous(int propId) {
+            return mContinuousProperties.get(propId);
+        }
+
+        void logEvent(VehiclePropValue event) {
+            VehiclePropertyEventInfo info = mEventLog.get(event.prop);
+            if (info != null) {
+                info.addNewEvent(event);
+            }
         }
     }
 
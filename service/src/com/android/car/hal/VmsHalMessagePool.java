@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.hal;
+
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+
+import androidx.annotation.GuardedBy;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of {@link VehiclePropValue} instances used to encode outbound VMS messages.
+ *
+ * <p>The HIDL value lists keep their backing arrays when cleared, so reusing a message avoids
+ * regrowing them for every packet sent to the vehicle HAL. Messages carrying payloads larger than
+ * the retention limit are dropped instead of recycled so that a single large packet does not pin
+ * its buffer for the lifetime of the service.
+ */
+final class VmsHalMessagePool {
+    private final int mMaxPoolSize;
+    private final int mMaxRetainedPayloadSize;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayDeque<VehiclePropValue> mPool;
+
+    /**
+     * @param maxPoolSize            Maximum number of idle messages to retain, or 0 to disable
+     *                               pooling.
+     * @param maxRetainedPayloadSize Largest payload, in bytes, of a message that will be retained.
+     */
+    VmsHalMessagePool(int maxPoolSize, int maxRetainedPayloadSize) {
+        if (maxPoolSize < 0) {
+            throw new IllegalArgumentException("maxPoolSize must not be negative: " + maxPoolSize);
+        }
+        mMaxPoolSize = maxPoolSize;
+        mMaxRetainedPayloadSize = maxRetainedPayloadSize;
+        mPool = new ArrayDeque<>(maxPoolSize);
+    }
+
+    /**
+     * Returns an empty message for the given property and area.
+     */
+    VehiclePropValue obtain(int prop, int areaId) {
+        VehiclePropValue vehicleProp;
+        synchronized (mLock) {
+            vehicleProp = mPool.poll();
+        }
+        if (vehicleProp == null) {
+            vehicleProp = new VehiclePropValue();
+        }
+        vehicleProp.prop = prop;
+        vehicleProp.areaId = areaId;
+        return vehicleProp;
+    }
+
+    /**
+     * Returns a message to the pool once the vehicle HAL is done with it.
+     *
+     * <p>The caller must not access the message afterwards.
+     */
+    void recycle(VehiclePropValue vehicleProp) {
+        if (mMaxPoolSize == 0 || vehicleProp.value.bytes.size() > mMaxRetainedPayloadSize) {
+            return;
+        }
+        clear(vehicleProp);
+        synchronized (mLock) {
+            if (mPool.size() < mMaxPoolSize) {
+                mPool.add(vehicleProp);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of idle messages in the pool.
+     */
+    int size() {
+        synchronized (mLock) {
+            return mPool.size();
+        }
+    }
+
+    private static void clear(VehiclePropValue vehicleProp) {
+        vehicleProp.timestamp = 0;
+        vehicleProp.status = 0;
+        vehicleProp.value.int32Values.clear();
+        vehicleProp.value.floatValues.clear();
+        vehicleProp.value.int64Values.clear();
+        vehicleProp.value.bytes.clear();
+        vehicleProp.value.stringValue = "";
+    }
+}
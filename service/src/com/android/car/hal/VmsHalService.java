@@ -82,6 +82,8 @@ public class VmsHalService extends HalServiceBase {
     private static final int NUM_INTEGERS_IN_VMS_LAYER = 3;
     private static final int UNKNOWN_CLIENT_ID = -1;
     private static final byte[] DEFAULT_PUBLISHER_INFO = new byte[0];
+    private static final int MESSAGE_POOL_SIZE = 4;
+    private static final int MAX_POOLED_PAYLOAD_SIZE = 64 * 1024;
 
     private final VehicleHal mVehicleHal;
     private final HandlerThread mHandlerThread = CarServiceUtils.getHandlerThread(
@@ -91,6 +93,7 @@ public class VmsHalService extends HalServiceBase {
     private final BiFunction<Handler, VmsClientCallback, VmsClient> mInitVmsClient;
     private final int mClientMetricsProperty;
     private final boolean mPropagatePropertyException;
+    private final VmsHalMessagePool mMessagePool;
     private final VmsSubscriptionHelper mSubscriptionHelper =
             new VmsSubscriptionHelper(this::setSubscriptions);
 
@@ -132,18 +135,29 @@ public class VmsHalService extends HalServiceBase {
      */
     VmsHalService(Context context, VehicleHal vehicleHal) {
         this(context, vehicleHal, SystemClock::uptimeMillis, VmsHalService::initVmsClient,
-                Build.IS_DEBUGGABLE);
+                Build.IS_DEBUGGABLE,
+                new VmsHalMessagePool(MESSAGE_POOL_SIZE, MAX_POOLED_PAYLOAD_SIZE));
     }
 
     @VisibleForTesting
     VmsHalService(Context context, VehicleHal vehicleHal, Supplier<Long> getCoreId,
             BiFunction<Handler, VmsClientCallback, VmsClient> initVmsClient,
             boolean propagatePropertyException) {
+        // Messages are not recycled, so that they can be inspected after being sent
+        this(context, vehicleHal, getCoreId, initVmsClient, propagatePropertyException,
+                new VmsHalMessagePool(0, 0));
+    }
+
+    @VisibleForTesting
+    VmsHalService(Context context, VehicleHal vehicleHal, Supplier<Long> getCoreId,
+            BiFunction<Handler, VmsClientCallback, VmsClient> initVmsClient,
+            boolean propagatePropertyException, VmsHalMessagePool messagePool) {
         mVehicleHal = vehicleHal;
         mCoreId = (int) (getCoreId.get() % Integer.MAX_VALUE);
         mInitVmsClient = initVmsClient;
         mClientMetricsProperty = getClientMetricsProperty(context);
         mPropagatePropertyException = propagatePropertyException;
+        mMessagePool = messagePool;
     }
 
     private static int getClientMetricsProperty(Context context) {
@@ -622,6 +636,7 @@ public class VmsHalService extends HalServiceBase {
             if (!mIsSupported) {
                 Log.w(TAG, "HAL unsupported while attempting to send "
                         + VmsMessageType.toString(messageType));
+                mMessagePool.recycle(vehicleProp);
                 return;
             }
         }
@@ -633,6 +648,9 @@ public class VmsHalService extends HalServiceBase {
             if (mPropagatePropertyException) {
                 throw new IllegalStateException(e);
             }
+        } finally {
+            // The vehicle HAL call is synchronous, so the message can be reused once it returns
+            mMessagePool.recycle(vehicleProp);
         }
     }
 
@@ -646,7 +664,7 @@ public class VmsHalService extends HalServiceBase {
      * <li>Client ID
      * </ul>
      */
-    private static VehiclePropValue createStartSessionMessage(int coreId, int clientId) {
+    private VehiclePropValue createStartSessionMessage(int coreId, int clientId) {
         // Message type + layer
         VehiclePropValue vehicleProp = createVmsMessage(VmsMessageType.START_SESSION);
         List<Integer> message = vehicleProp.value.int32Values;
@@ -677,7 +695,7 @@ public class VmsHalService extends HalServiceBase {
      * @param publisherId Publisher of message
      * @param payload Data message
      */
-    private static VehiclePropValue createDataMessage(VmsLayer layer, int publisherId,
+    private VehiclePropValue createDataMessage(VmsLayer layer, int publisherId,
             byte[] payload) {
         // Message type + layer
         VehiclePropValue vehicleProp = createVmsMessage(VmsMessageType.DATA);
@@ -708,7 +726,7 @@ public class VmsHalService extends HalServiceBase {
      * @param messageType       Either SUBSCRIPTIONS_CHANGE or SUBSCRIPTIONS_RESPONSE.
      * @param subscriptionState The subscription state to encode in the message.
      */
-    private static VehiclePropValue createSubscriptionStateMessage(int messageType,
+    private VehiclePropValue createSubscriptionStateMessage(int messageType,
             VmsSubscriptionState subscriptionState) {
         // Message type
         VehiclePropValue vehicleProp = createVmsMessage(messageType);
@@ -751,7 +769,7 @@ public class VmsHalService extends HalServiceBase {
      * @param messageType     Either AVAILABILITY_CHANGE or AVAILABILITY_RESPONSE.
      * @param availableLayers The available layers to encode in the message.
      */
-    private static VehiclePropValue createAvailableLayersMessage(int messageType,
+    private VehiclePropValue createAvailableLayersMessage(int messageType,
             VmsAvailableLayers availableLayers) {
         // Message type
         VehiclePropValue vehicleProp = createVmsMessage(messageType);
@@ -776,10 +794,9 @@ public class VmsHalService extends HalServiceBase {
      *
      * @param messageType Type of message, from {@link VmsMessageType}
      */
-    private static VehiclePropValue createVmsMessage(int messageType) {
-        VehiclePropValue vehicleProp = new VehiclePropValue();
-        vehicleProp.prop = HAL_PROPERTY_ID;
-        vehicleProp.areaId = VehicleAreaType.VEHICLE_AREA_TYPE_GLOBAL;
+    private VehiclePropValue createVmsMessage(int messageType) {
+        VehiclePropValue vehicleProp = mMessagePool.obtain(HAL_PROPERTY_ID,
+                VehicleAreaType.VEHICLE_AREA_TYPE_GLOBAL);
         vehicleProp.value.int32Values.add(messageType);
         return vehicleProp;
     }
@@ -826,10 +843,19 @@ public class VmsHalService extends HalServiceBase {
         message.addAll(layer.getProviderIds());
     }
 
+    /**
+     * Appends a payload to an encoded VMS message.
+     *
+     * Boxing goes through {@link Byte#valueOf(byte)}, which is backed by a cache covering every
+     * byte value, so no objects are allocated per byte.
+     *
+     * @param dst Message bytes to append to.
+     * @param src Payload to append.
+     */
     private static void appendBytes(ArrayList<Byte> dst, byte[] src) {
-        dst.ensureCapacity(src.length);
-        for (byte b : src) {
-            dst.add(b);
+        dst.ensureCapacity(dst.size() + src.length);
+        for (int i = 0; i < src.length; i++) {
+            dst.add(Byte.valueOf(src[i]));
         }
     }
 
@@ -839,8 +865,7 @@ public class VmsHalService extends HalServiceBase {
     }
 
     private static VmsLayer parseVmsLayerAtIndex(List<Integer> message, int index) {
-        List<Integer> layerValues = message.subList(index, index + NUM_INTEGERS_IN_VMS_LAYER);
-        return new VmsLayer(layerValues.get(0), layerValues.get(1), layerValues.get(2));
+        return new VmsLayer(message.get(index), message.get(index + 1), message.get(index + 2));
     }
 
     private static int parsePublisherIdFromMessage(List<Integer> message) {
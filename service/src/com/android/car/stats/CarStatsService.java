@@ -73,6 +73,18 @@ public class CarStatsService {
                     entry.getRxBytes(), entry.getRxPackets(),
                     entry.getDroppedBytes(), entry.getDroppedPackets());
 
+    private static final String VMS_DELIVERY_QUEUE_STATS_DUMPSYS_HEADER =
+            "uid,packageName,queueDepth,maxQueueDepth,overflowPackets";
+
+    private static final Function<VmsClientLogger, String>
+            VMS_DELIVERY_QUEUE_STATS_DUMPSYS_FORMAT =
+            entry -> String.format(
+                    "%d,%s,%d,%d,%d",
+                    entry.getUid(), entry.getPackageName(),
+                    entry.getDeliveryQueueDepth(),
+                    entry.getMaxDeliveryQueueDepth(),
+                    entry.getDeliveryQueueOverflows());
+
     private static final Comparator<VmsClientStats> VMS_CLIENT_STATS_ORDER =
             Comparator.comparingInt(VmsClientStats::getUid)
                     .thenComparingInt(VmsClientStats::getLayerType)
@@ -146,6 +158,14 @@ public class CarStatsService {
             writer.println(VMS_CLIENT_STATS_DUMPSYS_HEADER);
             dumpVmsClientStats(entry -> writer.println(
                     VMS_CLIENT_STATS_DUMPSYS_FORMAT.apply(entry)));
+            writer.println();
+
+            writer.println(VMS_DELIVERY_QUEUE_STATS_DUMPSYS_HEADER);
+            mVmsClientStats.values().stream()
+                    .filter(entry -> entry.getUid() > 0)
+                    .sorted(Comparator.comparingInt(VmsClientLogger::getUid))
+                    .forEachOrdered(entry -> writer.println(
+                            VMS_DELIVERY_QUEUE_STATS_DUMPSYS_FORMAT.apply(entry)));
         }
     }
 
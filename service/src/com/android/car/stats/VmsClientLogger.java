@@ -25,6 +25,7 @@ import com.android.internal.annotations.GuardedBy;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -64,6 +65,10 @@ public class VmsClientLogger {
     @GuardedBy("mLock")
     private final Map<VmsLayer, VmsClientStats> mLayerStats = new ArrayMap<>();
 
+    private final AtomicInteger mDeliveryQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxDeliveryQueueDepth = new AtomicInteger();
+    private final AtomicLong mDeliveryQueueOverflows = new AtomicLong();
+
     VmsClientLogger(int clientUid, @Nullable String clientPackage) {
         mUid = clientUid;
         mPackageName = clientPackage != null ? clientPackage : "";
@@ -132,6 +137,40 @@ public class VmsClientLogger {
         getLayerEntry(layer).packetDropped(size);
     }
 
+    /**
+     * Logs a change in the number of packets waiting to be delivered to the client. Clients that
+     * share a UID share a logger, so the depth is the total over their delivery queues.
+     *
+     * @param delta Number of packets added to a delivery queue, or removed from it if negative
+     */
+    public void logDeliveryQueueDepthChange(int delta) {
+        int depth = mDeliveryQueueDepth.addAndGet(delta);
+        mMaxDeliveryQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * Logs that a packet was dropped because the client's delivery queue was full.
+     *
+     * @param layer Layer of packet
+     * @param size Size of packet
+     */
+    public void logDeliveryQueueOverflow(VmsLayer layer, long size) {
+        mDeliveryQueueOverflows.incrementAndGet();
+        logPacketDropped(layer, size);
+    }
+
+    int getDeliveryQueueDepth() {
+        return mDeliveryQueueDepth.get();
+    }
+
+    int getMaxDeliveryQueueDepth() {
+        return mMaxDeliveryQueueDepth.get();
+    }
+
+    long getDeliveryQueueOverflows() {
+        return mDeliveryQueueOverflows.get();
+    }
+
     Collection<VmsClientStats> getLayerEntries() {
         synchronized (mLock) {
             return mLayerStats.values().stream()
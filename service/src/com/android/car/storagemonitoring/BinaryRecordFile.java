@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.storagemonitoring;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.car.CarLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Small versioned file of binary records, used by CarStorageMonitoringService to persist its
+ * state without rewriting whole JSON documents on the storage it is monitoring.
+ *
+ * <p>Records can be appended one at a time, which only writes the new record, or the whole file
+ * can be replaced atomically with {@link #commit}. Every record carries a CRC, so that a record
+ * torn by a power loss while being appended ends the file instead of failing the whole read; it
+ * is dropped by the next append.
+ *
+ * <pre>
+ * File:   int magic, int version, record...
+ * Record: int length, byte[length] payload, int crc
+ * </pre>
+ *
+ * <p>This class is not thread safe.
+ */
+public final class BinaryRecordFile {
+    private static final String TAG = CarLog.TAG_STORAGE;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int RECORD_OVERHEAD = 2 * Integer.BYTES;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    /** Encodes a value as the payload of a record. */
+    public interface Writer<T> {
+        void write(T value, DataOutputStream out) throws IOException;
+    }
+
+    /** Decodes a value from the payload of a record. */
+    public interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private final AtomicFile mFile;
+    private final int mMagic;
+    private final int mVersion;
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+    private final CRC32 mCrc = new CRC32();
+    // Length of the intact part of the file, or -1 if unknown
+    private long mValidLength = -1;
+
+    /**
+     * @param file    File holding the records
+     * @param magic   Identifies the kind of records held by the file
+     * @param version Version of the record encoding; files of any other version are ignored
+     */
+    public BinaryRecordFile(@NonNull File file, int magic, int version) {
+        mFile = new AtomicFile(file);
+        mMagic = magic;
+        mVersion = version;
+    }
+
+    public File getBaseFile() {
+        return mFile.getBaseFile();
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Reads the intact records of the file.
+     *
+     * @return The decoded records, or {@code null} if the file is missing or does not hold
+     *         records of the expected kind and version
+     */
+    @Nullable
+    public <T> List<T> readAll(@NonNull Reader<T> reader) {
+        mValidLength = -1;
+        List<T> values = new ArrayList<>();
+        long validLength = HEADER_SIZE;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()))) {
+            int magic;
+            int version;
+            try {
+                magic = in.readInt();
+                version = in.readInt();
+            } catch (EOFException e) {
+                Log.w(TAG, "Truncated record file " + getBaseFile());
+                return null;
+            }
+            if (magic != mMagic) {
+                return null;
+            }
+            if (version != mVersion) {
+                Log.w(TAG, "Unsupported version " + version + " of record file " + getBaseFile());
+                return null;
+            }
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    Log.w(TAG, "Corrupt record in " + getBaseFile());
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int crc = in.readInt();
+                mCrc.reset();
+                mCrc.update(payload);
+                if ((int) mCrc.getValue() != crc) {
+                    Log.w(TAG, "Corrupt record in " + getBaseFile());
+                    break;
+                }
+                values.add(reader.read(new DataInputStream(new ByteArrayInputStream(payload))));
+                validLength += RECORD_OVERHEAD + length;
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (EOFException e) {
+            Log.w(TAG, "Torn record at the end of " + getBaseFile());
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read record file " + getBaseFile(), e);
+            return null;
+        }
+        mValidLength = validLength;
+        return values;
+    }
+
+    /**
+     * Appends a record to the file and syncs it to storage, creating the file if needed.
+     *
+     * @return {@code true} if the record was written
+     */
+    public <T> boolean append(@NonNull T value, @NonNull Writer<T> writer) {
+        if (mValidLength < 0 && readAll(in -> null) == null) {
+            // Missing or unusable file, start a new one
+            return commit(Collections.singletonList(value), writer);
+        }
+        try {
+            encode(value, writer);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to encode record for " + getBaseFile(), e);
+            return false;
+        }
+        File file = getBaseFile();
+        try {
+            if (file.length() > mValidLength) {
+                // Drop a record torn by an earlier append
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(mValidLength);
+                }
+            }
+            try (FileOutputStream fos = new FileOutputStream(file, /* append= */ true)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                writeRecord(out);
+                out.flush();
+                fos.getFD().sync();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to append to record file " + file, e);
+            mValidLength = -1;
+            return false;
+        }
+        mValidLength += RECORD_OVERHEAD + mRecord.size();
+        return true;
+    }
+
+    /**
+     * Atomically replaces the content of the file with the given records.
+     *
+     * @return {@code true} if the records were written
+     */
+    public <T> boolean commit(@NonNull List<T> values, @NonNull Writer<T> writer) {
+        FileOutputStream fos;
+        try {
+            fos = mFile.startWrite();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open record file " + getBaseFile(), e);
+            return false;
+        }
+        long length = HEADER_SIZE;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(mMagic);
+            out.writeInt(mVersion);
+            for (int i = 0; i < values.size(); i++) {
+                encode(values.get(i), writer);
+                writeRecord(out);
+                length += RECORD_OVERHEAD + mRecord.size();
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write record file " + getBaseFile(), e);
+            mFile.failWrite(fos);
+            return false;
+        }
+        mFile.finishWrite(fos);
+        mValidLength = length;
+        return true;
+    }
+
+    public void delete() {
+        mFile.delete();
+        mValidLength = -1;
+    }
+
+    private <T> void encode(T value, Writer<T> writer) throws IOException {
+        mRecord.reset();
+        DataOutputStream out = new DataOutputStream(mRecord);
+        writer.write(value, out);
+        out.flush();
+        if (mRecord.size() > MAX_RECORD_SIZE) {
+            throw new IOException("Record too large: " + mRecord.size());
+        }
+    }
+
+    private void writeRecord(DataOutputStream out) throws IOException {
+        mCrc.reset();
+        mCrc.update(mRecord.toByteArray());
+        out.writeInt(mRecord.size());
+        mRecord.writeTo(out);
+        out.writeInt((int) mCrc.getValue());
+    }
+}
@@ -16,110 +16,155 @@
 
 package com.android.car.storagemonitoring;
 
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_BACKGROUND_FSYNC;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_BACKGROUND_RCHAR;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_BACKGROUND_READ_BYTES;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_BACKGROUND_WCHAR;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_BACKGROUND_WRITE_BYTES;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_COUNT;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_FOREGROUND_FSYNC;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_FOREGROUND_RCHAR;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_FOREGROUND_READ_BYTES;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_FOREGROUND_WCHAR;
+import static com.android.car.storagemonitoring.UidIoStatsTable.FIELD_FOREGROUND_WRITE_BYTES;
+
 import android.car.storagemonitoring.IoStatsEntry;
 import android.car.storagemonitoring.UidIoRecord;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.GuardedBy;
 
-import com.android.car.SparseArrayStream;
 import com.android.car.procfsinspector.ProcessInfo;
 import com.android.car.systeminterface.SystemStateInterface;
 
+import java.util.Arrays;
 import java.util.List;
-import java.util.Optional;
 
+/**
+ * Tracks the I/O counters of each user id across samples.
+ *
+ * <p>The totals and the latest sample of every user id are kept in preallocated primitive arrays
+ * that are updated in place, so that an update does not create objects for every user id.
+ * {@link IoStatsEntry} objects are only created when the totals or the sample are read, and the
+ * sample only holds the user ids that changed in the last update.
+ */
 public class IoStatsTracker {
-
-    // NOTE: this class is not thread safe
-    private abstract class Lazy<T> {
-        protected Optional<T> mLazy = Optional.empty();
-
-        protected abstract T supply();
-
-        public T get() {
-            if (!mLazy.isPresent()) {
-                mLazy = Optional.of(supply());
-            }
-            return mLazy.get();
-        }
-    }
+    private static final int INITIAL_CAPACITY = 64;
 
     private final Object mLock = new Object();
     private final long mSampleWindowMs;
     private final SystemStateInterface mSystemStateInterface;
+
+    // Row of each uid in the arrays below
+    @GuardedBy("mLock")
+    private final SparseIntArray mRows = new SparseIntArray();
+    @GuardedBy("mLock")
+    private int[] mUids = new int[INITIAL_CAPACITY];
+    // FIELD_COUNT counters per row
+    @GuardedBy("mLock")
+    private long[] mTotals = new long[INITIAL_CAPACITY * FIELD_COUNT];
+    @GuardedBy("mLock")
+    private long[] mRuntimesMillis = new long[INITIAL_CAPACITY];
+    // FIELD_COUNT counters per row, only meaningful for rows in the current sample
+    @GuardedBy("mLock")
+    private long[] mSampleDeltas = new long[INITIAL_CAPACITY * FIELD_COUNT];
+    @GuardedBy("mLock")
+    private boolean[] mInSample = new boolean[INITIAL_CAPACITY];
+    // Update in which each row was last reported
+    @GuardedBy("mLock")
+    private int[] mLastSeen = new int[INITIAL_CAPACITY];
+    @GuardedBy("mLock")
+    private int mSize;
     @GuardedBy("mLock")
-    private SparseArray<IoStatsEntry> mTotal;
+    private int mUpdateCount;
+
+    // Uids running a process, loaded at most once per update and only if needed
+    @GuardedBy("mLock")
+    private final SparseBooleanArray mRunningUids = new SparseBooleanArray();
     @GuardedBy("mLock")
-    private SparseArray<IoStatsEntry> mCurrentSample;
+    private boolean mRunningUidsLoaded;
 
     public IoStatsTracker(List<IoStatsEntry> initialValue,
             long sampleWindowMs, SystemStateInterface systemStateInterface) {
-        mTotal = new SparseArray<>(initialValue.size());
-        initialValue.forEach(uidIoStats -> mTotal.append(uidIoStats.uid, uidIoStats));
-        mCurrentSample = mTotal.clone();
         mSampleWindowMs = sampleWindowMs;
         mSystemStateInterface = systemStateInterface;
+        synchronized (mLock) {
+            for (int i = 0; i < initialValue.size(); i++) {
+                IoStatsEntry entry = initialValue.get(i);
+                int row = addRowLocked(entry.uid);
+                setTotalsLocked(row, entry);
+                System.arraycopy(mTotals, row * FIELD_COUNT, mSampleDeltas, row * FIELD_COUNT,
+                        FIELD_COUNT);
+                mRuntimesMillis[row] = entry.runtimeMillis;
+                mInSample[row] = true;
+            }
+        }
     }
 
     /**
      * Updates the tracker information with new metrics.
      */
     public void update(SparseArray<UidIoRecord> newMetrics) {
-        final Lazy<List<ProcessInfo>> processTable = new Lazy<List<ProcessInfo>>() {
-            @Override
-            protected List<ProcessInfo> supply() {
-                return mSystemStateInterface.getRunningProcesses();
-            }
-        };
-
-        SparseArray<IoStatsEntry> newSample = new SparseArray<>();
-        SparseArray<IoStatsEntry> newTotal = new SparseArray<>();
+        UidIoStatsTable stats = new UidIoStatsTable();
+        for (int i = 0; i < newMetrics.size(); i++) {
+            stats.addRecord(newMetrics.valueAt(i));
+        }
+        update(stats);
+    }
 
+    /**
+     * Updates the tracker information with new metrics, in place.
+     *
+     * <p>User ids missing from {@code newMetrics} are dropped.
+     */
+    public void update(UidIoStatsTable newMetrics) {
         synchronized (mLock) {
-            // prepare the new values
-            SparseArrayStream.valueStream(newMetrics).forEach(newRecord -> {
-                final int uid = newRecord.uid;
-                final IoStatsEntry oldRecord = mTotal.get(uid);
-
-                IoStatsEntry newStats = null;
+            mUpdateCount++;
+            mRunningUidsLoaded = false;
+            for (int i = 0; i < newMetrics.size(); i++) {
+                final int uid = newMetrics.getUid(i);
+                int row = mRows.get(uid, -1);
 
-                if (oldRecord == null) {
+                if (row < 0) {
                     // this user id has just showed up, so just add it to the current sample
                     // and its runtime is the size of our sample window
-                    newStats = new IoStatsEntry(newRecord, mSampleWindowMs);
-                } else {
-                    // this user id has already been detected
-
-                    if (oldRecord.representsSameMetrics(newRecord)) {
-                        // if no new I/O happened, try to figure out if any process on behalf
-                        // of this user has happened, and use that to update the runtime metrics
-                        if (processTable.get().stream().anyMatch(pi -> pi.uid == uid)) {
-                            newStats = new IoStatsEntry(newRecord.delta(oldRecord),
-                                    oldRecord.runtimeMillis + mSampleWindowMs);
-                        }
+                    row = addRowLocked(uid);
+                    for (int field = 0; field < FIELD_COUNT; field++) {
+                        long value = newMetrics.get(i, field);
+                        mTotals[row * FIELD_COUNT + field] = value;
+                        mSampleDeltas[row * FIELD_COUNT + field] = value;
+                    }
+                    mRuntimesMillis[row] = mSampleWindowMs;
+                    mInSample[row] = true;
+                } else if (representsSameMetricsLocked(row, newMetrics, i)) {
+                    // if no new I/O happened, try to figure out if any process on behalf
+                    // of this user has happened, and use that to update the runtime metrics
+                    if (isRunningLocked(uid)) {
+                        Arrays.fill(mSampleDeltas, row * FIELD_COUNT, (row + 1) * FIELD_COUNT, 0);
+                        mRuntimesMillis[row] += mSampleWindowMs;
+                        mInSample[row] = true;
+                    } else {
                         // if no new I/O happened and no process is running for this user
                         // then do not prepare a new sample, as nothing has changed
-                    } else {
-                        // but if new I/O happened, assume something was running for the entire
-                        // sample window and compute the delta
-                        newStats = new IoStatsEntry(newRecord.delta(oldRecord),
-                                oldRecord.runtimeMillis + mSampleWindowMs);
+                        mInSample[row] = false;
                     }
-                }
-
-                if (newStats != null) {
-                    newSample.put(uid, newStats);
-                    newTotal.append(uid, new IoStatsEntry(newRecord, newStats.runtimeMillis));
                 } else {
-                    // if oldRecord were null, newStats would be != null and we wouldn't be here
-                    newTotal.append(uid, oldRecord);
+                    // but if new I/O happened, assume something was running for the entire
+                    // sample window and compute the delta
+                    for (int field = 0; field < FIELD_COUNT; field++) {
+                        long value = newMetrics.get(i, field);
+                        int index = row * FIELD_COUNT + field;
+                        mSampleDeltas[index] = value - mTotals[index];
+                        mTotals[index] = value;
+                    }
+                    mRuntimesMillis[row] += mSampleWindowMs;
+                    mInSample[row] = true;
                 }
-            });
-
-            // now update the stored values
-            mCurrentSample = newSample;
-            mTotal = newTotal;
+                mLastSeen[row] = mUpdateCount;
+            }
+            removeUnseenRowsLocked();
         }
     }
 
@@ -128,7 +173,11 @@ public class IoStatsTracker {
      */
     public SparseArray<IoStatsEntry> getTotal() {
         synchronized (mLock) {
-            return mTotal.clone();
+            SparseArray<IoStatsEntry> total = new SparseArray<>(mSize);
+            for (int row = 0; row < mSize; row++) {
+                total.put(mUids[row], createEntryLocked(row, mTotals));
+            }
+            return total;
         }
     }
 
@@ -137,7 +186,118 @@ public class IoStatsTracker {
      */
     public SparseArray<IoStatsEntry> getCurrentSample() {
         synchronized (mLock) {
-            return mCurrentSample.clone();
+            SparseArray<IoStatsEntry> sample = new SparseArray<>();
+            for (int row = 0; row < mSize; row++) {
+                if (mInSample[row]) {
+                    sample.put(mUids[row], createEntryLocked(row, mSampleDeltas));
+                }
+            }
+            return sample;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private int addRowLocked(int uid) {
+        if (mSize == mUids.length) {
+            int capacity = mSize * 2;
+            mUids = Arrays.copyOf(mUids, capacity);
+            mTotals = Arrays.copyOf(mTotals, capacity * FIELD_COUNT);
+            mRuntimesMillis = Arrays.copyOf(mRuntimesMillis, capacity);
+            mSampleDeltas = Arrays.copyOf(mSampleDeltas, capacity * FIELD_COUNT);
+            mInSample = Arrays.copyOf(mInSample, capacity);
+            mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+        }
+        int row = mSize++;
+        mUids[row] = uid;
+        mRows.put(uid, row);
+        return row;
+    }
+
+    /**
+     * Drops the user ids that were not reported by the last update.
+     */
+    @GuardedBy("mLock")
+    private void removeUnseenRowsLocked() {
+        int size = 0;
+        for (int row = 0; row < mSize; row++) {
+            if (mLastSeen[row] != mUpdateCount) {
+                continue;
+            }
+            if (row != size) {
+                mUids[size] = mUids[row];
+                System.arraycopy(mTotals, row * FIELD_COUNT, mTotals, size * FIELD_COUNT,
+                        FIELD_COUNT);
+                mRuntimesMillis[size] = mRuntimesMillis[row];
+                System.arraycopy(mSampleDeltas, row * FIELD_COUNT, mSampleDeltas,
+                        size * FIELD_COUNT, FIELD_COUNT);
+                mInSample[size] = mInSample[row];
+                mLastSeen[size] = mLastSeen[row];
+            }
+            size++;
         }
+        if (size == mSize) {
+            return;
+        }
+        mSize = size;
+        mRows.clear();
+        for (int row = 0; row < mSize; row++) {
+            mRows.put(mUids[row], row);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private boolean representsSameMetricsLocked(int row, UidIoStatsTable newMetrics, int index) {
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            if (mTotals[row * FIELD_COUNT + field] != newMetrics.get(index, field)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @GuardedBy("mLock")
+    private boolean isRunningLocked(int uid) {
+        if (!mRunningUidsLoaded) {
+            mRunningUids.clear();
+            List<ProcessInfo> processes = mSystemStateInterface.getRunningProcesses();
+            for (int i = 0; i < processes.size(); i++) {
+                mRunningUids.put(processes.get(i).uid, true);
+            }
+            mRunningUidsLoaded = true;
+        }
+        return mRunningUids.get(uid);
+    }
+
+    @GuardedBy("mLock")
+    private void setTotalsLocked(int row, IoStatsEntry entry) {
+        int offset = row * FIELD_COUNT;
+        mTotals[offset + FIELD_FOREGROUND_RCHAR] = entry.foreground.bytesRead;
+        mTotals[offset + FIELD_FOREGROUND_WCHAR] = entry.foreground.bytesWritten;
+        mTotals[offset + FIELD_FOREGROUND_READ_BYTES] = entry.foreground.bytesReadFromStorage;
+        mTotals[offset + FIELD_FOREGROUND_WRITE_BYTES] = entry.foreground.bytesWrittenToStorage;
+        mTotals[offset + FIELD_FOREGROUND_FSYNC] = entry.foreground.fsyncCalls;
+        mTotals[offset + FIELD_BACKGROUND_RCHAR] = entry.background.bytesRead;
+        mTotals[offset + FIELD_BACKGROUND_WCHAR] = entry.background.bytesWritten;
+        mTotals[offset + FIELD_BACKGROUND_READ_BYTES] = entry.background.bytesReadFromStorage;
+        mTotals[offset + FIELD_BACKGROUND_WRITE_BYTES] = entry.background.bytesWrittenToStorage;
+        mTotals[offset + FIELD_BACKGROUND_FSYNC] = entry.background.fsyncCalls;
+    }
+
+    @GuardedBy("mLock")
+    private IoStatsEntry createEntryLocked(int row, long[] counters) {
+        int offset = row * FIELD_COUNT;
+        return new IoStatsEntry(mUids[row], mRuntimesMillis[row],
+                new IoStatsEntry.Metrics(
+                        counters[offset + FIELD_FOREGROUND_RCHAR],
+                        counters[offset + FIELD_FOREGROUND_WCHAR],
+                        counters[offset + FIELD_FOREGROUND_READ_BYTES],
+                        counters[offset + FIELD_FOREGROUND_WRITE_BYTES],
+                        counters[offset + FIELD_FOREGROUND_FSYNC]),
+                new IoStatsEntry.Metrics(
+                        counters[offset + FIELD_BACKGROUND_RCHAR],
+                        counters[offset + FIELD_BACKGROUND_WCHAR],
+                        counters[offset + FIELD_BACKGROUND_READ_BYTES],
+                        counters[offset + FIELD_BACKGROUND_WRITE_BYTES],
+                        counters[offset + FIELD_BACKGROUND_FSYNC]));
     }
 }
@@ -20,25 +20,49 @@ import android.car.storagemonitoring.UidIoRecord;
 import android.util.Log;
 import android.util.SparseArray;
 import com.android.car.CarLog;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
 import java.nio.file.Path;
-import java.util.List;
 import java.util.Objects;
-import java.util.StringTokenizer;
 
 /**
  * Loads I/O stats from procfs
  *
  * The Android kernel can be configured to provide uid I/O stats in /proc/uid_io/stats.
+ *
+ * The file is read through a reused buffer and numbers are parsed in place, so that periodic
+ * sampling into a {@link UidIoStatsTable} does not create objects for every user id.
  */
 public class ProcfsUidIoStatsProvider implements UidIoStatsProvider {
     private static Path DEFAULT_STATS_FILE = new File("/proc/uid_io/stats").toPath();
 
+    private static final int BUFFER_SIZE = 4096;
+    private static final int COLUMN_COUNT = 11;
+    // Table field of each counter column, in the order of /proc/uid_io/stats (the first column is
+    // the uid)
+    private static final int[] COLUMN_FIELDS = {
+            UidIoStatsTable.FIELD_FOREGROUND_RCHAR,
+            UidIoStatsTable.FIELD_FOREGROUND_WCHAR,
+            UidIoStatsTable.FIELD_FOREGROUND_READ_BYTES,
+            UidIoStatsTable.FIELD_FOREGROUND_WRITE_BYTES,
+            UidIoStatsTable.FIELD_BACKGROUND_RCHAR,
+            UidIoStatsTable.FIELD_BACKGROUND_WCHAR,
+            UidIoStatsTable.FIELD_BACKGROUND_READ_BYTES,
+            UidIoStatsTable.FIELD_BACKGROUND_WRITE_BYTES,
+            UidIoStatsTable.FIELD_FOREGROUND_FSYNC,
+            UidIoStatsTable.FIELD_BACKGROUND_FSYNC,
+    };
+
     private final Path mStatsFile;
 
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
     public ProcfsUidIoStatsProvider() {
         this(DEFAULT_STATS_FILE);
     }
@@ -51,55 +75,112 @@ public class ProcfsUidIoStatsProvider implements UidIoStatsProvider {
     @Nullable
     @Override
     public SparseArray<UidIoRecord> load() {
-        List<String> lines;
-        SparseArray<UidIoRecord> result = new SparseArray<>();
-        try {
-            lines = Files.readAllLines(mStatsFile);
-        } catch (IOException e) {
-            Log.w(CarLog.TAG_STORAGE, "can't read I/O stats from " + mStatsFile, e);
-            return null;
-        }
+        UidIoStatsTable stats = new UidIoStatsTable();
+        return load(stats) ? stats.toRecords() : null;
+    }
 
-        for (String line : lines) {
-            StringTokenizer tokenizer = new StringTokenizer(line);
-            if (tokenizer.countTokens() != 11) {
-                Log.w(CarLog.TAG_STORAGE, "malformed I/O stats entry: " + line);
-                return null;
+    @Override
+    public boolean load(UidIoStatsTable stats) {
+        stats.clear();
+        synchronized (mLock) {
+            try (InputStream in = new FileInputStream(mStatsFile.toFile())) {
+                if (parse(in, stats)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.w(CarLog.TAG_STORAGE, "can't read I/O stats from " + mStatsFile, e);
             }
+        }
+        stats.clear();
+        return false;
+    }
 
-            try {
-                int uid = Integer.valueOf(tokenizer.nextToken());
-                long foreground_rchar = Long.valueOf(tokenizer.nextToken());
-                long foreground_wchar = Long.valueOf(tokenizer.nextToken());
-                long foreground_read_bytes = Long.valueOf(tokenizer.nextToken());
-                long foreground_write_bytes = Long.valueOf(tokenizer.nextToken());
-                long background_rchar = Long.valueOf(tokenizer.nextToken());
-                long background_wchar = Long.valueOf(tokenizer.nextToken());
-                long background_read_bytes = Long.valueOf(tokenizer.nextToken());
-                long background_write_bytes = Long.valueOf(tokenizer.nextToken());
-                long foreground_fsync = Long.valueOf(tokenizer.nextToken());
-                long background_fsync = Long.valueOf(tokenizer.nextToken());
-
-                result.append(uid, new UidIoRecord(uid,
-                            foreground_rchar,
-                            foreground_wchar,
-                            foreground_read_bytes,
-                            foreground_write_bytes,
-                            foreground_fsync,
-                            background_rchar,
-                            background_wchar,
-                            background_read_bytes,
-                            background_write_bytes,
-                            background_fsync));
+    /**
+     * Parses lines of 11 decimal numbers separated by whitespace into {@code stats}.
+     *
+     * @return {@code false} if an entry is malformed
+     */
+    @GuardedBy("mLock")
+    private boolean parse(InputStream in, UidIoStatsTable stats) throws IOException {
+        int line = 1;
+        int row = -1;
+        int column = 0;
+        long value = 0;
+        boolean inNumber = false;
+        boolean negative = false;
+        int count;
+        while ((count = in.read(mBuffer)) > 0) {
+            for (int i = 0; i < count; i++) {
+                byte c = mBuffer[i];
+                if (c >= '0' && c <= '9') {
+                    if (!inNumber) {
+                        inNumber = true;
+                        value = 0;
+                    }
+                    if (value > (Long.MAX_VALUE - (c - '0')) / 10) {
+                        return malformed(line);
+                    }
+                    value = value * 10 + (c - '0');
+                } else if (c == '-' && !inNumber && !negative) {
+                    negative = true;
+                } else if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                    if (inNumber) {
+                        row = endNumber(stats, row, column++, negative ? -value : value);
+                        if (row == -1) {
+                            return malformed(line);
+                        }
+                        inNumber = false;
+                        negative = false;
+                    } else if (negative) {
+                        return malformed(line);
+                    }
+                    if (c == '\n') {
+                        if (column != COLUMN_COUNT) {
+                            return malformed(line);
+                        }
+                        line++;
+                        row = -1;
+                        column = 0;
+                    }
+                } else {
+                    return malformed(line);
+                }
+            }
+        }
+        if (inNumber) {
+            row = endNumber(stats, row, column++, negative ? -value : value);
+            if (row == -1) {
+                return malformed(line);
+            }
+        } else if (negative) {
+            return malformed(line);
+        }
+        // The last line may lack a newline
+        return column == 0 || column == COLUMN_COUNT || malformed(line);
+    }
 
-            } catch (NumberFormatException e) {
-                Log.w(CarLog.TAG_STORAGE, "malformed I/O stats entry: " + line, e);
-                return null;
+    /**
+     * Stores the number parsed at {@code column} of the current line.
+     *
+     * @return Row of the current line, or -1 if the number does not belong there
+     */
+    private static int endNumber(UidIoStatsTable stats, int row, int column, long value) {
+        if (column == 0) {
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                return -1;
             }
+            return stats.addRow((int) value);
         }
+        if (column >= COLUMN_COUNT) {
+            return -1;
+        }
+        stats.set(row, COLUMN_FIELDS[column - 1], value);
+        return row;
+    }
 
-        return result;
+    private boolean malformed(int line) {
+        Log.w(CarLog.TAG_STORAGE, "malformed I/O stats entry at line " + line + " of "
+                + mStatsFile);
+        return false;
     }
 }
-
-
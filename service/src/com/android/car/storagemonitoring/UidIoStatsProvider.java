@@ -22,4 +22,24 @@ import android.util.SparseArray;
 public interface UidIoStatsProvider {
     @Nullable
     SparseArray<UidIoRecord> load();
+
+    /**
+     * Loads the current stats into {@code stats}, replacing its contents.
+     *
+     * <p>Providers that sample frequently should override this to fill the table without
+     * creating a {@link UidIoRecord} for every user id.
+     *
+     * @return {@code false} if the stats could not be loaded, in which case {@code stats} is empty
+     */
+    default boolean load(UidIoStatsTable stats) {
+        stats.clear();
+        SparseArray<UidIoRecord> records = load();
+        if (records == null) {
+            return false;
+        }
+        for (int i = 0; i < records.size(); i++) {
+            stats.addRecord(records.valueAt(i));
+        }
+        return true;
+    }
 }
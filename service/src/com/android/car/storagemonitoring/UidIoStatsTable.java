@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.storagemonitoring;
+
+import android.car.storagemonitoring.UidIoRecord;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+
+/**
+ * Reusable table of uid I/O counters, one row per user id, stored in primitive arrays so that
+ * the stats can be sampled periodically without creating objects for every user id.
+ *
+ * <p>Counters are indexed by the {@code FIELD_*} constants, in the order of the
+ * {@link UidIoRecord} constructor.
+ *
+ * <p>This class is not thread safe.
+ */
+public final class UidIoStatsTable {
+    public static final int FIELD_FOREGROUND_RCHAR = 0;
+    public static final int FIELD_FOREGROUND_WCHAR = 1;
+    public static final int FIELD_FOREGROUND_READ_BYTES = 2;
+    public static final int FIELD_FOREGROUND_WRITE_BYTES = 3;
+    public static final int FIELD_FOREGROUND_FSYNC = 4;
+    public static final int FIELD_BACKGROUND_RCHAR = 5;
+    public static final int FIELD_BACKGROUND_WCHAR = 6;
+    public static final int FIELD_BACKGROUND_READ_BYTES = 7;
+    public static final int FIELD_BACKGROUND_WRITE_BYTES = 8;
+    public static final int FIELD_BACKGROUND_FSYNC = 9;
+    public static final int FIELD_COUNT = 10;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] mUids = new int[INITIAL_CAPACITY];
+    private long[] mCounters = new long[INITIAL_CAPACITY * FIELD_COUNT];
+    private int mSize;
+
+    /**
+     * Returns the number of rows.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes all rows, keeping the allocated storage.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Appends a row for {@code uid} with all counters set to zero.
+     *
+     * @return Index of the new row
+     */
+    public int addRow(int uid) {
+        if (mSize == mUids.length) {
+            mUids = Arrays.copyOf(mUids, mSize * 2);
+            mCounters = Arrays.copyOf(mCounters, mSize * 2 * FIELD_COUNT);
+        }
+        int row = mSize++;
+        mUids[row] = uid;
+        Arrays.fill(mCounters, row * FIELD_COUNT, (row + 1) * FIELD_COUNT, 0);
+        return row;
+    }
+
+    /**
+     * Appends a row holding the counters of {@code record}.
+     */
+    public void addRecord(UidIoRecord record) {
+        int row = addRow(record.uid);
+        set(row, FIELD_FOREGROUND_RCHAR, record.foreground_rchar);
+        set(row, FIELD_FOREGROUND_WCHAR, record.foreground_wchar);
+        set(row, FIELD_FOREGROUND_READ_BYTES, record.foreground_read_bytes);
+        set(row, FIELD_FOREGROUND_WRITE_BYTES, record.foreground_write_bytes);
+        set(row, FIELD_FOREGROUND_FSYNC, record.foreground_fsync);
+        set(row, FIELD_BACKGROUND_RCHAR, record.background_rchar);
+        set(row, FIELD_BACKGROUND_WCHAR, record.background_wchar);
+        set(row, FIELD_BACKGROUND_READ_BYTES, record.background_read_bytes);
+        set(row, FIELD_BACKGROUND_WRITE_BYTES, record.background_write_bytes);
+        set(row, FIELD_BACKGROUND_FSYNC, record.background_fsync);
+    }
+
+    public int getUid(int row) {
+        return mUids[row];
+    }
+
+    public long get(int row, int field) {
+        return mCounters[row * FIELD_COUNT + field];
+    }
+
+    public void set(int row, int field, long value) {
+        mCounters[row * FIELD_COUNT + field] = value;
+    }
+
+    /**
+     * Returns the counters of a row as a {@link UidIoRecord}.
+     */
+    public UidIoRecord getRecord(int row) {
+        return new UidIoRecord(mUids[row],
+                get(row, FIELD_FOREGROUND_RCHAR),
+                get(row, FIELD_FOREGROUND_WCHAR),
+                get(row, FIELD_FOREGROUND_READ_BYTES),
+                get(row, FIELD_FOREGROUND_WRITE_BYTES),
+                get(row, FIELD_FOREGROUND_FSYNC),
+                get(row, FIELD_BACKGROUND_RCHAR),
+                get(row, FIELD_BACKGROUND_WCHAR),
+                get(row, FIELD_BACKGROUND_READ_BYTES),
+                get(row, FIELD_BACKGROUND_WRITE_BYTES),
+                get(row, FIELD_BACKGROUND_FSYNC));
+    }
+
+    /**
+     * Returns all rows as {@link UidIoRecord}s keyed by user id.
+     */
+    public SparseArray<UidIoRecord> toRecords() {
+        SparseArray<UidIoRecord> records = new SparseArray<>(mSize);
+        for (int row = 0; row < mSize; row++) {
+            records.put(mUids[row], getRecord(row));
+        }
+        return records;
+    }
+}
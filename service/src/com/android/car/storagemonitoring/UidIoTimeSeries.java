@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.storagemonitoring;
+
+import android.car.storagemonitoring.IoStatsEntry;
+import android.car.storagemonitoring.UidIoRate;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed-memory history of the bytes written to storage by each user id.
+ *
+ * <p>History is kept in tiers of increasing bucket length, e.g. one bucket per I/O sample for the
+ * last hour and one bucket per hour for the last day. Each tier is a ring of buckets stored in a
+ * single primitive array, with one row of buckets per tracked user id; every sample is added to
+ * the current bucket of all tiers, so coarser tiers are rolled up as samples arrive. Queries use
+ * the finest tier that covers the requested window.
+ *
+ * <p>At most {@code maxUids} user ids are tracked. When a new user id shows up and the table is
+ * full, the user id that wrote the least over the longest tier is evicted.
+ *
+ * <p>This class is not thread safe.
+ */
+public final class UidIoTimeSeries {
+    private final int mMaxUids;
+    private final long mSamplePeriodMs;
+    // per tier
+    private final int[] mSamplesPerBucket;
+    private final int[] mBucketCounts;
+    private final long[][] mBuckets;
+
+    // Row of each uid in the tiers
+    private final SparseIntArray mRows = new SparseIntArray();
+    private final int[] mRowUids;
+    private int mRowCount;
+    private long mSampleCount;
+    // Scratch space for queries, one entry per row
+    private final long[] mRowTotals;
+
+    /**
+     * @param maxUids          Maximum number of user ids tracked
+     * @param samplePeriodMs   Time between two samples
+     * @param samplesPerBucket Length of a bucket in each tier, in samples, in increasing order
+     * @param bucketCounts     Number of buckets of each tier
+     */
+    public UidIoTimeSeries(int maxUids, long samplePeriodMs, int[] samplesPerBucket,
+            int[] bucketCounts) {
+        if (maxUids <= 0 || samplePeriodMs <= 0 || samplesPerBucket.length == 0
+                || samplesPerBucket.length != bucketCounts.length) {
+            throw new IllegalArgumentException("Invalid time series configuration");
+        }
+        mMaxUids = maxUids;
+        mSamplePeriodMs = samplePeriodMs;
+        mSamplesPerBucket = samplesPerBucket.clone();
+        mBucketCounts = bucketCounts.clone();
+        mBuckets = new long[samplesPerBucket.length][];
+        for (int tier = 0; tier < mBuckets.length; tier++) {
+            if (samplesPerBucket[tier] <= 0 || bucketCounts[tier] <= 0) {
+                throw new IllegalArgumentException("Invalid time series tier " + tier);
+            }
+            mBuckets[tier] = new long[maxUids * bucketCounts[tier]];
+        }
+        mRowUids = new int[maxUids];
+        mRowTotals = new long[maxUids];
+    }
+
+    /**
+     * Records the I/O of one sample period.
+     *
+     * @param sample I/O deltas of the user ids that did any I/O during the period
+     */
+    public void addSample(SparseArray<IoStatsEntry> sample) {
+        long sampleIndex = mSampleCount++;
+        for (int tier = 0; tier < mBuckets.length; tier++) {
+            if (sampleIndex % mSamplesPerBucket[tier] == 0) {
+                // Entering a new bucket, which still holds the oldest data of the ring
+                int bucket = getBucket(tier, sampleIndex);
+                int bucketCount = mBucketCounts[tier];
+                for (int row = 0; row < mRowCount; row++) {
+                    mBuckets[tier][row * bucketCount + bucket] = 0;
+                }
+            }
+        }
+        for (int i = 0; i < sample.size(); i++) {
+            IoStatsEntry entry = sample.valueAt(i);
+            long bytesWritten = entry.foreground.bytesWrittenToStorage
+                    + entry.background.bytesWrittenToStorage;
+            if (bytesWritten <= 0) {
+                continue;
+            }
+            int row = getOrAddRow(entry.uid);
+            for (int tier = 0; tier < mBuckets.length; tier++) {
+                mBuckets[tier][row * mBucketCounts[tier] + getBucket(tier, sampleIndex)] +=
+                        bytesWritten;
+            }
+        }
+    }
+
+    /**
+     * Returns up to {@code maxCount} user ids that wrote the most over the last
+     * {@code windowMillis}, biggest writer first.
+     */
+    public List<UidIoRate> getTopWriters(long windowMillis, int maxCount) {
+        List<UidIoRate> writers = new ArrayList<>();
+        if (maxCount <= 0 || mSampleCount == 0) {
+            return writers;
+        }
+        long coveredMillis = sumWindow(windowMillis);
+        // Selection of the top rows, clearing each one once picked; maxCount is expected to be
+        // small compared to the number of rows.
+        while (writers.size() < maxCount) {
+            int top = -1;
+            for (int row = 0; row < mRowCount; row++) {
+                if (mRowTotals[row] > 0 && (top < 0 || mRowTotals[row] > mRowTotals[top])) {
+                    top = row;
+                }
+            }
+            if (top < 0) {
+                break;
+            }
+            writers.add(new UidIoRate(mRowUids[top], coveredMillis, mRowTotals[top]));
+            mRowTotals[top] = 0;
+        }
+        return writers;
+    }
+
+    /**
+     * Returns the amount written by {@code uid} over the last {@code windowMillis}.
+     */
+    public UidIoRate getRate(int uid, long windowMillis) {
+        if (mSampleCount == 0) {
+            return new UidIoRate(uid, 0, 0);
+        }
+        long coveredMillis = sumWindow(windowMillis);
+        int row = mRows.get(uid, -1);
+        return new UidIoRate(uid, coveredMillis, row < 0 ? 0 : mRowTotals[row]);
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.printf("I/O time series: %d samples, %d of %d uids tracked\n",
+                mSampleCount, mRowCount, mMaxUids);
+        for (int tier = 0; tier < mBuckets.length; tier++) {
+            writer.printf("  tier %d: %d buckets of %d ms\n", tier, mBucketCounts[tier],
+                    mSamplesPerBucket[tier] * mSamplePeriodMs);
+        }
+    }
+
+    /**
+     * Sums the buckets of each row covering at least {@code windowMillis}, if that much history
+     * is available, into {@link #mRowTotals}.
+     *
+     * @return Length of the history summed, in milliseconds
+     */
+    private long sumWindow(long windowMillis) {
+        long windowSamples = Math.max(1, (windowMillis + mSamplePeriodMs - 1) / mSamplePeriodMs);
+        int tier = 0;
+        while (tier < mBuckets.length - 1
+                && (long) mSamplesPerBucket[tier] * mBucketCounts[tier] < windowSamples) {
+            tier++;
+        }
+        int samplesPerBucket = mSamplesPerBucket[tier];
+        int bucketCount = mBucketCounts[tier];
+        long lastSample = mSampleCount - 1;
+        long currentBucket = lastSample / samplesPerBucket;
+
+        // The current bucket is only partially filled
+        long coveredSamples = lastSample % samplesPerBucket + 1;
+        int buckets = 1;
+        while (coveredSamples < windowSamples && buckets < bucketCount
+                && buckets <= currentBucket) {
+            coveredSamples += samplesPerBucket;
+            buckets++;
+        }
+
+        Arrays.fill(mRowTotals, 0);
+        long[] tierBuckets = mBuckets[tier];
+        for (int row = 0; row < mRowCount; row++) {
+            long total = 0;
+            for (int i = 0; i < buckets; i++) {
+                total += tierBuckets[row * bucketCount
+                        + (int) ((currentBucket - i) % bucketCount)];
+            }
+            mRowTotals[row] = total;
+        }
+        return coveredSamples * mSamplePeriodMs;
+    }
+
+    private int getOrAddRow(int uid) {
+        int row = mRows.get(uid, -1);
+        if (row >= 0) {
+            return row;
+        }
+        if (mRowCount < mMaxUids) {
+            row = mRowCount++;
+        } else {
+            row = findSmallestWriterRow();
+            mRows.delete(mRowUids[row]);
+            for (int tier = 0; tier < mBuckets.length; tier++) {
+                int bucketCount = mBucketCounts[tier];
+                Arrays.fill(mBuckets[tier], row * bucketCount, (row + 1) * bucketCount, 0);
+            }
+        }
+        mRowUids[row] = uid;
+        mRows.put(uid, row);
+        return row;
+    }
+
+    private int findSmallestWriterRow() {
+        int tier = mBuckets.length - 1;
+        int bucketCount = mBucketCounts[tier];
+        int smallest = 0;
+        long smallestTotal = Long.MAX_VALUE;
+        for (int row = 0; row < mRowCount; row++) {
+            long total = 0;
+            for (int i = 0; i < bucketCount; i++) {
+                total += mBuckets[tier][row * bucketCount + i];
+            }
+            if (total < smallestTotal) {
+                smallest = row;
+                smallestTotal = total;
+            }
+        }
+        return smallest;
+    }
+
+    private int getBucket(int tier, long sampleIndex) {
+        return (int) ((sampleIndex / mSamplesPerBucket[tier]) % mBucketCounts[tier]);
+    }
+}
@@ -20,6 +20,8 @@ import android.annotation.NonNull;
 import android.car.storagemonitoring.WearEstimate;
 import android.car.storagemonitoring.WearEstimateChange;
 import android.util.JsonWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.Objects;
@@ -66,6 +68,31 @@ public class WearEstimateRecord {
         jsonWriter.endObject();
     }
 
+    /**
+     * Reads a record written by {@link #writeToStream(DataOutputStream)}.
+     */
+    public static WearEstimateRecord readFromStream(@NonNull DataInputStream in)
+            throws IOException {
+        WearEstimate oldWearEstimate = new WearEstimate(in.readInt(), in.readInt());
+        WearEstimate newWearEstimate = new WearEstimate(in.readInt(), in.readInt());
+        long totalCarServiceUptime = in.readLong();
+        Instant unixTimestamp = Instant.ofEpochMilli(in.readLong());
+        return new WearEstimateRecord(oldWearEstimate, newWearEstimate, totalCarServiceUptime,
+                unixTimestamp);
+    }
+
+    /**
+     * Writes this record in the compact binary form used for on-disk storage.
+     */
+    public void writeToStream(@NonNull DataOutputStream out) throws IOException {
+        out.writeInt(mOldWearEstimate.typeA);
+        out.writeInt(mOldWearEstimate.typeB);
+        out.writeInt(mNewWearEstimate.typeA);
+        out.writeInt(mNewWearEstimate.typeB);
+        out.writeLong(mTotalCarServiceUptime);
+        out.writeLong(mUnixTimestamp.toEpochMilli());
+    }
+
     public WearEstimate getOldWearEstimate() {
         return mOldWearEstimate;
     }
@@ -98,6 +98,13 @@ public class WearHistory {
         return get(size() - 1);
     }
 
+    /**
+     * Returns the records of this history, sorted by uptime.
+     */
+    public List<WearEstimateRecord> getRecords() {
+        return Collections.unmodifiableList(mWearHistory);
+    }
+
     public List<WearEstimateChange> toWearEstimateChanges(
             long acceptableHoursPerOnePercentFlashWear) {
         // current technology allows us to detect wear in 10% increments
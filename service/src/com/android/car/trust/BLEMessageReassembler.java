@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.trust;
+
+import android.annotation.NonNull;
+import android.util.Log;
+
+import com.android.car.BLEStreamProtos.BLEMessageProto.BLEMessage;
+import com.android.car.protobuf.ByteString;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reassembles the payload of a message sent with version 2 of the messaging protocol, whose
+ * packets may arrive out of order or more than once.
+ *
+ * <p>All packets of a message but the last one carry the same amount of payload, so each packet
+ * is copied straight to its place in a buffer sized from the packet count in its header. The
+ * buffer is kept for the following messages. A last packet that arrives before the size of the
+ * other packets is known is held until it can be placed.
+ */
+class BLEMessageReassembler {
+    private static final String TAG = "BLEMessageReassembler";
+
+    /** Upper bound on the packet count of a message, to bound the reassembly buffer. */
+    @VisibleForTesting
+    static final int MAX_PACKETS = 4096;
+
+    private byte[] mBuffer = new byte[0];
+    private boolean[] mReceived = new boolean[0];
+
+    private boolean mInProgress;
+    private int mMessageId;
+    private int mTotalPackets;
+    private int mReceivedCount;
+    // Payload size of every packet but the last one, or 0 if not known yet
+    private int mChunkSize;
+    // Last packet, held until mChunkSize is known
+    private ByteString mLastPayload;
+    private int mLength;
+
+    private boolean mHasCompletedMessage;
+    private int mCompletedMessageId;
+
+    /**
+     * Clears this reassembler, dropping any partially received message.
+     */
+    public void reset() {
+        mInProgress = false;
+        mReceivedCount = 0;
+        mChunkSize = 0;
+        mLastPayload = null;
+        mLength = 0;
+        mHasCompletedMessage = false;
+    }
+
+    /**
+     * Places the payload of the given packet in the message being reassembled.
+     *
+     * <p>A packet of a different message than the one in progress starts a new message, unless
+     * it belongs to the message that was last completed, in which case it is a retransmission.
+     *
+     * @param message The {@link BLEMessage} to place.
+     * @return {@code false} if the packet was already received.
+     * @throws IOException if the packet has no message id or is inconsistent with the others of
+     *         its message.
+     */
+    public boolean write(@NonNull BLEMessage message) throws IOException {
+        int messageId = message.getMessageId();
+        int totalPackets = message.getTotalPackets();
+        int packetNumber = message.getPacketNumber();
+        if (totalPackets < 1 || totalPackets > MAX_PACKETS) {
+            throw new IOException("Invalid packet count: " + totalPackets);
+        }
+        if (packetNumber < 1 || packetNumber > totalPackets) {
+            throw new IOException("Invalid packet number " + packetNumber + " of " + totalPackets);
+        }
+        // Messages are told apart by their id, so an unset one would make every message after
+        // the first look like a retransmission
+        if (messageId == 0) {
+            throw new IOException("Missing message id");
+        }
+
+        if (!mInProgress || messageId != mMessageId) {
+            if (mHasCompletedMessage && messageId == mCompletedMessageId) {
+                return false;
+            }
+            if (mInProgress) {
+                Log.w(TAG, "Dropping incomplete message " + mMessageId + " for message "
+                        + messageId);
+            }
+            start(messageId, totalPackets);
+        } else if (totalPackets != mTotalPackets) {
+            throw new IOException("Packet count changed from " + mTotalPackets + " to "
+                    + totalPackets + " within message " + messageId);
+        }
+
+        int index = packetNumber - 1;
+        if (mReceived[index]) {
+            return false;
+        }
+
+        ByteString payload = message.getPayload();
+        if (packetNumber < totalPackets) {
+            if (payload.isEmpty()) {
+                throw new IOException("Empty packet " + packetNumber + " of " + totalPackets);
+            }
+            if (mChunkSize == 0) {
+                setChunkSize(payload.size());
+            } else if (payload.size() != mChunkSize) {
+                throw new IOException("Packet " + packetNumber + " has " + payload.size()
+                        + " bytes, expected " + mChunkSize);
+            }
+            payload.copyTo(mBuffer, index * mChunkSize);
+        } else if (totalPackets == 1) {
+            ensureCapacity(payload.size());
+            payload.copyTo(mBuffer, 0);
+            mLength = payload.size();
+        } else if (mChunkSize == 0) {
+            mLastPayload = payload;
+        } else {
+            placeLastPayload(payload);
+        }
+
+        mReceived[index] = true;
+        mReceivedCount++;
+        if (mReceivedCount == mTotalPackets) {
+            mInProgress = false;
+            mHasCompletedMessage = true;
+            mCompletedMessageId = mMessageId;
+        }
+        return true;
+    }
+
+    /**
+     * Returns {@code true} if all the packets of the last written message have been received.
+     */
+    public boolean isComplete() {
+        return mHasCompletedMessage && !mInProgress && mReceivedCount == mTotalPackets;
+    }
+
+    /**
+     * Returns the reassembled payload of the last completed message.
+     */
+    @NonNull
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mLength);
+    }
+
+    private void start(int messageId, int totalPackets) {
+        mInProgress = true;
+        mMessageId = messageId;
+        mTotalPackets = totalPackets;
+        mReceivedCount = 0;
+        mChunkSize = 0;
+        mLastPayload = null;
+        mLength = 0;
+        if (mReceived.length < totalPackets) {
+            mReceived = new boolean[totalPackets];
+        } else {
+            Arrays.fill(mReceived, 0, totalPackets, false);
+        }
+    }
+
+    private void setChunkSize(int chunkSize) throws IOException {
+        mChunkSize = chunkSize;
+        ensureCapacity(mTotalPackets * chunkSize);
+        mLength = (mTotalPackets - 1) * chunkSize;
+        if (mLastPayload != null) {
+            placeLastPayload(mLastPayload);
+            mLastPayload = null;
+        }
+    }
+
+    private void placeLastPayload(ByteString payload) throws IOException {
+        if (payload.size() > mChunkSize) {
+            throw new IOException("Last packet has " + payload.size() + " bytes, more than the "
+                    + mChunkSize + " of the others");
+        }
+        payload.copyTo(mBuffer, (mTotalPackets - 1) * mChunkSize);
+        mLength = (mTotalPackets - 1) * mChunkSize + payload.size();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mBuffer.length < capacity) {
+            mBuffer = new byte[capacity];
+        }
+    }
+}
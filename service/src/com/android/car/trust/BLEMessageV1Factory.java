@@ -167,7 +167,6 @@ class BLEMessageV1Factory {
      * Returns the header size for the proto in bytes. This method assumes that the proto
      * contain a payload.
      */
-    @VisibleForTesting
     static int getProtoHeaderSize(OperationType operation, int payloadSize,
             boolean isPayloadEncrypted) {
         int isPayloadEncryptedFieldSize = isPayloadEncrypted
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.trust;
+
+import com.android.car.BLEStreamProtos.BLEMessageProto.BLEMessage;
+import com.android.car.BLEStreamProtos.BLEOperationProto.OperationType;
+import com.android.car.protobuf.ByteString;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Methods for creating {@link BLEMessage} protos for version 2 of the messaging protocol.
+ *
+ * <p>Version 2 packets carry the same header as version 1 plus a {@code message_id}, which lets
+ * several packets of a message be in flight at once and be acknowledged individually.
+ */
+class BLEMessageV2Factory {
+    /**
+     * Current version of the proto.
+     */
+    @VisibleForTesting
+    static final int PROTOCOL_VERSION = 2;
+
+    /**
+     * The size of the {@code message_id} field: a {@code fixed32} and 1 byte for the field number.
+     */
+    private static final int MESSAGE_ID_FIELD_SIZE = 4 + 1;
+
+    private BLEMessageV2Factory() {}
+
+    /**
+     * Creates an acknowledgement {@link BLEMessage} for a single packet of a message.
+     *
+     * @param messageId    The id of the message the acknowledged packet belongs to.
+     * @param packetNumber The number of the acknowledged packet, starting at 1.
+     * @param totalPackets The number of packets in the message.
+     * @return A {@code BLEMessage} with an {@code OperationType} of {@link OperationType.ACK}.
+     */
+    static BLEMessage makeAcknowledgementMessage(int messageId, int packetNumber,
+            int totalPackets) {
+        return BLEMessage.newBuilder()
+                .setVersion(PROTOCOL_VERSION)
+                .setOperation(OperationType.ACK)
+                .setMessageId(messageId)
+                .setPacketNumber(packetNumber)
+                .setTotalPackets(totalPackets)
+                .setIsPayloadEncrypted(false)
+                .build();
+    }
+
+    /**
+     * Split given data if necessary to fit within the given {@code maxSize}.
+     *
+     * <p>Every packet but the last one carries the same amount of payload, so that a receiver can
+     * place each packet in the reassembled message as soon as it arrives.
+     *
+     * @param payload   The payload to potentially split across multiple {@link BLEMessage}s.
+     * @param operation The operation this message represents.
+     * @param maxSize   The maximum size of each packet.
+     * @param messageId The id of the message, shared by all of its packets.
+     * @return The packets of the message, in order.
+     */
+    static List<BLEMessage> makeBLEMessages(byte[] payload, OperationType operation,
+            int maxSize, boolean isPayloadEncrypted, int messageId) {
+        int payloadSize = payload.length;
+        int maxPayloadSize = Math.max(1,
+                maxSize - getProtoHeaderSize(operation, payloadSize, isPayloadEncrypted));
+        int totalPackets = payloadSize <= maxPayloadSize
+                ? 1
+                : (payloadSize + maxPayloadSize - 1) / maxPayloadSize;
+        List<BLEMessage> bleMessages = new ArrayList<>(totalPackets);
+        for (int i = 0; i < totalPackets; i++) {
+            int start = i * maxPayloadSize;
+            int size = Math.min(maxPayloadSize, payloadSize - start);
+            bleMessages.add(BLEMessage.newBuilder()
+                    .setVersion(PROTOCOL_VERSION)
+                    .setOperation(operation)
+                    .setMessageId(messageId)
+                    .setPacketNumber(i + 1)
+                    .setTotalPackets(totalPackets)
+                    .setIsPayloadEncrypted(isPayloadEncrypted)
+                    .setPayload(ByteString.copyFrom(payload, start, size))
+                    .build());
+        }
+        return bleMessages;
+    }
+
+    /**
+     * Returns the header size for the proto in bytes. This method assumes that the proto
+     * contain a payload.
+     */
+    @VisibleForTesting
+    static int getProtoHeaderSize(OperationType operation, int payloadSize,
+            boolean isPayloadEncrypted) {
+        // The version 2 header only adds the message id to the version 1 header; both version
+        // numbers take a single byte to encode.
+        return BLEMessageV1Factory.getProtoHeaderSize(operation, payloadSize, isPayloadEncrypted)
+                + MESSAGE_ID_FIELD_SIZE;
+    }
+}
@@ -32,8 +32,10 @@ import com.android.car.BLEStreamProtos.VersionExchangeProto.BLEVersionExchange;
 class BLEVersionExchangeResolver {
     private static final String TAG = "BLEVersionExchangeResolver";
 
-    // Currently, only version 1 of the messaging and security supported.
-    private static final int MESSAGING_VERSION = 1;
+    // Version 2 of the messaging adds windowed sending of chunked messages; only version 1 of
+    // the security is supported.
+    private static final int MIN_MESSAGING_VERSION = 1;
+    private static final int MAX_MESSAGING_VERSION = 2;
     private static final int SECURITY_VERSION = 1;
 
     /**
@@ -55,16 +57,30 @@ class BLEVersionExchangeResolver {
             @NonNull BluetoothGattCharacteristic writeCharacteristic,
             @NonNull BluetoothGattCharacteristic readCharacteristic) {
         int minMessagingVersion = versionExchange.getMinSupportedMessagingVersion();
+        // Clients that only know version 1 may leave the maximum unset.
+        int maxMessagingVersion = Math.max(minMessagingVersion,
+                versionExchange.getMaxSupportedMessagingVersion());
         int minSecurityVersion = versionExchange.getMinSupportedSecurityVersion();
 
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "Checking for supported version on (minMessagingVersion: "
-                    + minMessagingVersion + ", minSecurityVersion: " + minSecurityVersion + ")");
+                    + minMessagingVersion + ", maxMessagingVersion: " + maxMessagingVersion
+                    + ", minSecurityVersion: " + minSecurityVersion + ")");
         }
 
-        // Only one supported version, so ensure the minimum version matches.
-        if (minMessagingVersion == MESSAGING_VERSION && minSecurityVersion == SECURITY_VERSION) {
-            return new BleMessageStreamV1(
+        // Only one supported security version, so ensure the minimum version matches.
+        if (minSecurityVersion != SECURITY_VERSION) {
+            return null;
+        }
+
+        // Use the highest messaging version supported by both devices.
+        int messagingVersion = Math.min(maxMessagingVersion, MAX_MESSAGING_VERSION);
+        if (messagingVersion < Math.max(minMessagingVersion, MIN_MESSAGING_VERSION)) {
+            return null;
+        }
+
+        if (messagingVersion == 2) {
+            return new BleMessageStreamV2(
                     new Handler(Looper.getMainLooper()),
                     blePeripheralManager,
                     device,
@@ -72,7 +88,12 @@ class BLEVersionExchangeResolver {
                     readCharacteristic);
         }
 
-        return null;
+        return new BleMessageStreamV1(
+                new Handler(Looper.getMainLooper()),
+                blePeripheralManager,
+                device,
+                writeCharacteristic,
+                readCharacteristic);
     }
 
     /**
@@ -82,8 +103,8 @@ class BLEVersionExchangeResolver {
     @NonNull
     static BLEVersionExchange makeVersionExchange() {
         return BLEVersionExchange.newBuilder()
-                .setMinSupportedMessagingVersion(MESSAGING_VERSION)
-                .setMaxSupportedMessagingVersion(MESSAGING_VERSION)
+                .setMinSupportedMessagingVersion(MIN_MESSAGING_VERSION)
+                .setMaxSupportedMessagingVersion(MAX_MESSAGING_VERSION)
                 .setMinSupportedSecurityVersion(SECURITY_VERSION)
                 .setMaxSupportedSecurityVersion(SECURITY_VERSION)
                 .build();
@@ -57,4 +57,10 @@ interface BleMessageStream {
      */
     void writeMessage(@NonNull byte[] message, @NonNull OperationType operationType,
             boolean isPayloadEncrypted);
+
+    /**
+     * Stops this stream from listening to the {@code BlePeripheralManager} and drops its pending
+     * work. The stream must not be used afterwards.
+     */
+    void release();
 }
@@ -78,6 +78,8 @@ class BleMessageStreamV1 implements BleMessageStream {
     private int mMaxWriteSize = 20;
 
     private final List<BleMessageStreamCallback> mCallbacks = new ArrayList<>();
+    private final BlePeripheralManager.OnCharacteristicWriteListener mWriteListener =
+            this::onCharacteristicWrite;
 
     BleMessageStreamV1(@NonNull Handler handler, @NonNull BlePeripheralManager blePeripheralManager,
             @NonNull BluetoothDevice device,
@@ -89,7 +91,13 @@ class BleMessageStreamV1 implements BleMessageStream {
         mWriteCharacteristic = writeCharacteristic;
         mReadCharacteristic = readCharacteristic;
 
-        mBlePeripheralManager.addOnCharacteristicWriteListener(this::onCharacteristicWrite);
+        mBlePeripheralManager.addOnCharacteristicWriteListener(mWriteListener);
+    }
+
+    @Override
+    public void release() {
+        mBlePeripheralManager.removeOnCharacteristicWriteListener(mWriteListener);
+        mHandler.removeCallbacksAndMessages(null);
     }
 
     /** Registers the given callback to be notified of various events within the stream. */
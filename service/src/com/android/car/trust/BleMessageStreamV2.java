@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.trust;
+
+import android.annotation.NonNull;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.car.BLEStreamProtos.BLEMessageProto.BLEMessage;
+import com.android.car.BLEStreamProtos.BLEOperationProto.OperationType;
+import com.android.car.protobuf.InvalidProtocolBufferException;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Version 2 of the message stream.
+ *
+ * <p>Unlike version 1, which waits for the ACK of each packet of a chunked message before sending
+ * the next one, this version keeps up to {@link #WINDOW_SIZE} packets in flight. The remote
+ * device acknowledges every packet it receives, by message id and packet number, and only the
+ * packets that are not acknowledged in time are sent again. The retransmission timeout adapts to
+ * the round-trip times measured on the connection.
+ *
+ * <p>Only one notification is handed to the GATT server at a time: the next packet or ACK is sent
+ * once {@link BlePeripheralManager.OnNotificationSentListener} reports the previous one as sent,
+ * so that a window does not overflow the notification queue of the Bluetooth stack.
+ *
+ * <p>All the state of the stream is only accessed on the given handler; writes from the remote
+ * device, notification callbacks and {@link #writeMessage} calls are posted to it.
+ */
+class BleMessageStreamV2 implements BleMessageStream {
+    private static final String TAG = "BleMessageStreamV2";
+
+    /** The maximum number of packets of a message sent but not yet acknowledged. */
+    @VisibleForTesting
+    static final int WINDOW_SIZE = 8;
+
+    /** The maximum number of times a single packet is sent. */
+    @VisibleForTesting
+    static final int BLE_MESSAGE_RETRY_LIMIT = 5;
+
+    /** The retransmission timeout used before any round trip has been measured. */
+    @VisibleForTesting
+    static final long INITIAL_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+
+    @VisibleForTesting
+    static final long MIN_RETRY_DELAY_MS = 100;
+
+    /** Matches the fixed retry delay of version 1. */
+    @VisibleForTesting
+    static final long MAX_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(2);
+
+    private final Handler mHandler;
+    private final BlePeripheralManager mBlePeripheralManager;
+    private final BluetoothDevice mDevice;
+    private final BluetoothGattCharacteristic mWriteCharacteristic;
+    private final BluetoothGattCharacteristic mReadCharacteristic;
+    private final LongSupplier mClock;
+
+    private final BLEMessageReassembler mReassembler = new BLEMessageReassembler();
+    private final List<BleMessageStreamCallback> mCallbacks = new CopyOnWriteArrayList<>();
+    private final BlePeripheralManager.OnCharacteristicWriteListener mWriteListener =
+            this::onCharacteristicWrite;
+    private final BlePeripheralManager.OnNotificationSentListener mNotificationSentListener =
+            this::onNotificationSent;
+    // Set once released, so that callbacks racing with release() are ignored
+    private volatile boolean mReleased;
+
+    /** The id of the last message written; ids are never 0 so that they are always encoded. */
+    private int mMessageId;
+
+    /** The packets of the message being sent, or {@code null} if there is none. */
+    private List<BLEMessage> mPackets;
+    private boolean[] mAcked = new boolean[WINDOW_SIZE];
+    private long[] mSentAtMs = new long[WINDOW_SIZE];
+    private long[] mDeadlineMs = new long[WINDOW_SIZE];
+    private int[] mSendCount = new int[WINDOW_SIZE];
+    private int mAckedCount;
+    /** Index of the first packet that has not been acknowledged. */
+    private int mWindowStart;
+    /** Index of the first packet that has never been sent. */
+    private int mNextToSend;
+    /** Indices of packets whose ACK is overdue, waiting to be sent again. */
+    private final ArrayDeque<Integer> mRetransmitQueue = new ArrayDeque<>();
+
+    /** Frames to send that are not packets of the message being sent: ACKs and single packets. */
+    private final ArrayDeque<byte[]> mOutgoingFrames = new ArrayDeque<>();
+    /** Whether a notification was handed to the GATT server and is not reported as sent yet. */
+    private boolean mNotificationInFlight;
+    private long mNotificationSentAtMs;
+
+    // Smoothed round-trip time and its variation, as in RFC 6298; 0 until the first measurement.
+    private long mSmoothedRttMs;
+    private long mRttVariationMs;
+    private long mRetryDelayMs = INITIAL_RETRY_DELAY_MS;
+
+    /**
+     * The maximum write size for a single message.
+     *
+     * <p>By default, this value is 20 because the smaller possible write size over BLE is 23 bytes.
+     * However, 3 bytes need to be subtracted due to them being used by the header of the BLE
+     * packet. Thus, the final value is 20.
+     */
+    private volatile int mMaxWriteSize = 20;
+
+    BleMessageStreamV2(@NonNull Handler handler, @NonNull BlePeripheralManager blePeripheralManager,
+            @NonNull BluetoothDevice device,
+            @NonNull BluetoothGattCharacteristic writeCharacteristic,
+            @NonNull BluetoothGattCharacteristic readCharacteristic) {
+        this(handler, blePeripheralManager, device, writeCharacteristic, readCharacteristic,
+                SystemClock::uptimeMillis);
+    }
+
+    @VisibleForTesting
+    BleMessageStreamV2(@NonNull Handler handler, @NonNull BlePeripheralManager blePeripheralManager,
+            @NonNull BluetoothDevice device,
+            @NonNull BluetoothGattCharacteristic writeCharacteristic,
+            @NonNull BluetoothGattCharacteristic readCharacteristic, @NonNull LongSupplier clock) {
+        mHandler = handler;
+        mBlePeripheralManager = blePeripheralManager;
+        mDevice = device;
+        mWriteCharacteristic = writeCharacteristic;
+        mReadCharacteristic = readCharacteristic;
+        mClock = clock;
+
+        mBlePeripheralManager.addOnCharacteristicWriteListener(mWriteListener);
+        mBlePeripheralManager.addOnNotificationSentListener(mNotificationSentListener);
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        mBlePeripheralManager.removeOnCharacteristicWriteListener(mWriteListener);
+        mBlePeripheralManager.removeOnNotificationSentListener(mNotificationSentListener);
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /** Registers the given callback to be notified of various events within the stream. */
+    @Override
+    public void registerCallback(@NonNull BleMessageStreamCallback callback) {
+        mCallbacks.add(callback);
+    }
+
+    /** Unregisters the given callback from being notified of stream events. */
+    @Override
+    public void unregisterCallback(@NonNull BleMessageStreamCallback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    /** Sets the maximum size of a message that can be sent. */
+    @Override
+    public void setMaxWriteSize(int maxWriteSize) {
+        mMaxWriteSize = maxWriteSize;
+    }
+
+    /** Returns the maximum size of a message that can be sent. */
+    @Override
+    public int getMaxWriteSize() {
+        return mMaxWriteSize;
+    }
+
+    /**
+     * Writes the given message to the write characteristic of this stream.
+     *
+     * <p>This method will handle the chunking of messages based on maximum write size assigned to
+     * this stream. If there is an error during the send, any callbacks on this stream will be
+     * notified of the error.
+     *
+     * @param message The message to send.
+     * @param operationType The {@link OperationType} of this message.
+     * @param isPayloadEncrypted {@code true} if the message to send has been encrypted.
+     */
+    @Override
+    public void writeMessage(@NonNull byte[] message, @NonNull OperationType operationType,
+            boolean isPayloadEncrypted) {
+        mHandler.post(() -> writeMessageInternal(message, operationType, isPayloadEncrypted));
+    }
+
+    private void writeMessageInternal(@NonNull byte[] message,
+            @NonNull OperationType operationType, boolean isPayloadEncrypted) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Writing message to device with name: " + mDevice.getName());
+        }
+
+        mMessageId = mMessageId == Integer.MAX_VALUE ? 1 : mMessageId + 1;
+        List<BLEMessage> bleMessages = BLEMessageV2Factory.makeBLEMessages(message, operationType,
+                mMaxWriteSize, isPayloadEncrypted, mMessageId);
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Number of messages to send to device: " + bleMessages.size());
+        }
+
+        // Each write will override previous messages.
+        if (mPackets != null) {
+            clearPendingMessage();
+            Log.w(TAG, "Request to write a new message when there are still messages in the "
+                    + "queue.");
+        }
+
+        // As in version 1, a message that fits in a single packet is not acknowledged.
+        if (bleMessages.size() == 1) {
+            sendFrame(bleMessages.get(0).toByteArray());
+            return;
+        }
+
+        int size = bleMessages.size();
+        if (mAcked.length < size) {
+            mAcked = new boolean[size];
+            mSentAtMs = new long[size];
+            mDeadlineMs = new long[size];
+            mSendCount = new int[size];
+        } else {
+            for (int i = 0; i < size; i++) {
+                mAcked[i] = false;
+                mSendCount[i] = 0;
+            }
+        }
+        mPackets = bleMessages;
+        mAckedCount = 0;
+        mWindowStart = 0;
+        mNextToSend = 0;
+
+        sendNext();
+    }
+
+    /**
+     * Processes a message from the client and notifies any callbacks of the success of this
+     * call.
+     */
+    @VisibleForTesting
+    void onCharacteristicWrite(@NonNull BluetoothDevice device,
+            @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
+        mHandler.post(() -> {
+            if (!mReleased) {
+                handleCharacteristicWrite(device, characteristic, value);
+            }
+        });
+    }
+
+    /** Sends the next packet or ACK, now that the GATT server has sent the previous one. */
+    @VisibleForTesting
+    void onNotificationSent(@NonNull BluetoothDevice device, int status) {
+        if (!mDevice.equals(device)) {
+            return;
+        }
+        mHandler.post(() -> {
+            if (mReleased) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                // Lost packets are sent again once their ACK is overdue
+                Log.w(TAG, "Failed to send notification: " + status);
+            }
+            mNotificationInFlight = false;
+            sendNext();
+        });
+    }
+
+    private void handleCharacteristicWrite(@NonNull BluetoothDevice device,
+            @NonNull BluetoothGattCharacteristic characteristic, @NonNull byte[] value) {
+        if (!mDevice.equals(device)) {
+            Log.w(TAG, "Received a message from a device (" + device.getAddress() + ") that is not "
+                    + "the expected device (" + mDevice.getAddress() + ") registered to this "
+                    + "stream. Ignoring.");
+            return;
+        }
+
+        if (!characteristic.getUuid().equals(mReadCharacteristic.getUuid())) {
+            Log.w(TAG, "Received a write to a characteristic (" + characteristic.getUuid()
+                    + ") that is not the expected UUID (" + mReadCharacteristic.getUuid()
+                    + "). Ignoring.");
+            return;
+        }
+
+        BLEMessage bleMessage;
+        try {
+            bleMessage = BLEMessage.parseFrom(value);
+        } catch (InvalidProtocolBufferException e) {
+            Log.e(TAG, "Can not parse BLE message from client.", e);
+
+            for (BleMessageStreamCallback callback : mCallbacks) {
+                callback.onMessageReceivedError(characteristic.getUuid());
+            }
+            return;
+        }
+
+        if (bleMessage.getOperation() == OperationType.ACK) {
+            handleClientAckMessage(bleMessage);
+            return;
+        }
+
+        boolean isNewPacket;
+        try {
+            isNewPacket = mReassembler.write(bleMessage);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to parse the BLE message's payload from client.", e);
+            mReassembler.reset();
+
+            for (BleMessageStreamCallback callback : mCallbacks) {
+                callback.onMessageReceivedError(characteristic.getUuid());
+            }
+            return;
+        }
+
+        // Acknowledge every packet of a chunked message, including duplicates, since the client
+        // retransmits a packet when its ACK is lost.
+        if (bleMessage.getTotalPackets() > 1) {
+            sendAcknowledgmentMessage(bleMessage);
+        }
+
+        if (!isNewPacket || !mReassembler.isComplete()) {
+            return;
+        }
+
+        byte[] payload = mReassembler.toByteArray();
+        for (BleMessageStreamCallback callback : mCallbacks) {
+            callback.onMessageReceived(payload, characteristic.getUuid());
+        }
+    }
+
+    private void handleClientAckMessage(@NonNull BLEMessage ack) {
+        if (mPackets == null || ack.getMessageId() != mMessageId) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Received ACK for message " + ack.getMessageId()
+                        + " that is not being sent. Ignoring.");
+            }
+            return;
+        }
+
+        int index = ack.getPacketNumber() - 1;
+        if (index < 0 || index >= mNextToSend) {
+            Log.e(TAG, "Received ACK for packet " + ack.getPacketNumber()
+                    + " that has not been sent. Ignoring.");
+            return;
+        }
+        if (mAcked[index]) {
+            return;
+        }
+
+        long now = mClock.getAsLong();
+        mAcked[index] = true;
+        mAckedCount++;
+        // Karn's algorithm: the ACK of a retransmitted packet cannot be matched to one send.
+        if (mSendCount[index] == 1) {
+            updateRetryDelay(now - mSentAtMs[index]);
+        }
+
+        if (mAckedCount == mPackets.size()) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "All " + mAckedCount + " packets of message " + mMessageId
+                        + " acknowledged.");
+            }
+            clearPendingMessage();
+            return;
+        }
+
+        while (mAcked[mWindowStart]) {
+            mWindowStart++;
+        }
+        sendNext();
+    }
+
+    /**
+     * Sends the next frame, unless a notification is in flight: ACKs and single packets first,
+     * then the packets whose ACK is overdue, then the next packet that fits in the window.
+     */
+    private void sendNext() {
+        long now = mClock.getAsLong();
+        if (mNotificationInFlight && now - mNotificationSentAtMs >= MAX_RETRY_DELAY_MS) {
+            Log.w(TAG, "No callback for the last notification sent; sending the next one.");
+            mNotificationInFlight = false;
+        }
+        boolean sent = false;
+        while (!mNotificationInFlight) {
+            byte[] frame = mOutgoingFrames.poll();
+            if (frame != null) {
+                writeValueAndNotify(frame, now);
+            } else {
+                int index = mPackets != null ? pollPacketToSend() : -1;
+                if (index < 0) {
+                    break;
+                }
+                sendPacket(index, now);
+            }
+            sent = true;
+        }
+        if (sent) {
+            scheduleRetransmit(now);
+        }
+    }
+
+    /** Returns the index of the next packet of the message to send, or -1 if there is none. */
+    private int pollPacketToSend() {
+        Integer index;
+        while ((index = mRetransmitQueue.poll()) != null) {
+            if (!mAcked[index]) {
+                return index;
+            }
+        }
+        if (mNextToSend < Math.min(mPackets.size(), mWindowStart + WINDOW_SIZE)) {
+            return mNextToSend++;
+        }
+        return -1;
+    }
+
+    private void sendPacket(int index, long now) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Sending packet " + (index + 1) + " of " + mPackets.size()
+                    + "; send count: " + mSendCount[index]);
+        }
+        writeValueAndNotify(mPackets.get(index).toByteArray(), now);
+        mSendCount[index]++;
+        mSentAtMs[index] = now;
+        mDeadlineMs[index] = now + mRetryDelayMs;
+    }
+
+    /**
+     * Schedules {@link #mRetransmitRunnable} for the earliest deadline of the window, or for when
+     * the notification in flight is considered lost.
+     *
+     * <p>Without a message being sent, a lost notification is only noticed by the next call to
+     * {@link #sendNext()}, since the remote device sends its packets again until they are
+     * acknowledged.
+     */
+    private void scheduleRetransmit(long now) {
+        mHandler.removeCallbacks(mRetransmitRunnable);
+        if (mPackets == null) {
+            return;
+        }
+        long deadline = mNotificationInFlight
+                ? mNotificationSentAtMs + MAX_RETRY_DELAY_MS : Long.MAX_VALUE;
+        for (int i = mWindowStart; i < mNextToSend; i++) {
+            if (!mAcked[i]) {
+                deadline = Math.min(deadline, mDeadlineMs[i]);
+            }
+        }
+        if (deadline != Long.MAX_VALUE) {
+            mHandler.postDelayed(mRetransmitRunnable, Math.max(0, deadline - now));
+        }
+    }
+
+    /** Updates the retransmission timeout with a new round-trip time, as in RFC 6298. */
+    private void updateRetryDelay(long rttMs) {
+        rttMs = Math.max(0, rttMs);
+        if (mSmoothedRttMs == 0) {
+            mSmoothedRttMs = Math.max(1, rttMs);
+            mRttVariationMs = rttMs / 2;
+        } else {
+            mRttVariationMs = (3 * mRttVariationMs + Math.abs(mSmoothedRttMs - rttMs)) / 4;
+            mSmoothedRttMs = Math.max(1, (7 * mSmoothedRttMs + rttMs) / 8);
+        }
+        mRetryDelayMs = clampRetryDelay(mSmoothedRttMs + 4 * mRttVariationMs);
+    }
+
+    private static long clampRetryDelay(long delayMs) {
+        return Math.max(MIN_RETRY_DELAY_MS, Math.min(MAX_RETRY_DELAY_MS, delayMs));
+    }
+
+    @VisibleForTesting
+    long getRetryDelayMs() {
+        return mRetryDelayMs;
+    }
+
+    private void clearPendingMessage() {
+        mHandler.removeCallbacks(mRetransmitRunnable);
+        mRetransmitQueue.clear();
+        mPackets = null;
+    }
+
+    private void sendAcknowledgmentMessage(@NonNull BLEMessage message) {
+        sendFrame(BLEMessageV2Factory.makeAcknowledgementMessage(message.getMessageId(),
+                message.getPacketNumber(), message.getTotalPackets()).toByteArray());
+    }
+
+    /** Sends a frame that is not a packet of the message being sent, after the ones queued. */
+    private void sendFrame(@NonNull byte[] frame) {
+        mOutgoingFrames.add(frame);
+        sendNext();
+    }
+
+    /**
+     * Convenience method to write the given message to the {@link #mWriteCharacteristic} of this
+     * class. After writing, this method will also send notifications to any listening devices that
+     * the write was made.
+     */
+    private void writeValueAndNotify(@NonNull byte[] message, long now) {
+        mWriteCharacteristic.setValue(message);
+
+        mNotificationInFlight = mBlePeripheralManager.notifyCharacteristicChanged(mDevice,
+                mWriteCharacteristic, /* confirm= */ false);
+        mNotificationSentAtMs = now;
+    }
+
+    /**
+     * A runnable that queues the packets of the window whose ACK is overdue to be sent again.
+     *
+     * <p>If a packet has already been sent {@link #BLE_MESSAGE_RETRY_LIMIT} times, the message is
+     * dropped and the callbacks are notified of the error.
+     */
+    private final Runnable mRetransmitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mPackets == null) {
+                return;
+            }
+            long now = mClock.getAsLong();
+            boolean retransmitted = false;
+            for (int i = mWindowStart; i < mNextToSend; i++) {
+                if (mAcked[i] || now < mDeadlineMs[i]) {
+                    continue;
+                }
+                if (mSendCount[i] >= BLE_MESSAGE_RETRY_LIMIT) {
+                    clearPendingMessage();
+
+                    Log.e(TAG, "Error during BLE message sending - exceeded retry limit.");
+
+                    for (BleMessageStreamCallback callback : mCallbacks) {
+                        callback.onWriteMessageError();
+                    }
+                    return;
+                }
+                if (!retransmitted) {
+                    // Back off once per timeout, however many packets it covers.
+                    mRetryDelayMs = clampRetryDelay(mRetryDelayMs * 2);
+                    retransmitted = true;
+                }
+                // Queued for sendNext(), which sets the deadline again
+                mDeadlineMs[i] = Long.MAX_VALUE;
+                mRetransmitQueue.add(i);
+            }
+            sendNext();
+            scheduleRetransmit(now);
+        }
+    };
+}
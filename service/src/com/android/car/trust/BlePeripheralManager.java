@@ -78,6 +78,8 @@ public class BlePeripheralManager {
             new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<OnCharacteristicReadListener> mReadListeners =
             new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnNotificationSentListener> mNotificationSentListeners =
+            new CopyOnWriteArrayList<>();
 
     private int mMtuSize = 20;
 
@@ -151,6 +153,24 @@ public class BlePeripheralManager {
         mReadListeners.remove(listener);
     }
 
+    /**
+     * Adds a listener to be notified when a notification has been sent to a remote device.
+     *
+     * @param listener The listener to notify.
+     */
+    void addOnNotificationSentListener(@NonNull OnNotificationSentListener listener) {
+        mNotificationSentListeners.add(listener);
+    }
+
+    /**
+     * Removes the given listener from being notified of sent notifications.
+     *
+     * @param listener The listener to remove.
+     */
+    void removeOnNotificationSentListener(@NonNull OnNotificationSentListener listener) {
+        mNotificationSentListeners.remove(listener);
+    }
+
     /**
      * Returns the current MTU size.
      *
@@ -207,11 +227,14 @@ public class BlePeripheralManager {
 
     /**
      * Notifies the characteristic change via {@link BluetoothGattServer}
+     *
+     * @return {@code true} if the notification was queued, in which case the
+     *         {@link OnNotificationSentListener}s are called once it is sent.
      */
-    void notifyCharacteristicChanged(@NonNull BluetoothDevice device,
+    boolean notifyCharacteristicChanged(@NonNull BluetoothDevice device,
             @NonNull BluetoothGattCharacteristic characteristic, boolean confirm) {
         if (mGattServer == null) {
-            return;
+            return false;
         }
 
         boolean result = mGattServer.notifyCharacteristicChanged(device, characteristic, confirm);
@@ -219,6 +242,7 @@ public class BlePeripheralManager {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "notifyCharacteristicChanged succeeded: " + result);
         }
+        return result;
     }
 
     /**
@@ -426,6 +450,18 @@ public class BlePeripheralManager {
                     }
                 }
 
+                @Override
+                public void onNotificationSent(BluetoothDevice device, int status) {
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "onNotificationSent: " + status + " for device "
+                                + device.getAddress());
+                    }
+
+                    for (OnNotificationSentListener listener : mNotificationSentListeners) {
+                        listener.onNotificationSent(device, status);
+                    }
+                }
+
             };
 
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
@@ -557,4 +593,19 @@ public class BlePeripheralManager {
                 @NonNull BluetoothDevice device,
                 @NonNull BluetoothGattCharacteristic characteristic);
     }
+
+    /**
+     * An interface for classes that wish to be notified when a notification has been sent.
+     */
+    interface OnNotificationSentListener {
+        /**
+         * Triggered when a notification queued by
+         * {@link BlePeripheralManager#notifyCharacteristicChanged} has been sent to the remote
+         * device.
+         *
+         * @param device The bluetooth device the notification was sent to.
+         * @param status {@link BluetoothGatt#GATT_SUCCESS} if the notification was sent.
+         */
+        void onNotificationSent(@NonNull BluetoothDevice device, int status);
+    }
 }
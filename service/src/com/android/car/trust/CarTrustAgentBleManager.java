@@ -173,10 +173,7 @@ class CarTrustAgentBleManager implements BleMessageStreamCallback, BlePeripheral
             mBlePeripheralManager.retrieveDeviceName(device);
         }
 
-        if (mMessageStream != null) {
-            mMessageStream.unregisterCallback(this);
-            mMessageStream = null;
-        }
+        releaseMessageStream();
 
         mSendMessageCallback = null;
 
@@ -191,10 +188,7 @@ class CarTrustAgentBleManager implements BleMessageStreamCallback, BlePeripheral
         mBleEventCallbacks.forEach(bleEventCallback ->
                 bleEventCallback.onRemoteDeviceDisconnected(device));
 
-        if (mMessageStream != null) {
-            mMessageStream.unregisterCallback(this);
-            mMessageStream = null;
-        }
+        releaseMessageStream();
 
         mSendMessageCallback = null;
     }
@@ -275,6 +269,7 @@ class CarTrustAgentBleManager implements BleMessageStreamCallback, BlePeripheral
             return;
         }
 
+        releaseMessageStream();
         mMessageStream = BLEVersionExchangeResolver.resolveToStream(
                 deviceVersion, device, mBlePeripheralManager, writeCharacteristic,
                 readCharacteristic);
@@ -303,6 +298,15 @@ class CarTrustAgentBleManager implements BleMessageStreamCallback, BlePeripheral
         }
     }
 
+    /** Stops the current message stream, if any, so that it no longer receives BLE events. */
+    private void releaseMessageStream() {
+        if (mMessageStream != null) {
+            mMessageStream.unregisterCallback(this);
+            mMessageStream.release();
+            mMessageStream = null;
+        }
+    }
+
     /**
      * Setup the BLE GATT server for Enrollment. The GATT server for Enrollment comprises of one
      * GATT Service and 2 characteristics - one for the phone to write to and one for the head unit
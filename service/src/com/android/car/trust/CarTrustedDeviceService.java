@@ -65,6 +65,11 @@ public class CarTrustedDeviceService implements CarServiceBase, BleEventCallback
         mCarTrustAgentBleManager.addBleEventCallback(this);
     }
 
+    @Override
+    public List<Class<? extends CarServiceBase>> getInitDependencies() {
+        return List.of();
+    }
+
     @Override
     public synchronized void release() {
         mCarTrustAgentBleManager.cleanup();
@@ -20,15 +20,17 @@ import static com.android.car.ICarImpl.assertAnyVmsPermission;
 import static com.android.car.ICarImpl.assertVmsPublisherPermission;
 import static com.android.car.ICarImpl.assertVmsSubscriberPermission;
 
+import android.annotation.Nullable;
 import android.car.vms.IVmsBrokerService;
 import android.car.vms.IVmsClientCallback;
 import android.car.vms.VmsAssociatedLayer;
 import android.car.vms.VmsAvailableLayers;
 import android.car.vms.VmsLayer;
 import android.car.vms.VmsLayerDependency;
-import android.car.vms.VmsLayersOffering;
+import android.car.vms.VmsPacket;
 import android.car.vms.VmsProviderInfo;
 import android.car.vms.VmsRegistrationInfo;
+import android.car.vms.VmsRingBuffer;
 import android.car.vms.VmsSubscriptionState;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -39,8 +41,10 @@ import android.os.SharedMemory;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.car.CarServiceBase;
+import com.android.car.R;
 import com.android.car.stats.CarStatsService;
 import com.android.car.stats.VmsClientLogger;
 import com.android.internal.annotations.GuardedBy;
@@ -55,6 +59,11 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntSupplier;
 import java.util.stream.Collectors;
 
@@ -67,26 +76,36 @@ import java.util.stream.Collectors;
 public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServiceBase {
     private static final boolean DBG = false;
     private static final String TAG = VmsBrokerService.class.getSimpleName();
+    private static final int MAX_LAYER_STREAM_SIZE = 16 * 1024 * 1024; // 16 MB
 
     private final Context mContext;
     private final PackageManager mPackageManager;
     private final CarStatsService mStatsService;
     private final IntSupplier mGetCallingUid;
+    // 0 means that packets are delivered on the publisher's thread
+    private final int mDeliveryQueueSize;
+    private final int mDeliveryQueueOverflowPolicy;
+    @Nullable
+    private final ExecutorService mDeliveryExecutor;
 
     private final VmsProviderInfoStore mProviderInfoStore = new VmsProviderInfoStore();
     private final VmsLayerAvailability mAvailableLayers = new VmsLayerAvailability();
 
     private final Object mLock = new Object();
-    @GuardedBy("mLock")
-    private final Map<IBinder /* clientToken */, VmsClientInfo> mClientMap = new ArrayMap<>();
-    @GuardedBy("mLock")
-    private Set<VmsLayersOffering> mAllOfferings = Collections.emptySet();
+    // Modified only while holding mLock, but can be read without it.
+    private final Map<IBinder /* clientToken */, VmsClientInfo> mClientMap =
+            new ConcurrentHashMap<>();
+    // Replaced while holding mLock whenever a subscription changes; read without it.
+    private volatile VmsSubscriberIndex mSubscriberIndex = VmsSubscriberIndex.EMPTY;
     @GuardedBy("mLock")
     private VmsSubscriptionState mSubscriptionState = new VmsSubscriptionState(0,
             Collections.emptySet(), Collections.emptySet());
 
     public VmsBrokerService(Context context, CarStatsService statsService) {
-        this(context, statsService, Binder::getCallingUid);
+        this(context, statsService, Binder::getCallingUid,
+                context.getResources().getInteger(R.integer.vmsSubscriberDeliveryQueueSize),
+                context.getResources().getInteger(
+                        R.integer.vmsSubscriberDeliveryQueueOverflowPolicy));
     }
 
     @VisibleForTesting
@@ -94,10 +113,27 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
             Context context,
             CarStatsService statsService,
             IntSupplier getCallingUid) {
+        this(context, statsService, getCallingUid, 0, VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+    }
+
+    @VisibleForTesting
+    VmsBrokerService(
+            Context context,
+            CarStatsService statsService,
+            IntSupplier getCallingUid,
+            int deliveryQueueSize,
+            int deliveryQueueOverflowPolicy) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mStatsService = statsService;
         mGetCallingUid = getCallingUid;
+        mDeliveryQueueSize = deliveryQueueSize;
+        mDeliveryQueueOverflowPolicy = deliveryQueueOverflowPolicy;
+        // Each delivery queue drains on at most one thread at a time, and the pool grows when all
+        // of its threads are busy, so a slow subscriber does not hold up the others.
+        mDeliveryExecutor = deliveryQueueSize > 0
+                ? Executors.newCachedThreadPool(new DeliveryThreadFactory())
+                : null;
     }
 
     @Override
@@ -106,6 +142,20 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
 
     @Override
     public void release() {
+        if (mDeliveryExecutor != null) {
+            mDeliveryExecutor.shutdownNow();
+            // Release the large packets that were waiting for delivery
+            for (VmsClientInfo client : getActiveClients()) {
+                if (client.getDeliveryQueue() != null) {
+                    client.getDeliveryQueue().clear();
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<Class<? extends CarServiceBase>> getInitDependencies() {
+        return List.of();
     }
 
     @Override
@@ -146,8 +196,14 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
         }
 
         synchronized (mLock) {
+            VmsDeliveryQueue deliveryQueue = null;
+            if (mDeliveryExecutor != null) {
+                deliveryQueue = new VmsDeliveryQueue(callback, clientPackage,
+                        mStatsService.getVmsClientLogger(clientUid), mDeliveryExecutor,
+                        mDeliveryQueueSize, mDeliveryQueueOverflowPolicy);
+            }
             mClientMap.put(clientToken, new VmsClientInfo(clientUid, clientPackage, callback,
-                    legacyClient, deathRecipient));
+                    legacyClient, deathRecipient, deliveryQueue));
             return new VmsRegistrationInfo(
                     mAvailableLayers.getAvailableLayers(),
                     mSubscriptionState);
@@ -167,6 +223,19 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
         return new VmsProviderInfo(mProviderInfoStore.getProviderInfo(providerId));
     }
 
+    @Override
+    public VmsAvailableLayers getAvailableLayers(IBinder clientToken) {
+        assertAnyVmsPermission(mContext);
+        getClient(clientToken); // Assert that the client is registered
+        return mAvailableLayers.getAvailableLayers();
+    }
+
+    @Override
+    public void setLayerAvailabilityDeltasEnabled(IBinder clientToken, boolean enabled) {
+        assertAnyVmsPermission(mContext);
+        getClient(clientToken).setAvailabilityDeltasEnabled(enabled);
+    }
+
     @Override
     public void setSubscriptions(IBinder clientToken, List<VmsAssociatedLayer> layers) {
         assertVmsSubscriberPermission(mContext);
@@ -178,6 +247,9 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
     public void setMonitoringEnabled(IBinder clientToken, boolean enabled) {
         assertVmsSubscriberPermission(mContext);
         getClient(clientToken).setMonitoringEnabled(enabled);
+        synchronized (mLock) {
+            updateSubscriberIndexLocked();
+        }
     }
 
     @Override
@@ -201,45 +273,190 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
             throw new IllegalArgumentException("Client not registered to offer layers as "
                     + providerId);
         }
-        if (client.setProviderOfferings(providerId, offerings)) {
-            updateAvailableLayers();
+        VmsLayerAvailability.Delta availabilityDelta = null;
+        synchronized (mLock) {
+            // Ignore clients that unregistered concurrently, as their offerings were removed.
+            if (mClientMap.get(clientToken) == client
+                    && client.setProviderOfferings(providerId, offerings)) {
+                availabilityDelta =
+                        mAvailableLayers.setProviderOfferings(client, providerId, offerings);
+            }
         }
+        notifyOfAvailabilityChange(availabilityDelta);
     }
 
     @Override
     public void publishPacket(IBinder clientToken, int providerId, VmsLayer layer, byte[] packet) {
         assertVmsPublisherPermission(mContext);
-        deliverToSubscribers(clientToken, providerId, layer, packet.length,
-                callback -> callback.onPacketReceived(providerId, layer, packet));
+        deliverToSubscribers(clientToken, providerId, layer, packet.length, packet,
+                null /* largePacket */,
+                subscriber -> subscriber.getCallback().onPacketReceived(
+                        providerId, layer, packet));
     }
 
     @Override
     public void publishLargePacket(IBinder clientToken, int providerId, VmsLayer layer,
             SharedMemory packet) {
-        try (SharedMemory largePacket = packet) {
+        // Queued deliveries keep the shared memory open until the last of them is done with it.
+        LargePacket largePacket = new LargePacket(packet);
+        try {
             assertVmsPublisherPermission(mContext);
             deliverToSubscribers(clientToken, providerId, layer, packet.getSize(),
-                    callback -> callback.onLargePacketReceived(providerId, layer, largePacket));
+                    null /* queueablePacket */, largePacket,
+                    subscriber -> subscriber.getCallback().onLargePacketReceived(
+                            providerId, layer, packet));
+        } finally {
+            largePacket.release();
         }
     }
 
-    private void deliverToSubscribers(IBinder clientToken, int providerId, VmsLayer layer,
-            int packetLength, ThrowingConsumer<IVmsClientCallback> callbackConsumer) {
+    @Override
+    public void publishPackets(IBinder clientToken, List<VmsPacket> packets) {
+        assertVmsPublisherPermission(mContext);
         VmsClientInfo client = getClient(clientToken);
-        if (!client.hasOffering(providerId, layer) && !client.isLegacyClient()) {
-            throw new IllegalArgumentException("Client does not offer " + layer + " as "
-                    + providerId);
+        // Reject the whole batch before delivering any of it
+        for (int i = 0; i < packets.size(); i++) {
+            VmsPacket packet = packets.get(i);
+            assertOffering(client, packet.getProviderId(), packet.getLayer());
+        }
+
+        VmsClientLogger publisherLog = mStatsService.getVmsClientLogger(client.getUid());
+        VmsSubscriberIndex subscriberIndex = mSubscriberIndex;
+        // Packets for each synchronously delivered subscriber, in publishing order
+        Map<VmsClientInfo, List<VmsPacket>> deliveries = new ArrayMap<>();
+        for (int i = 0; i < packets.size(); i++) {
+            VmsPacket packet = packets.get(i);
+            int providerId = packet.getProviderId();
+            VmsLayer layer = packet.getLayer();
+            byte[] payload = packet.getPayload();
+            publisherLog.logPacketSent(layer, payload.length);
+
+            List<VmsClientInfo> subscribers = subscriberIndex.getSubscribers(providerId, layer);
+            if (subscribers.isEmpty()) {
+                // A negative UID signals that the packet had zero subscribers
+                mStatsService.getVmsClientLogger(-1).logPacketDropped(layer, payload.length);
+                continue;
+            }
+            for (int j = 0; j < subscribers.size(); j++) {
+                VmsClientInfo subscriber = subscribers.get(j);
+                VmsDeliveryQueue deliveryQueue = subscriber.getDeliveryQueue();
+                if (deliveryQueue != null) {
+                    deliveryQueue.enqueue(providerId, layer, payload);
+                } else {
+                    deliveries.computeIfAbsent(subscriber, ignored -> new ArrayList<>())
+                            .add(packet);
+                }
+            }
+        }
+
+        if (DBG) {
+            Log.d(TAG, String.format("Delivering %d packets to %d subscribers", packets.size(),
+                    deliveries.size()));
+        }
+        deliveries.forEach((subscriber, subscriberPackets) -> {
+            VmsClientLogger subscriberLog = mStatsService.getVmsClientLogger(subscriber.getUid());
+            try {
+                subscriber.getCallback().onPacketsReceived(subscriberPackets);
+                for (int i = 0; i < subscriberPackets.size(); i++) {
+                    VmsPacket packet = subscriberPackets.get(i);
+                    subscriberLog.logPacketReceived(packet.getLayer(),
+                            packet.getPayload().length);
+                }
+            } catch (RemoteException | RuntimeException e) {
+                for (int i = 0; i < subscriberPackets.size(); i++) {
+                    VmsPacket packet = subscriberPackets.get(i);
+                    subscriberLog.logPacketDropped(packet.getLayer(),
+                            packet.getPayload().length);
+                }
+                Log.e(TAG, String.format("Unable to publish to listener: %s",
+                        subscriber.getPackageName()), e);
+            }
+        });
+    }
+
+    @Override
+    public void setLayerStream(IBinder clientToken, int providerId, VmsLayer layer,
+            SharedMemory ringBuffer) {
+        VmsClientInfo client;
+        VmsRingBuffer stream;
+        try {
+            assertVmsPublisherPermission(mContext);
+            client = getClient(clientToken);
+            assertOffering(client, providerId, layer);
+            if (ringBuffer.getSize() > MAX_LAYER_STREAM_SIZE) {
+                throw new IllegalArgumentException("Layer stream too large: "
+                        + ringBuffer.getSize() + " bytes");
+            }
+            stream = VmsRingBuffer.openReader(ringBuffer);
+        } catch (RuntimeException e) {
+            ringBuffer.close();
+            throw e;
+        }
+        if (DBG) {
+            Log.d(TAG, "Setting stream for " + layer + " as " + providerId + ": "
+                    + stream.getSlotCount() + " slots of " + stream.getMaxPacketSize() + " bytes");
+        }
+
+        VmsRingBuffer previousStream = client.setLayerStream(providerId, layer, stream);
+        if (previousStream != null) {
+            closeLayerStream(providerId, layer, previousStream);
+        }
+    }
+
+    @Override
+    public void clearLayerStream(IBinder clientToken, int providerId, VmsLayer layer) {
+        assertVmsPublisherPermission(mContext);
+        VmsRingBuffer stream = getClient(clientToken).setLayerStream(providerId, layer, null);
+        if (stream != null) {
+            closeLayerStream(providerId, layer, stream);
+        }
+    }
+
+    @Override
+    public void publishStreamPacket(IBinder clientToken, int providerId, VmsLayer layer,
+            long sequenceNumber, int packetLength) {
+        assertVmsPublisherPermission(mContext);
+        VmsClientInfo client = getClient(clientToken);
+        VmsRingBuffer stream = client.getLayerStream(providerId, layer);
+        if (stream == null) {
+            throw new IllegalStateException("No stream for " + layer + " as " + providerId);
         }
+        // Subscribers read the packet from the stream, so only the sequence number is sent.
+        deliverToSubscribers(clientToken, providerId, layer, packetLength,
+                null /* queueablePacket */, null /* largePacket */,
+                subscriber -> {
+                    // A queued packet may outlive its stream
+                    if (client.getLayerStream(providerId, layer) != stream) {
+                        throw new IllegalStateException("Stream closed for " + layer + " as "
+                                + providerId);
+                    }
+                    IVmsClientCallback callback = subscriber.getCallback();
+                    if (subscriber.attachLayerStream(stream)) {
+                        callback.onLayerStreamChanged(providerId, layer,
+                                stream.getSharedMemory());
+                    }
+                    callback.onStreamPacketReceived(providerId, layer, sequenceNumber);
+                });
+    }
+
+    /**
+     * Delivers a packet to the subscribers of its layer. Subscribers with a delivery queue receive
+     * it in order with their other pending packets: as a byte array if {@code queueablePacket} is
+     * set, through {@code callbackConsumer} otherwise.
+     *
+     * @param largePacket Shared memory of the packet, kept open until the queued deliveries are
+     *                    done with it
+     */
+    private void deliverToSubscribers(IBinder clientToken, int providerId, VmsLayer layer,
+            int packetLength, @Nullable byte[] queueablePacket, @Nullable LargePacket largePacket,
+            ThrowingConsumer<VmsClientInfo> callbackConsumer) {
+        VmsClientInfo client = getClient(clientToken);
+        assertOffering(client, providerId, layer);
 
         mStatsService.getVmsClientLogger(client.getUid())
                 .logPacketSent(layer, packetLength);
 
-        Collection<VmsClientInfo> subscribers;
-        synchronized (mLock) {
-            subscribers = mClientMap.values().stream()
-                    .filter(subscriber -> subscriber.isSubscribed(providerId, layer))
-                    .collect(Collectors.toList());
-        }
+        List<VmsClientInfo> subscribers = mSubscriberIndex.getSubscribers(providerId, layer);
 
         if (DBG) Log.d(TAG, String.format("Number of subscribers: %d", subscribers.size()));
 
@@ -249,9 +466,20 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
             return;
         }
 
-        for (VmsClientInfo subscriber : subscribers) {
+        for (int i = 0; i < subscribers.size(); i++) {
+            VmsClientInfo subscriber = subscribers.get(i);
+            VmsDeliveryQueue deliveryQueue = subscriber.getDeliveryQueue();
+            if (deliveryQueue != null) {
+                if (queueablePacket != null) {
+                    deliveryQueue.enqueue(providerId, layer, queueablePacket);
+                } else {
+                    deliveryQueue.enqueue(providerId, layer, packetLength,
+                            new QueuedDelivery(subscriber, callbackConsumer, largePacket));
+                }
+                continue;
+            }
             try {
-                callbackConsumer.accept(subscriber.getCallback());
+                callbackConsumer.accept(subscriber);
                 mStatsService.getVmsClientLogger(subscriber.getUid())
                         .logPacketReceived(layer, packetLength);
             } catch (RuntimeException e) {
@@ -263,28 +491,63 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
         }
     }
 
+    private static void assertOffering(VmsClientInfo client, int providerId, VmsLayer layer) {
+        if (!client.hasOffering(providerId, layer) && !client.isLegacyClient()) {
+            throw new IllegalArgumentException("Client does not offer " + layer + " as "
+                    + providerId);
+        }
+    }
+
+    /**
+     * Tells the subscribers that received a stream that it is closed, then releases it.
+     */
+    private void closeLayerStream(int providerId, VmsLayer layer, VmsRingBuffer stream) {
+        for (VmsClientInfo client : getActiveClients()) {
+            if (!client.detachLayerStream(stream)) {
+                continue;
+            }
+            try {
+                client.getCallback().onLayerStreamChanged(providerId, layer, null);
+            } catch (RemoteException e) {
+                Log.w(TAG, "onLayerStreamChanged failed: " + client.getPackageName(), e);
+            }
+        }
+        stream.close();
+    }
+
     private void unregisterClient(IBinder clientToken, int connectionState) {
         VmsClientInfo client;
+        VmsLayerAvailability.Delta availabilityDelta = null;
         synchronized (mLock) {
             client = mClientMap.remove(clientToken);
+            if (client != null) {
+                availabilityDelta = mAvailableLayers.removeOfferings(client);
+            }
         }
         if (client != null) {
             client.getCallback().asBinder().unlinkToDeath(client.getDeathRecipient(), 0);
+            if (client.getDeliveryQueue() != null) {
+                client.getDeliveryQueue().clear();
+            }
+            SparseArray<Map<VmsLayer, VmsRingBuffer>> streams = client.clearLayerStreams();
+            for (int i = 0; i < streams.size(); i++) {
+                int providerId = streams.keyAt(i);
+                streams.valueAt(i).forEach((layer, stream) ->
+                        closeLayerStream(providerId, layer, stream));
+            }
             mStatsService.getVmsClientLogger(client.getUid())
                     .logConnectionState(connectionState);
-            updateAvailableLayers();
+            notifyOfAvailabilityChange(availabilityDelta);
             updateSubscriptionState();
         }
     }
 
     private VmsClientInfo getClient(IBinder clientToken) {
-        synchronized (mLock) {
-            VmsClientInfo client = mClientMap.get(clientToken);
-            if (client == null) {
-                throw new IllegalStateException("Unknown client token");
-            }
-            return client;
+        VmsClientInfo client = mClientMap.get(clientToken);
+        if (client == null) {
+            throw new IllegalStateException("Unknown client token");
         }
+        return client;
     }
 
     private Collection<VmsClientInfo> getActiveClients() {
@@ -293,31 +556,21 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
         }
     }
 
-    private void updateAvailableLayers() {
-        synchronized (mLock) {
-            // Fuse layer offerings
-            Set<VmsLayersOffering> allOfferings = mClientMap.values().stream()
-                    .map(VmsClientInfo::getAllOfferings)
-                    .flatMap(Collection::stream)
-                    .collect(Collectors.toCollection(ArraySet::new));
-
-            // Ignore update if offerings are unchanged
-            if (mAllOfferings.equals(allOfferings)) {
-                return;
-            }
-
-            // Update offerings and compute available layers
-            mAllOfferings = allOfferings;
-            mAvailableLayers.setPublishersOffering(allOfferings);
+    private void notifyOfAvailabilityChange(@Nullable VmsLayerAvailability.Delta delta) {
+        if (delta == null) {
+            return;
         }
-        notifyOfAvailabilityChange(mAvailableLayers.getAvailableLayers());
-    }
-
-    private void notifyOfAvailabilityChange(VmsAvailableLayers availableLayers) {
+        VmsAvailableLayers availableLayers = delta.getAvailableLayers();
         Log.i(TAG, "Notifying clients of layer availability change: " + availableLayers);
         for (VmsClientInfo client : getActiveClients()) {
             try {
-                client.getCallback().onLayerAvailabilityChanged(availableLayers);
+                if (client.isAvailabilityDeltasEnabled()) {
+                    client.getCallback().onLayerAvailabilityDelta(
+                            availableLayers.getSequenceNumber(), delta.getUpdatedLayers(),
+                            delta.getRemovedLayers());
+                } else {
+                    client.getCallback().onLayerAvailabilityChanged(availableLayers);
+                }
             } catch (RemoteException e) {
                 Log.w(TAG, "onLayersAvailabilityChanged failed: " + client.getPackageName(),
                         e);
@@ -328,6 +581,10 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
     private void updateSubscriptionState() {
         VmsSubscriptionState subscriptionState;
         synchronized (mLock) {
+            // The index tracks individual clients, so it can change even if the fused
+            // subscription state below does not.
+            updateSubscriberIndexLocked();
+
             Set<VmsLayer> layerSubscriptions = new ArraySet<>();
             Map<VmsLayer, Set<Integer>> layerAndProviderSubscriptions = new ArrayMap<>();
             // Fuse subscriptions
@@ -368,6 +625,11 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
         notifyOfSubscriptionChange(subscriptionState);
     }
 
+    @GuardedBy("mLock")
+    private void updateSubscriberIndexLocked() {
+        mSubscriberIndex = VmsSubscriberIndex.create(mClientMap.values());
+    }
+
     private void notifyOfSubscriptionChange(VmsSubscriptionState subscriptionState) {
         Log.i(TAG, "Notifying clients of subscription state change: " + subscriptionState);
         for (VmsClientInfo client : getActiveClients()) {
@@ -379,4 +641,65 @@ public class VmsBrokerService extends IVmsBrokerService.Stub implements CarServi
             }
         }
     }
+
+    /** Closes the shared memory of a large packet once it is no longer used. */
+    private static final class LargePacket {
+        private final SharedMemory mSharedMemory;
+        // The publisher's call holds the first reference
+        private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+        LargePacket(SharedMemory sharedMemory) {
+            mSharedMemory = sharedMemory;
+        }
+
+        void acquire() {
+            mRefCount.incrementAndGet();
+        }
+
+        void release() {
+            if (mRefCount.decrementAndGet() == 0) {
+                mSharedMemory.close();
+            }
+        }
+    }
+
+    /** Delivers a packet that is not a byte array from a subscriber's delivery queue. */
+    private static final class QueuedDelivery implements VmsDeliveryQueue.Delivery {
+        private final VmsClientInfo mSubscriber;
+        private final ThrowingConsumer<VmsClientInfo> mCallbackConsumer;
+        @Nullable
+        private final LargePacket mLargePacket;
+
+        QueuedDelivery(VmsClientInfo subscriber,
+                ThrowingConsumer<VmsClientInfo> callbackConsumer,
+                @Nullable LargePacket largePacket) {
+            mSubscriber = subscriber;
+            mCallbackConsumer = callbackConsumer;
+            mLargePacket = largePacket;
+            if (largePacket != null) {
+                largePacket.acquire();
+            }
+        }
+
+        @Override
+        public void deliver() {
+            mCallbackConsumer.accept(mSubscriber);
+        }
+
+        @Override
+        public void release() {
+            if (mLargePacket != null) {
+                mLargePacket.release();
+            }
+        }
+    }
+
+    private static final class DeliveryThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, TAG + ".Delivery-" + mCount.incrementAndGet());
+        }
+    }
 }
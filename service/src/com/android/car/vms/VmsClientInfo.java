@@ -16,12 +16,14 @@
 
 package com.android.car.vms;
 
+import android.annotation.Nullable;
 import android.car.vms.IVmsClientCallback;
 import android.car.vms.VmsAssociatedLayer;
 import android.car.vms.VmsLayer;
 import android.car.vms.VmsLayerDependency;
-import android.car.vms.VmsLayersOffering;
+import android.car.vms.VmsRingBuffer;
 import android.os.IBinder;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
@@ -29,7 +31,6 @@ import android.util.SparseBooleanArray;
 import com.android.internal.annotations.GuardedBy;
 
 import java.io.PrintWriter;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -46,6 +47,8 @@ final class VmsClientInfo {
     private final IVmsClientCallback mCallback;
     private final boolean mLegacyClient;
     private final IBinder.DeathRecipient mDeathRecipient;
+    @Nullable
+    private final VmsDeliveryQueue mDeliveryQueue;
 
     private final Object mLock = new Object();
     @GuardedBy("mLock")
@@ -60,14 +63,28 @@ final class VmsClientInfo {
     private Map<VmsLayer, Set<Integer>> mLayerAndProviderSubscriptions = Collections.emptyMap();
     @GuardedBy("mLock")
     private boolean mMonitoringEnabled;
+    @GuardedBy("mLock")
+    private boolean mAvailabilityDeltasEnabled;
+    // Layer streams published by this client
+    @GuardedBy("mLock")
+    private final SparseArray<Map<VmsLayer, VmsRingBuffer>> mLayerStreams = new SparseArray<>();
+    // Layer streams that have been sent to this client as a subscriber
+    @GuardedBy("mLock")
+    private final Set<VmsRingBuffer> mAttachedLayerStreams = new ArraySet<>();
 
     VmsClientInfo(int uid, String packageName, IVmsClientCallback callback, boolean legacyClient,
             IBinder.DeathRecipient deathRecipient) {
+        this(uid, packageName, callback, legacyClient, deathRecipient, null);
+    }
+
+    VmsClientInfo(int uid, String packageName, IVmsClientCallback callback, boolean legacyClient,
+            IBinder.DeathRecipient deathRecipient, @Nullable VmsDeliveryQueue deliveryQueue) {
         mUid = uid;
         mPackageName = packageName;
         mCallback = callback;
         mLegacyClient = legacyClient;
         mDeathRecipient = deathRecipient;
+        mDeliveryQueue = deliveryQueue;
     }
 
     int getUid() {
@@ -82,6 +99,15 @@ final class VmsClientInfo {
         return mCallback;
     }
 
+    /**
+     * Returns the queue used to deliver packets asynchronously, or {@code null} if packets are
+     * delivered on the publisher's thread.
+     */
+    @Nullable
+    VmsDeliveryQueue getDeliveryQueue() {
+        return mDeliveryQueue;
+    }
+
     boolean isLegacyClient() {
         return mLegacyClient;
     }
@@ -122,18 +148,6 @@ final class VmsClientInfo {
         }
     }
 
-    Collection<VmsLayersOffering> getAllOfferings() {
-        List<VmsLayersOffering> result = new ArrayList<>(mOfferings.size());
-        synchronized (mLock) {
-            for (int i = 0; i < mOfferings.size(); i++) {
-                int providerId = mOfferings.keyAt(i);
-                Set<VmsLayerDependency> providerOfferings = mOfferings.valueAt(i);
-                result.add(new VmsLayersOffering(new ArraySet<>(providerOfferings), providerId));
-            }
-        }
-        return result;
-    }
-
     boolean hasOffering(int providerId, VmsLayer layer) {
         synchronized (mLock) {
             return mPotentialOfferings.get(providerId, Collections.emptySet()).contains(layer);
@@ -172,6 +186,28 @@ final class VmsClientInfo {
         }
     }
 
+    boolean isMonitoringEnabled() {
+        synchronized (mLock) {
+            return mMonitoringEnabled;
+        }
+    }
+
+    /**
+     * Sets whether the client is sent layer availability changes as deltas rather than as the
+     * full availability state.
+     */
+    void setAvailabilityDeltasEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mAvailabilityDeltasEnabled = enabled;
+        }
+    }
+
+    boolean isAvailabilityDeltasEnabled() {
+        synchronized (mLock) {
+            return mAvailabilityDeltasEnabled;
+        }
+    }
+
     boolean isSubscribed(int providerId, VmsLayer layer) {
         synchronized (mLock) {
             return mMonitoringEnabled
@@ -181,6 +217,69 @@ final class VmsClientInfo {
         }
     }
 
+    /**
+     * Sets or clears the stream used to publish a layer as the given provider.
+     *
+     * @return the stream that was replaced, or {@code null} if there was none
+     */
+    @Nullable
+    VmsRingBuffer setLayerStream(int providerId, VmsLayer layer, @Nullable VmsRingBuffer stream) {
+        synchronized (mLock) {
+            Map<VmsLayer, VmsRingBuffer> providerStreams = mLayerStreams.get(providerId);
+            if (stream == null) {
+                return providerStreams != null ? providerStreams.remove(layer) : null;
+            }
+            if (providerStreams == null) {
+                providerStreams = new ArrayMap<>();
+                mLayerStreams.put(providerId, providerStreams);
+            }
+            return providerStreams.put(layer, stream);
+        }
+    }
+
+    @Nullable
+    VmsRingBuffer getLayerStream(int providerId, VmsLayer layer) {
+        synchronized (mLock) {
+            Map<VmsLayer, VmsRingBuffer> providerStreams = mLayerStreams.get(providerId);
+            return providerStreams != null ? providerStreams.get(layer) : null;
+        }
+    }
+
+    /**
+     * Removes all streams published by this client.
+     *
+     * @return the removed streams by provider ID and layer
+     */
+    SparseArray<Map<VmsLayer, VmsRingBuffer>> clearLayerStreams() {
+        synchronized (mLock) {
+            SparseArray<Map<VmsLayer, VmsRingBuffer>> streams = mLayerStreams.clone();
+            mLayerStreams.clear();
+            return streams;
+        }
+    }
+
+    /**
+     * Records that a stream was sent to this client.
+     *
+     * @return {@code true} if the stream had not been sent to the client before
+     */
+    boolean attachLayerStream(VmsRingBuffer stream) {
+        synchronized (mLock) {
+            return mAttachedLayerStreams.add(stream);
+        }
+    }
+
+    /**
+     * Forgets that a stream was sent to this client.
+     *
+     * @return {@code true} if the stream had been sent to the client
+     */
+    boolean detachLayerStream(VmsRingBuffer stream) {
+        synchronized (mLock) {
+            return mAttachedLayerStreams.remove(stream);
+        }
+    }
+
     void dump(PrintWriter writer, String indent) {
         synchronized (mLock) {
             String prefix = indent;
@@ -190,6 +289,7 @@ final class VmsClientInfo {
             writer.println(prefix + "UID: " + mUid);
             writer.println(prefix + "Legacy Client: " + mLegacyClient);
             writer.println(prefix + "Monitoring: " + mMonitoringEnabled);
+            writer.println(prefix + "Attached Layer Streams: " + mAttachedLayerStreams.size());
 
             if (mProviderIds.size() > 0) {
                 writer.println(prefix + "Offerings:");
@@ -207,6 +307,13 @@ final class VmsClientInfo {
                             writer.println(prefix + "Dependencies: "
                                     + layerOffering.getDependencies());
                         }
+                        VmsRingBuffer stream = mLayerStreams.get(
+                                providerId, Collections.emptyMap()).get(layerOffering.getLayer());
+                        if (stream != null) {
+                            prefix = indent + "        ";
+                            writer.println(prefix + "Stream: " + stream.getSlotCount()
+                                    + " slots of " + stream.getMaxPacketSize() + " bytes");
+                        }
                     }
                 }
             }
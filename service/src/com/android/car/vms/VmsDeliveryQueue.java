@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.vms;
+
+import android.annotation.Nullable;
+import android.car.vms.IVmsClientCallback;
+import android.car.vms.VmsLayer;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.car.stats.VmsClientLogger;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Bounded queue of packets waiting to be delivered to a single VMS subscriber.
+ *
+ * <p>Packets are delivered in order on the given executor, one at a time, so that a slow
+ * subscriber does not hold up the publisher. Packets that are not byte arrays, such as large or
+ * stream packets, go through the same queue as a {@link Delivery}, so that they keep their place
+ * among the others. Each task delivers at most {@link #MAX_PACKETS_PER_PASS} packets and then
+ * submits a new one for the rest, so that a busy subscriber gives its thread back to the
+ * executor. When the queue is full, the configured overflow policy decides which packet is
+ * dropped.
+ */
+final class VmsDeliveryQueue {
+    private static final String TAG = VmsDeliveryQueue.class.getSimpleName();
+
+    /** Drops the oldest pending packet to make room for the new one. */
+    static final int OVERFLOW_DROP_OLDEST = 0;
+    /** Drops the new packet. */
+    static final int OVERFLOW_DROP_NEWEST = 1;
+    /**
+     * Replaces the pending packet of the same layer and provider, if any, with the new one.
+     * Otherwise drops the oldest pending packet.
+     */
+    static final int OVERFLOW_COALESCE_LAYER = 2;
+
+    @VisibleForTesting
+    static final int MAX_PACKETS_PER_PASS = 16;
+
+    /** A packet that is not delivered by {@code onPacketReceived}, such as a large packet. */
+    interface Delivery {
+        /** Sends the packet to the subscriber. */
+        void deliver() throws RemoteException;
+
+        /** Releases the packet once it has been delivered or dropped. */
+        void release();
+    }
+
+    private final IVmsClientCallback mCallback;
+    private final String mPackageName;
+    private final VmsClientLogger mLogger;
+    private final Executor mExecutor;
+    private final int mCapacity;
+    private final int mOverflowPolicy;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayDeque<PendingPacket> mPackets;
+    @GuardedBy("mLock")
+    private boolean mDrainScheduled;
+
+    private final Runnable mDrainRunnable = this::drain;
+
+    VmsDeliveryQueue(IVmsClientCallback callback, String packageName, VmsClientLogger logger,
+            Executor executor, int capacity, int overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (overflowPolicy < OVERFLOW_DROP_OLDEST || overflowPolicy > OVERFLOW_COALESCE_LAYER) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+        }
+        mCallback = callback;
+        mPackageName = packageName;
+        mLogger = logger;
+        mExecutor = executor;
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy;
+        mPackets = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Queues a packet for delivery. Never blocks.
+     */
+    void enqueue(int providerId, VmsLayer layer, byte[] payload) {
+        enqueue(new PendingPacket(providerId, layer, payload, payload.length, null));
+    }
+
+    /**
+     * Queues a packet that is delivered by the given {@link Delivery}, which is released once the
+     * packet is delivered or dropped. Never blocks.
+     *
+     * @param packetLength Size of the packet, for the stats
+     */
+    void enqueue(int providerId, VmsLayer layer, int packetLength, Delivery delivery) {
+        enqueue(new PendingPacket(providerId, layer, null, packetLength, delivery));
+    }
+
+    private void enqueue(PendingPacket packet) {
+        PendingPacket dropped = null;
+        synchronized (mLock) {
+            int size = mPackets.size();
+            if (size >= mCapacity) {
+                dropped = handleOverflowLocked(packet);
+            } else {
+                mPackets.add(packet);
+            }
+            logDepthChangeLocked(mPackets.size() - size);
+            if (!mDrainScheduled) {
+                scheduleDrainLocked();
+            }
+        }
+        if (dropped != null) {
+            mLogger.logDeliveryQueueOverflow(dropped.mLayer, dropped.mLength);
+            dropped.release();
+        }
+    }
+
+    /** Drops all pending packets. */
+    void clear() {
+        synchronized (mLock) {
+            dropAllLocked();
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        synchronized (mLock) {
+            return mPackets.size();
+        }
+    }
+
+    /**
+     * Applies the overflow policy to a full queue.
+     *
+     * @return The packet that was dropped, which is the new one if it was not queued.
+     */
+    @GuardedBy("mLock")
+    private PendingPacket handleOverflowLocked(PendingPacket packet) {
+        switch (mOverflowPolicy) {
+            case OVERFLOW_DROP_NEWEST:
+                return packet;
+            case OVERFLOW_COALESCE_LAYER:
+                Iterator<PendingPacket> it = mPackets.descendingIterator();
+                while (it.hasNext()) {
+                    PendingPacket pending = it.next();
+                    if (pending.mProviderId == packet.mProviderId
+                            && pending.mLayer.equals(packet.mLayer)) {
+                        // The new packet takes the place of the pending one
+                        pending.swapContents(packet);
+                        return packet;
+                    }
+                }
+                // fall through
+            case OVERFLOW_DROP_OLDEST:
+            default:
+                PendingPacket oldest = mPackets.poll();
+                mPackets.add(packet);
+                return oldest;
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < MAX_PACKETS_PER_PASS; i++) {
+            PendingPacket packet;
+            synchronized (mLock) {
+                packet = mPackets.poll();
+                if (packet == null) {
+                    mDrainScheduled = false;
+                    return;
+                }
+                logDepthChangeLocked(-1);
+            }
+            try {
+                if (packet.mDelivery != null) {
+                    packet.mDelivery.deliver();
+                } else {
+                    mCallback.onPacketReceived(packet.mProviderId, packet.mLayer,
+                            packet.mPayload);
+                }
+                mLogger.logPacketReceived(packet.mLayer, packet.mLength);
+            } catch (RemoteException | RuntimeException e) {
+                mLogger.logPacketDropped(packet.mLayer, packet.mLength);
+                Log.e(TAG, String.format("Unable to publish to listener: %s", mPackageName), e);
+            } finally {
+                packet.release();
+            }
+        }
+        synchronized (mLock) {
+            if (mPackets.isEmpty()) {
+                mDrainScheduled = false;
+                return;
+            }
+            // Go to the back of the executor queue, behind the other subscribers
+            scheduleDrainLocked();
+        }
+    }
+
+    /**
+     * Submits a delivery task, or drops the pending packets if the executor no longer accepts
+     * tasks because the broker is being released.
+     */
+    @GuardedBy("mLock")
+    private void scheduleDrainLocked() {
+        mDrainScheduled = true;
+        try {
+            mExecutor.execute(mDrainRunnable);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Dropping pending packets of " + mPackageName, e);
+            dropAllLocked();
+            mDrainScheduled = false;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void dropAllLocked() {
+        for (PendingPacket packet : mPackets) {
+            packet.release();
+        }
+        logDepthChangeLocked(-mPackets.size());
+        mPackets.clear();
+    }
+
+    /**
+     * Reports a change of the queue size. Subscribers that share a UID share a logger, so
+     * changes are reported rather than the size of this queue. Called with the lock held, so
+     * that the changes of a queue are reported in order.
+     */
+    @GuardedBy("mLock")
+    private void logDepthChangeLocked(int delta) {
+        if (delta != 0) {
+            mLogger.logDeliveryQueueDepthChange(delta);
+        }
+    }
+
+    private static final class PendingPacket {
+        final int mProviderId;
+        final VmsLayer mLayer;
+        @Nullable byte[] mPayload;
+        int mLength;
+        @Nullable Delivery mDelivery;
+
+        PendingPacket(int providerId, VmsLayer layer, @Nullable byte[] payload, int length,
+                @Nullable Delivery delivery) {
+            mProviderId = providerId;
+            mLayer = layer;
+            mPayload = payload;
+            mLength = length;
+            mDelivery = delivery;
+        }
+
+        /** Exchanges the packets of two entries of the same layer and provider. */
+        void swapContents(PendingPacket other) {
+            byte[] payload = mPayload;
+            int length = mLength;
+            Delivery delivery = mDelivery;
+            mPayload = other.mPayload;
+            mLength = other.mLength;
+            mDelivery = other.mDelivery;
+            other.mPayload = payload;
+            other.mLength = length;
+            other.mDelivery = delivery;
+        }
+
+        void release() {
+            if (mDelivery != null) {
+                mDelivery.release();
+            }
+        }
+    }
+}
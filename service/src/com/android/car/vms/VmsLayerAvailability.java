@@ -16,22 +16,27 @@
 
 package com.android.car.vms;
 
+import android.annotation.Nullable;
 import android.car.vms.VmsAssociatedLayer;
 import android.car.vms.VmsAvailableLayers;
 import android.car.vms.VmsLayer;
 import android.car.vms.VmsLayerDependency;
 import android.car.vms.VmsLayersOffering;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.annotations.GuardedBy;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Manages VMS availability for layers.
@@ -39,133 +44,341 @@ import java.util.stream.Collectors;
  * Each VMS publisher sets its layers offering which are a list of layers the publisher claims
  * it might publish. VmsLayersAvailability calculates from all the offering what are the
  * available layers.
+ *
+ * Offerings are tracked per owner and provider, and the layer dependency graph is kept up to
+ * date incrementally, so that a change only re-evaluates the layers whose offering changed and
+ * the layers that depend on them.
  */
-
 class VmsLayerAvailability {
     private static final boolean DBG = false;
     private static final String TAG = VmsLayerAvailability.class.getSimpleName();
 
+    /**
+     * Change in layer availability caused by an offering update.
+     */
+    static final class Delta {
+        private final VmsAvailableLayers mAvailableLayers;
+        private final List<VmsAssociatedLayer> mUpdatedLayers;
+        private final List<VmsLayer> mRemovedLayers;
+
+        private Delta(VmsAvailableLayers availableLayers, List<VmsAssociatedLayer> updatedLayers,
+                List<VmsLayer> removedLayers) {
+            mAvailableLayers = availableLayers;
+            mUpdatedLayers = updatedLayers;
+            mRemovedLayers = removedLayers;
+        }
+
+        /** Returns the availability state after the update. */
+        VmsAvailableLayers getAvailableLayers() {
+            return mAvailableLayers;
+        }
+
+        /** Returns the layers that became available or whose providers changed. */
+        List<VmsAssociatedLayer> getUpdatedLayers() {
+            return mUpdatedLayers;
+        }
+
+        /** Returns the layers that are no longer available. */
+        List<VmsLayer> getRemovedLayers() {
+            return mRemovedLayers;
+        }
+    }
+
     private final Object mLock = new Object();
+    // Offerings by owner and provider ID
+    @GuardedBy("mLock")
+    private final Map<Object, SparseArray<Set<VmsLayerDependency>>> mOfferings = new ArrayMap<>();
     @GuardedBy("mLock")
-    private final Map<VmsLayer, Set<Set<VmsLayer>>> mPotentialLayersAndDependencies =
-            new HashMap<>();
+    private final Map<VmsLayer, LayerNode> mLayers = new ArrayMap<>();
     @GuardedBy("mLock")
-    private Set<VmsAssociatedLayer> mAvailableAssociatedLayers = Collections.emptySet();
+    private final Map<VmsLayer, VmsAssociatedLayer> mAvailableAssociatedLayers = new ArrayMap<>();
     @GuardedBy("mLock")
-    private Map<VmsLayer, Set<Integer>> mPotentialLayersAndPublishers = new HashMap<>();
+    private VmsAvailableLayers mAvailableLayers =
+            new VmsAvailableLayers(0, Collections.emptySet());
     @GuardedBy("mLock")
     private int mSeq = 0;
 
     /**
      * Setting the current layers offerings as reported by publishers.
+     *
+     * Replaces all offerings set through this method or
+     * {@link #setProviderOfferings(Object, int, Collection)}.
      */
     void setPublishersOffering(Collection<VmsLayersOffering> publishersLayersOfferings) {
         synchronized (mLock) {
-            reset();
-
+            Set<VmsLayer> changedLayers = new ArraySet<>();
+            for (Object owner : new ArrayList<>(mOfferings.keySet())) {
+                removeOfferingsLocked(owner, changedLayers);
+            }
             for (VmsLayersOffering offering : publishersLayersOfferings) {
-                for (VmsLayerDependency dependency : offering.getDependencies()) {
-                    VmsLayer layer = dependency.getLayer();
-
-                    // Associate publishers with layers.
-                    mPotentialLayersAndPublishers.computeIfAbsent(layer, k -> new HashSet<>())
-                            .add(offering.getPublisherId());
-
-                    // Add dependencies for availability calculation.
-                    mPotentialLayersAndDependencies.computeIfAbsent(layer, k -> new HashSet<>())
-                            .add(dependency.getDependencies());
-                }
+                replaceOfferingsLocked(offering, offering.getPublisherId(),
+                        offering.getDependencies(), changedLayers);
             }
-            calculateLayers();
+            // Each call is a new availability state, even if nothing changed
+            updateLocked(changedLayers, true);
         }
     }
 
     /**
-     * Returns a collection of all the layers which may be published.
+     * Sets the layers offered by an owner as the given provider, replacing its previous offering
+     * for that provider.
+     *
+     * @return the resulting change, or {@code null} if no layer's offering changed
      */
-    VmsAvailableLayers getAvailableLayers() {
+    @Nullable
+    Delta setProviderOfferings(Object owner, int providerId,
+            Collection<VmsLayerDependency> offerings) {
         synchronized (mLock) {
-            return new VmsAvailableLayers(mAvailableAssociatedLayers, mSeq);
+            Set<VmsLayer> changedLayers = new ArraySet<>();
+            replaceOfferingsLocked(owner, providerId, offerings, changedLayers);
+            return updateLocked(changedLayers, false);
         }
     }
 
-    private void reset() {
+    /**
+     * Removes all offerings of an owner.
+     *
+     * @return the resulting change, or {@code null} if no layer's offering changed
+     */
+    @Nullable
+    Delta removeOfferings(Object owner) {
         synchronized (mLock) {
-            mPotentialLayersAndDependencies.clear();
-            mPotentialLayersAndPublishers.clear();
-            mAvailableAssociatedLayers = Collections.emptySet();
-            mSeq += 1;
+            Set<VmsLayer> changedLayers = new ArraySet<>();
+            removeOfferingsLocked(owner, changedLayers);
+            return updateLocked(changedLayers, false);
         }
     }
 
-    private void calculateLayers() {
+    /**
+     * Returns a collection of all the layers which may be published.
+     */
+    VmsAvailableLayers getAvailableLayers() {
         synchronized (mLock) {
-            Set<VmsLayer> availableLayersSet = new HashSet<>();
-            Set<VmsLayer> cyclicAvoidanceAuxiliarySet = new HashSet<>();
+            return mAvailableLayers;
+        }
+    }
 
-            for (VmsLayer layer : mPotentialLayersAndDependencies.keySet()) {
-                addLayerToAvailabilityCalculationLocked(layer,
-                        availableLayersSet,
-                        cyclicAvoidanceAuxiliarySet);
+    @GuardedBy("mLock")
+    private void replaceOfferingsLocked(Object owner, int providerId,
+            Collection<VmsLayerDependency> offerings, Set<VmsLayer> changedLayers) {
+        SparseArray<Set<VmsLayerDependency>> ownerOfferings = mOfferings.get(owner);
+        if (ownerOfferings == null) {
+            ownerOfferings = new SparseArray<>();
+            mOfferings.put(owner, ownerOfferings);
+        }
+        Set<VmsLayerDependency> newOfferings = new ArraySet<>(offerings);
+        Set<VmsLayerDependency> oldOfferings = ownerOfferings.get(providerId);
+        // Add before removing, so that layers offered both times keep their graph nodes
+        for (VmsLayerDependency dependency : newOfferings) {
+            addDependencyLocked(providerId, dependency, changedLayers);
+        }
+        if (oldOfferings != null) {
+            for (VmsLayerDependency dependency : oldOfferings) {
+                removeDependencyLocked(providerId, dependency, changedLayers);
             }
+        }
 
-            mAvailableAssociatedLayers = Collections.unmodifiableSet(
-                    availableLayersSet
-                            .stream()
-                            .map(l -> new VmsAssociatedLayer(l,
-                                    mPotentialLayersAndPublishers.get(l)))
-                            .collect(Collectors.toSet()));
+        if (newOfferings.isEmpty()) {
+            ownerOfferings.remove(providerId);
+            if (ownerOfferings.size() == 0) {
+                mOfferings.remove(owner);
+            }
+        } else {
+            ownerOfferings.put(providerId, newOfferings);
         }
     }
 
     @GuardedBy("mLock")
-    private void addLayerToAvailabilityCalculationLocked(VmsLayer layer,
-                                                         Set<VmsLayer> currentAvailableLayers,
-                                                         Set<VmsLayer> cyclicAvoidanceSet) {
-        if (DBG) {
-            Log.d(TAG, "addLayerToAvailabilityCalculationLocked: checking layer: " + layer);
-        }
-        // If we already know that this layer is supported then we are done.
-        if (currentAvailableLayers.contains(layer)) {
+    private void removeOfferingsLocked(Object owner, Set<VmsLayer> changedLayers) {
+        SparseArray<Set<VmsLayerDependency>> ownerOfferings = mOfferings.remove(owner);
+        if (ownerOfferings == null) {
             return;
         }
-        // If there is no offering for this layer we're done.
-        if (!mPotentialLayersAndDependencies.containsKey(layer)) {
-            return;
+        for (int i = 0; i < ownerOfferings.size(); i++) {
+            int providerId = ownerOfferings.keyAt(i);
+            for (VmsLayerDependency dependency : ownerOfferings.valueAt(i)) {
+                removeDependencyLocked(providerId, dependency, changedLayers);
+            }
         }
-        // Avoid cyclic dependency.
-        if (cyclicAvoidanceSet.contains(layer)) {
-            Log.e(TAG, "Detected a cyclic dependency: " + cyclicAvoidanceSet + " -> " + layer);
-            return;
+    }
+
+    @GuardedBy("mLock")
+    private void addDependencyLocked(int providerId, VmsLayerDependency dependency,
+            Set<VmsLayer> changedLayers) {
+        VmsLayer layer = dependency.getLayer();
+        LayerNode node = getOrCreateNodeLocked(layer);
+        int providerCount = node.mProviderCounts.get(providerId) + 1;
+        node.mProviderCounts.put(providerId, providerCount);
+        if (providerCount == 1) {
+            changedLayers.add(layer);
         }
-        // A layer may have multiple dependency sets. The layer is available if any dependency
-        // set is satisfied
-        for (Set<VmsLayer> dependencies : mPotentialLayersAndDependencies.get(layer)) {
-            // If layer does not have any dependencies then add to supported.
-            if (dependencies == null || dependencies.isEmpty()) {
-                currentAvailableLayers.add(layer);
-                return;
+
+        Set<VmsLayer> dependencies = dependency.getDependencies();
+        int dependencyCount = node.mDependencyCounts.getOrDefault(dependencies, 0) + 1;
+        node.mDependencyCounts.put(dependencies, dependencyCount);
+        if (dependencyCount == 1) {
+            changedLayers.add(layer);
+            for (VmsLayer dependencyLayer : dependencies) {
+                LayerNode dependencyNode = getOrCreateNodeLocked(dependencyLayer);
+                dependencyNode.mDependentCounts.put(layer,
+                        dependencyNode.mDependentCounts.getOrDefault(layer, 0) + 1);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void removeDependencyLocked(int providerId, VmsLayerDependency dependency,
+            Set<VmsLayer> changedLayers) {
+        VmsLayer layer = dependency.getLayer();
+        LayerNode node = mLayers.get(layer);
+        int providerCount = node.mProviderCounts.get(providerId) - 1;
+        if (providerCount == 0) {
+            node.mProviderCounts.delete(providerId);
+            changedLayers.add(layer);
+        } else {
+            node.mProviderCounts.put(providerId, providerCount);
+        }
+
+        Set<VmsLayer> dependencies = dependency.getDependencies();
+        int dependencyCount = node.mDependencyCounts.get(dependencies) - 1;
+        if (dependencyCount == 0) {
+            node.mDependencyCounts.remove(dependencies);
+            changedLayers.add(layer);
+            for (VmsLayer dependencyLayer : dependencies) {
+                LayerNode dependencyNode = mLayers.get(dependencyLayer);
+                int dependentCount = dependencyNode.mDependentCounts.get(layer) - 1;
+                if (dependentCount == 0) {
+                    dependencyNode.mDependentCounts.remove(layer);
+                    removeNodeIfUnusedLocked(dependencyLayer, dependencyNode);
+                } else {
+                    dependencyNode.mDependentCounts.put(layer, dependentCount);
+                }
+            }
+        } else {
+            node.mDependencyCounts.put(dependencies, dependencyCount);
+        }
+        removeNodeIfUnusedLocked(layer, node);
+    }
+
+    @GuardedBy("mLock")
+    private LayerNode getOrCreateNodeLocked(VmsLayer layer) {
+        LayerNode node = mLayers.get(layer);
+        if (node == null) {
+            node = new LayerNode();
+            mLayers.put(layer, node);
+        }
+        return node;
+    }
+
+    @GuardedBy("mLock")
+    private void removeNodeIfUnusedLocked(VmsLayer layer, LayerNode node) {
+        if (node.mDependencyCounts.isEmpty() && node.mDependentCounts.isEmpty()) {
+            mLayers.remove(layer);
+        }
+    }
+
+    /**
+     * Re-evaluates the availability of the changed layers and of every layer that depends on
+     * them, directly or not. The availability of all other layers is unaffected.
+     */
+    @GuardedBy("mLock")
+    @Nullable
+    private Delta updateLocked(Set<VmsLayer> changedLayers, boolean force) {
+        if (changedLayers.isEmpty() && !force) {
+            return null;
+        }
+        mSeq += 1;
+
+        Set<VmsLayer> affectedLayers = new ArraySet<>();
+        ArrayDeque<VmsLayer> pending = new ArrayDeque<>(changedLayers);
+        while (!pending.isEmpty()) {
+            VmsLayer layer = pending.poll();
+            if (!affectedLayers.add(layer)) {
+                continue;
+            }
+            LayerNode node = mLayers.get(layer);
+            if (node != null) {
+                node.mAvailable = false;
+                pending.addAll(node.mDependentCounts.keySet());
             }
-            // Add the layer to cyclic avoidance set
-            cyclicAvoidanceSet.add(layer);
+        }
+        if (DBG) Log.d(TAG, "Re-evaluating layers: " + affectedLayers);
 
+        // Layers only become available once one of their dependency sets is, so cyclic
+        // dependencies are never satisfied.
+        pending.addAll(affectedLayers);
+        while (!pending.isEmpty()) {
+            VmsLayer layer = pending.poll();
+            LayerNode node = mLayers.get(layer);
+            if (node == null || node.mAvailable || !isSatisfiedLocked(node)) {
+                continue;
+            }
+            node.mAvailable = true;
+            for (VmsLayer dependent : node.mDependentCounts.keySet()) {
+                if (affectedLayers.contains(dependent)) {
+                    pending.add(dependent);
+                }
+            }
+        }
+
+        List<VmsAssociatedLayer> updatedLayers = new ArrayList<>();
+        List<VmsLayer> removedLayers = new ArrayList<>();
+        for (VmsLayer layer : affectedLayers) {
+            LayerNode node = mLayers.get(layer);
+            if (node != null && node.mAvailable) {
+                VmsAssociatedLayer associatedLayer =
+                        new VmsAssociatedLayer(layer, node.getProviderIds());
+                if (!associatedLayer.equals(
+                        mAvailableAssociatedLayers.put(layer, associatedLayer))) {
+                    updatedLayers.add(associatedLayer);
+                }
+            } else if (mAvailableAssociatedLayers.remove(layer) != null) {
+                removedLayers.add(layer);
+            }
+        }
+
+        mAvailableLayers = new VmsAvailableLayers(mSeq,
+                new ArraySet<>(mAvailableAssociatedLayers.values()));
+        return new Delta(mAvailableLayers, updatedLayers, removedLayers);
+    }
+
+    @GuardedBy("mLock")
+    private boolean isSatisfiedLocked(LayerNode node) {
+        // A layer may have multiple dependency sets. The layer is available if any dependency
+        // set is satisfied
+        for (Set<VmsLayer> dependencies : node.mDependencyCounts.keySet()) {
             boolean isSupported = true;
             for (VmsLayer dependency : dependencies) {
-                addLayerToAvailabilityCalculationLocked(dependency,
-                        currentAvailableLayers,
-                        cyclicAvoidanceSet);
-
-                if (!currentAvailableLayers.contains(dependency)) {
+                LayerNode dependencyNode = mLayers.get(dependency);
+                if (dependencyNode == null || !dependencyNode.mAvailable) {
                     isSupported = false;
                     break;
                 }
             }
-            cyclicAvoidanceSet.remove(layer);
-
             if (isSupported) {
-                currentAvailableLayers.add(layer);
-                return;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Layer in the dependency graph. Counts track how many offerings contributed each entry, so
+     * that identical offerings from several owners are only removed with the last one.
+     */
+    private static final class LayerNode {
+        final SparseIntArray mProviderCounts = new SparseIntArray();
+        final Map<Set<VmsLayer>, Integer> mDependencyCounts = new ArrayMap<>();
+        // Layers with a dependency set that includes this layer
+        final Map<VmsLayer, Integer> mDependentCounts = new ArrayMap<>();
+        boolean mAvailable;
+
+        Set<Integer> getProviderIds() {
+            Set<Integer> providerIds = new ArraySet<>(mProviderCounts.size());
+            for (int i = 0; i < mProviderCounts.size(); i++) {
+                providerIds.add(mProviderCounts.keyAt(i));
             }
+            return providerIds;
         }
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.vms;
+
+import android.car.vms.VmsLayer;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable index of the clients subscribed to each (layer, provider) pair.
+ *
+ * <p>Lists returned by {@link #getSubscribers(int, VmsLayer)} already include clients that
+ * subscribed to the whole layer and clients with monitoring enabled, so that a packet is
+ * delivered with a single lookup.
+ */
+final class VmsSubscriberIndex {
+    static final VmsSubscriberIndex EMPTY = new VmsSubscriberIndex(Collections.emptyList(),
+            Collections.emptyMap(), Collections.emptyMap());
+
+    private final List<VmsClientInfo> mMonitoringClients;
+    // Layer subscribers plus monitoring clients
+    private final Map<VmsLayer, List<VmsClientInfo>> mLayerSubscribers;
+    // Provider-specific subscribers plus layer subscribers and monitoring clients
+    private final Map<VmsLayer, SparseArray<List<VmsClientInfo>>> mProviderSubscribers;
+
+    private VmsSubscriberIndex(List<VmsClientInfo> monitoringClients,
+            Map<VmsLayer, List<VmsClientInfo>> layerSubscribers,
+            Map<VmsLayer, SparseArray<List<VmsClientInfo>>> providerSubscribers) {
+        mMonitoringClients = monitoringClients;
+        mLayerSubscribers = layerSubscribers;
+        mProviderSubscribers = providerSubscribers;
+    }
+
+    /**
+     * Builds an index from the current subscriptions of the given clients.
+     */
+    static VmsSubscriberIndex create(Collection<VmsClientInfo> clients) {
+        Set<VmsClientInfo> monitoringClients = new ArraySet<>();
+        Map<VmsLayer, Set<VmsClientInfo>> layerSubscribers = new ArrayMap<>();
+        Map<VmsLayer, SparseArray<Set<VmsClientInfo>>> providerSubscribers = new ArrayMap<>();
+
+        for (VmsClientInfo client : clients) {
+            if (client.isMonitoringEnabled()) {
+                monitoringClients.add(client);
+            }
+            for (VmsLayer layer : client.getLayerSubscriptions()) {
+                layerSubscribers.computeIfAbsent(layer, ignored -> new ArraySet<>()).add(client);
+            }
+            client.getLayerAndProviderSubscriptions().forEach((layer, providerIds) -> {
+                SparseArray<Set<VmsClientInfo>> providers =
+                        providerSubscribers.computeIfAbsent(layer, ignored -> new SparseArray<>());
+                for (int providerId : providerIds) {
+                    Set<VmsClientInfo> subscribers = providers.get(providerId);
+                    if (subscribers == null) {
+                        subscribers = new ArraySet<>();
+                        providers.put(providerId, subscribers);
+                    }
+                    subscribers.add(client);
+                }
+            });
+        }
+
+        Map<VmsLayer, List<VmsClientInfo>> layerIndex = new ArrayMap<>(layerSubscribers.size());
+        layerSubscribers.forEach((layer, subscribers) -> {
+            subscribers.addAll(monitoringClients);
+            layerIndex.put(layer, toList(subscribers));
+        });
+
+        Map<VmsLayer, SparseArray<List<VmsClientInfo>>> providerIndex =
+                new ArrayMap<>(providerSubscribers.size());
+        providerSubscribers.forEach((layer, providers) -> {
+            Set<VmsClientInfo> layerLevelSubscribers =
+                    layerSubscribers.getOrDefault(layer, Collections.emptySet());
+            SparseArray<List<VmsClientInfo>> providerLists = new SparseArray<>(providers.size());
+            for (int i = 0; i < providers.size(); i++) {
+                Set<VmsClientInfo> subscribers = providers.valueAt(i);
+                subscribers.addAll(layerLevelSubscribers);
+                subscribers.addAll(monitoringClients);
+                providerLists.append(providers.keyAt(i), toList(subscribers));
+            }
+            providerIndex.put(layer, providerLists);
+        });
+
+        return new VmsSubscriberIndex(toList(monitoringClients), layerIndex, providerIndex);
+    }
+
+    /**
+     * Returns the clients that should receive a packet published for {@code layer} by
+     * {@code providerId}. The returned list must not be modified.
+     */
+    List<VmsClientInfo> getSubscribers(int providerId, VmsLayer layer) {
+        SparseArray<List<VmsClientInfo>> providers = mProviderSubscribers.get(layer);
+        if (providers != null) {
+            List<VmsClientInfo> subscribers = providers.get(providerId);
+            if (subscribers != null) {
+                return subscribers;
+            }
+        }
+        return mLayerSubscribers.getOrDefault(layer, mMonitoringClients);
+    }
+
+    private static List<VmsClientInfo> toList(Set<VmsClientInfo> clients) {
+        return Collections.unmodifiableList(new ArrayList<>(clients));
+    }
+}
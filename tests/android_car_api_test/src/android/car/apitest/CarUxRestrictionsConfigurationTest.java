@@ -638,6 +638,103 @@ public class CarUxRestrictionsConfigurationTest {
         assertThat(baseline.getActiveRestrictions()).isEqualTo(UX_RESTRICTIONS_NO_VIDEO);
     }
 
+    @Test
+    public void testGetSpeedBucket_ChangesOnlyAtRangeBoundaries() {
+        CarUxRestrictionsConfiguration config = new Builder()
+                .setUxRestrictions(DRIVING_STATE_MOVING, new DrivingStateRestrictions()
+                        .setDistractionOptimizationRequired(true)
+                        .setRestrictions(UX_RESTRICTIONS_NO_VIDEO)
+                        .setSpeedRange(new Builder.SpeedRange(0f, 5f)))
+                .setUxRestrictions(DRIVING_STATE_MOVING, new DrivingStateRestrictions()
+                        .setDistractionOptimizationRequired(true)
+                        .setRestrictions(UX_RESTRICTIONS_FULLY_RESTRICTED)
+                        .setSpeedRange(new Builder.SpeedRange(5f, MAX_SPEED)))
+                .build();
+
+        int lowBucket = config.getSpeedBucket(DRIVING_STATE_MOVING, 0f,
+                UX_RESTRICTION_MODE_BASELINE);
+        int highBucket = config.getSpeedBucket(DRIVING_STATE_MOVING, 5f,
+                UX_RESTRICTION_MODE_BASELINE);
+
+        assertThat(config.getSpeedBucket(DRIVING_STATE_MOVING, 4.9f,
+                UX_RESTRICTION_MODE_BASELINE)).isEqualTo(lowBucket);
+        assertThat(config.getSpeedBucket(DRIVING_STATE_MOVING, 100f,
+                UX_RESTRICTION_MODE_BASELINE)).isEqualTo(highBucket);
+        assertThat(highBucket).isNotEqualTo(lowBucket);
+        assertThat(config.getUxRestrictions(DRIVING_STATE_MOVING, 4.9f).getActiveRestrictions())
+                .isEqualTo(UX_RESTRICTIONS_NO_VIDEO);
+        assertThat(config.getUxRestrictions(DRIVING_STATE_MOVING, 5f).getActiveRestrictions())
+                .isEqualTo(UX_RESTRICTIONS_FULLY_RESTRICTED);
+    }
+
+    @Test
+    public void testGetSpeedBucket_PassengerModeSplitsAtFallbackBoundary() {
+        CarUxRestrictionsConfiguration config = new Builder()
+                .setUxRestrictions(DRIVING_STATE_MOVING, new DrivingStateRestrictions()
+                        .setDistractionOptimizationRequired(true)
+                        .setRestrictions(UX_RESTRICTIONS_NO_VIDEO))
+                .setUxRestrictions(DRIVING_STATE_MOVING, new DrivingStateRestrictions()
+                        .setDistractionOptimizationRequired(false)
+                        .setRestrictions(UX_RESTRICTIONS_BASELINE)
+                        .setMode(UX_RESTRICTION_MODE_PASSENGER)
+                        .setSpeedRange(new Builder.SpeedRange(3f)))
+                .build();
+
+        assertThat(config.getSpeedBucket(DRIVING_STATE_MOVING, 1f, UX_RESTRICTION_MODE_PASSENGER))
+                .isNotEqualTo(config.getSpeedBucket(DRIVING_STATE_MOVING, 3f,
+                        UX_RESTRICTION_MODE_PASSENGER));
+        // Baseline has a single restriction covering all speeds.
+        assertThat(config.getSpeedBucket(DRIVING_STATE_MOVING, 1f, UX_RESTRICTION_MODE_BASELINE))
+                .isEqualTo(config.getSpeedBucket(DRIVING_STATE_MOVING, 3f,
+                        UX_RESTRICTION_MODE_BASELINE));
+    }
+
+    @Test
+    public void testGetSpeedBoundaries_UnionOfAllModes() {
+        CarUxRestrictionsConfiguration config = new Builder()
+                .setUxRestrictions(DRIVING_STATE_MOVING, new DrivingStateRestrictions()
+                        .setDistractionOptimizationRequired(true)
+                        .setRestrictions(UX_RESTRICTIONS_NO_VIDEO)
+                        .setSpeedRange(new Builder.SpeedRange(0f, 5f)))
+                .setUxRestrictions(DRIVING_STATE_MOVING, new DrivingStateRestrictions()
+                        .setDistractionOptimizationRequired(true)
+                        .setRestrictions(UX_RESTRICTIONS_FULLY_RESTRICTED)
+                        .setSpeedRange(new Builder.SpeedRange(5f, MAX_SPEED)))
+                .setUxRestrictions(DRIVING_STATE_MOVING, new DrivingStateRestrictions()
+                        .setDistractionOptimizationRequired(false)
+                        .setRestrictions(UX_RESTRICTIONS_BASELINE)
+                        .setMode(UX_RESTRICTION_MODE_PASSENGER)
+                        .setSpeedRange(new Builder.SpeedRange(3f)))
+                .build();
+
+        assertThat(config.getSpeedBoundaries()).isEqualTo(new float[] {0f, 3f, 5f, MAX_SPEED});
+    }
+
+    @Test
+    public void testGetUxRestrictions_AfterParcel_UsesSpeedRanges() {
+        CarUxRestrictionsConfiguration config = new Builder()
+                .setUxRestrictions(DRIVING_STATE_MOVING, new DrivingStateRestrictions()
+                        .setDistractionOptimizationRequired(true)
+                        .setRestrictions(UX_RESTRICTIONS_NO_VIDEO)
+                        .setSpeedRange(new Builder.SpeedRange(0f, 5f)))
+                .setUxRestrictions(DRIVING_STATE_MOVING, new DrivingStateRestrictions()
+                        .setDistractionOptimizationRequired(true)
+                        .setRestrictions(UX_RESTRICTIONS_FULLY_RESTRICTED)
+                        .setSpeedRange(new Builder.SpeedRange(5f, MAX_SPEED)))
+                .build();
+        Parcel parcel = Parcel.obtain();
+        config.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+
+        CarUxRestrictionsConfiguration deserialized =
+                CarUxRestrictionsConfiguration.CREATOR.createFromParcel(parcel);
+
+        assertThat(deserialized.getUxRestrictions(DRIVING_STATE_MOVING, 1f)
+                .getActiveRestrictions()).isEqualTo(UX_RESTRICTIONS_NO_VIDEO);
+        assertThat(deserialized.getUxRestrictions(DRIVING_STATE_MOVING, 10f)
+                .getActiveRestrictions()).isEqualTo(UX_RESTRICTIONS_FULLY_RESTRICTED);
+    }
+
     @Test
     public void testHasSameParameters_SameParameters() {
         CarUxRestrictionsConfiguration one = new CarUxRestrictionsConfiguration.Builder()
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.perf;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.Arrays;
+
+/**
+ * Collects per-operation latencies and allocation counts of one benchmark run, and reports them
+ * as instrumentation status so that they show up in {@code am instrument -r} output.
+ */
+final class BenchmarkResult {
+    private static final String TAG = "CarServicePerfTest";
+
+    private final String mName;
+    private final long[] mLatenciesNs;
+    private int mCount;
+    private long mTotalNs;
+    private long mAllocations;
+
+    BenchmarkResult(String name, int capacity) {
+        mName = name;
+        mLatenciesNs = new long[capacity];
+    }
+
+    /** Records the latency of one operation. */
+    void addLatency(long latencyNs) {
+        mLatenciesNs[mCount++] = latencyNs;
+    }
+
+    void setTotalTime(long totalNs) {
+        mTotalNs = totalNs;
+    }
+
+    void setAllocations(long allocations) {
+        mAllocations = allocations;
+    }
+
+    long percentile(int percent) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mLatenciesNs, mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percent / 100.0 * mCount) - 1;
+        return sorted[Math.max(0, Math.min(index, mCount - 1))];
+    }
+
+    double throughputPerSecond() {
+        return mTotalNs == 0 ? 0 : mCount * 1_000_000_000.0 / mTotalNs;
+    }
+
+    double allocationsPerOperation() {
+        return mCount == 0 ? 0 : (double) mAllocations / mCount;
+    }
+
+    /** Logs the result and sends it as instrumentation status. */
+    void report() {
+        Bundle status = new Bundle();
+        status.putLong(mName + "_p50_ns", percentile(50));
+        status.putLong(mName + "_p90_ns", percentile(90));
+        status.putLong(mName + "_p99_ns", percentile(99));
+        status.putLong(mName + "_max_ns", percentile(100));
+        status.putDouble(mName + "_ops_per_s", throughputPerSecond());
+        status.putDouble(mName + "_allocs_per_op", allocationsPerOperation());
+        Log.i(TAG, mName + ": " + status);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.perf;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.car.hardware.property.CarPropertyEvent;
+import android.car.hardware.property.ICarPropertyEventListener;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageManager;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyAccess;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropertyChangeMode;
+import android.os.Debug;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.car.CarPropertyService;
+import com.android.car.CarServiceUtils;
+import com.android.car.hal.VehicleHal;
+import com.android.car.vehiclehal.VehiclePropValueBuilder;
+import com.android.car.vehiclehal.test.MockedVehicleHal;
+import com.android.car.vehiclehal.test.MockedVehicleHal.DefaultPropertyHandler;
+import com.android.car.vehiclehal.test.VehiclePropConfigBuilder;
+
+import com.google.common.collect.Range;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Measures the vehicle property event path from {@link VehicleHal#onPropertyEvent} through
+ * {@code PropertyHalService} and {@link CarPropertyService} to the registered listeners.
+ *
+ * <p>The vehicle HAL is replaced by {@link MockedVehicleHal} and listeners are in-process
+ * {@link ICarPropertyEventListener} stubs, so the numbers exclude the HIDL and binder hops but
+ * include everything car service does per event. Events carry timestamps spaced by the given
+ * rate, and subscriber {@code i} registers at that rate divided by {@code 2^(i % 4)}, so that
+ * the per-client rate decimation in {@link CarPropertyService} drops part of the events for most
+ * subscribers, as it does for real clients that ask for less than the HAL rate.
+ *
+ * <p>Run with:
+ * <pre>
+ * atest CarServicePerfTest:PropertyEventPathBenchmark
+ * </pre>
+ * Results (latency percentiles, events per second and allocations per event) are logged and
+ * reported as instrumentation status.
+ */
+@RunWith(Parameterized.class)
+public class PropertyEventPathBenchmark {
+    private static final int PROPERTY = VehicleProperty.PERF_VEHICLE_SPEED;
+    private static final int WARMUP_EVENTS = 2_000;
+    private static final int MEASURED_EVENTS = 20_000;
+    // Subscribers register at the event rate divided by 1, 2, 4 and 8 in turn
+    private static final int RATE_DIVISOR_STEPS = 4;
+
+    private final int mSubscribers;
+    private final float mEventRateHz;
+
+    private final MockedVehicleHal mMockedVehicleHal = new MockedVehicleHal();
+    private final List<CountingListener> mListeners = new ArrayList<>();
+    private VehicleHal mVehicleHal;
+    private CarPropertyService mCarPropertyService;
+
+    @Parameters(name = "{0} subscribers, {1} Hz")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][] {
+                {1, 10f}, {1, 100f}, {1, 1000f},
+                {10, 10f}, {10, 100f}, {10, 1000f},
+                {100, 10f}, {100, 100f}, {100, 1000f},
+        });
+    }
+
+    public PropertyEventPathBenchmark(int subscribers, float eventRateHz) {
+        mSubscribers = subscribers;
+        mEventRateHz = eventRateHz;
+    }
+
+    @Before
+    public void setUp() {
+        Context context = new PermissionGrantingContext(
+                InstrumentationRegistry.getInstrumentation().getTargetContext());
+        VehiclePropConfig config = VehiclePropConfigBuilder.newBuilder(PROPERTY)
+                .setAccess(VehiclePropertyAccess.READ)
+                .setChangeMode(VehiclePropertyChangeMode.CONTINUOUS)
+                .addAreaConfig(0)
+                .build();
+        config.minSampleRate = 1f;
+        config.maxSampleRate = 1000f;
+        mMockedVehicleHal.addProperty(config, new DefaultPropertyHandler(config,
+                newSpeedEvent(0, 0L)));
+
+        mVehicleHal = new VehicleHal(context, mMockedVehicleHal);
+        mVehicleHal.init();
+        mCarPropertyService = new CarPropertyService(context, mVehicleHal.getPropertyHal());
+        mCarPropertyService.init();
+
+        for (int i = 0; i < mSubscribers; i++) {
+            CountingListener listener = new CountingListener(1 << (i % RATE_DIVISOR_STEPS));
+            mCarPropertyService.registerListener(PROPERTY, mEventRateHz / listener.mRateDivisor,
+                    listener);
+            mListeners.add(listener);
+        }
+        // Wait for the initial values to be delivered so they do not disturb the measurement.
+        CarServiceUtils.finishAllHandlerTasks();
+    }
+
+    @After
+    public void tearDown() {
+        mCarPropertyService.release();
+        mVehicleHal.release();
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void benchmarkPropertyEvent() {
+        long periodNs = (long) (1_000_000_000L / mEventRateHz);
+        VehiclePropValue[] events = new VehiclePropValue[WARMUP_EVENTS + MEASURED_EVENTS];
+        for (int i = 0; i < events.length; i++) {
+            // Start after the initial value so that no event is older than it.
+            events[i] = newSpeedEvent(i % 100, (i + 1) * periodNs);
+        }
+        ArrayList<VehiclePropValue> batch = new ArrayList<>(1);
+
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            dispatch(batch, events[i]);
+        }
+        resetListeners();
+
+        BenchmarkResult result = new BenchmarkResult(
+                "property_event_" + mSubscribers + "_subscribers_" + (int) mEventRateHz + "hz",
+                MEASURED_EVENTS);
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = WARMUP_EVENTS; i < events.length; i++) {
+            long eventStart = System.nanoTime();
+            dispatch(batch, events[i]);
+            result.addLatency(System.nanoTime() - eventStart);
+        }
+        result.setTotalTime(System.nanoTime() - start);
+        result.setAllocations(Debug.getThreadAllocCount());
+        Debug.stopAllocCounting();
+        result.report();
+
+        for (CountingListener listener : mListeners) {
+            // Allow for rounding of the decimation period
+            int expected = MEASURED_EVENTS / listener.mRateDivisor;
+            assertThat(listener.mEventCount).isIn(Range.closed(expected - 1, expected + 1));
+        }
+    }
+
+    private void dispatch(ArrayList<VehiclePropValue> batch, VehiclePropValue event) {
+        batch.add(event);
+        mVehicleHal.onPropertyEvent(batch);
+        batch.clear();
+    }
+
+    private void resetListeners() {
+        for (CountingListener listener : mListeners) {
+            listener.mEventCount = 0;
+        }
+    }
+
+    private static VehiclePropValue newSpeedEvent(float speed, long timestampNs) {
+        return VehiclePropValueBuilder.newBuilder(PROPERTY)
+                .addFloatValue(speed)
+                .setTimestamp(timestampNs)
+                .build();
+    }
+
+    /** Stand-in for a client listener that only counts the events it gets. */
+    private static final class CountingListener extends ICarPropertyEventListener.Stub {
+        private final int mRateDivisor;
+        private int mEventCount;
+
+        CountingListener(int rateDivisor) {
+            mRateDivisor = rateDivisor;
+        }
+
+        @Override
+        public void onEvent(List<CarPropertyEvent> events) {
+            mEventCount += events.size();
+        }
+    }
+
+    /** Grants every permission so that listeners can be registered from the test process. */
+    private static final class PermissionGrantingContext extends ContextWrapper {
+        PermissionGrantingContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public int checkCallingOrSelfPermission(String permission) {
+            return PackageManager.PERMISSION_GRANTED;
+        }
+    }
+}
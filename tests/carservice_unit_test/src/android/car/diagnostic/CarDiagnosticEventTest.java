@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.diagnostic;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.testng.Assert.assertThrows;
+
+import android.os.Parcel;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CarDiagnosticEventTest {
+    private static final long TIMESTAMP = 1000;
+    private static final String DTC = "P0010";
+
+    @Test
+    public void testCreateFromHalValues_onlyPresentSensors() {
+        // Integer sensors 0 and 2 present, float sensor 1 present (bit 4 + 1)
+        CarDiagnosticEvent event = CarDiagnosticEvent.createFromHalValues(
+                CarDiagnosticManager.FRAME_TYPE_LIVE, TIMESTAMP,
+                Arrays.asList(10, 11, 12, 13), 4,
+                Arrays.asList(1.5f, 2.5f), 2,
+                Arrays.asList((byte) 0x25), "");
+
+        assertThat(event.getVendorIntegerSensor(0)).isEqualTo(10);
+        assertThat(event.getVendorIntegerSensor(1)).isNull();
+        assertThat(event.getVendorIntegerSensor(2)).isEqualTo(12);
+        assertThat(event.getVendorIntegerSensor(3)).isNull();
+        assertThat(event.getVendorFloatSensor(0)).isNull();
+        assertThat(event.getVendorFloatSensor(1)).isEqualTo(2.5f);
+        assertThat(event.getVendorIntegerSensor(1, -1)).isEqualTo(-1);
+        assertThat(event.getVendorFloatSensor(5, -1f)).isEqualTo(-1f);
+    }
+
+    @Test
+    public void testCreateFromHalValues_equalsBuilder() {
+        CarDiagnosticEvent event = CarDiagnosticEvent.createFromHalValues(
+                CarDiagnosticManager.FRAME_TYPE_FREEZE, TIMESTAMP,
+                Arrays.asList(10, 11, 12, 13), 4,
+                Arrays.asList(1.5f, 2.5f), 2,
+                Arrays.asList((byte) 0x25), DTC);
+        CarDiagnosticEvent built = CarDiagnosticEvent.Builder.newFreezeFrameBuilder()
+                .setTimeStamp(TIMESTAMP)
+                .setIntValue(0, 10)
+                .setIntValue(2, 12)
+                .setFloatValue(1, 2.5f)
+                .setDtc(DTC)
+                .build();
+
+        assertThat(event).isEqualTo(built);
+        assertThat(event.hashCode()).isEqualTo(built.hashCode());
+    }
+
+    @Test
+    public void testParcel() {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .setTimeStamp(TIMESTAMP)
+                .setIntValue(1, 7)
+                .setIntValue(100, 8)
+                .setFloatValue(3, 0.5f)
+                .build();
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            event.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            CarDiagnosticEvent copy = CarDiagnosticEvent.CREATOR.createFromParcel(parcel);
+
+            assertThat(copy).isEqualTo(event);
+            assertThat(copy.getVendorIntegerSensor(100)).isEqualTo(8);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newFreezeFrameBuilder()
+                .setTimeStamp(TIMESTAMP)
+                .setIntValue(2, 7)
+                .setIntValue(70, 8)
+                .setFloatValue(0, 0.5f)
+                .setDtc(DTC)
+                .build();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        event.writeToStream(new DataOutputStream(bytes));
+
+        CarDiagnosticEvent copy = CarDiagnosticEvent.readFromStream(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertThat(copy).isEqualTo(event);
+    }
+
+    @Test
+    public void testStream_truncated() throws Exception {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .setIntValue(2, 7)
+                .build();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        event.writeToStream(new DataOutputStream(bytes));
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 2);
+
+        assertThrows(IOException.class, () -> CarDiagnosticEvent.readFromStream(
+                new DataInputStream(new ByteArrayInputStream(truncated))));
+    }
+
+    @Test
+    public void testBuilder_frameNotChangedByLaterValues() {
+        CarDiagnosticEvent.Builder builder = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .setIntValue(0, 1);
+        CarDiagnosticEvent event = builder.build();
+
+        builder.setIntValue(0, 2).setIntValue(1, 3);
+
+        assertThat(event.getVendorIntegerSensor(0)).isEqualTo(1);
+        assertThat(event.getVendorIntegerSensor(1)).isNull();
+    }
+
+    @Test
+    public void testBuilder_negativeKey() {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .setIntValue(-1, 5)
+                .setFloatValue(-2, 0.5f)
+                .setIntValue(0, 6)
+                .build();
+
+        assertThat(event.getVendorIntegerSensor(-1)).isEqualTo(5);
+        assertThat(event.getVendorFloatSensor(-2)).isEqualTo(0.5f);
+        assertThat(event.getVendorIntegerSensor(0)).isEqualTo(6);
+        assertThat(event.getVendorIntegerSensor(-2)).isNull();
+        assertThat(event.toString()).contains("{-1=5, 0=6}");
+    }
+
+    @Test
+    public void testBuilder_largeKeyNotStoredDensely() {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .setIntValue(1_000_000, 5)
+                .setFloatValue(Integer.MAX_VALUE, 0.5f)
+                .build();
+
+        assertThat(event.getVendorIntegerSensor(1_000_000)).isEqualTo(5);
+        assertThat(event.getVendorFloatSensor(Integer.MAX_VALUE)).isEqualTo(0.5f);
+        assertThat(event.getVendorIntegerSensor(999_999, -1)).isEqualTo(-1);
+        assertThat(event.getApproximateSize()).isLessThan(100);
+    }
+
+    @Test
+    public void testParcel_sparseKeys() {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .setTimeStamp(TIMESTAMP)
+                .setIntValue(-1, 7)
+                .setIntValue(1_000_000, 8)
+                .setFloatValue(-3, 0.5f)
+                .setFloatValue(3, 1.5f)
+                .build();
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            event.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            CarDiagnosticEvent copy = CarDiagnosticEvent.CREATOR.createFromParcel(parcel);
+
+            assertThat(copy).isEqualTo(event);
+            assertThat(copy.getVendorIntegerSensor(1_000_000)).isEqualTo(8);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void testStream_sparseKeys() throws Exception {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newFreezeFrameBuilder()
+                .setTimeStamp(TIMESTAMP)
+                .setIntValue(-1, 7)
+                .setIntValue(2, 8)
+                .setFloatValue(1_000_000, 0.5f)
+                .setDtc(DTC)
+                .build();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        event.writeToStream(new DataOutputStream(bytes));
+
+        CarDiagnosticEvent copy = CarDiagnosticEvent.readFromStream(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertThat(copy).isEqualTo(event);
+    }
+
+    @Test
+    public void testWithVendorSensorsRemoved() {
+        CarDiagnosticEvent event = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .setIntValue(0, 1)
+                .setIntValue(IntegerSensorIndex.LAST_SYSTEM + 1, 2)
+                .setFloatValue(FloatSensorIndex.LAST_SYSTEM + 1, 3f)
+                .setIntValue(-1, 4)
+                .setIntValue(1_000_000, 5)
+                .build();
+
+        CarDiagnosticEvent filtered = event.withVendorSensorsRemoved();
+
+        assertThat(filtered).isEqualTo(CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .setIntValue(0, 1)
+                .setIntValue(-1, 4)
+                .build());
+    }
+
+    @Test
+    public void testIsEmptyFrame() {
+        assertThat(CarDiagnosticEvent.Builder.newLiveFrameBuilder().build().isEmptyFrame())
+                .isTrue();
+        assertThat(CarDiagnosticEvent.Builder.newLiveFrameBuilder().setFloatValue(0, 1f).build()
+                .isEmptyFrame()).isFalse();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.car.vms;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.testng.Assert.assertThrows;
+
+import android.os.SharedMemory;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class VmsRingBufferTest {
+    private static final int SLOT_COUNT = 4;
+    private static final int MAX_PACKET_SIZE = 8;
+    private static final byte[] PAYLOAD1 = {1, 2, 3};
+    private static final byte[] PAYLOAD2 = {4, 5, 6, 7, 8, 9, 10, 11};
+
+    private VmsRingBuffer mWriter;
+    private VmsRingBuffer mReader;
+
+    @Before
+    public void setUp() {
+        mWriter = VmsRingBuffer.createWriter(SLOT_COUNT, MAX_PACKET_SIZE);
+        mReader = VmsRingBuffer.openReader(mWriter.getSharedMemory());
+    }
+
+    @After
+    public void tearDown() {
+        mReader.close();
+        mWriter.close();
+    }
+
+    @Test
+    public void testOpenReader_ReadsHeader() {
+        assertThat(mReader.getSlotCount()).isEqualTo(SLOT_COUNT);
+        assertThat(mReader.getMaxPacketSize()).isEqualTo(MAX_PACKET_SIZE);
+    }
+
+    @Test
+    public void testOpenReader_InvalidBuffer() throws Exception {
+        try (SharedMemory shm = SharedMemory.create("VmsRingBufferTest", 64)) {
+            assertThrows(IllegalArgumentException.class, () -> VmsRingBuffer.openReader(shm));
+        }
+    }
+
+    @Test
+    public void testCreateWriter_InvalidSize() {
+        assertThrows(IllegalArgumentException.class, () -> VmsRingBuffer.createWriter(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> VmsRingBuffer.createWriter(1, 0));
+        assertThrows(IllegalArgumentException.class,
+                () -> VmsRingBuffer.createWriter(Integer.MAX_VALUE, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        long sequenceNumber1 = mWriter.write(PAYLOAD1);
+        long sequenceNumber2 = mWriter.write(PAYLOAD2);
+
+        assertThat(sequenceNumber1).isEqualTo(1);
+        assertThat(sequenceNumber2).isEqualTo(2);
+        assertThat(mReader.read(sequenceNumber1)).isEqualTo(PAYLOAD1);
+        assertThat(mReader.read(sequenceNumber2)).isEqualTo(PAYLOAD2);
+    }
+
+    @Test
+    public void testRead_NotWritten() {
+        mWriter.write(PAYLOAD1);
+
+        assertThat(mReader.read(0)).isNull();
+        assertThat(mReader.read(2)).isNull();
+    }
+
+    @Test
+    public void testRead_Overwritten() {
+        long sequenceNumber = mWriter.write(PAYLOAD1);
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            mWriter.write(PAYLOAD2);
+        }
+
+        assertThat(mReader.read(sequenceNumber)).isNull();
+        assertThat(mReader.read(sequenceNumber + SLOT_COUNT)).isEqualTo(PAYLOAD2);
+    }
+
+    @Test
+    public void testWrite_PacketTooLarge() {
+        assertThrows(IllegalArgumentException.class,
+                () -> mWriter.write(new byte[MAX_PACKET_SIZE + 1]));
+    }
+
+    @Test
+    public void testWrite_ReadOnly() {
+        assertThrows(IllegalStateException.class, () -> mReader.write(PAYLOAD1));
+    }
+
+    @Test
+    public void testRead_Closed() {
+        long sequenceNumber = mWriter.write(PAYLOAD1);
+        mReader.close();
+
+        assertThat(mReader.read(sequenceNumber)).isNull();
+    }
+}
@@ -31,6 +31,7 @@ import static org.mockito.Mockito.ignoreStubs;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -39,7 +40,9 @@ import android.annotation.UserIdInt;
 import android.app.IActivityManager;
 import android.car.CarProjectionManager;
 import android.car.input.CarInputHandlingService.InputFilter;
+import android.car.input.CarInputManager;
 import android.car.input.ICarInputListener;
+import android.car.input.RotaryEvent;
 import android.car.testapi.BlockingUserLifecycleListener;
 import android.car.user.CarUserManager;
 import android.car.userlib.CarUserManagerHelper;
@@ -85,6 +88,7 @@ import org.mockito.Spy;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import java.util.BitSet;
+import java.util.List;
 import java.util.function.BooleanSupplier;
 import java.util.function.IntSupplier;
 import java.util.function.Supplier;
@@ -252,6 +256,38 @@ public class CarInputServiceTest {
         verify(listener).onKeyEvent(event);
     }
 
+    @Test
+    public void rotaryEvents_onMainDisplay_routedToInputManagerAsKeyEvents() {
+        RotaryEvent event = new RotaryEvent(CarInputManager.INPUT_TYPE_ROTARY_NAVIGATION,
+                /* clockwise= */ true, new long[] {1000L, 1010L});
+
+        mCarInputService.onRotaryEvent(event, InputHalService.DISPLAY_MAIN);
+
+        ArgumentCaptor<KeyEvent> eventCaptor = ArgumentCaptor.forClass(KeyEvent.class);
+        verify(mDefaultMainListener, times(4)).onKeyEvent(eventCaptor.capture());
+        List<KeyEvent> keyEvents = eventCaptor.getAllValues();
+        for (int i = 0; i < keyEvents.size(); i++) {
+            KeyEvent keyEvent = keyEvents.get(i);
+            assertThat(keyEvent.getKeyCode()).isEqualTo(KeyEvent.KEYCODE_NAVIGATE_NEXT);
+            assertThat(keyEvent.getAction())
+                    .isEqualTo(i % 2 == 0 ? KeyEvent.ACTION_DOWN : KeyEvent.ACTION_UP);
+            assertThat(keyEvent.getEventTime()).isEqualTo(event.getUptimeMillisForClick(i / 2));
+        }
+    }
+
+    @Test
+    public void rotaryEvents_withCustomEventHandler_routedToListener() throws RemoteException {
+        ICarInputListener listener = registerInputListener(
+                new InputFilter(KeyEvent.KEYCODE_VOLUME_DOWN, InputHalService.DISPLAY_MAIN));
+        RotaryEvent event = new RotaryEvent(CarInputManager.INPUT_TYPE_ROTARY_VOLUME,
+                /* clockwise= */ false, new long[] {1000L, 1010L, 1020L});
+
+        mCarInputService.onRotaryEvent(event, InputHalService.DISPLAY_MAIN);
+
+        verify(listener, times(6)).onKeyEvent(any(), eq(InputHalService.DISPLAY_MAIN));
+        verify(mDefaultMainListener, never()).onKeyEvent(any());
+    }
+
     @Test
     public void customEventHandler_capturesRegisteredEvents_ignoresUnregisteredEvents()
             throws RemoteException {
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.car.VehicleAreaType;
+import android.car.hardware.CarPropertyConfig;
+import android.car.hardware.CarPropertyValue;
+import android.car.hardware.property.CarPropertyEvent;
+import android.car.hardware.property.ICarPropertyEventListener;
+import android.content.Context;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.android.car.hal.PropertyHalService;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit test for the {@link CarPropertyService}.
+ *
+ * <p>Run:
+ * {@code atest CarServiceUnitTest:CarPropertyServiceTest}
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class CarPropertyServiceTest {
+    private static final int CONTINUOUS_PROP = 0x1001;
+    private static final int ON_CHANGE_PROP = 0x1002;
+    private static final int AREA_1 = 1;
+    private static final int AREA_2 = 2;
+    private static final long MS = 1_000_000L;
+
+    @Mock private Context mContext;
+    @Mock private PropertyHalService mHalService;
+
+    private CarPropertyService mService;
+
+    @Before
+    public void setUp() {
+        Map<Integer, CarPropertyConfig<?>> configs = new HashMap<>();
+        configs.put(CONTINUOUS_PROP, CarPropertyConfig.newBuilder(Float.class, CONTINUOUS_PROP,
+                VehicleAreaType.VEHICLE_AREA_TYPE_SEAT)
+                .addAreas(new int[] {AREA_1, AREA_2})
+                .setChangeMode(CarPropertyConfig.VEHICLE_PROPERTY_CHANGE_MODE_CONTINUOUS)
+                .setMaxSampleRate(100f)
+                .build());
+        configs.put(ON_CHANGE_PROP, CarPropertyConfig.newBuilder(Float.class, ON_CHANGE_PROP,
+                VehicleAreaType.VEHICLE_AREA_TYPE_GLOBAL)
+                .setChangeMode(CarPropertyConfig.VEHICLE_PROPERTY_CHANGE_MODE_ONCHANGE)
+                .build());
+        when(mHalService.getPropertyList()).thenReturn(configs);
+
+        mService = new CarPropertyService(mContext, mHalService);
+        mService.init();
+    }
+
+    @Test
+    public void testOnPropertyChange_decimatesEachAreaAtClientRate() {
+        RecordingListener slow = register(CONTINUOUS_PROP, 10f);
+        RecordingListener fast = register(CONTINUOUS_PROP, 20f);
+
+        mService.onPropertyChange(List.of(
+                newEvent(CONTINUOUS_PROP, AREA_1, 0),
+                newEvent(CONTINUOUS_PROP, AREA_2, 0),
+                newEvent(CONTINUOUS_PROP, AREA_1, 50 * MS),
+                newEvent(CONTINUOUS_PROP, AREA_2, 75 * MS),
+                newEvent(CONTINUOUS_PROP, AREA_1, 100 * MS),
+                newEvent(CONTINUOUS_PROP, AREA_2, 100 * MS)));
+
+        assertThat(slow.getReceived()).containsExactly(
+                AREA_1 + "@0", AREA_2 + "@0", AREA_1 + "@100", AREA_2 + "@100").inOrder();
+        assertThat(fast.getReceived()).containsExactly(
+                AREA_1 + "@0", AREA_2 + "@0", AREA_1 + "@50", AREA_2 + "@75", AREA_1 + "@100")
+                .inOrder();
+    }
+
+    @Test
+    public void testOnPropertyChange_onChangePropertyNotDecimated() {
+        RecordingListener listener = register(ON_CHANGE_PROP, 10f);
+
+        mService.onPropertyChange(List.of(
+                newEvent(ON_CHANGE_PROP, 0, 0),
+                newEvent(ON_CHANGE_PROP, 0, 1 * MS),
+                newEvent(ON_CHANGE_PROP, 0, 2 * MS)));
+
+        assertThat(listener.getReceived()).containsExactly("0@0", "0@1", "0@2").inOrder();
+    }
+
+    @Test
+    public void testOnPropertyChange_rateZeroNotDecimated() {
+        RecordingListener listener = register(CONTINUOUS_PROP, 0f);
+
+        mService.onPropertyChange(List.of(
+                newEvent(CONTINUOUS_PROP, AREA_1, 0),
+                newEvent(CONTINUOUS_PROP, AREA_1, 1 * MS),
+                newEvent(CONTINUOUS_PROP, AREA_1, 2 * MS)));
+
+        assertThat(listener.getReceived()).containsExactly(
+                AREA_1 + "@0", AREA_1 + "@1", AREA_1 + "@2").inOrder();
+    }
+
+    @Test
+    public void testOnPropertyChange_unavailableEventNotDecimated() {
+        RecordingListener listener = register(CONTINUOUS_PROP, 10f);
+
+        mService.onPropertyChange(List.of(
+                newEvent(CONTINUOUS_PROP, AREA_1, 0),
+                new CarPropertyEvent(CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE,
+                        new CarPropertyValue<>(CONTINUOUS_PROP, AREA_1,
+                                CarPropertyValue.STATUS_UNAVAILABLE, 10 * MS, 0f))));
+
+        assertThat(listener.getReceived()).containsExactly(AREA_1 + "@0", AREA_1 + "@10")
+                .inOrder();
+    }
+
+    @Test
+    public void testRegisterListener_newRateReplacesOldOne() {
+        RecordingListener listener = register(CONTINUOUS_PROP, 20f);
+        mService.onPropertyChange(List.of(
+                newEvent(CONTINUOUS_PROP, AREA_1, 0),
+                newEvent(CONTINUOUS_PROP, AREA_1, 50 * MS)));
+        assertThat(listener.getReceived()).containsExactly(AREA_1 + "@0", AREA_1 + "@50")
+                .inOrder();
+
+        register(CONTINUOUS_PROP, 10f, listener);
+        mService.onPropertyChange(List.of(
+                newEvent(CONTINUOUS_PROP, AREA_1, 100 * MS),
+                newEvent(CONTINUOUS_PROP, AREA_1, 150 * MS),
+                newEvent(CONTINUOUS_PROP, AREA_1, 200 * MS)));
+
+        assertThat(listener.getReceived()).containsExactly(AREA_1 + "@100", AREA_1 + "@200")
+                .inOrder();
+    }
+
+    @Test
+    public void testOnPropertyChange_oneBatchPerClient() {
+        RecordingListener listener = register(CONTINUOUS_PROP, 0f);
+        register(ON_CHANGE_PROP, 0f, listener);
+        RecordingListener other = register(ON_CHANGE_PROP, 0f);
+
+        mService.onPropertyChange(List.of(
+                newEvent(CONTINUOUS_PROP, AREA_1, 0),
+                newEvent(ON_CHANGE_PROP, 0, 1 * MS),
+                newEvent(CONTINUOUS_PROP, AREA_2, 2 * MS)));
+
+        assertThat(listener.getBatchCount()).isEqualTo(1);
+        assertThat(listener.getReceived()).containsExactly(
+                AREA_1 + "@0", "0@1", AREA_2 + "@2").inOrder();
+        assertThat(other.getBatchCount()).isEqualTo(1);
+        assertThat(other.getReceived()).containsExactly("0@1");
+    }
+
+    @Test
+    public void testOnPropertyChange_localListenerGetsOwnList() {
+        RecordingListener listener = register(ON_CHANGE_PROP, 0f,
+                new RecordingListener(new Binder()));
+
+        mService.onPropertyChange(List.of(newEvent(ON_CHANGE_PROP, 0, 0)));
+        List<CarPropertyEvent> firstBatch = listener.getLastBatch();
+        mService.onPropertyChange(List.of(newEvent(ON_CHANGE_PROP, 0, 1 * MS)));
+
+        // The list kept by the listener is not cleared nor reused for the next batch
+        assertThat(firstBatch).hasSize(1);
+        assertThat(firstBatch.get(0).getCarPropertyValue().getTimestamp()).isEqualTo(0);
+        assertThat(listener.getLastBatch()).isNotSameInstanceAs(firstBatch);
+    }
+
+    @Test
+    public void testOnPropertyChange_pendingEventsClearedAfterRemoteException() {
+        RecordingListener listener = register(ON_CHANGE_PROP, 0f);
+        listener.setFailing(true);
+
+        mService.onPropertyChange(List.of(newEvent(ON_CHANGE_PROP, 0, 0)));
+        listener.clear();
+        listener.setFailing(false);
+        mService.onPropertyChange(List.of(newEvent(ON_CHANGE_PROP, 0, 1 * MS)));
+
+        assertThat(listener.getBatchCount()).isEqualTo(1);
+        assertThat(listener.getReceived()).containsExactly("0@1");
+    }
+
+    private RecordingListener register(int propId, float rate) {
+        return register(propId, rate, new RecordingListener(mock(IBinder.class)));
+    }
+
+    private RecordingListener register(int propId, float rate, RecordingListener listener) {
+        mService.registerListener(propId, rate, listener);
+        // Skip the initial values, sent from the handler thread
+        CarServiceUtils.finishAllHandlerTasks();
+        listener.clear();
+        return listener;
+    }
+
+    private static CarPropertyEvent newEvent(int propId, int areaId, long timestampNanos) {
+        return new CarPropertyEvent(CarPropertyEvent.PROPERTY_EVENT_PROPERTY_CHANGE,
+                new CarPropertyValue<>(propId, areaId, CarPropertyValue.STATUS_AVAILABLE,
+                        timestampNanos, 0f));
+    }
+
+    /**
+     * Records each event it gets as "areaId@timestampMs". Remote listeners get a reused list, so
+     * the events are copied out as they arrive.
+     */
+    private static final class RecordingListener implements ICarPropertyEventListener {
+        private final IBinder mBinder;
+        private final List<String> mReceived = new ArrayList<>();
+        private List<CarPropertyEvent> mLastBatch;
+        private int mBatchCount;
+        private boolean mFailing;
+
+        RecordingListener(IBinder binder) {
+            mBinder = binder;
+        }
+
+        @Override
+        public void onEvent(List<CarPropertyEvent> events) throws RemoteException {
+            mLastBatch = events;
+            mBatchCount++;
+            for (CarPropertyEvent event : events) {
+                CarPropertyValue<?> value = event.getCarPropertyValue();
+                mReceived.add(value.getAreaId() + "@" + value.getTimestamp() / MS);
+            }
+            if (mFailing) {
+                throw new RemoteException("listener died");
+            }
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return mBinder;
+        }
+
+        List<String> getReceived() {
+            return mReceived;
+        }
+
+        List<CarPropertyEvent> getLastBatch() {
+            return mLastBatch;
+        }
+
+        int getBatchCount() {
+            return mBatchCount;
+        }
+
+        void setFailing(boolean failing) {
+            mFailing = failing;
+        }
+
+        void clear() {
+            mReceived.clear();
+            mLastBatch = null;
+            mBatchCount = 0;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertThrows;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Trace;
+import android.util.TimingsTraceLog;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit test for the {@link CarServiceInitializer}.
+ *
+ * <p>Run:
+ * {@code atest CarServiceUnitTest:CarServiceInitializerTest}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CarServiceInitializerTest {
+    private static final String TAG = CarServiceInitializerTest.class.getSimpleName();
+    private static final long TIMEOUT_MS = 5_000;
+
+    private final List<String> mInitialized = Collections.synchronizedList(new ArrayList<>());
+    private final CarServiceInitializer mInitializer = new CarServiceInitializer(TAG,
+            Trace.TRACE_TAG_HAL, new TimingsTraceLog(TAG, Trace.TRACE_TAG_HAL));
+
+    private class FakeService implements CarServiceBase {
+        private final String mName;
+        private final List<Class<? extends CarServiceBase>> mDependencies;
+        Thread mInitThread;
+
+        FakeService(String name, List<Class<? extends CarServiceBase>> dependencies) {
+            mName = name;
+            mDependencies = dependencies;
+        }
+
+        @Override
+        public void init() {
+            mInitThread = Thread.currentThread();
+            mInitialized.add(mName);
+        }
+
+        @Override
+        public List<Class<? extends CarServiceBase>> getInitDependencies() {
+            return mDependencies;
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void dump(PrintWriter writer) {
+        }
+    }
+
+    private final class SerialService extends FakeService {
+        SerialService(String name) {
+            super(name, /* dependencies= */ null);
+        }
+    }
+
+    private final class SlowIndependentService extends FakeService {
+        private final CountDownLatch mLatch;
+
+        SlowIndependentService(CountDownLatch latch) {
+            super("slow", List.of());
+            mLatch = latch;
+        }
+
+        @Override
+        public void init() {
+            try {
+                // Only returns early if the other service is initialized at the same time
+                mLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.init();
+        }
+    }
+
+    private final class IndependentService extends FakeService {
+        private final CountDownLatch mLatch;
+
+        IndependentService(CountDownLatch latch) {
+            super("independent", List.of());
+            mLatch = latch;
+        }
+
+        @Override
+        public void init() {
+            super.init();
+            mLatch.countDown();
+        }
+    }
+
+    private final class DependentService extends FakeService {
+        DependentService() {
+            super("dependent", List.of(SlowIndependentService.class));
+        }
+    }
+
+    private final class FailingService extends FakeService {
+        FailingService() {
+            super("failing", List.of());
+        }
+
+        @Override
+        public void init() {
+            throw new IllegalStateException("init failed");
+        }
+    }
+
+    @Test
+    public void testInit_serialServicesInOrderOnCallingThread() {
+        SerialService first = new SerialService("first");
+        SerialService second = new SerialService("second");
+
+        mInitializer.init(new CarServiceBase[] {first, second});
+
+        assertThat(mInitialized).containsExactly("first", "second").inOrder();
+        assertThat(first.mInitThread).isSameAs(Thread.currentThread());
+        assertThat(second.mInitThread).isSameAs(Thread.currentThread());
+    }
+
+    @Test
+    public void testInit_independentServicesInParallel() {
+        CountDownLatch latch = new CountDownLatch(1);
+        SlowIndependentService slow = new SlowIndependentService(latch);
+
+        long startMs = System.currentTimeMillis();
+        mInitializer.init(new CarServiceBase[] {slow, new IndependentService(latch)});
+
+        assertThat(System.currentTimeMillis() - startMs).isLessThan(TIMEOUT_MS);
+        assertThat(mInitialized).containsExactly("independent", "slow").inOrder();
+        assertThat(slow.mInitThread).isNotSameAs(Thread.currentThread());
+    }
+
+    @Test
+    public void testInit_dependentServiceAfterDependency() {
+        CountDownLatch latch = new CountDownLatch(1);
+        latch.countDown();
+
+        mInitializer.init(new CarServiceBase[] {
+                new SlowIndependentService(latch), new DependentService()});
+
+        assertThat(mInitialized).containsExactly("slow", "dependent").inOrder();
+    }
+
+    @Test
+    public void testInit_serialServiceAfterAllPrecedingServices() {
+        CountDownLatch latch = new CountDownLatch(1);
+
+        mInitializer.init(new CarServiceBase[] {
+                new SlowIndependentService(latch), new IndependentService(latch),
+                new SerialService("serial")});
+
+        assertThat(mInitialized).containsExactly("independent", "slow", "serial").inOrder();
+    }
+
+    @Test
+    public void testInit_dependencyOnFollowingService_throws() {
+        CountDownLatch latch = new CountDownLatch(1);
+        latch.countDown();
+
+        assertThrows(IllegalArgumentException.class, () -> mInitializer.init(
+                new CarServiceBase[] {new DependentService(), new SlowIndependentService(latch)}));
+    }
+
+    @Test
+    public void testInit_failureInParallelInit_rethrown() {
+        assertThrows(IllegalStateException.class, () -> mInitializer.init(
+                new CarServiceBase[] {new FailingService(), new SerialService("serial")}));
+        assertThat(mInitialized).isEmpty();
+    }
+
+    @Test
+    public void testInit_carMediaServiceOnCallingLooperThread() throws Exception {
+        // CarMediaService.init() registers media session callbacks that need the caller's Looper
+        CarMediaService mediaService = mock(CarMediaService.class);
+        doCallRealMethod().when(mediaService).getInitDependencies();
+        AtomicReference<Looper> initLooper = new AtomicReference<>();
+        doAnswer(invocation -> {
+            initLooper.set(Looper.myLooper());
+            return null;
+        }).when(mediaService).init();
+        CountDownLatch initialized = new CountDownLatch(1);
+        HandlerThread mainThread = new HandlerThread(TAG);
+        mainThread.start();
+
+        try {
+            new Handler(mainThread.getLooper()).post(() -> {
+                // TimingsTraceLog must be used on the thread that created it
+                new CarServiceInitializer(TAG, Trace.TRACE_TAG_HAL,
+                        new TimingsTraceLog(TAG, Trace.TRACE_TAG_HAL)).init(
+                        new CarServiceBase[] {new FakeService("independent", List.of()),
+                                mediaService});
+                initialized.countDown();
+            });
+
+            assertThat(initialized.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+            assertThat(initLooper.get()).isSameAs(mainThread.getLooper());
+        } finally {
+            mainThread.quitSafely();
+        }
+    }
+}
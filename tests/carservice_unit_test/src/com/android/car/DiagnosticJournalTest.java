@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.car.diagnostic.CarDiagnosticEvent;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.car.test.utils.TemporaryDirectory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class DiagnosticJournalTest {
+    private static final String TAG = DiagnosticJournalTest.class.getSimpleName();
+    private static final long MAX_BYTES = 64 * 1024;
+    private static final long SEGMENT_BYTES = 1024;
+    private static final int FLUSH_THRESHOLD_BYTES = 1024 * 1024;
+    private static final long FLUSH_DELAY_MS = 60 * 60 * 1000;
+
+    private final HandlerThread mHandlerThread = new HandlerThread(TAG);
+    private TemporaryDirectory mDirectory;
+    private Handler mHandler;
+    private long mWallClock;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = new TemporaryDirectory(TAG);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quitSafely();
+        mDirectory.close();
+    }
+
+    @Test
+    public void testQuery_byWallClockRange() {
+        DiagnosticJournal journal = newJournal(MAX_BYTES);
+        CarDiagnosticEvent frame1 = appendAt(journal, 100, newFreezeFrame(1));
+        CarDiagnosticEvent frame2 = appendAt(journal, 200, newFreezeFrame(2));
+        CarDiagnosticEvent frame3 = appendAt(journal, 300, newFreezeFrame(3));
+
+        assertThat(journal.query(0, Long.MAX_VALUE, 10))
+                .containsExactly(frame1, frame2, frame3).inOrder();
+        assertThat(journal.query(150, 300, 10)).containsExactly(frame2);
+        assertThat(journal.query(0, Long.MAX_VALUE, 2)).containsExactly(frame1, frame2).inOrder();
+        assertThat(journal.query(300, 100, 10)).isEmpty();
+    }
+
+    @Test
+    public void testQuery_afterRestart() {
+        DiagnosticJournal journal = newJournal(MAX_BYTES);
+        CarDiagnosticEvent frame1 = appendAt(journal, 100, newFreezeFrame(1));
+        journal.flush();
+
+        DiagnosticJournal restarted = newJournal(MAX_BYTES);
+        CarDiagnosticEvent frame2 = appendAt(restarted, 200, newFreezeFrame(2));
+
+        assertThat(restarted.query(0, Long.MAX_VALUE, 10)).containsExactly(frame1, frame2)
+                .inOrder();
+        restarted.flush();
+        assertThat(getSegmentCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testQuery_readsPendingFramesWithoutWriting() {
+        DiagnosticJournal journal = newJournal(MAX_BYTES);
+        CarDiagnosticEvent frame1 = appendAt(journal, 100, newFreezeFrame(1));
+        journal.flush();
+        CarDiagnosticEvent frame2 = appendAt(journal, 200, newFreezeFrame(2));
+        long diskBytes = getDiskBytes();
+
+        assertThat(journal.query(0, Long.MAX_VALUE, 10)).containsExactly(frame1, frame2)
+                .inOrder();
+        assertThat(journal.query(150, Long.MAX_VALUE, 10)).containsExactly(frame2);
+        assertThat(getDiskBytes()).isEqualTo(diskBytes);
+    }
+
+    @Test
+    public void testFlush_rotatesAndPrunesSegments() {
+        DiagnosticJournal journal = newJournal(4 * SEGMENT_BYTES);
+        for (int i = 0; i < 200; i++) {
+            appendAt(journal, i, newFreezeFrame(i));
+            journal.flush();
+        }
+
+        long totalBytes = 0;
+        for (File file : mDirectory.getDirectory().listFiles()) {
+            totalBytes += file.length();
+        }
+        assertThat(getSegmentCount()).isGreaterThan(1);
+        assertThat(totalBytes).isAtMost(4 * SEGMENT_BYTES + SEGMENT_BYTES);
+        assertThat(journal.query(0, Long.MAX_VALUE, 1).get(0).timestamp).isGreaterThan(0);
+        assertThat(journal.query(199, 200, 1)).containsExactly(newFreezeFrame(199));
+    }
+
+    @Test
+    public void testQuery_tornRecordEndsSegment() throws Exception {
+        DiagnosticJournal journal = newJournal(MAX_BYTES);
+        CarDiagnosticEvent frame1 = appendAt(journal, 100, newFreezeFrame(1));
+        appendAt(journal, 200, newFreezeFrame(2));
+        journal.flush();
+
+        File segment = mDirectory.getDirectory().listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        assertThat(newJournal(MAX_BYTES).query(0, Long.MAX_VALUE, 10)).containsExactly(frame1);
+    }
+
+    @Test
+    public void testQuery_includesLiveFrames() {
+        DiagnosticJournal journal = newJournal(MAX_BYTES);
+        CarDiagnosticEvent liveFrame = CarDiagnosticEvent.Builder.newLiveFrameBuilder()
+                .setTimeStamp(5)
+                .setIntValue(3, 4)
+                .setFloatValue(1, 2.5f)
+                .build();
+        appendAt(journal, 100, liveFrame);
+
+        assertThat(journal.query(0, Long.MAX_VALUE, 10)).containsExactly(liveFrame);
+    }
+
+    private long getDiskBytes() {
+        long bytes = 0;
+        for (File file : mDirectory.getDirectory().listFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    private DiagnosticJournal newJournal(long maxBytes) {
+        return new DiagnosticJournal(mDirectory.getDirectory(), maxBytes, SEGMENT_BYTES,
+                FLUSH_THRESHOLD_BYTES, FLUSH_DELAY_MS, mHandler, () -> mWallClock);
+    }
+
+    private CarDiagnosticEvent appendAt(DiagnosticJournal journal, long wallClock,
+            CarDiagnosticEvent event) {
+        mWallClock = wallClock;
+        journal.append(event);
+        return event;
+    }
+
+    private int getSegmentCount() {
+        int count = 0;
+        for (File file : mDirectory.getDirectory().listFiles()) {
+            if (file.getName().startsWith(DiagnosticJournal.SEGMENT_PREFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static CarDiagnosticEvent newFreezeFrame(long timestamp) {
+        return CarDiagnosticEvent.Builder.newFreezeFrameBuilder()
+                .setTimeStamp(timestamp)
+                .setIntValue(0, (int) timestamp)
+                .setDtc("P0001")
+                .build();
+    }
+}
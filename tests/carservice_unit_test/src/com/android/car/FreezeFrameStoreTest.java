@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.car.diagnostic.CarDiagnosticEvent;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class FreezeFrameStoreTest {
+    private static final long NO_MEMORY_LIMIT = 0;
+
+    @Test
+    public void testPut_sortedByTimestamp() {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MEMORY_LIMIT);
+        store.put(newFrame(30));
+        store.put(newFrame(10));
+        store.put(newFrame(20));
+
+        assertThat(store.getTimestamps()).asList().containsExactly(10L, 20L, 30L).inOrder();
+        assertThat(store.get(20).timestamp).isEqualTo(20);
+        assertThat(store.get(25)).isNull();
+    }
+
+    @Test
+    public void testPut_replacesSameTimestamp() {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MEMORY_LIMIT);
+        store.put(newFrame(10));
+        CarDiagnosticEvent replacement = newFrame(10, "P0002");
+
+        store.put(replacement);
+
+        assertThat(store.size()).isEqualTo(1);
+        assertThat(store.get(10)).isSameInstanceAs(replacement);
+    }
+
+    @Test
+    public void testPut_evictsOldestOverCount() {
+        FreezeFrameStore store = new FreezeFrameStore(2, NO_MEMORY_LIMIT);
+        store.put(newFrame(10));
+        store.put(newFrame(20));
+        store.put(newFrame(30));
+
+        assertThat(store.getTimestamps()).asList().containsExactly(20L, 30L).inOrder();
+        assertThat(store.put(newFrame(5))).isFalse();
+        assertThat(store.getTimestamps()).asList().containsExactly(20L, 30L).inOrder();
+    }
+
+    @Test
+    public void testPut_evictsOldestOverMemoryLimit() {
+        CarDiagnosticEvent frame = newFrame(10);
+        FreezeFrameStore store = new FreezeFrameStore(10, 2L * frame.getApproximateSize());
+        store.put(frame);
+        store.put(newFrame(20));
+        store.put(newFrame(30));
+
+        assertThat(store.getTimestamps()).asList().containsExactly(20L, 30L).inOrder();
+        assertThat(store.getApproximateSize()).isEqualTo(2L * frame.getApproximateSize());
+    }
+
+    @Test
+    public void testGetTimestamps_range() {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MEMORY_LIMIT);
+        store.put(newFrame(10));
+        store.put(newFrame(20));
+        store.put(newFrame(30));
+
+        assertThat(store.getTimestamps(10, 30)).asList().containsExactly(10L, 20L).inOrder();
+        assertThat(store.getTimestamps(11, 31)).asList().containsExactly(20L, 30L).inOrder();
+        assertThat(store.getTimestamps(30, 10)).isEmpty();
+    }
+
+    @Test
+    public void testGetEventsSince() {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MEMORY_LIMIT);
+        store.put(newFrame(10));
+        store.put(newFrame(20));
+        store.put(newFrame(30));
+
+        assertThat(store.getEventsSince(10, 1)).containsExactly(store.get(20));
+        assertThat(store.getEventsSince(Long.MIN_VALUE, 10))
+                .containsExactly(store.get(10), store.get(20), store.get(30)).inOrder();
+        assertThat(store.getEventsSince(30, 10)).isEmpty();
+        assertThat(store.getEventsSince(Long.MAX_VALUE, 10)).isEmpty();
+    }
+
+    @Test
+    public void testRemove() {
+        FreezeFrameStore store = new FreezeFrameStore(10, NO_MEMORY_LIMIT);
+        store.put(newFrame(10));
+        store.put(newFrame(20));
+        store.put(newFrame(30));
+
+        store.remove(20, 40);
+
+        assertThat(store.getTimestamps()).asList().containsExactly(10L, 30L).inOrder();
+        store.clear();
+        assertThat(store.size()).isEqualTo(0);
+        assertThat(store.getApproximateSize()).isEqualTo(0);
+    }
+
+    private static CarDiagnosticEvent newFrame(long timestamp) {
+        return newFrame(timestamp, "P0001");
+    }
+
+    private static CarDiagnosticEvent newFrame(long timestamp, String dtc) {
+        return CarDiagnosticEvent.Builder.newFreezeFrameBuilder()
+                .setTimeStamp(timestamp)
+                .setIntValue(0, 1)
+                .setDtc(dtc)
+                .build();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class InputLatencyStatsTest {
+    private final InputLatencyStats mStats = new InputLatencyStats();
+
+    @Test
+    public void testRecord() {
+        mStats.record(3);
+        mStats.record(InputLatencyStats.FRAME_BUDGET_MS);
+        mStats.record(40);
+
+        assertThat(mStats.getCount()).isEqualTo(3);
+        assertThat(mStats.getMaxMs()).isEqualTo(40);
+        assertThat(mStats.getOverBudgetCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRecord_NegativeLatencyCountsAsZero() {
+        mStats.record(-5);
+
+        assertThat(mStats.getCount()).isEqualTo(1);
+        assertThat(mStats.getMaxMs()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDump() {
+        mStats.record(0);
+        mStats.record(500);
+        StringWriter stringWriter = new StringWriter();
+        mStats.dump(new PrintWriter(stringWriter), "Test");
+
+        String dump = stringWriter.toString();
+        assertThat(dump).contains("Test latency: 2 events, mean 250 ms, max 500 ms, 1 over 16 ms");
+        assertThat(dump).contains("<1ms=1");
+        assertThat(dump).contains(">=128ms=1");
+    }
+}
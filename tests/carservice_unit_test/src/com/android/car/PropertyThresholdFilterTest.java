@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.car.hardware.CarPropertyValue;
+import android.hardware.automotive.vehicle.V2_0.VehicleProperty;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class PropertyThresholdFilterTest {
+    private static final int PROPERTY = VehicleProperty.PERF_VEHICLE_SPEED;
+    private static final int AREA1 = 0;
+    private static final int AREA2 = 1;
+
+    private final PropertyThresholdFilter mFilter =
+            new PropertyThresholdFilter(new float[] {10f, 5f, 10f, Float.POSITIVE_INFINITY});
+
+    @Test
+    public void testFirstValue_Dispatched() {
+        assertThat(mFilter.shouldDispatch(value(AREA1, 1f))).isTrue();
+    }
+
+    @Test
+    public void testSameBand_Dropped() {
+        mFilter.shouldDispatch(value(AREA1, 1f));
+
+        assertThat(mFilter.shouldDispatch(value(AREA1, 2f))).isFalse();
+        assertThat(mFilter.shouldDispatch(value(AREA1, 4.9f))).isFalse();
+    }
+
+    @Test
+    public void testThresholdCrossed_Dispatched() {
+        mFilter.shouldDispatch(value(AREA1, 1f));
+
+        assertThat(mFilter.shouldDispatch(value(AREA1, 5f))).isTrue();
+        assertThat(mFilter.shouldDispatch(value(AREA1, 9f))).isFalse();
+        assertThat(mFilter.shouldDispatch(value(AREA1, 11f))).isTrue();
+        assertThat(mFilter.shouldDispatch(value(AREA1, 4f))).isTrue();
+    }
+
+    @Test
+    public void testSignChange_Dispatched() {
+        mFilter.shouldDispatch(value(AREA1, 1f));
+
+        assertThat(mFilter.shouldDispatch(value(AREA1, 0f))).isTrue();
+        assertThat(mFilter.shouldDispatch(value(AREA1, -1f))).isTrue();
+        assertThat(mFilter.shouldDispatch(value(AREA1, -2f))).isFalse();
+    }
+
+    @Test
+    public void testAreasTrackedSeparately() {
+        mFilter.shouldDispatch(value(AREA1, 1f));
+
+        assertThat(mFilter.shouldDispatch(value(AREA2, 1f))).isTrue();
+        assertThat(mFilter.shouldDispatch(value(AREA1, 2f))).isFalse();
+    }
+
+    @Test
+    public void testUnavailable_AlwaysDispatchedAndResets() {
+        mFilter.shouldDispatch(value(AREA1, 1f));
+
+        assertThat(mFilter.shouldDispatch(new CarPropertyValue<>(PROPERTY, AREA1,
+                CarPropertyValue.STATUS_UNAVAILABLE, 0, 1f))).isTrue();
+        assertThat(mFilter.shouldDispatch(value(AREA1, 1f))).isTrue();
+    }
+
+    @Test
+    public void testNoThresholds_DispatchesSignChangesOnly() {
+        PropertyThresholdFilter filter = new PropertyThresholdFilter(new float[0]);
+        filter.shouldDispatch(value(AREA1, 1f));
+
+        assertThat(filter.shouldDispatch(value(AREA1, 100f))).isFalse();
+        assertThat(filter.shouldDispatch(value(AREA1, -1f))).isTrue();
+    }
+
+    private static CarPropertyValue<Float> value(int areaId, float value) {
+        return new CarPropertyValue<>(PROPERTY, areaId, CarPropertyValue.STATUS_AVAILABLE, 0,
+                value);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.hal;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.hardware.automotive.vehicle.V2_0.VehiclePropConfig;
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+import android.os.HandlerThread;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.car.CarServiceUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class HalServiceEventDispatcherTest {
+    private static final int QUEUE_SIZE = 3;
+
+    private final RecordingHalService mService = new RecordingHalService();
+    private HalServiceEventDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        HandlerThread thread = CarServiceUtils.getHandlerThread(
+                HalServiceEventDispatcherTest.class.getSimpleName());
+        mDispatcher = new HalServiceEventDispatcher(mService, thread.getLooper(), QUEUE_SIZE);
+    }
+
+    @Test
+    public void testDispatch_deliversBatchInOrder() {
+        mDispatcher.enqueue(newValue(1), /* droppable= */ false);
+        mDispatcher.enqueue(newValue(2), /* droppable= */ true);
+        mDispatcher.scheduleDispatch();
+        CarServiceUtils.finishAllHandlerTasks();
+
+        assertThat(mService.mReceivedProps).containsExactly(1, 2).inOrder();
+        assertThat(mService.mBatches).isEqualTo(1);
+        assertThat(mDispatcher.getQueueSize()).isEqualTo(0);
+        assertThat(mService.getDispatchList()).isEmpty();
+    }
+
+    @Test
+    public void testEnqueue_dropsOldestWhenFull() {
+        for (int i = 1; i <= QUEUE_SIZE + 2; i++) {
+            mDispatcher.enqueue(newValue(i), /* droppable= */ true);
+        }
+        mDispatcher.scheduleDispatch();
+        CarServiceUtils.finishAllHandlerTasks();
+
+        assertThat(mDispatcher.getDroppedEventCount()).isEqualTo(2);
+        assertThat(mService.mReceivedProps).containsExactly(3, 4, 5).inOrder();
+    }
+
+    @Test
+    public void testEnqueue_neverDropsOnChangeEvents() {
+        mDispatcher.enqueue(newValue(1), /* droppable= */ false);
+        for (int i = 2; i <= QUEUE_SIZE + 2; i++) {
+            mDispatcher.enqueue(newValue(i), /* droppable= */ true);
+        }
+        for (int i = QUEUE_SIZE + 3; i <= 2 * QUEUE_SIZE + 3; i++) {
+            mDispatcher.enqueue(newValue(i), /* droppable= */ false);
+        }
+        mDispatcher.scheduleDispatch();
+        CarServiceUtils.finishAllHandlerTasks();
+
+        assertThat(mDispatcher.getDroppedEventCount()).isEqualTo(1);
+        assertThat(mService.mReceivedProps).containsExactly(1, 3, 4, 5, 6, 7, 8, 9).inOrder();
+    }
+
+    @Test
+    public void testStart_threadOnlyStartedOnDemand() {
+        HalServiceEventDispatcher dispatcher = new HalServiceEventDispatcher(mService,
+                HalServiceEventDispatcherTest.class.getSimpleName(), QUEUE_SIZE);
+
+        dispatcher.scheduleDispatch();
+        assertThat(dispatcher.isStarted()).isFalse();
+
+        dispatcher.start();
+        assertThat(dispatcher.isStarted()).isTrue();
+    }
+
+    @Test
+    public void testClear_dropsPendingEvents() {
+        mDispatcher.enqueue(newValue(1), /* droppable= */ true);
+        mDispatcher.clear();
+        mDispatcher.scheduleDispatch();
+        CarServiceUtils.finishAllHandlerTasks();
+
+        assertThat(mService.mReceivedProps).isEmpty();
+        assertThat(mService.mBatches).isEqualTo(0);
+    }
+
+    private static VehiclePropValue newValue(int prop) {
+        VehiclePropValue value = new VehiclePropValue();
+        value.prop = prop;
+        return value;
+    }
+
+    private static final class RecordingHalService extends HalServiceBase {
+        private final List<Integer> mReceivedProps = new ArrayList<>();
+        private int mBatches;
+
+        @Override
+        public void init() {}
+
+        @Override
+        public void release() {}
+
+        @Override
+        public int[] getAllSupportedProperties() {
+            return new int[0];
+        }
+
+        @Override
+        public void takeProperties(Collection<VehiclePropConfig> properties) {}
+
+        @Override
+        public void onHalEvents(List<VehiclePropValue> values) {
+            mBatches++;
+            for (VehiclePropValue value : values) {
+                mReceivedProps.add(value.prop);
+            }
+        }
+
+        @Override
+        public void dump(PrintWriter writer) {}
+    }
+}
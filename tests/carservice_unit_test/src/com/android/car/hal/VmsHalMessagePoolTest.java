@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.hal;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.hardware.automotive.vehicle.V2_0.VehiclePropValue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class VmsHalMessagePoolTest {
+    private static final int PROP = 1;
+    private static final int AREA_ID = 2;
+    private static final int MAX_PAYLOAD_SIZE = 4;
+
+    @Test
+    public void testObtain_setsPropertyAndArea() {
+        VmsHalMessagePool pool = new VmsHalMessagePool(1, MAX_PAYLOAD_SIZE);
+
+        VehiclePropValue value = pool.obtain(PROP, AREA_ID);
+
+        assertThat(value.prop).isEqualTo(PROP);
+        assertThat(value.areaId).isEqualTo(AREA_ID);
+        assertThat(value.value.int32Values).isEmpty();
+        assertThat(value.value.bytes).isEmpty();
+    }
+
+    @Test
+    public void testRecycle_reusesClearedMessage() {
+        VmsHalMessagePool pool = new VmsHalMessagePool(1, MAX_PAYLOAD_SIZE);
+        VehiclePropValue value = pool.obtain(PROP, AREA_ID);
+        value.timestamp = 100;
+        value.value.int32Values.add(1);
+        value.value.bytes.add((byte) 1);
+
+        pool.recycle(value);
+        VehiclePropValue reused = pool.obtain(PROP, AREA_ID);
+
+        assertThat(reused).isSameInstanceAs(value);
+        assertThat(reused.timestamp).isEqualTo(0);
+        assertThat(reused.value.int32Values).isEmpty();
+        assertThat(reused.value.bytes).isEmpty();
+        assertThat(pool.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRecycle_poolFull() {
+        VmsHalMessagePool pool = new VmsHalMessagePool(1, MAX_PAYLOAD_SIZE);
+
+        pool.recycle(pool.obtain(PROP, AREA_ID));
+        pool.recycle(new VehiclePropValue());
+
+        assertThat(pool.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRecycle_largePayloadNotRetained() {
+        VmsHalMessagePool pool = new VmsHalMessagePool(1, MAX_PAYLOAD_SIZE);
+        VehiclePropValue value = pool.obtain(PROP, AREA_ID);
+        for (int i = 0; i <= MAX_PAYLOAD_SIZE; i++) {
+            value.value.bytes.add((byte) i);
+        }
+
+        pool.recycle(value);
+
+        assertThat(pool.size()).isEqualTo(0);
+        assertThat(value.value.bytes).hasSize(MAX_PAYLOAD_SIZE + 1);
+    }
+
+    @Test
+    public void testRecycle_poolingDisabled() {
+        VmsHalMessagePool pool = new VmsHalMessagePool(0, MAX_PAYLOAD_SIZE);
+        VehiclePropValue value = pool.obtain(PROP, AREA_ID);
+        value.value.int32Values.add(1);
+
+        pool.recycle(value);
+
+        assertThat(pool.size()).isEqualTo(0);
+        assertThat(value.value.int32Values).containsExactly(1);
+    }
+}
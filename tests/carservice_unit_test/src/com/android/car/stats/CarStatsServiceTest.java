@@ -78,7 +78,8 @@ public class CarStatsServiceTest {
         assertEquals(
                 "uid,packageName,attempts,connected,disconnected,terminated,errors\n"
                         + "\nuid,layerType,layerChannel,layerVersion,"
-                        + "txBytes,txPackets,rxBytes,rxPackets,droppedBytes,droppedPackets\n",
+                        + "txBytes,txPackets,rxBytes,rxPackets,droppedBytes,droppedPackets\n"
+                        + "\nuid,packageName,queueDepth,maxQueueDepth,overflowPackets\n",
                 mDumpsysOutput.toString());
     }
 
@@ -332,6 +333,23 @@ public class CarStatsServiceTest {
                         + "10102,2,3,4,2,1,0,0,0,0\n");
     }
 
+    @Test
+    public void testLogDeliveryQueueDepthChange_SummedPerUid() {
+        // Two clients with the same UID
+        mCarStatsService.getVmsClientLogger(CLIENT_UID)
+                .logDeliveryQueueDepthChange(2);
+        mCarStatsService.getVmsClientLogger(CLIENT_UID)
+                .logDeliveryQueueDepthChange(3);
+        mCarStatsService.getVmsClientLogger(CLIENT_UID)
+                .logDeliveryQueueDepthChange(-2);
+        mCarStatsService.getVmsClientLogger(CLIENT_UID)
+                .logDeliveryQueueOverflow(LAYER, 4);
+
+        validateDumpsys(
+                "10101,test.package,0,0,0,0,0\n",
+                "10101,1,2,3,0,0,0,0,4,1\n",
+                "10101,test.package,3,5,1\n");
+    }
 
     private void validateConnectionStats(String vmsConnectionStats) {
         validateDumpsys(vmsConnectionStats + "\n", "");
@@ -344,6 +362,19 @@ public class CarStatsServiceTest {
     }
 
     private void validateDumpsys(String vmsConnectionStats, String vmsClientStats) {
+        // Clients without a delivery queue have empty delivery queue stats
+        StringBuilder vmsDeliveryQueueStats = new StringBuilder();
+        for (String line : vmsConnectionStats.split("\n")) {
+            if (!line.isEmpty()) {
+                String[] fields = line.split(",");
+                vmsDeliveryQueueStats.append(fields[0] + "," + fields[1] + ",0,0,0\n");
+            }
+        }
+        validateDumpsys(vmsConnectionStats, vmsClientStats, vmsDeliveryQueueStats.toString());
+    }
+
+    private void validateDumpsys(String vmsConnectionStats, String vmsClientStats,
+            String vmsDeliveryQueueStats) {
         mCarStatsService.dump(null, mDumpsysWriter, new String[0]);
         assertEquals(
                 "uid,packageName,attempts,connected,disconnected,terminated,errors\n"
@@ -351,7 +382,10 @@ public class CarStatsServiceTest {
                         + "\n"
                         + "uid,layerType,layerChannel,layerVersion,"
                         + "txBytes,txPackets,rxBytes,rxPackets,droppedBytes,droppedPackets\n"
-                        + vmsClientStats,
+                        + vmsClientStats
+                        + "\n"
+                        + "uid,packageName,queueDepth,maxQueueDepth,overflowPackets\n"
+                        + vmsDeliveryQueueStats,
                 mDumpsysOutput.toString());
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.storagemonitoring;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.car.test.utils.TemporaryDirectory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BinaryRecordFileTest {
+    private static final String TAG = BinaryRecordFileTest.class.getSimpleName();
+    private static final int MAGIC = 0x54455354; // "TEST"
+    private static final int VERSION = 1;
+    private static final BinaryRecordFile.Reader<Long> READER = DataInputStream::readLong;
+    private static final BinaryRecordFile.Writer<Long> WRITER =
+            (value, out) -> out.writeLong(value);
+
+    private TemporaryDirectory mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = new TemporaryDirectory(TAG);
+        mFile = new File(mDirectory.getDirectory(), "records");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDirectory.close();
+    }
+
+    @Test
+    public void testReadAll_MissingFile() {
+        assertThat(newRecordFile(VERSION).readAll(READER)).isNull();
+    }
+
+    @Test
+    public void testCommitAndAppend() {
+        BinaryRecordFile recordFile = newRecordFile(VERSION);
+        assertThat(recordFile.commit(Arrays.asList(1L, 2L), WRITER)).isTrue();
+        assertThat(recordFile.append(3L, WRITER)).isTrue();
+
+        assertThat(newRecordFile(VERSION).readAll(READER)).containsExactly(1L, 2L, 3L).inOrder();
+    }
+
+    @Test
+    public void testAppend_CreatesFile() {
+        assertThat(newRecordFile(VERSION).append(1L, WRITER)).isTrue();
+
+        assertThat(newRecordFile(VERSION).readAll(READER)).containsExactly(1L);
+    }
+
+    @Test
+    public void testCommit_ReplacesRecords() {
+        BinaryRecordFile recordFile = newRecordFile(VERSION);
+        recordFile.commit(Arrays.asList(1L, 2L), WRITER);
+        recordFile.commit(Arrays.asList(3L), WRITER);
+
+        assertThat(newRecordFile(VERSION).readAll(READER)).containsExactly(3L);
+    }
+
+    @Test
+    public void testReadAll_OtherVersion() {
+        newRecordFile(VERSION).commit(Arrays.asList(1L), WRITER);
+
+        assertThat(newRecordFile(VERSION + 1).readAll(READER)).isNull();
+    }
+
+    @Test
+    public void testReadAll_NotARecordFile() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write("{\"uptime\" : 5000}".getBytes());
+        }
+
+        assertThat(newRecordFile(VERSION).readAll(READER)).isNull();
+    }
+
+    @Test
+    public void testTornRecord_DroppedByNextAppend() throws Exception {
+        newRecordFile(VERSION).commit(Arrays.asList(1L, 2L), WRITER);
+        // Cut the last record in half, as a power loss during an append would
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() - 6);
+        }
+
+        BinaryRecordFile recordFile = newRecordFile(VERSION);
+        assertThat(recordFile.readAll(READER)).containsExactly(1L);
+        assertThat(recordFile.append(3L, WRITER)).isTrue();
+
+        assertThat(newRecordFile(VERSION).readAll(READER)).containsExactly(1L, 3L).inOrder();
+    }
+
+    @Test
+    public void testCorruptRecord_EndsFile() throws Exception {
+        newRecordFile(VERSION).commit(Arrays.asList(1L, 2L), WRITER);
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            // Flip a payload byte of the last record
+            raf.seek(raf.length() - 6);
+            raf.write(0xff);
+        }
+
+        assertThat(newRecordFile(VERSION).readAll(READER)).containsExactly(1L);
+    }
+
+    private BinaryRecordFile newRecordFile(int version) {
+        return new BinaryRecordFile(mFile, MAGIC, version);
+    }
+}
@@ -51,6 +51,10 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -237,6 +241,18 @@ public class CarStorageMonitoringTest {
         }
     }
 
+    @Test
+    public void testWearEstimateRecordBinary() throws Exception {
+        WearEstimateRecord originalWearEstimateRecord = new WearEstimateRecord(
+                new WearEstimate(10, 20), new WearEstimate(10, 30), 5000,
+                Instant.ofEpochMilli(1000));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        originalWearEstimateRecord.writeToStream(new DataOutputStream(bytes));
+        WearEstimateRecord newWearEstimateRecord = WearEstimateRecord.readFromStream(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertThat(newWearEstimateRecord).isEqualTo(originalWearEstimateRecord);
+    }
+
     @Test
     @SuppressWarnings("TruthSelfEquals")
     public void testWearEstimateRecordEquality() throws Exception {
@@ -427,6 +443,58 @@ public class CarStorageMonitoringTest {
         }
     }
 
+    @Test
+    public void testUidIoStatsTable() throws Exception {
+        try (TemporaryFile statsFile = new TemporaryFile(TAG)) {
+            // No newline after the last entry
+            statsFile.write("0 256797495 181736102 362132480 947167232 0 0 0 0 250 0\n"
+                + "1006 489007 196802 0 20480 51474 2048 1024 2048 1 1");
+
+            ProcfsUidIoStatsProvider statsProvider = new ProcfsUidIoStatsProvider(
+                    statsFile.getPath());
+            UidIoStatsTable stats = new UidIoStatsTable();
+            stats.addRow(42);
+
+            assertThat(statsProvider.load(stats)).isTrue();
+
+            assertThat(stats.size()).isEqualTo(2);
+            assertThat(stats.getUid(0)).isEqualTo(0);
+            assertThat(stats.get(0, UidIoStatsTable.FIELD_FOREGROUND_FSYNC)).isEqualTo(250);
+            assertThat(stats.getUid(1)).isEqualTo(1006);
+            assertThat(stats.get(1, UidIoStatsTable.FIELD_FOREGROUND_RCHAR)).isEqualTo(489007);
+            assertThat(stats.get(1, UidIoStatsTable.FIELD_BACKGROUND_RCHAR)).isEqualTo(51474);
+            assertThat(stats.get(1, UidIoStatsTable.FIELD_BACKGROUND_WRITE_BYTES))
+                    .isEqualTo(2048);
+            assertThat(stats.get(1, UidIoStatsTable.FIELD_BACKGROUND_FSYNC)).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testUidIoStatsTableExtraFields() throws Exception {
+        try (TemporaryFile statsFile = new TemporaryFile(TAG)) {
+            statsFile.write("0 256797495 181736102 362132480 947167232 0 0 0 0 250 0 7\n");
+
+            ProcfsUidIoStatsProvider statsProvider = new ProcfsUidIoStatsProvider(
+                    statsFile.getPath());
+            UidIoStatsTable stats = new UidIoStatsTable();
+
+            assertThat(statsProvider.load(stats)).isFalse();
+            assertThat(stats.size()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testUidIoStatsTableUidOutOfRange() throws Exception {
+        try (TemporaryFile statsFile = new TemporaryFile(TAG)) {
+            statsFile.write("4294967296 1 2 3 4 5 6 7 8 9 10\n");
+
+            ProcfsUidIoStatsProvider statsProvider = new ProcfsUidIoStatsProvider(
+                    statsFile.getPath());
+
+            assertThat(statsProvider.load()).isNull();
+        }
+    }
+
     @Test
     @SuppressWarnings("TruthSelfEquals")
     public void testUidIoStatEntryEquality() throws Exception {
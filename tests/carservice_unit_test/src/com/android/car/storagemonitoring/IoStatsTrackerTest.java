@@ -242,6 +242,43 @@ public class IoStatsTrackerTest extends TestCase {
         assertEquals(1, sample0.foreground.fsyncCalls);
     }
 
+    public void testUserGoesAway() throws Exception {
+        final MockSystemStateInterface mockSystemStateInterface = new MockSystemStateInterface();
+        IoStatsTracker ioStatsTracker = new IoStatsTracker(EMPTY,
+            SAMPLE_WINDOW_MS, mockSystemStateInterface);
+
+        UidIoStatsTable stats = new UidIoStatsTable();
+        int row = stats.addRow(0);
+        stats.set(row, UidIoStatsTable.FIELD_FOREGROUND_RCHAR, 50);
+        row = stats.addRow(1);
+        stats.set(row, UidIoStatsTable.FIELD_BACKGROUND_WCHAR, 30);
+        ioStatsTracker.update(stats);
+
+        stats.clear();
+        row = stats.addRow(1);
+        stats.set(row, UidIoStatsTable.FIELD_BACKGROUND_WCHAR, 40);
+        ioStatsTracker.update(stats);
+
+        assertEquals(1, ioStatsTracker.getTotal().size());
+        assertNull(ioStatsTracker.getTotal().get(0));
+        assertEquals(40, ioStatsTracker.getTotal().get(1).background.bytesWritten);
+        assertEquals(1, ioStatsTracker.getCurrentSample().size());
+        assertEquals(10, ioStatsTracker.getCurrentSample().get(1).background.bytesWritten);
+        assertEquals(2 * SAMPLE_WINDOW_MS, ioStatsTracker.getCurrentSample().get(1).runtimeMillis);
+    }
+
+    public void testInitialValueIsFirstSample() throws Exception {
+        final MockSystemStateInterface mockSystemStateInterface = new MockSystemStateInterface();
+        IoStatsEntry entry = new IoStatsEntry(10, 5000,
+            new IoStatsEntry.Metrics(10, 20, 30, 40, 50),
+            new IoStatsEntry.Metrics(60, 70, 80, 90, 100));
+        IoStatsTracker ioStatsTracker = new IoStatsTracker(Collections.singletonList(entry),
+            SAMPLE_WINDOW_MS, mockSystemStateInterface);
+
+        assertEquals(entry, ioStatsTracker.getTotal().get(10));
+        assertEquals(entry, ioStatsTracker.getCurrentSample().get(10));
+    }
+
     private static final class UserActivity {
         private final int mUid;
         private boolean mHasProcess;
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.storagemonitoring;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.testng.Assert.assertThrows;
+
+import android.car.storagemonitoring.IoStatsEntry;
+import android.car.storagemonitoring.UidIoRate;
+import android.util.SparseArray;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class UidIoTimeSeriesTest {
+    private static final long SAMPLE_PERIOD_MS = 1000;
+    // 4 buckets of one sample, then 3 buckets of 4 samples
+    private static final int[] SAMPLES_PER_BUCKET = {1, 4};
+    private static final int[] BUCKET_COUNTS = {4, 3};
+
+    private final UidIoTimeSeries mTimeSeries = newTimeSeries(10);
+
+    @Test
+    public void testInvalidConfiguration() {
+        assertThrows(IllegalArgumentException.class, () -> newTimeSeries(0));
+        assertThrows(IllegalArgumentException.class,
+                () -> new UidIoTimeSeries(1, SAMPLE_PERIOD_MS, new int[] {1}, new int[] {1, 2}));
+        assertThrows(IllegalArgumentException.class,
+                () -> new UidIoTimeSeries(1, SAMPLE_PERIOD_MS, new int[] {0}, new int[] {1}));
+    }
+
+    @Test
+    public void testNoSamples() {
+        assertThat(mTimeSeries.getTopWriters(1000, 5)).isEmpty();
+        assertThat(mTimeSeries.getRate(1, 1000)).isEqualTo(new UidIoRate(1, 0, 0));
+    }
+
+    @Test
+    public void testGetTopWriters_OrderedByBytesWritten() {
+        mTimeSeries.addSample(sample(entry(1, 10, 0), entry(2, 0, 30)));
+        mTimeSeries.addSample(sample(entry(1, 100, 0), entry(3, 0, 0)));
+
+        assertThat(mTimeSeries.getTopWriters(2000, 10)).containsExactly(
+                new UidIoRate(1, 2000, 110), new UidIoRate(2, 2000, 30)).inOrder();
+        assertThat(mTimeSeries.getTopWriters(2000, 1)).containsExactly(
+                new UidIoRate(1, 2000, 110));
+        assertThat(mTimeSeries.getTopWriters(2000, 0)).isEmpty();
+    }
+
+    @Test
+    public void testGetRate_OnlyCountsWindow() {
+        mTimeSeries.addSample(sample(entry(1, 10, 0)));
+        mTimeSeries.addSample(sample(entry(1, 20, 0)));
+        mTimeSeries.addSample(sample(entry(1, 30, 5)));
+
+        assertThat(mTimeSeries.getRate(1, 1000)).isEqualTo(new UidIoRate(1, 1000, 35));
+        assertThat(mTimeSeries.getRate(1, 1500)).isEqualTo(new UidIoRate(1, 2000, 55));
+        assertThat(mTimeSeries.getRate(2, 1000)).isEqualTo(new UidIoRate(2, 1000, 0));
+    }
+
+    @Test
+    public void testGetRate_OldSamplesRollOver() {
+        mTimeSeries.addSample(sample(entry(1, 10, 0)));
+        for (int i = 0; i < BUCKET_COUNTS[0]; i++) {
+            mTimeSeries.addSample(sample(entry(2, 1, 0)));
+        }
+
+        assertThat(mTimeSeries.getRate(1, 4000)).isEqualTo(new UidIoRate(1, 4000, 0));
+        assertThat(mTimeSeries.getTopWriters(4000, 10)).containsExactly(
+                new UidIoRate(2, 4000, 4));
+    }
+
+    @Test
+    public void testGetRate_LongWindowUsesCoarseTier() {
+        for (int i = 0; i < 6; i++) {
+            mTimeSeries.addSample(sample(entry(1, 10, 0)));
+        }
+
+        // Only 6 samples of history are available
+        assertThat(mTimeSeries.getRate(1, 8000)).isEqualTo(new UidIoRate(1, 6000, 60));
+
+        for (int i = 0; i < 12; i++) {
+            mTimeSeries.addSample(sample(entry(1, 10, 0)));
+        }
+
+        // The current coarse bucket holds 2 samples, so the window spans 2 more full buckets
+        assertThat(mTimeSeries.getRate(1, 8000)).isEqualTo(new UidIoRate(1, 10000, 100));
+    }
+
+    @Test
+    public void testAddSample_EvictsSmallestWriter() {
+        UidIoTimeSeries timeSeries = newTimeSeries(2);
+        timeSeries.addSample(sample(entry(1, 100, 0), entry(2, 10, 0)));
+        timeSeries.addSample(sample(entry(3, 50, 0)));
+
+        assertThat(timeSeries.getRate(2, 2000)).isEqualTo(new UidIoRate(2, 2000, 0));
+        assertThat(timeSeries.getTopWriters(2000, 10)).containsExactly(
+                new UidIoRate(1, 2000, 100), new UidIoRate(3, 2000, 50)).inOrder();
+    }
+
+    private static UidIoTimeSeries newTimeSeries(int maxUids) {
+        return new UidIoTimeSeries(maxUids, SAMPLE_PERIOD_MS, SAMPLES_PER_BUCKET, BUCKET_COUNTS);
+    }
+
+    private static IoStatsEntry entry(int uid, long foregroundBytes, long backgroundBytes) {
+        return new IoStatsEntry(uid, SAMPLE_PERIOD_MS,
+                new IoStatsEntry.Metrics(0, 0, 0, foregroundBytes, 0),
+                new IoStatsEntry.Metrics(0, 0, 0, backgroundBytes, 0));
+    }
+
+    private static SparseArray<IoStatsEntry> sample(IoStatsEntry... entries) {
+        SparseArray<IoStatsEntry> sample = new SparseArray<>();
+        for (IoStatsEntry entry : entries) {
+            sample.put(entry.uid, entry);
+        }
+        return sample;
+    }
+}
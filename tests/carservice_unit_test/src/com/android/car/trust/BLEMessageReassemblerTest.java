@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.trust;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.testng.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import com.android.car.BLEStreamProtos.BLEMessageProto.BLEMessage;
+import com.android.car.BLEStreamProtos.BLEOperationProto.OperationType;
+import com.android.car.protobuf.ByteString;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit test for the {@link BLEMessageReassembler}.
+ *
+ * <p>Run:
+ * {@code atest CarServiceUnitTest:BLEMessageReassemblerTest}
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BLEMessageReassemblerTest {
+    private static final int MAX_SIZE = 50;
+
+    private final BLEMessageReassembler mReassembler = new BLEMessageReassembler();
+
+    @Test
+    public void testWrite_inOrder() throws IOException {
+        byte[] payload = makePayload(1000);
+
+        for (BLEMessage packet : makePackets(payload, 1)) {
+            assertThat(mReassembler.isComplete()).isFalse();
+            assertThat(mReassembler.write(packet)).isTrue();
+        }
+
+        assertThat(mReassembler.isComplete()).isTrue();
+        assertThat(mReassembler.toByteArray()).isEqualTo(payload);
+    }
+
+    @Test
+    public void testWrite_lastPacketFirst() throws IOException {
+        byte[] payload = makePayload(1000);
+        List<BLEMessage> packets = makePackets(payload, 1);
+        Collections.reverse(packets);
+
+        for (BLEMessage packet : packets) {
+            mReassembler.write(packet);
+        }
+
+        assertThat(mReassembler.isComplete()).isTrue();
+        assertThat(mReassembler.toByteArray()).isEqualTo(payload);
+    }
+
+    @Test
+    public void testWrite_singlePacket() throws IOException {
+        byte[] payload = makePayload(10);
+
+        assertThat(mReassembler.write(makePackets(payload, 1).get(0))).isTrue();
+
+        assertThat(mReassembler.isComplete()).isTrue();
+        assertThat(mReassembler.toByteArray()).isEqualTo(payload);
+    }
+
+    @Test
+    public void testWrite_duplicatePackets() throws IOException {
+        byte[] payload = makePayload(1000);
+        List<BLEMessage> packets = makePackets(payload, 1);
+
+        mReassembler.write(packets.get(0));
+        assertThat(mReassembler.write(packets.get(0))).isFalse();
+        for (int i = 1; i < packets.size(); i++) {
+            mReassembler.write(packets.get(i));
+        }
+
+        // A retransmission of the completed message is not a new message.
+        assertThat(mReassembler.write(packets.get(1))).isFalse();
+        assertThat(mReassembler.isComplete()).isTrue();
+        assertThat(mReassembler.toByteArray()).isEqualTo(payload);
+    }
+
+    @Test
+    public void testWrite_newMessageReplacesIncompleteMessage() throws IOException {
+        byte[] payload1 = makePayload(1000);
+        byte[] payload2 = makePayload(300);
+
+        mReassembler.write(makePackets(payload1, 1).get(0));
+        for (BLEMessage packet : makePackets(payload2, 2)) {
+            mReassembler.write(packet);
+        }
+
+        assertThat(mReassembler.isComplete()).isTrue();
+        assertThat(mReassembler.toByteArray()).isEqualTo(payload2);
+    }
+
+    @Test
+    public void testWrite_invalidPacketNumber() {
+        BLEMessage packet = makePackets(makePayload(1000), 1).get(0).toBuilder()
+                .setPacketNumber(0)
+                .build();
+
+        assertThrows(IOException.class, () -> mReassembler.write(packet));
+    }
+
+    @Test
+    public void testWrite_inconsistentPacketSize() throws IOException {
+        List<BLEMessage> packets = makePackets(makePayload(1000), 1);
+        mReassembler.write(packets.get(0));
+        BLEMessage packet = packets.get(1).toBuilder()
+                .setPayload(ByteString.copyFrom(new byte[3]))
+                .build();
+
+        assertThrows(IOException.class, () -> mReassembler.write(packet));
+    }
+
+    @Test
+    public void testWrite_tooManyPackets() {
+        BLEMessage packet = makePackets(makePayload(1000), 1).get(0).toBuilder()
+                .setTotalPackets(BLEMessageReassembler.MAX_PACKETS + 1)
+                .build();
+
+        assertThrows(IOException.class, () -> mReassembler.write(packet));
+    }
+
+    @Test
+    public void testWrite_missingMessageId() {
+        BLEMessage packet = makePackets(makePayload(10), 1).get(0).toBuilder()
+                .clearMessageId()
+                .build();
+
+        assertThrows(IOException.class, () -> mReassembler.write(packet));
+        assertThat(mReassembler.isComplete()).isFalse();
+    }
+
+    private static List<BLEMessage> makePackets(byte[] payload, int messageId) {
+        return new ArrayList<>(BLEMessageV2Factory.makeBLEMessages(payload,
+                OperationType.CLIENT_MESSAGE, MAX_SIZE, /* isPayloadEncrypted= */ false,
+                messageId));
+    }
+
+    private static byte[] makePayload(int length) {
+        byte[] payload = new byte[length];
+        new Random().nextBytes(payload);
+        return payload;
+    }
+}
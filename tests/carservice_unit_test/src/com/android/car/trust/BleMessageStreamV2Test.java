@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.trust;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+
+import com.android.car.BLEStreamProtos.BLEMessageProto.BLEMessage;
+import com.android.car.BLEStreamProtos.BLEOperationProto.OperationType;
+import com.android.car.protobuf.InvalidProtocolBufferException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Unit test for the {@link BleMessageStreamV2}.
+ *
+ * <p>Run:
+ * {@code atest CarServiceUnitTest:BleMessageStreamV2Test}
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BleMessageStreamV2Test {
+    private static final String ADDRESS_MOCK = "00:11:22:33:AA:BB";
+
+    // The UUID values here are arbitrary.
+    private static final UUID WRITE_UUID = UUID.fromString("9a138a69-7c29-400f-9e71-fc29516f9f8b");
+    private static final UUID READ_UUID = UUID.fromString("3e344860-e688-4cce-8411-16161b61ad57");
+
+    private static final OperationType OPERATION_TYPE = OperationType.CLIENT_MESSAGE;
+    private static final int CHUNK_SIZE = 20;
+    private static final int REQUIRED_WRITES = 2 * BleMessageStreamV2.WINDOW_SIZE + 1;
+
+    private BleMessageStreamV2 mBleMessageStream;
+    private BluetoothDevice mBluetoothDevice;
+    private long mNowMs;
+    private int mNotificationCount;
+
+    @Mock BlePeripheralManager mBlePeripheralManager;
+    @Mock BleMessageStreamCallback mCallbackMock;
+    @Mock Handler mHandlerMock;
+    @Mock BluetoothGattCharacteristic mWriteCharacteristicMock;
+    @Mock BluetoothGattCharacteristic mReadCharacteristicMock;
+
+    @Before
+    public void setUp() {
+        // Mock so that handler will run anything that is posted to it.
+        when(mHandlerMock.post(any(Runnable.class))).thenAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        });
+
+        when(mBlePeripheralManager.notifyCharacteristicChanged(any(), any(), anyBoolean()))
+                .thenAnswer(invocation -> {
+                    mNotificationCount++;
+                    return true;
+                });
+
+        // Ensure the mock characteristics return valid UUIDs.
+        when(mWriteCharacteristicMock.getUuid()).thenReturn(WRITE_UUID);
+        when(mReadCharacteristicMock.getUuid()).thenReturn(READ_UUID);
+
+        mBluetoothDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS_MOCK);
+        mBleMessageStream = new BleMessageStreamV2(
+                mHandlerMock, mBlePeripheralManager, mBluetoothDevice, mWriteCharacteristicMock,
+                mReadCharacteristicMock, () -> mNowMs);
+        mBleMessageStream.registerCallback(mCallbackMock);
+    }
+
+    @Test
+    public void writeMessage_noChunkingRequired_sendsSinglePacketWithoutRetry() throws Exception {
+        // Ensure that there is enough space to fit the message.
+        mBleMessageStream.setMaxWriteSize(512);
+
+        byte[] message = "message".getBytes();
+        mBleMessageStream.writeMessage(message, OPERATION_TYPE, /* isPayloadEncrypted= */ true);
+
+        List<BLEMessage> written = captureWrittenMessages(1);
+        assertThat(written.get(0).getTotalPackets()).isEqualTo(1);
+        assertThat(written.get(0).getPayload().toByteArray()).isEqualTo(message);
+        verify(mHandlerMock, never()).postDelayed(any(Runnable.class), anyLong());
+    }
+
+    @Test
+    public void writeMessage_chunkingRequired_sendsFullWindowWithoutWaitingForAck()
+            throws Exception {
+        writeChunkedMessage(makeMessage(REQUIRED_WRITES * CHUNK_SIZE));
+        // The next packet is only sent once the previous notification has been sent.
+        captureWrittenMessages(1);
+        completeNotifications();
+
+        List<BLEMessage> written = captureWrittenMessages(BleMessageStreamV2.WINDOW_SIZE);
+        for (int i = 0; i < written.size(); i++) {
+            assertThat(written.get(i).getPacketNumber()).isEqualTo(i + 1);
+            assertThat(written.get(i).getTotalPackets()).isEqualTo(REQUIRED_WRITES);
+        }
+    }
+
+    @Test
+    public void writeMessage_chunkingRequired_ackSlidesWindowAndMessageReassembles()
+            throws Exception {
+        byte[] message = makeMessage(REQUIRED_WRITES * CHUNK_SIZE);
+        writeChunkedMessage(message);
+
+        // Acknowledge packets as soon as they are sent, in reverse order within each window.
+        List<BLEMessage> sent = new ArrayList<>();
+        int acked = 0;
+        while (acked < REQUIRED_WRITES) {
+            completeNotifications();
+            List<BLEMessage> written = captureWrittenMessages(sent.size()
+                    + Math.min(BleMessageStreamV2.WINDOW_SIZE, REQUIRED_WRITES - acked));
+            List<BLEMessage> window = new ArrayList<>(written.subList(sent.size(),
+                    written.size()));
+            sent.addAll(window);
+            Collections.reverse(window);
+            for (BLEMessage packet : window) {
+                sendAck(packet);
+                acked++;
+            }
+        }
+
+        BLEMessageReassembler reassembler = new BLEMessageReassembler();
+        for (BLEMessage packet : sent) {
+            reassembler.write(packet);
+        }
+        assertThat(reassembler.isComplete()).isTrue();
+        assertThat(reassembler.toByteArray()).isEqualTo(message);
+        verify(mCallbackMock, never()).onWriteMessageError();
+    }
+
+    @Test
+    public void writeMessage_chunkingRequired_retransmitsOnlyUnackedPackets() throws Exception {
+        writeChunkedMessage(makeMessage(REQUIRED_WRITES * CHUNK_SIZE));
+        completeNotifications();
+        List<BLEMessage> window = captureWrittenMessages(BleMessageStreamV2.WINDOW_SIZE);
+
+        // Acknowledge every packet of the first window except the second one.
+        for (int i = 0; i < window.size(); i++) {
+            if (i != 1) {
+                sendAck(window.get(i));
+            }
+        }
+        // The window cannot slide past the missing packet.
+        List<BLEMessage> written = captureWrittenMessages(BleMessageStreamV2.WINDOW_SIZE + 1);
+        sendAck(written.get(BleMessageStreamV2.WINDOW_SIZE));
+        completeNotifications();
+
+        mNowMs += BleMessageStreamV2.MAX_RETRY_DELAY_MS;
+        runLastRetransmit();
+        completeNotifications();
+
+        written = captureWrittenMessages(BleMessageStreamV2.WINDOW_SIZE + 2);
+        BLEMessage retransmitted = written.get(written.size() - 1);
+        assertThat(retransmitted.getPacketNumber()).isEqualTo(2);
+        assertThat(retransmitted.getPayload()).isEqualTo(window.get(1).getPayload());
+    }
+
+    @Test
+    public void writeMessage_chunkingRequired_notifiesCallbackOnceAfterRetryLimit() {
+        writeChunkedMessage(makeMessage(REQUIRED_WRITES * CHUNK_SIZE));
+        completeNotifications();
+
+        for (int i = 0; i < BleMessageStreamV2.BLE_MESSAGE_RETRY_LIMIT; i++) {
+            mNowMs += BleMessageStreamV2.MAX_RETRY_DELAY_MS;
+            runLastRetransmit();
+            completeNotifications();
+        }
+
+        // Every packet of the window was sent up to the limit, and the error reported once.
+        verify(mWriteCharacteristicMock, times(
+                BleMessageStreamV2.WINDOW_SIZE * BleMessageStreamV2.BLE_MESSAGE_RETRY_LIMIT))
+                .setValue(any(byte[].class));
+        verify(mCallbackMock).onWriteMessageError();
+    }
+
+    @Test
+    public void writeMessage_ackRoundTrips_adaptRetryDelay() {
+        assertThat(mBleMessageStream.getRetryDelayMs())
+                .isEqualTo(BleMessageStreamV2.INITIAL_RETRY_DELAY_MS);
+
+        writeChunkedMessage(makeMessage(REQUIRED_WRITES * CHUNK_SIZE));
+        completeNotifications();
+        List<BLEMessage> window = captureWrittenMessages(BleMessageStreamV2.WINDOW_SIZE);
+        mNowMs += 10;
+        for (BLEMessage packet : window) {
+            sendAck(packet);
+        }
+
+        assertThat(mBleMessageStream.getRetryDelayMs())
+                .isEqualTo(BleMessageStreamV2.MIN_RETRY_DELAY_MS);
+    }
+
+    @Test
+    public void processClientMessage_outOfOrderAndDuplicates_notifiesCallbackOnce() {
+        byte[] payload = makeMessage(1024);
+        List<BLEMessage> clientMessages = BLEMessageV2Factory.makeBLEMessages(
+                payload, OPERATION_TYPE, /* maxSize= */ 50, /* isPayloadEncrypted= */ true,
+                /* messageId= */ 7);
+        List<BLEMessage> received = new ArrayList<>(clientMessages);
+        Collections.reverse(received);
+        received.add(clientMessages.get(0));
+
+        for (BLEMessage message : received) {
+            mBleMessageStream.onCharacteristicWrite(
+                    mBluetoothDevice, mReadCharacteristicMock, message.toByteArray());
+        }
+
+        verify(mCallbackMock).onMessageReceived(payload, READ_UUID);
+        verify(mCallbackMock).onMessageReceived(any(byte[].class), any(UUID.class));
+    }
+
+    @Test
+    public void processClientMessage_chunkingRequired_acksEveryPacket() throws Exception {
+        List<BLEMessage> clientMessages = BLEMessageV2Factory.makeBLEMessages(
+                makeMessage(1024), OPERATION_TYPE, /* maxSize= */ 50,
+                /* isPayloadEncrypted= */ true, /* messageId= */ 7);
+
+        for (BLEMessage message : clientMessages) {
+            mBleMessageStream.onCharacteristicWrite(
+                    mBluetoothDevice, mReadCharacteristicMock, message.toByteArray());
+        }
+        completeNotifications();
+
+        List<BLEMessage> acks = captureWrittenMessages(clientMessages.size());
+        for (int i = 0; i < acks.size(); i++) {
+            assertThat(acks.get(i)).isEqualTo(BLEMessageV2Factory.makeAcknowledgementMessage(
+                    7, i + 1, clientMessages.size()));
+        }
+    }
+
+    @Test
+    public void release_unregistersListenersAndIgnoresLaterEvents() throws Exception {
+        ArgumentCaptor<BlePeripheralManager.OnCharacteristicWriteListener> writeListener =
+                ArgumentCaptor.forClass(BlePeripheralManager.OnCharacteristicWriteListener.class);
+        ArgumentCaptor<BlePeripheralManager.OnNotificationSentListener> sentListener =
+                ArgumentCaptor.forClass(BlePeripheralManager.OnNotificationSentListener.class);
+        verify(mBlePeripheralManager).addOnCharacteristicWriteListener(writeListener.capture());
+        verify(mBlePeripheralManager).addOnNotificationSentListener(sentListener.capture());
+
+        mBleMessageStream.release();
+
+        verify(mBlePeripheralManager).removeOnCharacteristicWriteListener(
+                writeListener.getValue());
+        verify(mBlePeripheralManager).removeOnNotificationSentListener(sentListener.getValue());
+        verify(mHandlerMock).removeCallbacksAndMessages(null);
+
+        // An event already dispatched to the stream when it was released is dropped.
+        BLEMessage packet = BLEMessageV2Factory.makeBLEMessages("message".getBytes(),
+                OPERATION_TYPE, CHUNK_SIZE, /* isPayloadEncrypted= */ false,
+                /* messageId= */ 7).get(0);
+        mBleMessageStream.onCharacteristicWrite(mBluetoothDevice, mReadCharacteristicMock,
+                packet.toByteArray());
+
+        verify(mCallbackMock, never()).onMessageReceived(any(), any());
+        verify(mBlePeripheralManager, never()).notifyCharacteristicChanged(any(), any(),
+                anyBoolean());
+    }
+
+    private void writeChunkedMessage(byte[] message) {
+        int headerSize = BLEMessageV2Factory.getProtoHeaderSize(
+                OPERATION_TYPE, message.length, /* isPayloadEncrypted= */ true);
+        mBleMessageStream.setMaxWriteSize(CHUNK_SIZE + headerSize);
+        mBleMessageStream.writeMessage(message, OPERATION_TYPE, /* isPayloadEncrypted= */ true);
+    }
+
+    private void sendAck(BLEMessage packet) {
+        mBleMessageStream.onCharacteristicWrite(mBluetoothDevice, mReadCharacteristicMock,
+                BLEMessageV2Factory.makeAcknowledgementMessage(packet.getMessageId(),
+                        packet.getPacketNumber(), packet.getTotalPackets()).toByteArray());
+    }
+
+    /** Reports notifications as sent until the stream has nothing more to send. */
+    private void completeNotifications() {
+        int count;
+        do {
+            count = mNotificationCount;
+            mBleMessageStream.onNotificationSent(mBluetoothDevice, BluetoothGatt.GATT_SUCCESS);
+        } while (mNotificationCount > count);
+    }
+
+    private void runLastRetransmit() {
+        ArgumentCaptor<Runnable> runnableCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mHandlerMock, atLeastOnce()).postDelayed(runnableCaptor.capture(), anyLong());
+        runnableCaptor.getValue().run();
+    }
+
+    /** Returns the messages written so far, verifying that there are {@code count} of them. */
+    private List<BLEMessage> captureWrittenMessages(int count)
+            throws InvalidProtocolBufferException {
+        ArgumentCaptor<byte[]> messageCaptor = ArgumentCaptor.forClass(byte[].class);
+        verify(mWriteCharacteristicMock, times(count)).setValue(messageCaptor.capture());
+        verify(mBlePeripheralManager, times(count))
+                .notifyCharacteristicChanged(mBluetoothDevice, mWriteCharacteristicMock, false);
+        List<BLEMessage> messages = new ArrayList<>();
+        for (byte[] value : messageCaptor.getAllValues()) {
+            messages.add(BLEMessage.parseFrom(value));
+        }
+        return messages;
+    }
+
+    /** Returns a random message of the specified length. */
+    private byte[] makeMessage(int length) {
+        byte[] message = new byte[length];
+        new Random().nextBytes(message);
+
+        return message;
+    }
+}
@@ -20,11 +20,16 @@ import static com.google.common.truth.Truth.assertThat;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.ArgumentMatchers.same;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -39,8 +44,10 @@ import android.car.vms.VmsAssociatedLayer;
 import android.car.vms.VmsAvailableLayers;
 import android.car.vms.VmsLayer;
 import android.car.vms.VmsLayerDependency;
+import android.car.vms.VmsPacket;
 import android.car.vms.VmsProviderInfo;
 import android.car.vms.VmsRegistrationInfo;
+import android.car.vms.VmsRingBuffer;
 import android.car.vms.VmsSubscriptionState;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -62,14 +69,17 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.MockitoJUnitRunner;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 @RunWith(MockitoJUnitRunner.class)
 @SmallTest
@@ -101,6 +111,7 @@ public class VmsBrokerServiceTest {
 
     private static final byte[] PAYLOAD = {1, 2, 3, 4, 5, 6, 7, 8};
     private static final int LARGE_PACKET_SIZE = 54321;
+    private static final long DELIVERY_TIMEOUT_MS = 5000;
 
     @Mock
     private Context mContext;
@@ -129,6 +140,7 @@ public class VmsBrokerServiceTest {
     private final IBinder mClientToken1 = new Binder();
     private final IBinder mClientToken2 = new Binder();
     private SharedMemory mLargePacket;
+    private VmsRingBuffer mLayerStream;
 
     private VmsBrokerService mBrokerService;
     private int mCallingAppUid;
@@ -158,11 +170,19 @@ public class VmsBrokerServiceTest {
         mLargePacket = Mockito.spy(SharedMemory.create("VmsBrokerServiceTest", LARGE_PACKET_SIZE));
     }
 
+    // Used by layer stream tests
+    private void setupLayerStream() {
+        mLayerStream = VmsRingBuffer.createWriter(4 /* slotCount */, PAYLOAD.length);
+    }
+
     @After
     public void tearDown() {
         if (mLargePacket != null) {
             mLargePacket.close();
         }
+        if (mLayerStream != null) {
+            mLayerStream.close();
+        }
     }
 
     @Test
@@ -2533,6 +2553,70 @@ public class VmsBrokerServiceTest {
                 () -> mBrokerService.publishPacket(new Binder(), providerId, LAYER1, PAYLOAD));
     }
 
+    @Test
+    public void testGetAvailableLayers() {
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+
+        assertThat(mBrokerService.getAvailableLayers(mClientToken1)).isEqualTo(
+                new VmsAvailableLayers(1, asSet(
+                        new VmsAssociatedLayer(LAYER1, asSet(providerId)))));
+    }
+
+    @Test
+    public void testGetAvailableLayers_UnknownClient() {
+        assertThrows(
+                IllegalStateException.class,
+                () -> mBrokerService.getAvailableLayers(new Binder()));
+    }
+
+    @Test
+    public void testSetProviderOfferings_AvailabilityDeltas() throws Exception {
+        registerClient(mClientToken1, mClientCallback1);
+        mBrokerService.setLayerAvailabilityDeltasEnabled(mClientToken1, true);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1),
+                new VmsLayerDependency(LAYER2, asSet(LAYER3))
+        ));
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER2, asSet(LAYER3)),
+                new VmsLayerDependency(LAYER3)
+        ));
+
+        verify(mClientCallback1).onLayerAvailabilityDelta(1,
+                asList(new VmsAssociatedLayer(LAYER1, asSet(providerId))),
+                asList());
+        ArgumentCaptor<List<VmsAssociatedLayer>> updatedLayersCaptor =
+                ArgumentCaptor.forClass(List.class);
+        verify(mClientCallback1).onLayerAvailabilityDelta(eq(2),
+                updatedLayersCaptor.capture(), eq(asList(LAYER1)));
+        assertThat(updatedLayersCaptor.getValue()).containsExactly(
+                new VmsAssociatedLayer(LAYER2, asSet(providerId)),
+                new VmsAssociatedLayer(LAYER3, asSet(providerId)));
+        verify(mClientCallback1, never()).onLayerAvailabilityChanged(any());
+    }
+
+    @Test
+    public void testSetProviderOfferings_AvailabilityDeltas_OtherClientsGetFullState()
+            throws Exception {
+        registerClient(mClientToken1, mClientCallback1);
+        mBrokerService.setLayerAvailabilityDeltasEnabled(mClientToken1, true);
+        registerClient(mClientToken2, mClientCallback2);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+        unregisterClient(mClientToken1);
+
+        verifyLayerAvailability(mClientCallback2, new VmsAvailableLayers(2, emptySet()));
+    }
+
     @Test
     public void testPublishPacket_UnknownOffering() {
         registerClient(mClientToken1, mClientCallback1);
@@ -3248,6 +3332,321 @@ public class VmsBrokerServiceTest {
         verifyNoMoreInteractions(mLargePacket);
     }
 
+    @Test
+    public void testPublishLargePacket_DeliveryQueue_InOrderWithPackets() throws Exception {
+        mBrokerService = new VmsBrokerService(mContext, mStatsService, () -> mCallingAppUid,
+                16 /* deliveryQueueSize */, VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        setupLargePacket();
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+        mCallingAppUid = TEST_APP_UID2;
+        registerClient(mClientToken2, mClientCallback2);
+        mBrokerService.setSubscriptions(mClientToken2, asList(
+                new VmsAssociatedLayer(LAYER1, emptySet())
+        ));
+
+        // Hold the first delivery until all the packets are published
+        CountDownLatch published = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            published.await();
+            return null;
+        }).when(mClientCallback2).onPacketReceived(eq(providerId), eq(LAYER1), same(PAYLOAD));
+        byte[] lastPayload = {9};
+        mCallingAppUid = TEST_APP_UID1;
+        mBrokerService.publishPacket(mClientToken1, providerId, LAYER1, PAYLOAD);
+        mBrokerService.publishLargePacket(mClientToken1, providerId, LAYER1, mLargePacket);
+        mBrokerService.publishPacket(mClientToken1, providerId, LAYER1, lastPayload);
+
+        // The queued delivery keeps the large packet open
+        verify(mLargePacket, never()).close();
+        published.countDown();
+
+        verify(mClientCallback2, timeout(DELIVERY_TIMEOUT_MS))
+                .onPacketReceived(providerId, LAYER1, lastPayload);
+        InOrder inOrder = inOrder(mClientCallback2);
+        inOrder.verify(mClientCallback2).onPacketReceived(providerId, LAYER1, PAYLOAD);
+        inOrder.verify(mClientCallback2).onLargePacketReceived(providerId, LAYER1, mLargePacket);
+        inOrder.verify(mClientCallback2).onPacketReceived(providerId, LAYER1, lastPayload);
+        verify(mClientLog2, timeout(DELIVERY_TIMEOUT_MS))
+                .logPacketReceived(LAYER1, LARGE_PACKET_SIZE);
+        verify(mLargePacket, timeout(DELIVERY_TIMEOUT_MS)).close();
+
+        mBrokerService.release();
+    }
+
+    @Test
+    public void testPublishPackets_UnknownClient() {
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+
+        assertThrows(
+                IllegalStateException.class,
+                () -> mBrokerService.publishPackets(new Binder(), asList(
+                        new VmsPacket(providerId, LAYER1, PAYLOAD))));
+    }
+
+    @Test
+    public void testPublishPackets_UnknownOffering_NothingDelivered() throws Exception {
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+        mBrokerService.setSubscriptions(mClientToken1, asList(
+                new VmsAssociatedLayer(LAYER1, emptySet()),
+                new VmsAssociatedLayer(LAYER2, emptySet())
+        ));
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> mBrokerService.publishPackets(mClientToken1, asList(
+                        new VmsPacket(providerId, LAYER1, PAYLOAD),
+                        new VmsPacket(providerId, LAYER2, PAYLOAD))));
+
+        verify(mClientLog1, never()).logPacketSent(any(), anyInt());
+        verify(mClientCallback1, never()).onPacketsReceived(any());
+    }
+
+    @Test
+    public void testPublishPackets_NoSubscribers() throws Exception {
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1),
+                new VmsLayerDependency(LAYER2)
+        ));
+
+        mBrokerService.publishPackets(mClientToken1, asList(
+                new VmsPacket(providerId, LAYER1, PAYLOAD),
+                new VmsPacket(providerId, LAYER2, PAYLOAD)));
+
+        verify(mClientLog1).logPacketSent(LAYER1, PAYLOAD.length);
+        verify(mClientLog1).logPacketSent(LAYER2, PAYLOAD.length);
+        verify(mNoSubscribersLog).logPacketDropped(LAYER1, PAYLOAD.length);
+        verify(mNoSubscribersLog).logPacketDropped(LAYER2, PAYLOAD.length);
+        verify(mClientCallback1, never()).onPacketsReceived(any());
+    }
+
+    @Test
+    public void testPublishPackets_GroupedPerSubscriber() throws Exception {
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1),
+                new VmsLayerDependency(LAYER2)
+        ));
+        mBrokerService.setSubscriptions(mClientToken1, asList(
+                new VmsAssociatedLayer(LAYER1, emptySet())
+        ));
+        mCallingAppUid = TEST_APP_UID2;
+        registerClient(mClientToken2, mClientCallback2);
+        mBrokerService.setSubscriptions(mClientToken2, asList(
+                new VmsAssociatedLayer(LAYER1, emptySet()),
+                new VmsAssociatedLayer(LAYER2, asSet(providerId))
+        ));
+        VmsPacket packet1 = new VmsPacket(providerId, LAYER1, PAYLOAD);
+        VmsPacket packet2 = new VmsPacket(providerId, LAYER2, PAYLOAD);
+        VmsPacket packet3 = new VmsPacket(providerId, LAYER1, new byte[]{1});
+
+        mCallingAppUid = TEST_APP_UID1;
+        mBrokerService.publishPackets(mClientToken1, asList(packet1, packet2, packet3));
+
+        verify(mClientLog1).logPacketSent(LAYER1, PAYLOAD.length);
+        verify(mClientLog1).logPacketSent(LAYER2, PAYLOAD.length);
+        verify(mClientLog1).logPacketSent(LAYER1, 1);
+        verify(mClientLog1).logPacketReceived(LAYER1, PAYLOAD.length);
+        verify(mClientLog1).logPacketReceived(LAYER1, 1);
+        verify(mClientLog2).logPacketReceived(LAYER1, PAYLOAD.length);
+        verify(mClientLog2).logPacketReceived(LAYER2, PAYLOAD.length);
+        verify(mClientLog2).logPacketReceived(LAYER1, 1);
+        verify(mClientCallback1).onPacketsReceived(asList(packet1, packet3));
+        verify(mClientCallback2).onPacketsReceived(asList(packet1, packet2, packet3));
+        verifyNoPacketsReceived(mClientCallback1, providerId, LAYER1);
+        verifyNoPacketsReceived(mClientCallback2, providerId, LAYER1);
+    }
+
+    @Test
+    public void testPublishPackets_DeadSubscriber() throws Exception {
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1),
+                new VmsLayerDependency(LAYER2)
+        ));
+        mCallingAppUid = TEST_APP_UID2;
+        registerClient(mClientToken2, mClientCallback2);
+        mBrokerService.setSubscriptions(mClientToken2, asList(
+                new VmsAssociatedLayer(LAYER1, emptySet()),
+                new VmsAssociatedLayer(LAYER2, emptySet())
+        ));
+        doThrow(RuntimeException.class).when(mClientCallback2).onPacketsReceived(any());
+
+        mCallingAppUid = TEST_APP_UID1;
+        mBrokerService.publishPackets(mClientToken1, asList(
+                new VmsPacket(providerId, LAYER1, PAYLOAD),
+                new VmsPacket(providerId, LAYER2, PAYLOAD)));
+
+        verify(mClientLog2).logPacketDropped(LAYER1, PAYLOAD.length);
+        verify(mClientLog2).logPacketDropped(LAYER2, PAYLOAD.length);
+        verify(mClientLog2, never()).logPacketReceived(any(), anyInt());
+    }
+
+    @Test
+    public void testSetLayerStream_UnknownClient() {
+        setupLayerStream();
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+
+        assertThrows(
+                IllegalStateException.class,
+                () -> mBrokerService.setLayerStream(
+                        new Binder(), providerId, LAYER1, mLayerStream.getSharedMemory()));
+    }
+
+    @Test
+    public void testSetLayerStream_UnknownOffering() {
+        setupLayerStream();
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> mBrokerService.setLayerStream(
+                        mClientToken1, providerId, LAYER1, mLayerStream.getSharedMemory()));
+    }
+
+    @Test
+    public void testSetLayerStream_InvalidBuffer() throws Exception {
+        setupLargePacket();
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> mBrokerService.setLayerStream(
+                        mClientToken1, providerId, LAYER1, mLargePacket));
+        verify(mLargePacket).close();
+    }
+
+    @Test
+    public void testPublishStreamPacket_NoStream() {
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+
+        assertThrows(
+                IllegalStateException.class,
+                () -> mBrokerService.publishStreamPacket(
+                        mClientToken1, providerId, LAYER1, 1, PAYLOAD.length));
+    }
+
+    @Test
+    public void testPublishStreamPacket() throws Exception {
+        setupLayerStream();
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+        mBrokerService.setLayerStream(mClientToken1, providerId, LAYER1,
+                mLayerStream.getSharedMemory());
+        registerClient(mClientToken2, mClientCallback2);
+        mBrokerService.setSubscriptions(mClientToken2, asList(
+                new VmsAssociatedLayer(LAYER1, emptySet())
+        ));
+
+        mBrokerService.publishStreamPacket(mClientToken1, providerId, LAYER1,
+                mLayerStream.write(PAYLOAD), PAYLOAD.length);
+        mBrokerService.publishStreamPacket(mClientToken1, providerId, LAYER1,
+                mLayerStream.write(PAYLOAD), PAYLOAD.length);
+
+        verify(mClientLog1, times(2)).logPacketSent(LAYER1, PAYLOAD.length);
+        verify(mClientLog1, times(2)).logPacketReceived(LAYER1, PAYLOAD.length);
+        verify(mClientCallback2).onLayerStreamChanged(providerId, LAYER1,
+                mLayerStream.getSharedMemory());
+        verify(mClientCallback2).onStreamPacketReceived(providerId, LAYER1, 1);
+        verify(mClientCallback2).onStreamPacketReceived(providerId, LAYER1, 2);
+        verify(mClientCallback1, never()).onLayerStreamChanged(anyInt(), any(), any());
+        verify(mClientCallback1, never()).onStreamPacketReceived(anyInt(), any(), anyLong());
+        verifyNoPacketsReceived(mClientCallback2, providerId, LAYER1);
+    }
+
+    @Test
+    public void testPublishStreamPacket_NoSubscribers() throws Exception {
+        setupLayerStream();
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+        mBrokerService.setLayerStream(mClientToken1, providerId, LAYER1,
+                mLayerStream.getSharedMemory());
+
+        mBrokerService.publishStreamPacket(mClientToken1, providerId, LAYER1,
+                mLayerStream.write(PAYLOAD), PAYLOAD.length);
+
+        verify(mClientLog1).logPacketSent(LAYER1, PAYLOAD.length);
+        verify(mNoSubscribersLog).logPacketDropped(LAYER1, PAYLOAD.length);
+        verify(mClientCallback1, never()).onStreamPacketReceived(anyInt(), any(), anyLong());
+    }
+
+    @Test
+    public void testClearLayerStream() throws Exception {
+        setupLayerStream();
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+        mBrokerService.setLayerStream(mClientToken1, providerId, LAYER1,
+                mLayerStream.getSharedMemory());
+        registerClient(mClientToken2, mClientCallback2);
+        mBrokerService.setSubscriptions(mClientToken2, asList(
+                new VmsAssociatedLayer(LAYER1, emptySet())
+        ));
+        mBrokerService.publishStreamPacket(mClientToken1, providerId, LAYER1,
+                mLayerStream.write(PAYLOAD), PAYLOAD.length);
+
+        mBrokerService.clearLayerStream(mClientToken1, providerId, LAYER1);
+
+        verify(mClientCallback2).onLayerStreamChanged(eq(providerId), eq(LAYER1), isNull());
+        assertThrows(
+                IllegalStateException.class,
+                () -> mBrokerService.publishStreamPacket(
+                        mClientToken1, providerId, LAYER1, 2, PAYLOAD.length));
+    }
+
+    @Test
+    public void testUnregisterClient_ClosesLayerStreams() throws Exception {
+        setupLayerStream();
+        registerClient(mClientToken1, mClientCallback1);
+        int providerId = mBrokerService.registerProvider(mClientToken1, PROVIDER_INFO1);
+        mBrokerService.setProviderOfferings(mClientToken1, providerId, asList(
+                new VmsLayerDependency(LAYER1)
+        ));
+        mBrokerService.setLayerStream(mClientToken1, providerId, LAYER1,
+                mLayerStream.getSharedMemory());
+        registerClient(mClientToken2, mClientCallback2);
+        mBrokerService.setSubscriptions(mClientToken2, asList(
+                new VmsAssociatedLayer(LAYER1, emptySet())
+        ));
+        mBrokerService.publishStreamPacket(mClientToken1, providerId, LAYER1,
+                mLayerStream.write(PAYLOAD), PAYLOAD.length);
+
+        unregisterClient(mClientToken1);
+
+        verify(mClientCallback2).onLayerStreamChanged(eq(providerId), eq(LAYER1), isNull());
+    }
+
     private void registerClient(IBinder token, IVmsClientCallback callback) {
         registerClient(token, callback, false);
     }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.vms;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.car.vms.IVmsClientCallback;
+import android.car.vms.VmsLayer;
+import android.os.RemoteException;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.car.stats.VmsClientLogger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+@RunWith(MockitoJUnitRunner.class)
+@SmallTest
+public class VmsDeliveryQueueTest {
+    private static final VmsLayer LAYER1 = new VmsLayer(1, 1, 1);
+    private static final VmsLayer LAYER2 = new VmsLayer(2, 1, 1);
+    private static final int PROVIDER_ID = 1;
+    private static final byte[] PAYLOAD1 = {1};
+    private static final byte[] PAYLOAD2 = {2, 2};
+    private static final byte[] PAYLOAD3 = {3, 3, 3};
+
+    @Mock
+    private IVmsClientCallback mCallback;
+    @Mock
+    private VmsClientLogger mLogger;
+
+    private final ManualExecutor mExecutor = new ManualExecutor();
+
+    @Test
+    public void testDelivery_inOrder() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+        queue.enqueue(PROVIDER_ID, LAYER2, PAYLOAD2);
+
+        verify(mCallback, never()).onPacketReceived(anyInt(), any(), any());
+        assertThat(mExecutor.mTasks).hasSize(1);
+        mExecutor.runAll();
+
+        InOrder inOrder = inOrder(mCallback);
+        inOrder.verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD1);
+        inOrder.verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER2, PAYLOAD2);
+        verify(mLogger).logPacketReceived(LAYER1, PAYLOAD1.length);
+        verify(mLogger).logPacketReceived(LAYER2, PAYLOAD2.length);
+        assertThat(queue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDelivery_boundedPerPass() throws Exception {
+        VmsDeliveryQueue queue = new VmsDeliveryQueue(mCallback, "test.package", mLogger,
+                mExecutor, 2 * VmsDeliveryQueue.MAX_PACKETS_PER_PASS /* capacity */,
+                VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        for (int i = 0; i <= VmsDeliveryQueue.MAX_PACKETS_PER_PASS; i++) {
+            queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+        }
+
+        mExecutor.mTasks.remove(0).run();
+
+        verify(mCallback, times(VmsDeliveryQueue.MAX_PACKETS_PER_PASS))
+                .onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD1);
+        assertThat(queue.size()).isEqualTo(1);
+        assertThat(mExecutor.mTasks).hasSize(1);
+
+        mExecutor.runAll();
+
+        verify(mCallback, times(VmsDeliveryQueue.MAX_PACKETS_PER_PASS + 1))
+                .onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD1);
+        assertThat(queue.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testOverflow_dropOldest() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+        queue.enqueue(PROVIDER_ID, LAYER2, PAYLOAD2);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD3);
+        mExecutor.runAll();
+
+        verify(mLogger).logDeliveryQueueOverflow(LAYER1, PAYLOAD1.length);
+        verify(mCallback, never()).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD1);
+        verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER2, PAYLOAD2);
+        verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD3);
+    }
+
+    @Test
+    public void testOverflow_dropNewest() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_DROP_NEWEST);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+        queue.enqueue(PROVIDER_ID, LAYER2, PAYLOAD2);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD3);
+        mExecutor.runAll();
+
+        verify(mLogger).logDeliveryQueueOverflow(LAYER1, PAYLOAD3.length);
+        verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD1);
+        verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER2, PAYLOAD2);
+        verify(mCallback, never()).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD3);
+    }
+
+    @Test
+    public void testOverflow_coalesceLayer() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_COALESCE_LAYER);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+        queue.enqueue(PROVIDER_ID, LAYER2, PAYLOAD2);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD3);
+        mExecutor.runAll();
+
+        verify(mLogger).logDeliveryQueueOverflow(LAYER1, PAYLOAD1.length);
+        InOrder inOrder = inOrder(mCallback);
+        inOrder.verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD3);
+        inOrder.verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER2, PAYLOAD2);
+        verify(mCallback, never()).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD1);
+    }
+
+    @Test
+    public void testDeliveryFailure_loggedAsDropped() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        doThrow(new RemoteException()).when(mCallback).onPacketReceived(anyInt(), any(), any());
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+        queue.enqueue(PROVIDER_ID, LAYER2, PAYLOAD2);
+        mExecutor.runAll();
+
+        verify(mLogger).logPacketDropped(LAYER1, PAYLOAD1.length);
+        verify(mLogger).logPacketDropped(LAYER2, PAYLOAD2.length);
+        verify(mLogger, never()).logPacketReceived(any(), anyInt());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+        queue.clear();
+        mExecutor.runAll();
+
+        verify(mCallback, never()).onPacketReceived(anyInt(), any(), any());
+        verify(mLogger).logDeliveryQueueDepthChange(1);
+        verify(mLogger).logDeliveryQueueDepthChange(-1);
+    }
+
+    @Test
+    public void testClear_releasesDeliveries() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        TestDelivery delivery = new TestDelivery();
+        queue.enqueue(PROVIDER_ID, LAYER1, 100, delivery);
+        queue.clear();
+        mExecutor.runAll();
+
+        assertThat(delivery.mDelivered).isFalse();
+        assertThat(delivery.mReleased).isTrue();
+    }
+
+    @Test
+    public void testDelivery_inOrderWithPackets() throws Exception {
+        VmsDeliveryQueue queue = new VmsDeliveryQueue(mCallback, "test.package", mLogger,
+                mExecutor, 4 /* capacity */, VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        InOrder inOrder = inOrder(mCallback);
+        TestDelivery delivery = new TestDelivery() {
+            @Override
+            public void deliver() throws RemoteException {
+                inOrder.verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD1);
+                super.deliver();
+            }
+        };
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+        queue.enqueue(PROVIDER_ID, LAYER1, 100, delivery);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD2);
+
+        assertThat(delivery.mDelivered).isFalse();
+        mExecutor.runAll();
+
+        assertThat(delivery.mDelivered).isTrue();
+        assertThat(delivery.mReleased).isTrue();
+        inOrder.verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD2);
+        verify(mLogger).logPacketReceived(LAYER1, 100);
+    }
+
+    @Test
+    public void testOverflow_releasesDroppedDelivery() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        TestDelivery delivery = new TestDelivery();
+        queue.enqueue(PROVIDER_ID, LAYER1, 100, delivery);
+        queue.enqueue(PROVIDER_ID, LAYER2, PAYLOAD2);
+        queue.enqueue(PROVIDER_ID, LAYER2, PAYLOAD3);
+
+        assertThat(delivery.mReleased).isTrue();
+        verify(mLogger).logDeliveryQueueOverflow(LAYER1, 100);
+        mExecutor.runAll();
+        assertThat(delivery.mDelivered).isFalse();
+    }
+
+    @Test
+    public void testDepth_reportedAsChanges() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+        queue.enqueue(PROVIDER_ID, LAYER2, PAYLOAD2);
+        // Dropping the oldest packet leaves the depth unchanged
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD3);
+        mExecutor.runAll();
+
+        verify(mLogger, times(2)).logDeliveryQueueDepthChange(1);
+        verify(mLogger, times(2)).logDeliveryQueueDepthChange(-1);
+        verify(mLogger, never()).logDeliveryQueueDepthChange(0);
+    }
+
+    @Test
+    public void testEnqueue_executorShutDown() throws Exception {
+        VmsDeliveryQueue queue = newQueue(VmsDeliveryQueue.OVERFLOW_DROP_OLDEST);
+        mExecutor.mRejecting = true;
+        queue.enqueue(PROVIDER_ID, LAYER1, PAYLOAD1);
+
+        assertThat(queue.size()).isEqualTo(0);
+        assertThat(mExecutor.mTasks).isEmpty();
+
+        // The queue is not left waiting for a task that was never submitted
+        mExecutor.mRejecting = false;
+        queue.enqueue(PROVIDER_ID, LAYER2, PAYLOAD2);
+        mExecutor.runAll();
+
+        verify(mCallback, never()).onPacketReceived(PROVIDER_ID, LAYER1, PAYLOAD1);
+        verify(mCallback).onPacketReceived(PROVIDER_ID, LAYER2, PAYLOAD2);
+    }
+
+    private VmsDeliveryQueue newQueue(int overflowPolicy) {
+        return new VmsDeliveryQueue(mCallback, "test.package", mLogger, mExecutor,
+                2 /* capacity */, overflowPolicy);
+    }
+
+    private static class TestDelivery implements VmsDeliveryQueue.Delivery {
+        boolean mDelivered;
+        boolean mReleased;
+
+        @Override
+        public void deliver() throws RemoteException {
+            assertThat(mReleased).isFalse();
+            mDelivered = true;
+        }
+
+        @Override
+        public void release() {
+            assertThat(mReleased).isFalse();
+            mReleased = true;
+        }
+    }
+
+    private static final class ManualExecutor implements Executor {
+        private final List<Runnable> mTasks = new ArrayList<>();
+        private boolean mRejecting;
+
+        @Override
+        public void execute(Runnable task) {
+            if (mRejecting) {
+                throw new RejectedExecutionException();
+            }
+            mTasks.add(task);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+}
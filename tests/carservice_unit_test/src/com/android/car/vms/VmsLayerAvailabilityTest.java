@@ -26,6 +26,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 @SmallTest
@@ -64,6 +65,9 @@ public class VmsLayerAvailabilityTest extends AndroidTestCase {
     private static final VmsLayerDependency X_DEPENDS_ON_SELF =
             new VmsLayerDependency(LAYER_X, Collections.singleton(LAYER_X));
 
+    private static final Object OWNER_1 = new Object();
+    private static final Object OWNER_2 = new Object();
+
     private Set<VmsLayersOffering> mOfferings;
     private VmsLayerAvailability mLayersAvailability;
 
@@ -252,4 +256,98 @@ public class VmsLayerAvailabilityTest extends AndroidTestCase {
                 new HashSet<>(
                         mLayersAvailability.getAvailableLayers().getAssociatedLayers()));
     }
+
+    public void testSetProviderOfferings_Delta() {
+        VmsLayerAvailability.Delta delta = mLayersAvailability.setProviderOfferings(
+                OWNER_1, PUBLISHER_ID_1, Collections.singleton(Z_DEPENDS_ON_NOTHING));
+
+        assertDelta(delta, 1,
+                Collections.singletonList(new VmsAssociatedLayer(LAYER_Z, PUBLISHERS_1)),
+                Collections.emptyList());
+        assertEquals(new HashSet<>(delta.getUpdatedLayers()),
+                mLayersAvailability.getAvailableLayers().getAssociatedLayers());
+    }
+
+    public void testSetProviderOfferings_Unchanged() {
+        mLayersAvailability.setProviderOfferings(
+                OWNER_1, PUBLISHER_ID_1, Collections.singleton(Z_DEPENDS_ON_NOTHING));
+
+        assertNull(mLayersAvailability.setProviderOfferings(
+                OWNER_1, PUBLISHER_ID_1, Collections.singleton(Z_DEPENDS_ON_NOTHING)));
+        assertEquals(1, mLayersAvailability.getAvailableLayers().getSequenceNumber());
+    }
+
+    public void testSetProviderOfferings_DependentLayerUpdated() {
+        mLayersAvailability.setProviderOfferings(
+                OWNER_1, PUBLISHER_ID_1, Collections.singleton(X_DEPENDS_ON_Y));
+
+        VmsLayerAvailability.Delta delta = mLayersAvailability.setProviderOfferings(
+                OWNER_2, PUBLISHER_ID_2,
+                new HashSet<>(Arrays.asList(Y_DEPENDS_ON_Z, Z_DEPENDS_ON_NOTHING)));
+
+        assertDelta(delta, 2,
+                Arrays.asList(
+                        new VmsAssociatedLayer(LAYER_X, PUBLISHERS_1),
+                        new VmsAssociatedLayer(LAYER_Y, PUBLISHERS_2),
+                        new VmsAssociatedLayer(LAYER_Z, PUBLISHERS_2)),
+                Collections.emptyList());
+    }
+
+    public void testSetProviderOfferings_ProviderAdded() {
+        mLayersAvailability.setProviderOfferings(
+                OWNER_1, PUBLISHER_ID_1, Collections.singleton(Z_DEPENDS_ON_NOTHING));
+
+        VmsLayerAvailability.Delta delta = mLayersAvailability.setProviderOfferings(
+                OWNER_2, PUBLISHER_ID_2, Collections.singleton(Z_DEPENDS_ON_NOTHING));
+
+        assertDelta(delta, 2,
+                Collections.singletonList(new VmsAssociatedLayer(LAYER_Z, PUBLISHERS_1_AND_2)),
+                Collections.emptyList());
+    }
+
+    public void testRemoveOfferings_DependentLayersRemoved() {
+        mLayersAvailability.setProviderOfferings(
+                OWNER_1, PUBLISHER_ID_1, Collections.singleton(Z_DEPENDS_ON_NOTHING));
+        mLayersAvailability.setProviderOfferings(
+                OWNER_2, PUBLISHER_ID_2, new HashSet<>(Arrays.asList(X_DEPENDS_ON_Z)));
+
+        VmsLayerAvailability.Delta delta = mLayersAvailability.removeOfferings(OWNER_1);
+
+        assertDelta(delta, 3, Collections.emptyList(), Arrays.asList(LAYER_X, LAYER_Z));
+        assertTrue(mLayersAvailability.getAvailableLayers().getAssociatedLayers().isEmpty());
+    }
+
+    public void testRemoveOfferings_SameOfferingFromOtherOwner() {
+        mLayersAvailability.setProviderOfferings(
+                OWNER_1, PUBLISHER_ID_1, Collections.singleton(Z_DEPENDS_ON_NOTHING));
+        mLayersAvailability.setProviderOfferings(
+                OWNER_2, PUBLISHER_ID_1, Collections.singleton(Z_DEPENDS_ON_NOTHING));
+
+        assertNull(mLayersAvailability.removeOfferings(OWNER_1));
+        assertDelta(mLayersAvailability.removeOfferings(OWNER_2), 2,
+                Collections.emptyList(), Collections.singletonList(LAYER_Z));
+    }
+
+    public void testRemoveOfferings_CycleWithAlternative() {
+        // Z is available on its own, so X and Y are too despite their cycle through Z
+        mLayersAvailability.setProviderOfferings(
+                OWNER_1, PUBLISHER_ID_1,
+                new HashSet<>(Arrays.asList(X_DEPENDS_ON_Y, Y_DEPENDS_ON_Z, Z_DEPENDS_ON_X)));
+        mLayersAvailability.setProviderOfferings(
+                OWNER_2, PUBLISHER_ID_1, Collections.singleton(Z_DEPENDS_ON_NOTHING));
+        assertEquals(3, mLayersAvailability.getAvailableLayers().getAssociatedLayers().size());
+
+        VmsLayerAvailability.Delta delta = mLayersAvailability.removeOfferings(OWNER_2);
+
+        assertDelta(delta, 3, Collections.emptyList(),
+                Arrays.asList(LAYER_X, LAYER_Y, LAYER_Z));
+    }
+
+    private static void assertDelta(VmsLayerAvailability.Delta delta, int sequenceNumber,
+            List<VmsAssociatedLayer> updatedLayers, List<VmsLayer> removedLayers) {
+        assertNotNull(delta);
+        assertEquals(sequenceNumber, delta.getAvailableLayers().getSequenceNumber());
+        assertEquals(new HashSet<>(updatedLayers), new HashSet<>(delta.getUpdatedLayers()));
+        assertEquals(new HashSet<>(removedLayers), new HashSet<>(delta.getRemovedLayers()));
+    }
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.vms;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+
+import android.car.vms.IVmsClientCallback;
+import android.car.vms.VmsAssociatedLayer;
+import android.car.vms.VmsLayer;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import java.util.Collections;
+import java.util.HashSet;
+
+@RunWith(MockitoJUnitRunner.class)
+@SmallTest
+public class VmsSubscriberIndexTest {
+    private static final VmsLayer LAYER1 = new VmsLayer(1, 1, 1);
+    private static final VmsLayer LAYER2 = new VmsLayer(2, 1, 1);
+    private static final int PROVIDER_ID1 = 1;
+    private static final int PROVIDER_ID2 = 2;
+
+    @Mock
+    private IVmsClientCallback mCallback;
+
+    @Test
+    public void testEmpty() {
+        assertThat(VmsSubscriberIndex.EMPTY.getSubscribers(PROVIDER_ID1, LAYER1)).isEmpty();
+    }
+
+    @Test
+    public void testLayerSubscription() {
+        VmsClientInfo client = newClient();
+        client.setSubscriptions(asList(new VmsAssociatedLayer(LAYER1, emptySet())));
+
+        VmsSubscriberIndex index = VmsSubscriberIndex.create(asList(client));
+
+        assertThat(index.getSubscribers(PROVIDER_ID1, LAYER1)).containsExactly(client);
+        assertThat(index.getSubscribers(PROVIDER_ID2, LAYER1)).containsExactly(client);
+        assertThat(index.getSubscribers(PROVIDER_ID1, LAYER2)).isEmpty();
+    }
+
+    @Test
+    public void testProviderSubscription() {
+        VmsClientInfo client = newClient();
+        client.setSubscriptions(asList(new VmsAssociatedLayer(LAYER1,
+                new HashSet<>(asList(PROVIDER_ID1)))));
+
+        VmsSubscriberIndex index = VmsSubscriberIndex.create(asList(client));
+
+        assertThat(index.getSubscribers(PROVIDER_ID1, LAYER1)).containsExactly(client);
+        assertThat(index.getSubscribers(PROVIDER_ID2, LAYER1)).isEmpty();
+    }
+
+    @Test
+    public void testProviderSubscription_includesLayerAndMonitoringClients() {
+        VmsClientInfo providerClient = newClient();
+        providerClient.setSubscriptions(asList(new VmsAssociatedLayer(LAYER1,
+                new HashSet<>(asList(PROVIDER_ID1)))));
+        VmsClientInfo layerClient = newClient();
+        layerClient.setSubscriptions(asList(new VmsAssociatedLayer(LAYER1, emptySet())));
+        VmsClientInfo monitoringClient = newClient();
+        monitoringClient.setMonitoringEnabled(true);
+
+        VmsSubscriberIndex index = VmsSubscriberIndex.create(
+                asList(providerClient, layerClient, monitoringClient));
+
+        assertThat(index.getSubscribers(PROVIDER_ID1, LAYER1))
+                .containsExactly(providerClient, layerClient, monitoringClient);
+        assertThat(index.getSubscribers(PROVIDER_ID2, LAYER1))
+                .containsExactly(layerClient, monitoringClient);
+        assertThat(index.getSubscribers(PROVIDER_ID1, LAYER2))
+                .containsExactly(monitoringClient);
+    }
+
+    @Test
+    public void testClientSubscribedTwice_listedOnce() {
+        VmsClientInfo client = newClient();
+        client.setSubscriptions(asList(
+                new VmsAssociatedLayer(LAYER1, emptySet()),
+                new VmsAssociatedLayer(LAYER2, new HashSet<>(asList(PROVIDER_ID1)))));
+        client.setMonitoringEnabled(true);
+
+        VmsSubscriberIndex index = VmsSubscriberIndex.create(Collections.singletonList(client));
+
+        assertThat(index.getSubscribers(PROVIDER_ID1, LAYER1)).containsExactly(client);
+        assertThat(index.getSubscribers(PROVIDER_ID1, LAYER2)).containsExactly(client);
+    }
+
+    private VmsClientInfo newClient() {
+        return new VmsClientInfo(0, "test.package", mCallback, false, () -> {});
+    }
+}
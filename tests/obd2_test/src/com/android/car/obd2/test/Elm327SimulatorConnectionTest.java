@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2.test;
+
+import static org.junit.Assert.*;
+
+import com.android.car.obd2.Obd2Connection;
+import com.android.car.obd2.connections.Elm327SimulatorConnection;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.Test;
+
+public class Elm327SimulatorConnectionTest {
+    @Test
+    public void testSupportedPids() throws Exception {
+        Elm327SimulatorConnection simulator = new Elm327SimulatorConnection();
+        simulator.addEcu().setPidValue(0x05, 0x5A).setPidValue(0x0C, 0x12, 0x0F)
+                .setPidValue(0x46, 0x20);
+        Obd2Connection connection = new Obd2Connection(simulator);
+
+        assertEquals(new HashSet<>(Arrays.asList(0x05, 0x0C, 0x20, 0x40, 0x46)),
+                connection.getSupportedPIDs());
+    }
+
+    @Test
+    public void testMultiEcuResponse() throws Exception {
+        Elm327SimulatorConnection simulator = new Elm327SimulatorConnection();
+        simulator.addEcu().setPidValue(0x0C, 0x12, 0x0F).setPidValue(0x0D, 0x82);
+        simulator.addEcu().setPidValue(0x0D, 0x83);
+        Obd2Connection connection = new Obd2Connection(simulator);
+
+        assertEquals("[65, 12, 18, 15, 13, 130, 65, 13, 131]",
+                Arrays.toString(connection.run("010C0D")));
+
+        simulator.setMultiPidSupported(false);
+        assertEquals("[65, 12, 18, 15]", Arrays.toString(connection.run("010C0D")));
+    }
+
+    @Test
+    public void testLongFrame() throws Exception {
+        Elm327SimulatorConnection simulator = new Elm327SimulatorConnection();
+        simulator.addEcu().setTroubleCodes("P0301", "P0420", "C0035", "U0100");
+        Obd2Connection connection = new Obd2Connection(simulator);
+
+        assertEquals(Arrays.asList("P0301", "P0420", "C0035", "U0100"),
+                connection.getDiagnosticTroubleCodes());
+    }
+
+    @Test
+    public void testErrorInjection() throws Exception {
+        Elm327SimulatorConnection simulator = new Elm327SimulatorConnection();
+        simulator.addEcu().setPidValue(0x0D, 0x82);
+        Obd2Connection connection = new Obd2Connection(simulator);
+
+        simulator.injectResponse("CAN ERROR");
+        try {
+            connection.run("010D");
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        assertEquals("[65, 13, 130]", Arrays.toString(connection.run("010D")));
+
+        simulator.disconnect();
+        try {
+            connection.run("010D");
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        assertTrue(connection.reconnect());
+        assertEquals("[65, 13, 130]", Arrays.toString(connection.run("010D")));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2.test;
+
+import static org.junit.Assert.*;
+
+import android.util.JsonWriter;
+import android.util.Log;
+import com.android.car.obd2.Obd2Connection;
+import com.android.car.obd2.Obd2FreezeFrameGenerator;
+import com.android.car.obd2.Obd2LiveFrameGenerator;
+import com.android.car.obd2.connections.Elm327SimulatorConnection;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Measures frames per second and command latency of the frame generators against a simulated
+ * vehicle, first without latency, which measures the cost of the code itself, then with the
+ * latency of a typical adapter. Results are logged under {@link #TAG}.
+ */
+public class Obd2BenchmarkTest {
+    public static final String TAG = Obd2BenchmarkTest.class.getSimpleName();
+
+    private static final int LIVE_FRAMES = 200;
+    private static final int SLOW_LIVE_FRAMES = 50;
+    private static final int FREEZE_ITERATIONS = 100;
+    private static final int SLOW_FREEZE_ITERATIONS = 10;
+
+    // A base latency per request, and a small extra one for each PID of a multi-PID request
+    private static final long LATENCY_MICROS = 1000;
+    private static final long PER_PID_LATENCY_MICROS = 100;
+
+    private static final String[] TROUBLE_CODES = new String[] {"P0301", "P0420"};
+    private static final String[] REORDERED_TROUBLE_CODES = new String[] {"P0420", "P0301"};
+
+    private static final class Result {
+        int frames;
+        long elapsedNanos;
+        long[] commandLatenciesNanos;
+
+        double getFramesPerSecond() {
+            return frames * 1e9 / elapsedNanos;
+        }
+
+        long getCommandLatencyPercentileMicros(int percentile) {
+            long[] latencies = commandLatenciesNanos.clone();
+            Arrays.sort(latencies);
+            int index = Math.max(0, (latencies.length * percentile + 99) / 100 - 1);
+            return TimeUnit.NANOSECONDS.toMicros(latencies[index]);
+        }
+    }
+
+    /**
+     * Adds an engine ECU answering all the supported PIDs, and a transmission ECU, to the vehicle.
+     *
+     * @return The engine ECU.
+     */
+    private static Elm327SimulatorConnection.Ecu addEcus(
+            Elm327SimulatorConnection simulator, long latencyMicros) {
+        Elm327SimulatorConnection.Ecu engine = simulator.addEcu();
+        engine
+                .setPidValue(0x03, 0x02, 0x00)
+                .setPidValue(0x04, 0x40)
+                .setPidValue(0x05, 0x5A)
+                .setPidValue(0x06, 0x80)
+                .setPidValue(0x07, 0x82)
+                .setPidValue(0x0A, 0x20)
+                .setPidValue(0x0C, 0x12, 0x0F)
+                .setPidValue(0x0D, 0x32)
+                .setPidValue(0x11, 0x30)
+                .setPidValue(0x1F, 0x01, 0x20)
+                .setPidValue(0x2F, 0xA0)
+                .setPidValue(0x46, 0x3C)
+                .setPidValue(0x5C, 0x6E)
+                .setTroubleCodes(TROUBLE_CODES);
+        simulator.addEcu().setPidValue(0x0D, 0x32).setPidValue(0x11, 0x30);
+        simulator.setLatency(latencyMicros, latencyMicros > 0 ? PER_PID_LATENCY_MICROS : 0);
+        return engine;
+    }
+
+    private static void logResult(String name, Result result) {
+        Log.i(
+                TAG,
+                String.format(
+                        "%s: %d frames, %.1f frames/s, %d commands, command latency p50 %d us,"
+                                + " p99 %d us",
+                        name,
+                        result.frames,
+                        result.getFramesPerSecond(),
+                        result.commandLatenciesNanos.length,
+                        result.getCommandLatencyPercentileMicros(50),
+                        result.getCommandLatencyPercentileMicros(99)));
+    }
+
+    private static Result runLiveFrames(long latencyMicros, int frames) throws Exception {
+        Elm327SimulatorConnection simulator = new Elm327SimulatorConnection();
+        addEcus(simulator, latencyMicros);
+        Obd2LiveFrameGenerator generator =
+                new Obd2LiveFrameGenerator(new Obd2Connection(simulator));
+        simulator.resetStatistics();
+
+        Result result = new Result();
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; ++i) {
+            StringWriter output = new StringWriter();
+            generator.generate(new JsonWriter(output), i);
+            if (i == 0) {
+                // RPM, from the engine ECU
+                assertTrue(output.toString(), output.toString().contains("\"id\":12"));
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.frames = frames;
+        result.commandLatenciesNanos = simulator.getCommandLatenciesNanos();
+        return result;
+    }
+
+    private static Result runFreezeFrames(long latencyMicros, int iterations) throws Exception {
+        Elm327SimulatorConnection simulator = new Elm327SimulatorConnection();
+        Elm327SimulatorConnection.Ecu engine = addEcus(simulator, latencyMicros);
+        Obd2FreezeFrameGenerator generator =
+                new Obd2FreezeFrameGenerator(new Obd2Connection(simulator));
+        simulator.resetStatistics();
+
+        Result result = new Result();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            // Reordering the trouble codes makes the generator read both freeze frames again
+            engine.setTroubleCodes(i % 2 == 0 ? REORDERED_TROUBLE_CODES : TROUBLE_CODES);
+            StringWriter output = new StringWriter();
+            JsonWriter jsonWriter = new JsonWriter(output);
+            jsonWriter.beginArray();
+            generator.generate(jsonWriter, i);
+            jsonWriter.endArray();
+            result.frames += output.toString().split("\"stringValue\"", -1).length - 1;
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.commandLatenciesNanos = simulator.getCommandLatenciesNanos();
+        return result;
+    }
+
+    @Test
+    public void benchmarkLiveFrames() throws Exception {
+        Result result = runLiveFrames(0, LIVE_FRAMES);
+        logResult("live frames, no latency", result);
+        assertEquals(LIVE_FRAMES, result.frames);
+
+        result = runLiveFrames(LATENCY_MICROS, SLOW_LIVE_FRAMES);
+        logResult("live frames, " + LATENCY_MICROS + " us latency", result);
+        assertTrue(
+                result.getCommandLatencyPercentileMicros(99)
+                        >= LATENCY_MICROS + PER_PID_LATENCY_MICROS);
+    }
+
+    @Test
+    public void benchmarkFreezeFrames() throws Exception {
+        Result result = runFreezeFrames(0, FREEZE_ITERATIONS);
+        logResult("freeze frames, no latency", result);
+        assertEquals(FREEZE_ITERATIONS * TROUBLE_CODES.length, result.frames);
+
+        result = runFreezeFrames(LATENCY_MICROS, SLOW_FREEZE_ITERATIONS);
+        logResult("freeze frames, " + LATENCY_MICROS + " us latency", result);
+        assertTrue(result.getCommandLatencyPercentileMicros(99) >= LATENCY_MICROS);
+    }
+}
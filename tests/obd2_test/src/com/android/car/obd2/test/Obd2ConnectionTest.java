@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2.test;
+
+import static com.android.car.obd2.test.Utils.concatIntArrays;
+import static com.android.car.obd2.test.Utils.stringsToIntArray;
+import static org.junit.Assert.*;
+
+import com.android.car.obd2.Obd2Connection;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class Obd2ConnectionTest {
+    private static final String[] EXPECTED_INIT_COMMANDS =
+            new String[] {
+                "ATD\r", "ATZ\r", "AT E0\r", "AT L0\r", "AT S0\r", "AT H0\r", "AT SP 0\r"
+            };
+
+    private static final String OBD2_PROMPT = ">";
+
+    private static final String[] EXPECTED_INIT_RESPONSES =
+            new String[] {
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT
+            };
+
+    private static int[] run(String command, String response) throws Exception {
+        MockObd2UnderlyingTransport transport =
+                new MockObd2UnderlyingTransport(
+                        concatIntArrays(
+                                stringsToIntArray(EXPECTED_INIT_COMMANDS),
+                                stringsToIntArray(new String[] {command + "\r"})),
+                        concatIntArrays(
+                                stringsToIntArray(EXPECTED_INIT_RESPONSES),
+                                stringsToIntArray(new String[] {response, OBD2_PROMPT})));
+        return new Obd2Connection(transport).run(command);
+    }
+
+    @Test
+    public void testPlainResponse() throws Exception {
+        assertEquals("[65, 12, 18, 15]", Arrays.toString(run("010C", "41 0C 12 0F\r\n")));
+    }
+
+    @Test
+    public void testEchoAndStatusMessagesAreRemoved() throws Exception {
+        assertEquals(
+                "[65, 13, 130]",
+                Arrays.toString(run("010D", "010D\rSEARCHING...\r41 0D 82\r")));
+    }
+
+    @Test
+    public void testLongFrame() throws Exception {
+        assertEquals(
+                "[73, 2, 1, 49, 70, 65]",
+                Arrays.toString(run("0902", "006\r0: 49 02 01 31 46\r1: 41\r")));
+    }
+
+    @Test
+    public void testSpecialResponses() throws Exception {
+        assertEquals("[1]", Arrays.toString(run("0100", "OK")));
+        assertEquals("[0]", Arrays.toString(run("0100", "?")));
+        assertEquals("[]", Arrays.toString(run("0100", "NO DATA")));
+    }
+
+    @Test
+    public void testBusErrors() throws Exception {
+        for (String error : new String[] {"CAN ERROR", "BUS ERROR", "UNABLE TO CONNECT"}) {
+            try {
+                run("010C", error);
+                fail("expected IOException for " + error);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidHexDigit() throws Exception {
+        try {
+            run("010C", "41 0C 1X");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.obd2.test;
+
+import static com.android.car.obd2.test.Utils.concatIntArrays;
+import static com.android.car.obd2.test.Utils.stringsToIntArray;
+import static org.junit.Assert.*;
+
+import com.android.car.obd2.Obd2Connection;
+import com.android.car.obd2.Obd2LiveDataPoller;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class Obd2LiveDataPollerTest {
+    private static final String[] EXPECTED_INIT_COMMANDS =
+            new String[] {
+                "ATD\r", "ATZ\r", "AT E0\r", "AT L0\r", "AT S0\r", "AT H0\r", "AT SP 0\r"
+            };
+
+    private static final String OBD2_PROMPT = ">";
+
+    private static final String[] EXPECTED_INIT_RESPONSES =
+            new String[] {
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT,
+                OBD2_PROMPT
+            };
+
+    private static final String[] EXPECTED_DISCOVERY_COMMANDS =
+            new String[] {"0100\r", "0120\r", "0140\r", "0160\r"};
+
+    // Coolant temperature, RPM and speed
+    private static final String[] EXPECTED_DISCOVERY_RESPONSES =
+            new String[] {"00 00 08 18 00 00", OBD2_PROMPT, OBD2_PROMPT, OBD2_PROMPT, OBD2_PROMPT};
+
+    private static final String[] EMPTY_DISCOVERY_RESPONSES =
+            new String[] {"00 00 00 00 00 00", OBD2_PROMPT, OBD2_PROMPT, OBD2_PROMPT, OBD2_PROMPT};
+
+    // The first request reads all the PIDs, the following ones only the fast ones
+    private static final String[] EXPECTED_POLL_COMMANDS =
+            new String[] {"010C0D05\r", "010C0D\r", "010C0D\r"};
+
+    private static final String[] EXPECTED_POLL_RESPONSES =
+            new String[] {
+                "41 0C 12 0F 0D 82 05 5A", OBD2_PROMPT,
+                "41 0C 12 0F 0D 82", OBD2_PROMPT,
+                "41 0C 12 0F 0D 82", OBD2_PROMPT
+            };
+
+    private static final class RecordingListener implements Obd2LiveDataPoller.Listener {
+        final List<String> mValues = new ArrayList<>();
+
+        @Override
+        public void onIntegerValue(int pid, int value, long timestampNanos) {
+            mValues.add(String.format("%02X=%d", pid, value));
+        }
+
+        @Override
+        public void onFloatValue(int pid, float value, long timestampNanos) {
+            mValues.add(String.format("%02X=%f", pid, value));
+        }
+    }
+
+    private volatile long mNowNanos;
+
+    private Obd2LiveDataPoller createPoller(Obd2LiveDataPoller.Listener listener)
+            throws Exception {
+        return createPoller(
+                listener,
+                EXPECTED_DISCOVERY_RESPONSES,
+                EXPECTED_POLL_COMMANDS,
+                EXPECTED_POLL_RESPONSES);
+    }
+
+    private Obd2LiveDataPoller createPoller(
+            Obd2LiveDataPoller.Listener listener,
+            String[] discoveryResponses,
+            String[] pollCommands,
+            String[] pollResponses)
+            throws Exception {
+        MockObd2UnderlyingTransport transport =
+                new MockObd2UnderlyingTransport(
+                        concatIntArrays(
+                                stringsToIntArray(EXPECTED_INIT_COMMANDS),
+                                stringsToIntArray(EXPECTED_DISCOVERY_COMMANDS),
+                                stringsToIntArray(pollCommands)),
+                        concatIntArrays(
+                                stringsToIntArray(EXPECTED_INIT_RESPONSES),
+                                stringsToIntArray(discoveryResponses),
+                                stringsToIntArray(pollResponses)));
+        return new Obd2LiveDataPoller(new Obd2Connection(transport), listener, () -> mNowNanos);
+    }
+
+    @Test
+    public void testPollsFastPidsMoreOften() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        Obd2LiveDataPoller poller = createPoller(listener);
+        assertEquals(Arrays.asList(0x05, 0x0C, 0x0D), poller.getPids());
+
+        long delayMs = poller.pollOnce();
+        assertEquals(Arrays.asList("0C=1155", "0D=130", "05=50"), listener.mValues);
+        assertEquals(100, delayMs);
+
+        for (int i = 0; i < 2; ++i) {
+            listener.mValues.clear();
+            mNowNanos += TimeUnit.MILLISECONDS.toNanos(delayMs);
+            delayMs = poller.pollOnce();
+            assertEquals(Arrays.asList("0C=1155", "0D=130"), listener.mValues);
+            assertEquals(100, delayMs);
+        }
+
+        assertEquals(3, poller.getRequestCount());
+        assertEquals(3, poller.getReadCount(0x0C));
+        assertEquals(1, poller.getReadCount(0x05));
+    }
+
+    @Test
+    public void testNothingDue() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        Obd2LiveDataPoller poller = createPoller(listener);
+        poller.pollOnce();
+        listener.mValues.clear();
+
+        mNowNanos += TimeUnit.MILLISECONDS.toNanos(40);
+        assertEquals(60, poller.pollOnce());
+        assertTrue(listener.mValues.isEmpty());
+        assertEquals(1, poller.getRequestCount());
+    }
+
+    @Test
+    public void testLatePidPolledOncePerPeriod() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        Obd2LiveDataPoller poller = createPoller(listener);
+        poller.pollOnce();
+        listener.mValues.clear();
+
+        // More than two periods late, the fast PIDs are read once and not again right away
+        mNowNanos += TimeUnit.MILLISECONDS.toNanos(250);
+        assertEquals(100, poller.pollOnce());
+        assertEquals(Arrays.asList("0C=1155", "0D=130"), listener.mValues);
+        assertEquals(100, poller.pollOnce());
+        assertEquals(2, poller.getRequestCount());
+
+        listener.mValues.clear();
+        mNowNanos += TimeUnit.MILLISECONDS.toNanos(50);
+        assertEquals(50, poller.pollOnce());
+        assertTrue(listener.mValues.isEmpty());
+
+        mNowNanos += TimeUnit.MILLISECONDS.toNanos(50);
+        assertEquals(100, poller.pollOnce());
+        assertEquals(Arrays.asList("0C=1155", "0D=130"), listener.mValues);
+        assertEquals(3, poller.getRequestCount());
+    }
+
+    @Test
+    public void testAddPidWakesIdlePoller() throws Exception {
+        CountDownLatch read = new CountDownLatch(1);
+        Obd2LiveDataPoller.Listener listener =
+                new Obd2LiveDataPoller.Listener() {
+                    @Override
+                    public void onIntegerValue(int pid, int value, long timestampNanos) {
+                        if (pid == 0x0C && value == 1155) {
+                            read.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void onFloatValue(int pid, float value, long timestampNanos) {}
+                };
+        Obd2LiveDataPoller poller =
+                createPoller(
+                        listener,
+                        EMPTY_DISCOVERY_RESPONSES,
+                        new String[] {"010C\r"},
+                        new String[] {"41 0C 12 0F", OBD2_PROMPT});
+        assertTrue(poller.getPids().isEmpty());
+        assertEquals(Long.MAX_VALUE, poller.pollOnce());
+
+        Thread thread = new Thread(poller::run);
+        thread.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (thread.getState() != Thread.State.WAITING
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(Thread.State.WAITING, thread.getState());
+
+            poller.addPid(0x0C);
+            assertTrue(read.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(0x0C), poller.getPids());
+        } finally {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testSetPolicy() throws Exception {
+        Obd2LiveDataPoller poller = createPoller(new RecordingListener());
+        poller.pollOnce();
+
+        // Once read again, slowed down PIDs leave the coolant temperature as the next one due
+        poller.setPolicy(0x0C, 10000, Obd2LiveDataPoller.PRIORITY_LOW);
+        poller.setPolicy(0x0D, 10000, Obd2LiveDataPoller.PRIORITY_LOW);
+        mNowNanos += TimeUnit.MILLISECONDS.toNanos(100);
+        assertEquals(4900, poller.pollOnce());
+
+        try {
+            poller.setPolicy(0x0C, 0, Obd2LiveDataPoller.PRIORITY_LOW);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            poller.setPolicy(0x42, 100, Obd2LiveDataPoller.PRIORITY_LOW);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -56,23 +56,51 @@ public class Obd2LiveFrameGeneratorTest {
     private static final String[] EXPECTED_DISCOVERY_RESPONSES =
             new String[] {"00 00 00 18 00 00", OBD2_PROMPT, OBD2_PROMPT, OBD2_PROMPT, OBD2_PROMPT};
 
-    private static final String[] EXPECTED_FRAME_COMMANDS = new String[] {"010C\r", "010D\r"};
+    private static final String[] EXPECTED_FRAME_COMMANDS = new String[] {"010C0D\r"};
 
     private static final String[] EXPECTED_FRAME_RESPONSES =
-            new String[] {"41 0C 12 0F", OBD2_PROMPT, "41 0D 82", OBD2_PROMPT};
+            new String[] {"41 0C 12 0F 0D 82", OBD2_PROMPT};
+
+    // Two ECUs answering, the second one only with the speed
+    private static final String[] EXPECTED_MULTI_ECU_FRAME_RESPONSES =
+            new String[] {"41 0C 12 0F 0D 82\r41 0D 82\r", OBD2_PROMPT};
+
+    // A vehicle that does not answer multi-PID requests is queried one PID at a time
+    private static final String[] EXPECTED_FALLBACK_FRAME_COMMANDS =
+            new String[] {"010C0D\r", "010C\r", "010D\r"};
+
+    private static final String[] EXPECTED_FALLBACK_FRAME_RESPONSES =
+            new String[] {
+                "NO DATA", OBD2_PROMPT, "41 0C 12 0F", OBD2_PROMPT, "41 0D 82", OBD2_PROMPT
+            };
 
     @Test
     public void testObd2LiveFrameGeneration() throws Exception {
+        checkLiveFrame(EXPECTED_FRAME_COMMANDS, EXPECTED_FRAME_RESPONSES);
+    }
+
+    @Test
+    public void testObd2LiveFrameGenerationMultipleEcus() throws Exception {
+        checkLiveFrame(EXPECTED_FRAME_COMMANDS, EXPECTED_MULTI_ECU_FRAME_RESPONSES);
+    }
+
+    @Test
+    public void testObd2LiveFrameGenerationSinglePidFallback() throws Exception {
+        checkLiveFrame(EXPECTED_FALLBACK_FRAME_COMMANDS, EXPECTED_FALLBACK_FRAME_RESPONSES);
+    }
+
+    private void checkLiveFrame(String[] frameCommands, String[] frameResponses)
+            throws Exception {
         MockObd2UnderlyingTransport transport =
                 new MockObd2UnderlyingTransport(
                         concatIntArrays(
                                 stringsToIntArray(EXPECTED_INIT_COMMANDS),
                                 stringsToIntArray(EXPECTED_DISCOVERY_COMMANDS),
-                                stringsToIntArray(EXPECTED_FRAME_COMMANDS)),
+                                stringsToIntArray(frameCommands)),
                         concatIntArrays(
                                 stringsToIntArray(EXPECTED_INIT_RESPONSES),
                                 stringsToIntArray(EXPECTED_DISCOVERY_RESPONSES),
-                                stringsToIntArray(EXPECTED_FRAME_RESPONSES)));
+                                stringsToIntArray(frameResponses)));
         Obd2Connection obd2Connection = new Obd2Connection(transport);
         Obd2LiveFrameGenerator obd2Generator = new Obd2LiveFrameGenerator(obd2Connection);
         StringWriter stringWriter = new StringWriter(1024);